@@ -2,6 +2,7 @@ package org.dataconservancy.packaging.tool.api;
 
 import java.util.List;
 
+import org.dataconservancy.packaging.tool.api.support.TreeValidation;
 import org.dataconservancy.packaging.tool.model.dprofile.DomainProfile;
 import org.dataconservancy.packaging.tool.model.dprofile.NodeTransform;
 import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
@@ -127,6 +128,18 @@ public interface DomainProfileService {
      */
     boolean validateTree(Node root);
 
+    /**
+     * Validate a tree as {@link #validateTree(Node)} does, and check the
+     * properties of each node as {@link #validateProperties(Node, NodeType)}
+     * does, keeping the results so that after an edit only the nodes it could
+     * affect need to be checked again.
+     * 
+     * @param root
+     *            The root node of the tree to validate.
+     * @return The validation of the tree, updated for every node.
+     */
+    TreeValidation createTreeValidation(Node root);
+
     /**
      * Attempt to assign node types to a tree such that it is valid with respect
      * to node types. Only the node and its descendants will have types
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
 
+import org.dataconservancy.dcs.util.FormatScanPolicy;
+import org.dataconservancy.packaging.tool.api.support.FileInfoEnrichment;
 import org.dataconservancy.packaging.tool.api.support.NodeComparison;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
 
@@ -18,6 +20,36 @@ public interface IPMService {
      */
     Node createTreeFromFileSystem(Path path) throws IOException;
 
+    /**
+     * Create a tree from the file system, returning as soon as the structure of the tree and the basic attributes
+     * of its files are known. The fingerprints, checksums and formats of the files are read in the background, and
+     * the returned enrichment tracks their progress. Types can be assigned to the nodes of the tree straight away, as
+     * that only depends on which nodes are files, but anything which uses the content of the files must wait for the
+     * enrichment to complete.
+     *
+     * @param path The path on the file system to create a node tree from.
+     * @param listener Notified as the file information of each node is enriched, may be null.
+     * @throws IOException If the file system can't be walked or a file name is invalid.
+     * @return the enrichment of the tree, which holds its root, or null if the calling thread was interrupted
+     */
+    FileInfoEnrichment createTreeStructureFromFileSystem(Path path, FileInfoEnrichment.ProgressListener listener)
+        throws IOException;
+
+    /**
+     * Create a tree from the file system as {@link #createTreeStructureFromFileSystem(Path,
+     * FileInfoEnrichment.ProgressListener)} does, detecting the formats of its files as directed by the given policy
+     * rather than the service's own.
+     *
+     * @param path The path on the file system to create a node tree from.
+     * @param formatScanPolicy The policy controlling how much of each file is read to detect its formats.
+     * @param listener Notified as the file information of each node is enriched, may be null.
+     * @throws IOException If the file system can't be walked or a file name is invalid.
+     * @return the enrichment of the tree, which holds its root, or null if the calling thread was interrupted
+     */
+    FileInfoEnrichment createTreeStructureFromFileSystem(Path path, FormatScanPolicy formatScanPolicy,
+                                                         FileInfoEnrichment.ProgressListener listener)
+        throws IOException;
+
     /**
      * Change the ignored status of a node. This may cause the types of other
      * nodes to change.
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.api;
+
+import java.io.File;
+
+import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.PackageVerificationReport;
+
+/**
+ * Verifies the fixity of a generated package against its manifests.
+ */
+public interface PackageVerificationService {
+
+    /**
+     * Verifies a package, which may be either an exploded bag directory or a (possibly compressed) archive of a bag.
+     * The checksums of every file listed in the payload and tag manifests are checked, every payload file must be
+     * listed in the payload manifests, and the Payload-Oxum, if present, must match the payload.
+     *
+     * @param pkg the package file or directory
+     * @return a report of what was verified, and any problems found
+     * @throws PackageToolException if the package can't be read
+     */
+    PackageVerificationReport verifyPackage(File pkg) throws PackageToolException;
+
+    /**
+     * Verifies a package as {@link #verifyPackage(File)} does, checksumming the given number of files of an exploded
+     * bag at once.
+     *
+     * @param pkg the package file or directory
+     * @param threads the number of files to checksum at once, or 0 for the service's default
+     * @return a report of what was verified, and any problems found
+     * @throws PackageToolException if the package can't be read
+     * @throws IllegalArgumentException if the number of threads is negative
+     */
+    PackageVerificationReport verifyPackage(File pkg, int threads) throws PackageToolException;
+}
@@ -17,7 +17,11 @@
 package org.dataconservancy.packaging.tool.api.generator;
 
 import org.dataconservancy.packaging.tool.model.PackageGenerationParameters;
+import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
+import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 import java.net.URI;
@@ -128,6 +132,37 @@ public interface PackageAssembler {
                        PackageResourceType type,
                        InputStream content);
 
+    /**
+     * Create a new resource in the package from the content of a file described
+     * in the package tree.
+     * <p>
+     * The supplied FileInfo carries the size, last modified time and checksums
+     * recorded for the file when the package tree was built. Assemblers which
+     * can make use of the recorded checksums may do so, provided the file has not
+     * changed since they were recorded. By default the file is simply read and
+     * added via {@link #createResource(String, PackageResourceType, InputStream)}.
+     * </p>
+     *
+     * @param path
+     *        Logical file path (including filename) of the resource relative to
+     *        the package.
+     * @param type
+     *        Resource type (e.g. data, metadata, etc).
+     * @param source
+     *        FileInfo describing the file whose content is to be added.
+     * @return URI of created resource
+     */
+    default URI createResource(String path,
+                               PackageResourceType type,
+                               FileInfo source) {
+        try (InputStream content = source.getLocation().toURL().openStream()) {
+            return createResource(path, type, content);
+        } catch (IOException e) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e,
+                    source.getLocation().toString());
+        }
+    }
+
     /**
      * Produce a {@code Package} object based on the added resources.
      * <p>
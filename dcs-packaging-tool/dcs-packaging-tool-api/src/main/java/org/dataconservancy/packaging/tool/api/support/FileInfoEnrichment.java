@@ -0,0 +1,64 @@
+package org.dataconservancy.packaging.tool.api.support;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.dataconservancy.packaging.tool.model.ipm.Node;
+
+/**
+ * The reading of the fingerprints, checksums and formats of the files in a tree, which carries on in the background
+ * after the structure of the tree has been built. Until a node has been enriched its file information only holds the
+ * location, name and basic attributes of its file, which is enough to tell files from directories.
+ */
+public interface FileInfoEnrichment {
+
+    /**
+     * Notified each time the file information of a node has been enriched.
+     */
+    @FunctionalInterface
+    interface ProgressListener {
+
+        /**
+         * Called on the thread that enriched the node, so it must not change the tree.
+         * @param node The node whose file information has been enriched.
+         * @param enriched The number of nodes enriched so far.
+         * @param total The number of nodes in the tree.
+         */
+        void nodeEnriched(Node node, int enriched, int total);
+    }
+
+    /**
+     * @return The root of the tree being enriched.
+     */
+    Node getRoot();
+
+    /**
+     * @return The number of nodes in the tree.
+     */
+    int getTotal();
+
+    /**
+     * @return The number of nodes enriched so far.
+     */
+    int getEnriched();
+
+    /**
+     * @return A future completed with the root of the tree once every node has been enriched, or completed
+     * exceptionally if a file couldn't be read. Cancelling the future stops the enrichment.
+     */
+    CompletableFuture<Node> getCompletion();
+
+    /**
+     * Waits for every node to be enriched.
+     * @return The root of the tree.
+     * @throws IOException If a file couldn't be read.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     * @throws java.util.concurrent.CancellationException If the enrichment was cancelled.
+     */
+    Node await() throws IOException, InterruptedException;
+
+    /**
+     * Stops enriching nodes. Nodes which were not enriched keep only their basic file information.
+     */
+    void cancel();
+}
@@ -0,0 +1,56 @@
+package org.dataconservancy.packaging.tool.api.support;
+
+import java.util.List;
+import java.util.Set;
+
+import org.dataconservancy.packaging.tool.model.dprofile.PropertyConstraint;
+import org.dataconservancy.packaging.tool.model.ipm.Node;
+
+/**
+ * The validation of a tree, kept up to date as the tree is edited. The result of validating each node is remembered,
+ * so after an edit only the nodes it could affect are checked again: the changed node, its parent and its children.
+ *
+ * Edits made through the {@link org.dataconservancy.packaging.tool.api.DomainProfileService} which created the
+ * validation, such as changing the properties of a node or transforming it, are noticed by the validation. Other
+ * edits, such as ignoring a node or moving it in the tree directly, must be reported with {@link #invalidate(Node)}.
+ * Nothing is checked again until {@link #update()} is called.
+ */
+public interface TreeValidation {
+
+    /**
+     * @return The root of the tree being validated.
+     */
+    Node getRoot();
+
+    /**
+     * Marks a node as changed, so that it, its parent and its children are checked again by the next update. A node
+     * which is no longer in the tree, or has been ignored, is forgotten along with its descendants.
+     * @param node The node which has changed.
+     */
+    void invalidate(Node node);
+
+    /**
+     * Checks the nodes affected by changes since the last update.
+     * @return The nodes whose validation errors have changed, including nodes whose errors are gone because they have
+     * been ignored or removed from the tree.
+     */
+    Set<Node> update();
+
+    /**
+     * @return Whether the tree was valid at the last update, as
+     * {@link org.dataconservancy.packaging.tool.api.DomainProfileService#validateTree(Node)} would have said.
+     */
+    boolean isValid();
+
+    /**
+     * @return The nodes which didn't satisfy the constraints of their node types at the last update.
+     */
+    Set<Node> getInvalidNodes();
+
+    /**
+     * @param node A node of the tree.
+     * @return The property constraints the node violated at the last update, or an empty list if there were none or
+     * the node isn't validated.
+     */
+    List<PropertyConstraint> getPropertyViolations(Node node);
+}
@@ -37,12 +37,13 @@ import org.apache.commons.lang.StringUtils;
 
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
-import org.dataconservancy.packaging.tool.api.DomainProfileService;
+import org.dataconservancy.dcs.util.FormatScanPolicy;
 import org.dataconservancy.packaging.tool.api.DomainProfileStore;
 import org.dataconservancy.packaging.tool.api.IPMService;
 import org.dataconservancy.packaging.tool.api.Package;
 import org.dataconservancy.packaging.tool.api.PackageGenerationService;
 import org.dataconservancy.packaging.tool.api.PackagingFormat;
+import org.dataconservancy.packaging.tool.api.support.FileInfoEnrichment;
 import org.dataconservancy.packaging.tool.impl.DomainProfileObjectStore;
 import org.dataconservancy.packaging.tool.impl.DomainProfileObjectStoreImpl;
 import org.dataconservancy.packaging.tool.impl.DomainProfileRdfTransformService;
@@ -84,6 +85,9 @@ import org.springframework.context.support.ClassPathXmlApplicationContext;
  * 
  */
 public class PackageGenerationApp {
+    /** The system property read by the application context for the directory to keep trees in */
+    private static final String NODE_STORE_DIRECTORY_PROPERTY = "dcs.node.store.dir";
+
 	private ClassPathXmlApplicationContext appContext;
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
@@ -145,6 +149,18 @@ public class PackageGenerationApp {
     @Option(name = "-s", aliases = { "--checksum"}, metaVar = "md5|sha1", usage = "Checksum algorithms to use.  If none specified, will use md5.  Can be specified multiple times")
     public List<String> checksums;
 
+    /** Format scan window **/
+    @Option(name = "--scan-window", metaVar = "<bytes>", usage = "Number of bytes at the beginning and end of each file to search when detecting its format.  If not specified, the whole file is searched.")
+    public Long scanWindow;
+
+    /** Trusted extensions **/
+    @Option(name = "--trusted-extension", metaVar = "<ext>", usage = "Extension of files to identify by their extension alone, without reading their content.  Can be specified multiple times")
+    public List<String> trustedExtensions;
+
+    /** Node store directory **/
+    @Option(name = "--node-store", metaVar = "<path>", usage = "Directory in which to keep the nodes of the package tree on disk rather than in memory, for content with too many files for its tree to fit in memory.")
+    public File nodeStoreDirectory;
+
     /** Package Name **/
     @Option(name = "-n", aliases = { "--name", "--package-name"}, metaVar = "<name>", usage = "The package name, which also determines the output filename.  Will override value in Package Generation Parameters file.")
     public String packageName;
@@ -170,11 +186,20 @@ public class PackageGenerationApp {
     public String serializationFormat;
 
 
-	public PackageGenerationApp() {
+    /*
+     * The application context is only created once the options are known, as some of them configure its beans.
+     */
+	private void createApplicationContext() {
+        if (nodeStoreDirectory != null) {
+            System.setProperty(NODE_STORE_DIRECTORY_PROPERTY, nodeStoreDirectory.getPath());
+        }
+
 		appContext = new ClassPathXmlApplicationContext(
                 "classpath*:org/dataconservancy/cli/config/applicationContext.xml",
                 "classpath*:org/dataconservancy/config/applicationContext.xml",
                 "classpath*:org/dataconservancy/packaging/tool/ser/config/applicationContext.xml");
+        //Closing the context deletes the files of the stores that trees are kept in
+        appContext.registerShutdownHook();
     }
 
 	public static void main(String[] args) {
@@ -219,6 +244,8 @@ public class PackageGenerationApp {
 
 	private void run() throws PackageToolException {
 
+        createApplicationContext();
+
         boolean useDefaults = true;
 
 		// Prepare parameter builder
@@ -290,11 +317,15 @@ public class PackageGenerationApp {
         validateLocationParameters(packageParams);
 
         Node tree = null;
+        FileInfoEnrichment enrichment = null;
         if(this.contentRootFile != null) {
             if (this.contentRootFile.exists()) {
                 try {
                     IPMService ipmService = appContext.getBean("ipmService", IPMService.class);
-                    tree = ipmService.createTreeFromFileSystem(Paths.get(contentRootFile.getPath()));
+                    //Files are read in the background while the profile is loaded and types are assigned
+                    enrichment = ipmService.createTreeStructureFromFileSystem(Paths.get(contentRootFile.getPath()),
+                            createFormatScanPolicy(packageParams), null);
+                    tree = enrichment != null ? enrichment.getRoot() : null;
                 } catch (IOException e) {
                     log.error(e.getMessage());
                     throw new PackageToolException(PackagingToolReturnInfo.CMD_LINE_FILE_NOT_FOUND_EXCEPTION);
@@ -315,7 +346,8 @@ public class PackageGenerationApp {
         URIGenerator uriGen = appContext.getBean("uriGenerator", SimpleURIGenerator.class);
         Model domainObjectModel = ModelFactory.createDefaultModel();
         DomainProfileObjectStore domainProfileObjectStore = new DomainProfileObjectStoreImpl(domainObjectModel, uriGen);
-        DomainProfileService profileService = new DomainProfileServiceImpl(domainProfileObjectStore, uriGen);
+        DomainProfileServiceImpl profileService = new DomainProfileServiceImpl(domainProfileObjectStore, uriGen);
+        profileService.setThreads(Runtime.getRuntime().availableProcessors());
         DomainProfileRdfTransformService domainProfileRdfTransformService = new DomainProfileRdfTransformService();
         DomainProfileStore domainProfileStore = appContext.getBean("domainProfileStore", DomainProfileStoreJenaImpl.class);
         IpmRdfTransformService ipm2rdf = appContext.getBean("ipmRdfTransformService", IpmRdfTransformService.class);
@@ -366,10 +398,40 @@ public class PackageGenerationApp {
         domainProfileStore.setPrimaryDomainProfiles(Collections.singletonList(profile));
         ipm2rdf.setDomainProfileStore(domainProfileStore);
 
-        if (!profileService.assignNodeTypes(profile, tree)) {
+        boolean assigned;
+
+        try {
+            assigned = profileService.assignNodeTypes(profile, tree);
+        } finally {
+            profileService.close();
+        }
+
+        if (!assigned) {
+            if (enrichment != null) {
+                enrichment.cancel();
+            }
             throw new PackageToolException(PackagingToolReturnInfo.CMD_LINE_CANT_ASSIGN_NODE_TYPES);
         }
 
+        if (enrichment != null) {
+            try {
+                enrichment.await();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                throw new PackageToolException(PackagingToolReturnInfo.CMD_LINE_FILE_NOT_FOUND_EXCEPTION, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PackageToolException(PackagingToolReturnInfo.CMD_LINE_FILE_NOT_FOUND_EXCEPTION, e);
+            }
+
+            //The formats of files were not known when their domain objects were created, so add them now
+            tree.walk(node -> {
+                if (!node.isIgnored() && node.getDomainObject() != null && node.getFileInfo().isFile()) {
+                    domainProfileObjectStore.updateObject(node);
+                }
+            });
+        }
+
         try {
             state.setPackageTree(ipm2rdf.transformToRDF(tree));
         } catch (RDFTransformException e) {
@@ -489,9 +551,35 @@ public class PackageGenerationApp {
         if(serializationFormat != null){
             params.addParam(GeneralParameterNames.REM_SERIALIZATION_FORMAT, serializationFormat);
         }
+        if (scanWindow != null) {params.addParam(GeneralParameterNames.FORMAT_SCAN_WINDOW, scanWindow.toString());}
+        if (trustedExtensions != null && !trustedExtensions.isEmpty()) {
+            params.addParam(GeneralParameterNames.FORMAT_TRUSTED_EXTENSIONS, trustedExtensions);
+        }
         return params;
     }
 
+    /**
+     * Creates the policy used to detect the formats of files in the content tree from the package generation params.
+     * @param params  the package generation parameters
+     * @return the format scan policy for this run
+     */
+    private FormatScanPolicy createFormatScanPolicy(PackageGenerationParameters params) {
+        String window = params.getParam(GeneralParameterNames.FORMAT_SCAN_WINDOW, 0);
+        List<String> extensions = params.getParam(GeneralParameterNames.FORMAT_TRUSTED_EXTENSIONS);
+
+        long scanWindow = -1;
+        if (window != null && !window.trim().isEmpty()) {
+            try {
+                scanWindow = Long.parseLong(window.trim());
+            } catch (NumberFormatException e) {
+                throw new PackageToolException(PackagingToolReturnInfo.CMD_LINE_PARAM_BUILD_EXCEPTION, e,
+                        GeneralParameterNames.FORMAT_SCAN_WINDOW + " must be a number of bytes, was " + window);
+            }
+        }
+
+        return new FormatScanPolicy(scanWindow, extensions != null ? extensions : Collections.<String>emptyList());
+    }
+
     /**
      * we validate locations of files passed as arguments elsewhere, but the locations passed as options
      * eventually end up in the PAckageGenerationsParameters. We validate these parameter values only after
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.cli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.dataconservancy.packaging.tool.api.PackageVerificationService;
+import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.PackageVerificationReport;
+import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Application for verifying the fixity of generated packages.
+ * <p>
+ * The package may be an exploded bag directory, or a (possibly compressed) tar or zip archive. A JSON report of the
+ * verification is written to stdout, or to the file given by <tt>-r report_file</tt>. The application exits with 0 if
+ * the package is valid, and with
+ * {@link PackagingToolReturnInfo#CMD_LINE_PACKAGE_NOT_VERIFIED} if problems were found.
+ * </p>
+ */
+public class PackageValidationApp {
+    private ClassPathXmlApplicationContext appContext;
+
+    /*
+     *
+     * Arguments
+     */
+    @Argument(required = true, index = 0, metaVar = "[package]", usage = "package file or exploded package directory")
+    public File packageFile = null;
+
+    /*
+     *
+     * General Options
+     */
+    /** Request for help/usage documentation */
+    @Option(name = "-h", aliases = { "-help", "--help" }, usage = "print help message")
+    public boolean help = false;
+
+    /** Requests the current version number of the cli application. */
+    @Option(name = "-v", aliases = { "-version", "--version" }, usage = "print version information")
+    public boolean version = false;
+
+    /*
+     *
+     * Verification Options
+     */
+    /** Report location **/
+    @Option(name = "-r", aliases = { "--report" }, metaVar = "<file>", usage = "File to write the JSON verification report to.  If not specified, the report is written to stdout.")
+    public File reportFile;
+
+    /** Number of files to checksum at once **/
+    @Option(name = "-t", aliases = { "--threads" }, metaVar = "<n>", usage = "Number of files of an exploded package to checksum at once.  Defaults to the number of available processors.")
+    public int threads = 0;
+
+    public PackageValidationApp() {
+        appContext = new ClassPathXmlApplicationContext(
+                "classpath*:org/dataconservancy/cli/config/applicationContext.xml",
+                "classpath*:org/dataconservancy/config/applicationContext.xml",
+                "classpath*:org/dataconservancy/packaging/tool/ser/config/applicationContext.xml");
+    }
+
+    public static void main(String[] args) {
+
+        final PackageValidationApp application = new PackageValidationApp();
+
+        CmdLineParser parser = new CmdLineParser(application);
+
+        try {
+            parser.parseArgument(args);
+            if (application.threads < 0) {
+                throw new CmdLineException(parser, "The number of threads can't be negative: " + application.threads,
+                        null);
+            }
+
+            /* Handle general options such as help, version */
+            if (application.help) {
+                parser.printUsage(System.err);
+                System.err.println();
+                System.exit(0);
+            } else if (application.version) {
+                System.err.println(PackageValidationApp.class.getPackage()
+                        .getImplementationVersion());
+                System.exit(0);
+            }
+
+            /* Run the package verification application proper */
+            if (!application.run()) {
+                System.exit(PackagingToolReturnInfo.CMD_LINE_PACKAGE_NOT_VERIFIED.returnCode());
+            }
+
+        } catch (CmdLineException e) {
+            /*
+             * This is an error in command line args, just print out usage data
+             * and description of the error.
+             */
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            System.err.println();
+            System.exit(1);
+        } catch (PackageToolException e) {
+            System.err.println(e.getMessage());
+            System.exit(e.getCode());
+        }
+    }
+
+    /**
+     * Verifies the package and writes the report.
+     * @return true if the package is valid
+     */
+    private boolean run() throws PackageToolException {
+        if (!packageFile.exists()) {
+            throw new PackageToolException(PackagingToolReturnInfo.CMD_LINE_FILE_NOT_FOUND_EXCEPTION,
+                    packageFile.getPath());
+        }
+
+        PackageVerificationService verificationService = appContext.getBean(
+                "packageVerificationService", PackageVerificationService.class);
+        PackageVerificationReport report = verificationService.verifyPackage(packageFile, threads);
+
+        if (reportFile != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8)) {
+                writer.write(report.toJson());
+            } catch (IOException e) {
+                throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e, reportFile.getPath());
+            }
+            System.err.println("Wrote verification report to " + reportFile);
+        } else {
+            System.out.print(report.toJson());
+        }
+
+        System.err.println(report.isValid() ? "Package is valid." :
+                "Package is not valid: " + report.getProblems().size() + " problem(s) found.");
+        return report.isValid();
+    }
+}
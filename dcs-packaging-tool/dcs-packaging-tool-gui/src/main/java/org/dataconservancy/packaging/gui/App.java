@@ -47,6 +47,8 @@ public class App extends Application {
 
     public void start(Stage stage) throws Exception {
         ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("classpath*:org/dataconservancy/config/applicationContext.xml", "classpath*:org/dataconservancy/packaging/tool/ser/config/applicationContext.xml", "classpath*:applicationContext.xml");
+        //Closing the context deletes the files of the stores that trees are kept in
+        context.registerShutdownHook();
 
         // min supported size is 800x600
         stage.setMinWidth(800);
@@ -447,7 +447,14 @@ public class Controller {
             store = new DomainProfileObjectStoreImpl(packageState.getDomainObjectRDF(), uriGenerator);
         }
 
-        domainProfileService = new DomainProfileServiceImpl(store, uriGenerator);
+        //Stop the threads of the service being replaced, which belonged to the previous package
+        if (domainProfileService instanceof DomainProfileServiceImpl) {
+            ((DomainProfileServiceImpl) domainProfileService).close();
+        }
+
+        DomainProfileServiceImpl profileService = new DomainProfileServiceImpl(store, uriGenerator);
+        profileService.setThreads(Runtime.getRuntime().availableProcessors());
+        domainProfileService = profileService;
     }
 
     /*
@@ -16,6 +16,7 @@
 
 package org.dataconservancy.packaging.gui.presenter.impl;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Service;
@@ -36,6 +37,8 @@ import org.dataconservancy.packaging.gui.view.EditPackageContentsView;
 import org.dataconservancy.packaging.tool.api.IPMService;
 import org.dataconservancy.packaging.tool.api.PropertyFormatService;
 import org.dataconservancy.packaging.tool.api.support.NodeComparison;
+import org.dataconservancy.packaging.tool.api.support.TreeValidation;
+import org.dataconservancy.packaging.tool.impl.ContentRootWatcher;
 import org.dataconservancy.packaging.tool.impl.support.Validator;
 import org.dataconservancy.packaging.tool.impl.support.ValidatorFactory;
 import org.dataconservancy.packaging.tool.model.RDFTransformException;
@@ -79,6 +82,18 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
     private Preferences preferences;
 
     private Set<URI> expandedNodes;
+
+    //The items of the displayed tree, by the identifier of their node, and the root item they were built for
+    private final Map<URI, TreeItem<Node>> treeItems = new HashMap<>();
+    private TreeItem<Node> treeItemsRoot;
+
+    //The validation of the package tree, which only checks again the nodes edited since it was last updated
+    private TreeValidation treeValidation;
+
+    //Watches the content of the package tree for changes on the file system, if enabled
+    private boolean watchContentRoots;
+    private ContentRootWatcher contentRootWatcher;
+
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     public EditPackageContentsPresenterImpl(EditPackageContentsView view) {
@@ -101,7 +116,11 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
 
         view.getErrorLabel().setVisible(false);
 
+        //The tree may have been changed by other pages, so it's validated from scratch
+        treeValidation = null;
+
         displayPackageTree();
+        watchPackageTree();
 
         if (controller.getCrossPageProgressIndicatorPopUp() != null) {
             controller.getCrossPageProgressIndicatorPopUp().hide();
@@ -151,27 +170,78 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
         view.getReenableWarningsButton().setOnAction(actionEvent -> preferences.putBoolean(internalProperties.get(InternalProperties.InternalPropertyKey.HIDE_PROPERTY_WARNING_PREFERENCE), false));
 
         view.getRefreshPopupPositiveButton().setOnAction(event -> {
-            ipmService.mergeTree(controller.getPackageTree(), view.getRefreshResult());
-            List<Node> currentlyIgnoredNodes = new ArrayList<>();
-            getIgnoredNodes(view.getRoot().getValue(), currentlyIgnoredNodes);
+            mergeChanges(view.getRefreshResult());
+            view.getRefreshPopup().hide();
+        });
 
-            //To assign node types from the refresh we must unignore nodes so all nodes are considered
-            for (Node node : currentlyIgnoredNodes) {
-                ipmService.ignoreNode(node, false);
-            }
+        view.getRefreshPopupNegativeButton().setOnAction(event -> view.getRefreshPopup().hide());
+    }
 
-            controller.getDomainProfileService().assignNodeTypes(controller.getPrimaryDomainProfile(), controller.getPackageTree());
+    /*
+     * Merges changes to the content of the package into the tree, and assigns types to the merged tree.
+     */
+    private void mergeChanges(Map<Node, NodeComparison> changes) {
+        ipmService.mergeTree(controller.getPackageTree(), changes);
+        List<Node> currentlyIgnoredNodes = new ArrayList<>();
+        getIgnoredNodes(controller.getPackageTree(), currentlyIgnoredNodes);
 
-            //Once we're done assigning types we'll reignore whatever was previously ignored
-            for (Node node : currentlyIgnoredNodes) {
-                ipmService.ignoreNode(node, true);
-            }
+        //To assign node types from the refresh we must unignore nodes so all nodes are considered
+        for (Node node : currentlyIgnoredNodes) {
+            ipmService.ignoreNode(node, false);
+        }
 
-            displayPackageTree();
-            view.getRefreshPopup().hide();
-        });
+        controller.getDomainProfileService().assignNodeTypes(controller.getPrimaryDomainProfile(), controller.getPackageTree());
 
-        view.getRefreshPopupNegativeButton().setOnAction(event -> view.getRefreshPopup().hide());
+        //Once we're done assigning types we'll reignore whatever was previously ignored
+        for (Node node : currentlyIgnoredNodes) {
+            ipmService.ignoreNode(node, true);
+        }
+
+        //Merging may change any part of the tree, so it's validated from scratch
+        treeValidation = null;
+
+        displayPackageTree();
+    }
+
+    /*
+     * Starts watching the content of the package tree, if it isn't watched already. The changes are merged on the
+     * JavaFX thread as they are found, as long as the tree is still the package tree.
+     */
+    private void watchPackageTree() {
+        Node tree = controller.getPackageTree();
+        if (contentRootWatcher != null && contentRootWatcher.getRoot() == tree) {
+            return;
+        }
+        stopWatchingPackageTree();
+
+        if (!watchContentRoots || tree == null) {
+            return;
+        }
+
+        try {
+            ContentRootWatcher watcher = new ContentRootWatcher(ipmService, tree, Platform::runLater, changes -> {
+                if (controller.getPackageTree() == tree) {
+                    mergeChanges(changes);
+                } else {
+                    stopWatchingPackageTree();
+                }
+            });
+            watcher.start();
+            contentRootWatcher = watcher;
+        } catch (IOException e) {
+            log.warn("Could not watch the content of the package", e);
+        }
+    }
+
+    private void stopWatchingPackageTree() {
+        if (contentRootWatcher != null) {
+            try {
+                contentRootWatcher.close();
+            } catch (IOException e) {
+                log.warn("Could not stop watching the content of the package", e);
+            }
+            contentRootWatcher = null;
+        }
     }
 
     private void getIgnoredNodes(Node node, List<Node> ignoredNodes) {
@@ -194,7 +264,7 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
         }
 
         //Perform simple validation to make sure the tree structure is valid.
-        if (!controller.getDomainProfileService().validateTree(controller.getPackageTree())) {
+        if (!isPackageTreeValid()) {
             view.getWarningPopupPositiveButton().setOnAction(arg01 -> {
                 if (view.getWarningPopup() != null &&
                     view.getWarningPopup().isShowing()) {
@@ -221,6 +291,32 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
 
     }
 
+    /*
+     * Checks whether the package tree is valid, only validating again the nodes edited since the last check.
+     */
+    private boolean isPackageTreeValid() {
+        return updateTreeValidation().isValid();
+    }
+
+    private synchronized TreeValidation updateTreeValidation() {
+        if (treeValidation == null || treeValidation.getRoot() != controller.getPackageTree()) {
+            treeValidation = controller.getDomainProfileService().createTreeValidation(controller.getPackageTree());
+        } else {
+            treeValidation.update();
+        }
+
+        return treeValidation;
+    }
+
+    /*
+     * Tells the validation of the package tree about a node edited other than through the domain profile service.
+     */
+    private void invalidate(Node node) {
+        if (treeValidation != null) {
+            treeValidation.invalidate(node);
+        }
+    }
+
     private void markNodeAsInvalid(Node node) {
         TreeItem<Node> invalidItem = findItem(node);
 
@@ -251,7 +347,7 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
         }
 
         //Perform simple validation to make sure the package description is valid.
-        if (!controller.getDomainProfileService().validateTree(controller.getPackageTree())) {
+        if (!isPackageTreeValid()) {
             view.getWarningPopupPositiveButton().setOnAction(arg01 -> {
                 if (view.getWarningPopup() != null &&
                     view.getWarningPopup().isShowing()) {
@@ -405,6 +501,7 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
 
     protected TreeItem<Node> buildTree(Node node, boolean showIgnoredArtifacts) {
         final TreeItem<Node> item = new TreeItem<>(node);
+        treeItems.put(node.getIdentifier(), item);
 
         item.expandedProperty().addListener((observableValue, oldValue, newValue) -> {
             if (!oldValue && newValue) {
@@ -423,7 +520,13 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
     }
     
     public TreeItem<Node> findItem(Node node) {
-        return findItem(view.getArtifactTreeView().getRoot(), node);
+        TreeItem<Node> root = view.getArtifactTreeView().getRoot();
+        if (root != null && root == treeItemsRoot) {
+            TreeItem<Node> item = treeItems.get(node.getIdentifier());
+            return item != null && node.equals(item.getValue()) ? item : null;
+        }
+
+        return findItem(root, node);
     }
 
     private TreeItem<Node> findItem(TreeItem<Node> treeNode, URI id) {
@@ -506,21 +609,23 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
                                  boolean ignored) {
         for (TreeItem<Node> nodeToIgnore : nodesToIgnore) {
             ipmService.ignoreNode(nodeToIgnore.getValue(), ignored);
+            invalidate(nodeToIgnore.getValue());
 
             view.getErrorLabel().setVisible(false);
         }
 
         //To aid in being able to unignore multiple items at once we just check the entire tree for validity and then walk the tree to find types that need to be changed.
-        if (!ignored && !getController().getDomainProfileService().validateTree(controller.getPackageTree())) {
+        if (!ignored && !isPackageTreeValid()) {
             updateUnassignedNode(controller.getPackageTree());
         }
 
         //If the tree still isn't valid, try reassigning types to all nodes we changes.
         //This is almost guaranteed to never happen but is here as an ultimate safety check to ensure we always have a valid tree.
-        if (!ignored && !getController().getDomainProfileService().validateTree(controller.getPackageTree())) {
+        if (!ignored && !isPackageTreeValid()) {
 
             nodesToIgnore.stream().filter(nodeToIgnore -> !getController().getDomainProfileService().assignNodeTypes(getController().getPrimaryDomainProfile(), nodeToIgnore.getValue())).forEach(nodeToIgnore -> {
                 ipmService.ignoreNode(nodeToIgnore.getValue(), true);
+                invalidate(nodeToIgnore.getValue());
                 view.getErrorLabel().setText(TextFactory.getText(ErrorKey.UNIGNORE_ERROR));
                 view.getErrorLabel().setVisible(true);
             });
@@ -564,6 +669,15 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
         this.propertyFormatService = formatService;
     }
 
+    /**
+     * Sets whether the content of the package tree is watched while it is edited, so that changes on the file system
+     * are merged into the tree as they happen. Defaults to false.
+     * @param watchContentRoots whether to watch the content of the package tree
+     */
+    public void setWatchContentRoots(boolean watchContentRoots) {
+        this.watchContentRoots = watchContentRoots;
+    }
+
     //Recursively sorts all children elements of the tree.
     private void sortTree(TreeItem<Node> treeNode) {
         if (!treeNode.isLeaf()) {
@@ -673,13 +787,16 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
 
     public void displayPackageTree() {
         if (controller.getPackageTree() != null) {
-            view.getArtifactTreeView().setRoot(buildTree(controller.getPackageTree(),
-                    view.getShowIgnored().selectedProperty().getValue()));
+            treeItems.clear();
+            treeItemsRoot = buildTree(controller.getPackageTree(),
+                    view.getShowIgnored().selectedProperty().getValue());
+            view.getArtifactTreeView().setRoot(treeItemsRoot);
             view.getRoot().setExpanded(true);
             sortTree(view.getRoot());
             expandedNodes.stream().filter(nodeID -> nodeID !=
                 null).forEach(nodeID -> {
-                TreeItem<?> expandedItem = findItem(view.getRoot(), nodeID);
+                TreeItem<?> expandedItem = view.getRoot() == treeItemsRoot ? treeItems.get(nodeID) :
+                    findItem(view.getRoot(), nodeID);
                 
                 if (expandedItem != null) {
                     expandedItem.setExpanded(true);
@@ -695,11 +812,11 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
     /*
      * Validates that all required properties are filled in for a given node.
      */
-    private void validateNodeProperties(Node node, StringBuilder errBuilder) {
+    private void validateNodeProperties(TreeValidation validation, Node node, StringBuilder errBuilder) {
         if (Thread.currentThread().isInterrupted()) {
             return;
         }
-        List<PropertyConstraint> violatedConstraints = controller.getDomainProfileService().validateProperties(node, node.getNodeType());
+        List<PropertyConstraint> violatedConstraints = validation.getPropertyViolations(node);
         if (!violatedConstraints.isEmpty()) {
             markNodeAsInvalid(node);
 
@@ -720,7 +837,7 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
 
         if (node.getChildren() != null) {
             for (Node child : node.getChildren()) {
-                validateNodeProperties(child, errBuilder);
+                validateNodeProperties(validation, child, errBuilder);
                 if (Thread.currentThread().isInterrupted()) {
                     break;
                 }
@@ -747,7 +864,7 @@ public class EditPackageContentsPresenterImpl extends BasePresenterImpl implemen
                 @Override
                 protected String call() throws Exception {
                     StringBuilder builder = new StringBuilder();
-                    validateNodeProperties(node, builder);
+                    validateNodeProperties(updateTreeValidation(), node, builder);
 
                     return builder.toString();
                 }
@@ -315,7 +315,7 @@ public class PackageGenerationPresenterImpl extends BasePresenterImpl implements
         if (controller.getPackageState().getUserSpecifiedProperties() != null &&
             !controller.getPackageState().getUserSpecifiedProperties().keySet().isEmpty()) {
             for (URI nodeId : controller.getPackageState().getUserSpecifiedProperties().keySet()) {
-                Node node = findNodeForId(controller.getPackageTree(), nodeId);
+                Node node = controller.getPackageTree().getIndex().getNode(nodeId);
                 if (node != null) {
                     for (Property userDefinedProperty : controller.getPackageState().getUserSpecifiedProperties().get(nodeId)) {
                         controller.getDomainProfileService().addProperty(node, userDefinedProperty);
@@ -330,22 +330,6 @@ public class PackageGenerationPresenterImpl extends BasePresenterImpl implements
 
     }
 
-    private Node findNodeForId(Node candidateNode, URI nodeId) {
-        Node node = null;
-        if (candidateNode.getIdentifier().equals(nodeId)) {
-            node = candidateNode;
-        } else if (candidateNode.getChildren() != null) {
-            for (Node childCandidate : candidateNode.getChildren()) {
-                node = findNodeForId(childCandidate, nodeId);
-                if (node != null) {
-                    break;
-                }
-            }
-        }
-
-        return node;
-    }
-
     /*
      * Generates and saves the package to a file if an error occurs the error message is returned so it can be properly
      * handled.
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl;
+
+import org.dataconservancy.packaging.tool.api.IPMService;
+import org.dataconservancy.packaging.tool.api.support.NodeComparison;
+import org.dataconservancy.packaging.tool.model.ipm.Node;
+import org.dataconservancy.packaging.tool.model.ipm.NodeIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the directories of a package tree for changes on the file system, and reports them in batches of the same
+ * node comparisons that {@link IPMService#refreshTreeContent(Node)} produces, ready for
+ * {@link IPMService#mergeTree(Node, Map)}.
+ * <p>
+ * Every directory in the tree is watched, including those under content roots that are not beneath the root of the
+ * tree. Events are collected until none have arrived for the batch delay, and each changed path is then compared
+ * with the tree once, however many events there were for it. If events for a directory were lost, only the subtree
+ * of that directory is rescanned.
+ * </p>
+ * <p>
+ * The watcher's own thread only collects the changed paths. Each batch of them is handed to the owner executor, which
+ * runs on the thread that owns the tree, such as the thread of a user interface, and it is there that the paths are
+ * compared with the tree, the change handler is called and the directories added by the batch are watched. The tree
+ * is therefore only ever read and changed on the owner's thread.
+ * </p>
+ */
+public class ContentRootWatcher implements Closeable {
+    private final Logger log = LoggerFactory.getLogger(ContentRootWatcher.class);
+
+    private final IPMService ipmService;
+    private final Node root;
+    private final Executor ownerExecutor;
+    private final Consumer<Map<Node, NodeComparison>> changeHandler;
+    private final WatchService watchService;
+
+    // The key of each watched directory, used by both threads
+    private final Map<Path, WatchKey> watchedPaths = new ConcurrentHashMap<>();
+
+    // The node of each watched directory, only used on the owner's thread
+    private final Map<Path, Node> watchedNodes = new HashMap<>();
+
+    // The batch being collected, only used on the watcher's thread
+    private Batch pending = new Batch();
+
+    private long batchDelay = 500;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Starts watching every directory in the tree. This must be called on the owner's thread.
+     * @param ipmService the service used to build and compare the changed parts of the tree
+     * @param root the root of the tree
+     * @param ownerExecutor executor running tasks on the thread that owns the tree
+     * @param changeHandler handler of each batch of changes, usually by merging them into the tree, which is called
+     *                      on the owner's thread
+     * @throws IOException if the directories can't be watched
+     */
+    public ContentRootWatcher(IPMService ipmService, Node root, Executor ownerExecutor,
+                              Consumer<Map<Node, NodeComparison>> changeHandler) throws IOException {
+        this.ipmService = ipmService;
+        this.root = root;
+        this.ownerExecutor = ownerExecutor;
+        this.changeHandler = changeHandler;
+        this.watchService = root.getFileInfo() != null && root.getFileInfo().getLocation() != null ?
+                Paths.get(root.getFileInfo().getLocation()).getFileSystem().newWatchService() :
+                Paths.get("").getFileSystem().newWatchService();
+        watchDirectories(root);
+    }
+
+    /**
+     * @return the root of the watched tree
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Sets how long to wait after an event for more, before the batch of changes is reported. Defaults to 500ms.
+     * @param batchDelay the time to wait in milliseconds
+     */
+    public void setBatchDelay(long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Starts collecting changes on a background thread.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "content-root-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops watching the tree. Batches already handed to the owner executor are dropped.
+     * @throws IOException if the watch service can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        watchService.close();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Wait for the first event, then keep collecting until there is a pause
+                collectEvents(watchService.take());
+                long deadline = System.currentTimeMillis() + batchDelay * 10;
+                WatchKey key;
+                while (System.currentTimeMillis() < deadline
+                        && (key = watchService.poll(batchDelay, TimeUnit.MILLISECONDS)) != null) {
+                    collectEvents(key);
+                }
+
+                Batch batch = takeBatch();
+                if (!batch.isEmpty()) {
+                    ownerExecutor.execute(() -> applyBatch(batch));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /*
+     * Records the paths changed within the directory of the key.
+     */
+    private void collectEvents(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        if (watchedPaths.get(directory) != key) {
+            key.cancel();
+            return;
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                directoryOverflowed(directory);
+            } else {
+                pathChanged(directory, directory.resolve((Path) event.context()));
+            }
+        }
+
+        if (!key.reset()) {
+            // The directory is gone, its parent's events will remove it from the tree
+            watchedPaths.remove(directory, key);
+        }
+    }
+
+    /*
+     * Records that a path within a watched directory may have been added, removed or changed.
+     */
+    void pathChanged(Path directory, Path path) {
+        pending.changedPaths.put(path, directory);
+    }
+
+    /*
+     * Records that events for a directory were lost, so its whole subtree needs to be compared again.
+     */
+    void directoryOverflowed(Path directory) {
+        pending.rescans.add(directory);
+    }
+
+    /*
+     * Takes the paths collected so far, starting a new batch.
+     */
+    Batch takeBatch() {
+        Batch batch = pending;
+        pending = new Batch();
+        return batch;
+    }
+
+    /*
+     * Compares a batch with the tree, hands the changes to the handler and watches the directories they add. Runs on
+     * the owner's thread.
+     */
+    private void applyBatch(Batch batch) {
+        if (closed) {
+            return;
+        }
+
+        Map<Node, NodeComparison> changes = compareBatch(batch);
+        if (!changes.isEmpty()) {
+            changeHandler.accept(changes);
+            watchAddedDirectories(changes);
+        }
+    }
+
+    /*
+     * Compares each changed path, and each directory to rescan, with the tree. Paths within a directory that is
+     * being rescanned are covered by the rescan. Directories which are no longer in the tree are skipped.
+     */
+    Map<Node, NodeComparison> compareBatch(Batch batch) {
+        Map<Node, NodeComparison> changes = new HashMap<>();
+
+        Set<Node> rescans = new LinkedHashSet<>();
+        for (Path path : batch.rescans) {
+            Node directory = watchedNode(path);
+            if (directory != null) {
+                rescans.add(directory);
+            }
+        }
+        for (Node directory : rescans) {
+            if (!isWithinRescan(directory.getParent(), rescans)) {
+                rescan(directory, changes);
+            }
+        }
+
+        // The tree isn't changed while the batch is compared, so one index serves every path in it
+        NodeIndex index = null;
+        for (Map.Entry<Path, Path> changed : batch.changedPaths.entrySet()) {
+            Node directory = watchedNode(changed.getValue());
+            if (directory == null || isWithinRescan(directory, rescans)) {
+                continue;
+            }
+            if (index == null) {
+                index = root.getIndex();
+            }
+            try {
+                compareEntry(index, directory, changed.getKey(), changes);
+            } catch (IOException e) {
+                log.warn("Could not compare " + changed.getKey() + " with the package tree, rescanning "
+                        + changed.getValue(), e);
+                rescan(directory, changes);
+            }
+        }
+
+        return changes;
+    }
+
+    /*
+     * Returns the node of a watched directory, if it is still in the tree.
+     */
+    private Node watchedNode(Path path) {
+        Node node = watchedNodes.get(path);
+        if (node == null) {
+            return null;
+        }
+
+        Node ancestor = node;
+        while (ancestor.getParent() != null) {
+            ancestor = ancestor.getParent();
+        }
+        if (ancestor != root) {
+            watchedNodes.remove(path);
+            return null;
+        }
+        return node;
+    }
+
+    private boolean isWithinRescan(Node node, Set<Node> rescans) {
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            if (rescans.contains(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rescan(Node directory, Map<Node, NodeComparison> changes) {
+        if (!ipmService.checkFileInfoIsAccessible(directory)) {
+            return;
+        }
+        try {
+            Map<Node, NodeComparison> rescanned = ipmService.refreshTreeContent(directory);
+            for (Map.Entry<Node, NodeComparison> change : rescanned.entrySet()) {
+                // Nodes added under an ignored directory are ignored too, as they would be in a new tree
+                if (change.getValue().getStatus() == NodeComparison.Status.ADDED
+                        && change.getValue().getNode() != null && change.getValue().getNode().isIgnored()) {
+                    ipmService.ignoreNode(change.getKey(), true);
+                }
+            }
+            changes.putAll(rescanned);
+        } catch (IOException e) {
+            log.warn("Could not rescan " + directory.getFileInfo().getLocation(), e);
+        }
+    }
+
+    /*
+     * Compares a path within a directory of the tree with the node for it, if there is one.
+     */
+    private void compareEntry(NodeIndex index, Node directory, Path path, Map<Node, NodeComparison> changes)
+            throws IOException {
+        Node existing = findChild(index, directory, path.toUri());
+        boolean exists = Files.exists(path);
+
+        if (existing != null && exists && existing.getFileInfo().isDirectory() == Files.isDirectory(path)) {
+            // The contents of a directory are reported by its own watch
+            if (existing.getFileInfo().isFile()) {
+                changes.putAll(ipmService.refreshTreeContent(existing));
+            }
+            return;
+        }
+
+        if (existing != null) {
+            markRemoved(existing, directory, changes);
+        }
+        if (exists) {
+            Node added = ipmService.createTreeFromFileSystem(path);
+            if (added != null) {
+                String name = path.getFileName().toString();
+                if (directory.isIgnored() || Files.isHidden(path) || name.startsWith(".")) {
+                    ipmService.ignoreNode(added, true);
+                }
+                changes.put(added, new NodeComparison(NodeComparison.Status.ADDED, directory));
+            }
+        }
+    }
+
+    private Node findChild(NodeIndex index, Node directory, URI location) {
+        Node child = index.getNodeByLocation(location);
+        if (child == null || child.getParent() == directory) {
+            return child;
+        }
+
+        // The same file is in the tree more than once, so look for it among the directory's own children
+        if (directory.getChildren() != null) {
+            for (Node sibling : directory.getChildren()) {
+                if (sibling.getFileInfo() != null && location.equals(sibling.getFileInfo().getLocation())) {
+                    return sibling;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void markRemoved(Node node, Node parent, Map<Node, NodeComparison> changes) {
+        changes.put(node, new NodeComparison(NodeComparison.Status.DELETED, parent));
+        if (node.getChildren() != null) {
+            for (Node child : node.getChildren()) {
+                markRemoved(child, node, changes);
+            }
+        }
+    }
+
+    /*
+     * Watches the directories added to the tree by a batch of changes.
+     */
+    private void watchAddedDirectories(Map<Node, NodeComparison> changes) {
+        for (Map.Entry<Node, NodeComparison> change : changes.entrySet()) {
+            if (change.getValue().getStatus() == NodeComparison.Status.ADDED) {
+                try {
+                    watchDirectories(change.getKey());
+                } catch (IOException e) {
+                    log.warn("Could not watch the directories under " +
+                            change.getKey().getFileInfo().getLocation(), e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Watches every directory in the subtree of the node that isn't already watched.
+     */
+    private void watchDirectories(Node node) throws IOException {
+        if (node.getFileInfo() != null && node.getFileInfo().isDirectory() && node.getFileInfo().getLocation() != null) {
+            Path path = Paths.get(node.getFileInfo().getLocation());
+            WatchKey existing = watchedPaths.get(path);
+            if ((existing == null || !existing.isValid()) && Files.isDirectory(path)) {
+                watchedPaths.put(path, path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+            watchedNodes.put(path, node);
+        }
+
+        if (node.getChildren() != null) {
+            for (Node child : node.getChildren()) {
+                watchDirectories(child);
+            }
+        }
+    }
+
+    /*
+     * The paths changed within watched directories, and the watched directories to rescan.
+     */
+    static class Batch {
+        // Each changed path, with the directory it is in
+        private final Map<Path, Path> changedPaths = new LinkedHashMap<>();
+        private final Set<Path> rescans = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return changedPaths.isEmpty() && rescans.isEmpty();
+        }
+    }
+}
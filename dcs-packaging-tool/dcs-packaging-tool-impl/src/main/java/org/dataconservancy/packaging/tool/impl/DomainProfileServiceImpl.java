@@ -1,12 +1,29 @@
 package org.dataconservancy.packaging.tool.impl;
 
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.dataconservancy.packaging.tool.api.DomainProfileService;
+import org.dataconservancy.packaging.tool.api.support.TreeValidation;
 import org.dataconservancy.packaging.tool.model.dprofile.CardinalityConstraint;
 import org.dataconservancy.packaging.tool.model.dprofile.DomainProfile;
 import org.dataconservancy.packaging.tool.model.dprofile.FileAssociation;
@@ -21,15 +38,60 @@ import org.dataconservancy.packaging.tool.model.dprofile.StructuralRelation;
 import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
 
-public class DomainProfileServiceImpl implements DomainProfileService {
+public class DomainProfileServiceImpl implements DomainProfileService, Closeable {
+    // Marks a node which can't be given a type
+    private static final NodeType UNTYPED = new NodeType();
+
     private final DomainProfileObjectStore objstore;
     private final URIGenerator urigen;
+    private int threads = 1;
+
+    // The threads trees are assigned and validated on, started when first needed
+    private ForkJoinPool pool;
+
+    // The validations created by this service which are still in use, told of the edits made through it
+    private final Set<IncrementalValidation> validations =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
 
     public DomainProfileServiceImpl(DomainProfileObjectStore objstore, URIGenerator urigen) {
         this.objstore = objstore;
         this.urigen = urigen;
     }
 
+    /**
+     * Sets the number of threads used to assign types to and validate the subtrees of a tree at once. The results are
+     * the same as on one thread, and domain objects are still updated on the calling thread once every type has been
+     * assigned. If not set, trees are assigned and validated on the calling thread. The threads are kept until the
+     * service is closed.
+     * @param threads the number of threads to use
+     */
+    public synchronized void setThreads(int threads) {
+        int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        if (count != this.threads) {
+            close();
+        }
+        this.threads = count;
+    }
+
+    /**
+     * Stops the threads that trees are assigned and validated on, letting work already started finish. The service
+     * can still be used, and starts new threads if they are needed again.
+     */
+    @Override
+    public synchronized void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
     @Override
     public void addProperty(Node node, Property value) {
         if (node.getDomainObject() == null) {
@@ -37,6 +99,7 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         }
 
         objstore.addProperty(node.getDomainObject(), value);
+        changed(node);
     }
 
     @Override
@@ -46,6 +109,7 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         }
 
         objstore.removeProperty(node.getDomainObject(), value);
+        changed(node);
     }
 
     @Override
@@ -55,6 +119,7 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         }
 
         objstore.removeProperty(node.getDomainObject(), type);
+        changed(node);
     }
 
     @Override
@@ -157,6 +222,8 @@ public class DomainProfileServiceImpl implements DomainProfileService {
             throw new IllegalArgumentException("Transform not available.");
         }
 
+        changed(node);
+
         if (tr.getInsertParentNodeType() != null) {
             Node new_parent = new Node(urigen.generateNodeURI());
 
@@ -177,6 +244,7 @@ public class DomainProfileServiceImpl implements DomainProfileService {
             if (node.hasChildren()) {
                 for (Node child : new ArrayList<>(node.getChildren())) {
                     objstore.moveObject(child, null, parent);
+                    changed(child);
                     if (tr.getResultChildTransforms() != null) {
                         transformChildren(child, tr.getResultChildTransforms());
                     }
@@ -220,45 +288,58 @@ public class DomainProfileServiceImpl implements DomainProfileService {
 
     @Override
     public List<NodeTransform> getNodeTransforms(Node node) {
-        if (node.getNodeType() == null) {
-            throw new IllegalArgumentException("No node type: " + node);
-        }
+        return getNodeTransforms(Collections.singletonList(node));
+    }
 
-        if (node.getDomainObject() == null) {
-            throw new IllegalArgumentException("No domain object: " + node);
+    @Override
+    public List<NodeTransform> getNodeTransforms(List<Node> nodes) {
+        List<NodeTransform> possibleTransforms = new ArrayList<>();
+
+        if (nodes == null || nodes.isEmpty()) {
+            return possibleTransforms;
         }
 
-        ArrayList<NodeTransform> result = new ArrayList<>();
-        
-        if (node.isIgnored()) {
-            return result;
+        for (Node node : nodes) {
+            if (node.getNodeType() == null) {
+                throw new IllegalArgumentException("No node type: " + node);
+            }
+
+            if (node.getDomainObject() == null) {
+                throw new IllegalArgumentException("No domain object: " + node);
+            }
         }
 
-        result.addAll(node.getNodeType().getDomainProfile().getNodeTransforms().stream().filter(tr -> can_transform(node, tr)).collect(Collectors.toList()));
+        DomainProfile profile = nodes.get(0).getNodeType().getDomainProfile();
 
-        return result;
-    }
+        if (nodes.stream().allMatch(n -> n.getNodeType().getDomainProfile() == profile)) {
+            CompiledTransforms compiled = new CompiledTransforms(profile.getNodeTransforms());
+            BitSet possible = compiled.get_all();
 
-    @Override
-    public List<NodeTransform> getNodeTransforms(List<Node> nodes) {
-        List<NodeTransform> possibleTransforms = new ArrayList<>();
+            for (Node node : nodes) {
+                if (possible.isEmpty()) {
+                    break;
+                }
 
-        if (nodes != null && !nodes.isEmpty()) {
-            possibleTransforms = getNodeTransforms(nodes.get(0));
+                compiled.retain_possible(node, possible);
+            }
 
-            for (int i = 1; i < nodes.size(); i++) {
-                List<NodeTransform> nodeTransforms = getNodeTransforms(nodes.get(i));
-                Iterator<NodeTransform> it = possibleTransforms.iterator();
-                while (it.hasNext()) {
-                    if (!nodeTransforms.contains(it.next())) {
-                        it.remove();
-                    }
+            return compiled.get_transforms(possible);
+        }
+
+        // Nodes of different profiles only share transforms which are equal
+        possibleTransforms = getNodeTransforms(nodes.get(0));
+
+        for (int i = 1; i < nodes.size(); i++) {
+            List<NodeTransform> nodeTransforms = getNodeTransforms(nodes.get(i));
+            Iterator<NodeTransform> it = possibleTransforms.iterator();
+            while (it.hasNext()) {
+                if (!nodeTransforms.contains(it.next())) {
+                    it.remove();
                 }
             }
         }
 
         return possibleTransforms;
-
     }
 
     private boolean can_transform(Node node, NodeTransform tr) {
@@ -272,14 +353,7 @@ public class DomainProfileServiceImpl implements DomainProfileService {
 
         // Check against node without ignored children
 
-        List<Node> kids = null;
-
-        if (node.hasChildren()) {
-            kids = new ArrayList<>(node.getChildren());
-            kids.removeIf(Node::isIgnored);
-        }
-
-        boolean is_leaf = kids == null || kids.isEmpty();
+        boolean is_leaf = !node.hasChildren() || node.getChildren().stream().allMatch(Node::isIgnored);
 
         if (child_constraints != null && !tr.getSourceChildConstraints().isEmpty()) {
             if (is_leaf) {
@@ -299,7 +373,11 @@ public class DomainProfileServiceImpl implements DomainProfileService {
             } else {
                 // Each child must meet at least one child constraint
 
-                for (Node child : kids) {
+                for (Node child : node.getChildren()) {
+                    if (child.isIgnored()) {
+                        continue;
+                    }
+
                     boolean meets_constraint = false;
 
                     for (NodeConstraint nc : child_constraints) {
@@ -330,11 +408,22 @@ public class DomainProfileServiceImpl implements DomainProfileService {
 
     @Override
     public boolean validateTree(Node node) {
+        CompiledProfile compiled = new CompiledProfile(Collections.emptyList());
+
+        if (threads > 1) {
+            return pool().invoke(ForkJoinTask.adapt(() -> validate_tree(node, compiled, true)));
+        }
+
+        return validate_tree(node, compiled, false);
+    }
+
+    // In parallel the subtrees of the children of a node are validated at once.
+    private boolean validate_tree(Node node, CompiledProfile compiled, boolean parallel) {
         if (node.isIgnored()) {
             return false;
         }
 
-        if (!is_valid(node)) {
+        if (!is_valid(node, compiled)) {
             return false;
         }
 
@@ -342,8 +431,22 @@ public class DomainProfileServiceImpl implements DomainProfileService {
             return true;
         }
 
+        List<ForkJoinTask<Boolean>> subtrees = new ArrayList<>();
+
         for (Node child : node.getChildren()) {
-            if (!child.isIgnored() && !validateTree(child)) {
+            if (child.isIgnored()) {
+                continue;
+            }
+
+            if (parallel && !child.isLeaf()) {
+                subtrees.add(ForkJoinTask.adapt(() -> validate_tree(child, compiled, true)));
+            } else if (!validate_tree(child, compiled, parallel)) {
+                return false;
+            }
+        }
+
+        for (ForkJoinTask<Boolean> subtree : ForkJoinTask.invokeAll(subtrees)) {
+            if (!subtree.join()) {
                 return false;
             }
         }
@@ -352,15 +455,20 @@ public class DomainProfileServiceImpl implements DomainProfileService {
     }
 
     private boolean meets_type_constraint(Node parent, NodeConstraint parent_constraint) {
+        return meets_type_constraint(parent != null, parent != null ? parent.getNodeType() : null, parent_constraint);
+    }
+
+    // Check the constraint against a parent, if there is one, as if it had the given type
+    private boolean meets_type_constraint(boolean has_parent, NodeType parent_type, NodeConstraint parent_constraint) {
         if (parent_constraint.matchesNone()) {
-            return parent == null;
+            return !has_parent;
         }
 
         if (parent_constraint.matchesAny()) {
-            return parent != null;
+            return has_parent;
         }
 
-        if (parent == null) {
+        if (!has_parent) {
             return false;
         }
 
@@ -368,7 +476,9 @@ public class DomainProfileServiceImpl implements DomainProfileService {
             return true;
         }
 
-        return parent_constraint.getNodeType().getIdentifier().equals(parent.getNodeType().getIdentifier());
+        // A parent without a type only meets constraints on any type
+        return parent_type != null
+                && parent_constraint.getNodeType().getIdentifier().equals(parent_type.getIdentifier());
     }
 
     // Check that existing domain objects have the required relations
@@ -425,8 +535,8 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         return false;
     }
 
-    // Check if node can be the given type.
-    private boolean may_be_type(Node node, NodeType type) {
+    // Check if node can be the given type when its parent has the given parent type.
+    private boolean may_be_type(Node node, NodeType parent_type, NodeType type) {
         if (!meets_file_requirements(node, type)) {
             return false;
         }
@@ -439,10 +549,8 @@ public class DomainProfileServiceImpl implements DomainProfileService {
 
         // Parent must meet one constraint. Only the type matters.
 
-        Node parent = node.getParent();
-
         for (NodeConstraint c : constraints) {
-            if (meets_type_constraint(parent, c)) {
+            if (meets_type_constraint(node.getParent() != null, parent_type, c)) {
                 return true;
             }
         }
@@ -451,7 +559,7 @@ public class DomainProfileServiceImpl implements DomainProfileService {
     }
 
     // Check if node is valid given constraints of its type
-    private boolean is_valid(Node node) {
+    private boolean is_valid(Node node, CompiledProfile compiled) {
         NodeType type = node.getNodeType();
 
         if (type == null) {
@@ -476,8 +584,8 @@ public class DomainProfileServiceImpl implements DomainProfileService {
 
         Node parent = node.getParent();
 
-        for (NodeConstraint c : constraints) {
-            if (meets_type_constraint(parent, c) && meets_parent_relation_constraint(node, parent, c)) {
+        for (NodeConstraint c : compiled.get_parent_constraints(type, parent)) {
+            if (meets_parent_relation_constraint(node, parent, c)) {
                 return true;
             }
         }
@@ -503,7 +611,7 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         return result;
     }
 
-    private boolean is_preferred_type(Node node, NodeType type) {
+    private boolean is_preferred_type(Node node, NodeType parent_type, NodeType type) {
         CardinalityConstraint cc = type.getPreferredCountOfChildrenWithFiles();
 
         if (cc != null) {
@@ -513,23 +621,27 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         }
 
         if (type.getPreferredParentType() != null && node.getParent() != null) {
-            return type.getPreferredParentType().equals(node.getParent().getNodeType());
+            return type.getPreferredParentType().equals(parent_type);
         }
 
         return false;
     }
 
-    // Return valid types for node with preferred types in front.
+    // Sort based on node type identifier to guarantee order
+    private List<NodeType> sorted_types(DomainProfile profile) {
+        Comparator<NodeType> cmp = (NodeType t1, NodeType t2) -> t1.getIdentifier().compareTo(t2.getIdentifier());
+
+        return profile.getNodeTypes().stream().sorted(cmp).collect(Collectors.toList());
+    }
+
+    // Return valid types for node, when its parent has the given type, with preferred types in front.
     // Always return the list with same order for the same sets of valid and preferred types
     
-    private List<NodeType> get_possible_types(DomainProfile profile, Node node) {
+    private List<NodeType> get_possible_types(List<NodeType> sorted_types, Node node, NodeType parent_type) {
         List<NodeType> result = new ArrayList<>();
 
-        // Sort based on node type identifier to guarantee order
-        Comparator<NodeType> cmp = (NodeType t1, NodeType t2) -> t1.getIdentifier().compareTo(t2.getIdentifier());
-        
-        profile.getNodeTypes().stream().sorted(cmp).filter(type -> may_be_type(node, type)).forEach(type -> {
-            if (is_preferred_type(node, type)) {
+        sorted_types.stream().filter(type -> may_be_type(node, parent_type, type)).forEach(type -> {
+            if (is_preferred_type(node, parent_type, type)) {
                 result.add(0, type);
             } else {
                 result.add(type);
@@ -544,14 +656,22 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         if (node.isIgnored()) {
             throw new IllegalArgumentException("Cannot assign types to ignored node.: " + node.getIdentifier());
         }
-        
-        boolean success = assign_node_types(profile, node);
+
+        CompiledProfile compiled = new CompiledProfile(sorted_types(profile));
+        boolean success;
+
+        if (threads > 1) {
+            success = new TypeAssignment(compiled, true).assign(pool(), node);
+        } else {
+            success = new TypeAssignment(compiled, false).assign(node);
+        }
 
         if (success) {
             // Do not create domain objects for ignored nodes.
             node.walk(n -> { 
                 if (!n.isIgnored()) {
                     objstore.updateObject(n);
+                    changed(n);
                 }
             });
         }
@@ -559,46 +679,731 @@ public class DomainProfileServiceImpl implements DomainProfileService {
         return success;
     }
 
-    private boolean assign_node_types(DomainProfile profile, Node node) {
-        //Add support for the process being stopped by the GUI
-        if (Thread.currentThread().isInterrupted()) {
-            return true;
+    /**
+     * Assigns types to a tree, giving each node the first of its possible types under which every child that isn't
+     * ignored can be given a type in turn. This is the assignment found by trying every combination of types depth
+     * first, but the possible types of a node only depend on the type of its parent, so whether a subtree can be typed
+     * is only worked out once for each type its parent may have, rather than once for every way of typing the rest
+     * of the tree. The types are only set on the tree once they have all been found.
+     *
+     * In parallel, the subtrees of the children of a node are worked out at once for a type of the node, and joined
+     * to see whether they can all be typed. The type chosen for each node is the same as it would be on one thread,
+     * only the subtrees of children after one which can't be typed may be worked out when they wouldn't have been.
+     */
+    private class TypeAssignment {
+        private final CompiledProfile compiled;
+        private final boolean parallel;
+
+        // The thread which the assignment is for, so workers can tell when it has been interrupted
+        private final Thread caller = Thread.currentThread();
+
+        // The type chosen for a node for each type of its parent, or UNTYPED if there is none
+        private final Map<Node, Map<NodeType, NodeType>> chosen;
+
+        // Whether every child of a node can be given a type, for each type of the node
+        private final Map<Node, Map<NodeType, Boolean>> children_typed;
+
+        private volatile boolean interrupted;
+
+        private TypeAssignment(CompiledProfile compiled, boolean parallel) {
+            this.compiled = compiled;
+            this.parallel = parallel;
+
+            // The results for a node are only worked out by one thread at a time, but for different nodes at once
+            if (parallel) {
+                chosen = Collections.synchronizedMap(new IdentityHashMap<>());
+                children_typed = Collections.synchronizedMap(new IdentityHashMap<>());
+            } else {
+                chosen = new IdentityHashMap<>();
+                children_typed = new IdentityHashMap<>();
+            }
         }
 
-        List<NodeType> valid_types = get_possible_types(profile, node);
+        // Choose the type of the node on the pool, waiting for it unless the calling thread is interrupted.
+        private boolean assign(ForkJoinPool pool, Node node) {
+            Node parent = node.getParent();
+            Future<NodeType> future = pool.submit(() -> choose(node, parent != null ? parent.getNodeType() : null));
+
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                // The pool is shared, so the assignment is stopped rather than left to run
+                future.cancel(true);
+                interrupted = true;
+                Thread.currentThread().interrupt();
+                return true;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
 
-        if (valid_types.isEmpty()) {
-            return false;
+                throw new IllegalStateException(e.getCause());
+            }
+
+            return assign(node);
         }
 
-        if (node.isLeaf()) {
-            node.setNodeType(valid_types.get(0));
+        private boolean assign(Node node) {
+            Node parent = node.getParent();
+            NodeType type = choose(node, parent != null ? parent.getNodeType() : null);
+
+            //Add support for the process being stopped by the GUI
+            if (interrupted) {
+                return true;
+            }
+
+            if (type == null) {
+                return false;
+            }
+
+            node.setNodeType(type);
+
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(node);
+
+            while (!pending.isEmpty()) {
+                Node next = pending.pop();
+
+                if (next.isLeaf()) {
+                    continue;
+                }
+
+                for (Node child : next.getChildren()) {
+                    if (!child.isIgnored()) {
+                        child.setNodeType(choose(child, next.getNodeType()));
+                        pending.push(child);
+                    }
+                }
+            }
+
             return true;
         }
 
-        next: for (NodeType nt : valid_types) {
-            node.setNodeType(nt);
+        // Return the type for the node when its parent has the given type, or null if there is none.
+        private NodeType choose(Node node, NodeType parent_type) {
+            Map<NodeType, NodeType> node_choices = chosen.computeIfAbsent(node, n -> new IdentityHashMap<>(4));
+            NodeType choice = node_choices.get(parent_type);
 
-            for (Node child : node.getChildren()) {
-                //Add support for the process being stopped by the GUI
-                if (Thread.currentThread().isInterrupted()) {
-                    break;
+            if (choice == null) {
+                if (interrupted || caller.isInterrupted()) {
+                    interrupted = true;
+                    return null;
+                }
+
+                choice = UNTYPED;
+
+                for (NodeType type : compiled.get_possible_types(node, parent_type)) {
+                    if (node.isLeaf() || can_type_children(node, type)) {
+                        choice = type;
+                        break;
+                    }
                 }
-                if (!child.isIgnored() && !assign_node_types(profile, child)) {
-                    continue next;
+
+                node_choices.put(parent_type, choice);
+            }
+
+            return choice == UNTYPED ? null : choice;
+        }
+
+        private boolean can_type_children(Node node, NodeType type) {
+            Map<NodeType, Boolean> node_results = children_typed.computeIfAbsent(node, n -> new IdentityHashMap<>(4));
+            Boolean result = node_results.get(type);
+
+            if (result == null) {
+                List<Node> subtrees = new ArrayList<>();
+                result = true;
+
+                for (Node child : node.getChildren()) {
+                    if (child.isIgnored()) {
+                        continue;
+                    }
+
+                    if (parallel && !child.isLeaf()) {
+                        subtrees.add(child);
+                    } else if (choose(child, type) == null) {
+                        result = false;
+                        break;
+                    }
+                }
+
+                if (result && !subtrees.isEmpty()) {
+                    result = can_type_subtrees(subtrees, type);
                 }
+
+                node_results.put(type, result);
             }
 
-            return true;
+            return result;
         }
 
-        return false;
+        // Choose the types of the roots of the subtrees at once, when their parent has the given type.
+        private boolean can_type_subtrees(List<Node> subtrees, NodeType parent_type) {
+            if (subtrees.size() == 1) {
+                return choose(subtrees.get(0), parent_type) != null;
+            }
+
+            List<ForkJoinTask<NodeType>> tasks = new ArrayList<>();
+
+            for (Node subtree : subtrees) {
+                tasks.add(ForkJoinTask.adapt(() -> choose(subtree, parent_type)));
+            }
+
+            for (ForkJoinTask<NodeType> task : ForkJoinTask.invokeAll(tasks)) {
+                if (task.join() == null) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
     }
 
     @Override
     public void removeDomainObject(Node node) {
         if (node.getDomainObject() != null) {
             objstore.deleteObject(node);
+            changed(node);
+        }
+    }
+
+    // Tell the validations in use that a node has been edited.
+    private void changed(Node node) {
+        synchronized (validations) {
+            for (IncrementalValidation validation : validations) {
+                validation.invalidate(node);
+            }
+        }
+    }
+
+    @Override
+    public TreeValidation createTreeValidation(Node root) {
+        IncrementalValidation result = new IncrementalValidation(root);
+
+        result.update();
+        validations.add(result);
+
+        return result;
+    }
+
+    /**
+     * Remembers whether each node of a tree which isn't ignored is valid, and which of its property constraints it
+     * violates. Whether a node is valid depends only on the node and its parent, so after an edit the changed node,
+     * its parent and its children are checked again. A node whose ancestors were not validated before, because they
+     * were ignored or are new to the tree, is checked along with the rest of the subtree of the highest of them.
+     */
+    private class IncrementalValidation implements TreeValidation {
+        private final Node root;
+
+        // The property constraints violated by each validated node, and the nodes which are invalid
+        private final Map<Node, List<PropertyConstraint>> violations = new IdentityHashMap<>();
+        private final Set<Node> invalid = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        // The nodes changed since the last update
+        private final Set<Node> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private IncrementalValidation(Node root) {
+            this.root = root;
+            changed.add(root);
+        }
+
+        @Override
+        public Node getRoot() {
+            return root;
+        }
+
+        @Override
+        public synchronized void invalidate(Node node) {
+            changed.add(node);
+        }
+
+        @Override
+        public synchronized Set<Node> update() {
+            CompiledProfile compiled = new CompiledProfile(Collections.emptyList());
+            Set<Node> delta = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<Node> nodes = new ArrayList<>(changed);
+
+            changed.clear();
+
+            for (Node node : nodes) {
+                if (!is_validated(node)) {
+                    forget(node, delta);
+                    continue;
+                }
+
+                Node top = node;
+
+                for (Node n = node.getParent(); n != null && !violations.containsKey(n); n = n.getParent()) {
+                    top = n;
+                }
+
+                if (top != node || !violations.containsKey(node)) {
+                    check_subtree(top, compiled, delta);
+                    continue;
+                }
+
+                check(node, compiled, delta);
+
+                if (node.getParent() != null) {
+                    check(node.getParent(), compiled, delta);
+                }
+
+                if (node.hasChildren()) {
+                    for (Node child : node.getChildren()) {
+                        if (child.isIgnored()) {
+                            forget(child, delta);
+                        } else if (violations.containsKey(child)) {
+                            check(child, compiled, delta);
+                        } else {
+                            check_subtree(child, compiled, delta);
+                        }
+                    }
+                }
+            }
+
+            return delta;
+        }
+
+        @Override
+        public synchronized boolean isValid() {
+            return !root.isIgnored() && invalid.isEmpty();
+        }
+
+        @Override
+        public synchronized Set<Node> getInvalidNodes() {
+            Set<Node> result = Collections.newSetFromMap(new IdentityHashMap<>());
+            result.addAll(invalid);
+
+            return Collections.unmodifiableSet(result);
+        }
+
+        @Override
+        public synchronized List<PropertyConstraint> getPropertyViolations(Node node) {
+            return violations.getOrDefault(node, Collections.emptyList());
+        }
+
+        // Whether the node is in the tree, and neither it nor any of its ancestors is ignored
+        private boolean is_validated(Node node) {
+            Node n = node;
+
+            while (!n.isIgnored()) {
+                if (n == root) {
+                    return true;
+                }
+
+                if (n.getParent() == null) {
+                    return false;
+                }
+
+                n = n.getParent();
+            }
+
+            return false;
+        }
+
+        private void check_subtree(Node node, CompiledProfile compiled, Set<Node> delta) {
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(node);
+
+            while (!pending.isEmpty()) {
+                Node next = pending.pop();
+
+                check(next, compiled, delta);
+
+                if (next.hasChildren()) {
+                    for (Node child : next.getChildren()) {
+                        if (child.isIgnored()) {
+                            forget(child, delta);
+                        } else {
+                            pending.push(child);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void check(Node node, CompiledProfile compiled, Set<Node> delta) {
+            boolean valid = is_valid(node, compiled);
+            List<PropertyConstraint> node_violations = node.getNodeType() != null && node.getDomainObject() != null
+                    ? validateProperties(node, node.getNodeType()) : Collections.emptyList();
+            List<PropertyConstraint> old = violations.put(node, node_violations);
+
+            if (valid ? invalid.remove(node) : invalid.add(node)) {
+                delta.add(node);
+            }
+
+            if (!node_violations.equals(old != null ? old : Collections.emptyList())) {
+                delta.add(node);
+            }
+        }
+
+        // Forget the results for a subtree which is no longer validated. The descendants of a node are only validated
+        // if it is, so there is nothing to forget below a node which isn't.
+        private void forget(Node node, Set<Node> delta) {
+            if (!violations.containsKey(node)) {
+                return;
+            }
+
+            node.walk(n -> {
+                List<PropertyConstraint> old = violations.remove(n);
+
+                if (invalid.remove(n) || (old != null && !old.isEmpty())) {
+                    delta.add(n);
+                }
+            });
+        }
+    }
+
+    /**
+     * The possible types of nodes in the order they are tried, and the parent constraints of types which a parent
+     * meets, worked out once for each kind of file a node may have and each type its parent may have. Type assignment
+     * and validation look them up, rather than sorting and checking every type of the profile for every node. Only
+     * the preference for a number of children with files depends on the node itself, so the order of types which have
+     * one is remembered for each number of children with files.
+     *
+     * A profile is compiled for each assignment or validation, so changes made to a profile in between are seen.
+     * Subtrees assigned or validated in parallel share it, so it may be used by several threads at once.
+     */
+    private class CompiledProfile {
+        // Kinds of node, as flags for being a file and a directory, or NO_FILE_INFO
+        private static final int FILE = 1;
+        private static final int DIRECTORY = 2;
+        private static final int NO_FILE_INFO = 4;
+
+        private final List<NodeType> sorted_types;
+
+        // Candidates for nodes without a parent, by kind, and for nodes with a parent, by kind and parent type
+        private final Candidates[] root_candidates = new Candidates[NO_FILE_INFO + 1];
+        private final List<Map<NodeType, Candidates>> candidates = new ArrayList<>();
+
+        // Parent constraints of a type whose type a parent of a given type meets, and those which no parent meets
+        private final Map<NodeType, Map<NodeType, List<NodeConstraint>>> parent_constraints = new IdentityHashMap<>();
+        private final Map<NodeType, List<NodeConstraint>> root_constraints = new IdentityHashMap<>();
+
+        private CompiledProfile(List<NodeType> sorted_types) {
+            this.sorted_types = sorted_types;
+
+            for (int kind = 0; kind <= NO_FILE_INFO; kind++) {
+                candidates.add(new IdentityHashMap<>());
+            }
+        }
+
+        // Return valid types for node, when its parent has the given type, with preferred types in front.
+        private List<NodeType> get_possible_types(Node node, NodeType parent_type) {
+            FileInfo info = node.getFileInfo();
+            int kind = info == null ? NO_FILE_INFO : (info.isFile() ? FILE : 0) | (info.isDirectory() ? DIRECTORY : 0);
+
+            if (node.getParent() != null && parent_type == null) {
+                // Only happens for a node whose parent has no type, which isn't worth compiling
+                return DomainProfileServiceImpl.this.get_possible_types(sorted_types, node, null);
+            }
+
+            return get_candidates(kind, node.getParent() != null, parent_type).get_order(node);
+        }
+
+        private synchronized Candidates get_candidates(int kind, boolean has_parent, NodeType parent_type) {
+            if (has_parent) {
+                return candidates.get(kind).computeIfAbsent(parent_type, type -> new Candidates(kind, true, type));
+            }
+
+            if (root_candidates[kind] == null) {
+                root_candidates[kind] = new Candidates(kind, false, null);
+            }
+
+            return root_candidates[kind];
+        }
+
+        // Return the parent constraints of the type whose type the parent meets.
+        private List<NodeConstraint> get_parent_constraints(NodeType type, Node parent) {
+            NodeType parent_type = parent != null ? parent.getNodeType() : null;
+
+            if (parent != null && parent_type == null) {
+                return type.getParentConstraints().stream().filter(c -> meets_type_constraint(parent, c))
+                        .collect(Collectors.toList());
+            }
+
+            synchronized (this) {
+                if (parent == null) {
+                    return root_constraints.computeIfAbsent(type, t -> filter_parent_constraints(t, false, null));
+                }
+
+                return parent_constraints.computeIfAbsent(type, t -> new IdentityHashMap<>(4))
+                        .computeIfAbsent(parent_type, p -> filter_parent_constraints(type, true, p));
+            }
+        }
+
+        private List<NodeConstraint> filter_parent_constraints(NodeType type, boolean has_parent, NodeType parent_type) {
+            return type.getParentConstraints().stream().filter(c -> meets_type_constraint(has_parent, parent_type, c))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * The valid types of a kind of node with a given parent type, in the order of the profile's sorted types.
+         */
+        private class Candidates {
+            private final List<NodeType> types = new ArrayList<>();
+
+            // For each type, the preferred count of children with files if it has one, otherwise whether it is
+            // preferred because of its parent
+            private final List<CardinalityConstraint> preferred_counts = new ArrayList<>();
+            private final List<Boolean> preferred = new ArrayList<>();
+
+            // The order of the types if it doesn't depend on the node, otherwise the orders for each count of
+            // children with files
+            private final List<NodeType> order;
+            private final Map<Integer, List<NodeType>> orders_by_count = new ConcurrentHashMap<>();
+
+            private Candidates(int kind, boolean has_parent, NodeType parent_type) {
+                boolean by_count = false;
+
+                for (NodeType type : sorted_types) {
+                    if (!meets_file_requirements(kind, type) || !meets_type_constraints(type, has_parent, parent_type)) {
+                        continue;
+                    }
+
+                    CardinalityConstraint cc = type.getPreferredCountOfChildrenWithFiles();
+
+                    types.add(type);
+                    preferred_counts.add(cc);
+                    preferred.add(cc == null && type.getPreferredParentType() != null && has_parent
+                            && type.getPreferredParentType().equals(parent_type));
+                    by_count |= cc != null;
+                }
+
+                order = by_count ? null : order(0);
+            }
+
+            private List<NodeType> get_order(Node node) {
+                return order != null ? order : orders_by_count.computeIfAbsent(count_children_with_files(node), this::order);
+            }
+
+            private List<NodeType> order(int count) {
+                List<NodeType> result = new ArrayList<>(types.size());
+
+                for (int i = 0; i < types.size(); i++) {
+                    CardinalityConstraint cc = preferred_counts.get(i);
+                    boolean is_preferred = cc != null
+                            ? count >= cc.getMinimum() && (count <= cc.getMaximum() || cc.getMaximum() == -1)
+                            : preferred.get(i);
+
+                    if (is_preferred) {
+                        result.add(0, types.get(i));
+                    } else {
+                        result.add(types.get(i));
+                    }
+                }
+
+                return Collections.unmodifiableList(result);
+            }
+        }
+
+        private boolean meets_file_requirements(int kind, NodeType type) {
+            FileAssociation assoc = type.getFileAssociation();
+
+            return kind == NO_FILE_INFO || assoc == null
+                    || ((kind & FILE) != 0 && assoc == FileAssociation.REGULAR_FILE)
+                    || ((kind & DIRECTORY) != 0 && assoc == FileAssociation.DIRECTORY);
+        }
+
+        // Parent must meet one constraint. Only the type matters.
+        private boolean meets_type_constraints(NodeType type, boolean has_parent, NodeType parent_type) {
+            List<NodeConstraint> constraints = type.getParentConstraints();
+
+            if (constraints == null || constraints.isEmpty()) {
+                return true;
+            }
+
+            for (NodeConstraint c : constraints) {
+                if (meets_type_constraint(has_parent, parent_type, c)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * The transforms of a profile, each given the bit of its position, with the checks of their source constraints
+     * which only depend on node types worked out once for each node type. The transforms possible for nodes are kept
+     * as a set of bits, and each node clears the bits of the transforms it can't have, so the transforms common to
+     * many nodes are found without listing the transforms of each one. Only the transforms still possible for the
+     * nodes so far have their relations to the parent and children of a node checked.
+     */
+    private class CompiledTransforms {
+        private final List<NodeTransform> transforms;
+
+        // Transforms by the identifier of their source node type, and transforms from any type
+        private final Map<URI, BitSet> by_source_type = new HashMap<>();
+        private final BitSet any_source_type = new BitSet();
+
+        // Transforms with child constraints, and those which a node without children may have
+        private final BitSet child_constrained = new BitSet();
+        private final BitSet leaf = new BitSet();
+
+        // Transforms with a parent constraint
+        private final BitSet parent_constrained = new BitSet();
+
+        // Transforms whose parent constraint, if any, is met by the type of a parent, by its identifier, or by no parent
+        private final Map<URI, BitSet> by_parent_type = new HashMap<>();
+        private BitSet no_parent;
+
+        private CompiledTransforms(List<NodeTransform> transforms) {
+            this.transforms = transforms;
+
+            for (int i = 0; i < transforms.size(); i++) {
+                NodeTransform tr = transforms.get(i);
+
+                if (tr.getSourceNodeType() == null) {
+                    any_source_type.set(i);
+                } else {
+                    by_source_type.computeIfAbsent(tr.getSourceNodeType().getIdentifier(), id -> new BitSet()).set(i);
+                }
+
+                List<NodeConstraint> child_constraints = tr.getSourceChildConstraints();
+
+                if (child_constraints == null || child_constraints.isEmpty()) {
+                    leaf.set(i);
+                } else {
+                    child_constrained.set(i);
+
+                    // Leaf node must have a matches none child constraint
+                    if (child_constraints.stream().anyMatch(NodeConstraint::matchesNone)) {
+                        leaf.set(i);
+                    }
+                }
+
+                if (tr.getSourceParentConstraint() != null) {
+                    parent_constrained.set(i);
+                }
+            }
+        }
+
+        private BitSet get_all() {
+            BitSet result = new BitSet(transforms.size());
+            result.set(0, transforms.size());
+
+            return result;
+        }
+
+        private List<NodeTransform> get_transforms(BitSet bits) {
+            List<NodeTransform> result = new ArrayList<>(bits.cardinality());
+
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                result.add(transforms.get(i));
+            }
+
+            return result;
+        }
+
+        // Clear the bits of the transforms which the node can't have.
+        private void retain_possible(Node node, BitSet bits) {
+            if (node.isIgnored()) {
+                bits.clear();
+                return;
+            }
+
+            BitSet source = (BitSet) any_source_type.clone();
+            BitSet typed_source = by_source_type.get(node.getNodeType().getIdentifier());
+
+            if (typed_source != null) {
+                source.or(typed_source);
+            }
+
+            bits.and(source);
+
+            Node parent = node.getParent();
+
+            bits.and(get_parent_type_met(parent));
+
+            // Check against node without ignored children
+            List<Node> kids = new ArrayList<>();
+
+            if (node.hasChildren()) {
+                for (Node child : node.getChildren()) {
+                    if (!child.isIgnored()) {
+                        kids.add(child);
+                    }
+                }
+            }
+
+            if (kids.isEmpty()) {
+                bits.and(leaf);
+            } else {
+                retain_children_met(node, kids, bits);
+            }
+
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                if (parent_constrained.get(i)
+                        && !meets_parent_relation_constraint(node, parent, transforms.get(i).getSourceParentConstraint())) {
+                    bits.clear(i);
+                }
+            }
+        }
+
+        private BitSet get_parent_type_met(Node parent) {
+            if (parent == null) {
+                if (no_parent == null) {
+                    no_parent = parent_type_met(false, null);
+                }
+
+                return no_parent;
+            }
+
+            NodeType parent_type = parent.getNodeType();
+
+            if (parent_type == null) {
+                return parent_type_met(true, null);
+            }
+
+            return by_parent_type.computeIfAbsent(parent_type.getIdentifier(), id -> parent_type_met(true, parent_type));
+        }
+
+        private BitSet parent_type_met(boolean has_parent, NodeType parent_type) {
+            BitSet result = get_all();
+
+            for (int i = parent_constrained.nextSetBit(0); i >= 0; i = parent_constrained.nextSetBit(i + 1)) {
+                if (!meets_type_constraint(has_parent, parent_type, transforms.get(i).getSourceParentConstraint())) {
+                    result.clear(i);
+                }
+            }
+
+            return result;
+        }
+
+        // Each child must meet at least one child constraint. The children meeting each constraint are only worked out
+        // once, however many transforms share it.
+        private void retain_children_met(Node node, List<Node> kids, BitSet bits) {
+            Map<NodeConstraint, BitSet> kids_meeting = new IdentityHashMap<>();
+
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                if (!child_constrained.get(i)) {
+                    continue;
+                }
+
+                BitSet met = new BitSet(kids.size());
+
+                for (NodeConstraint nc : transforms.get(i).getSourceChildConstraints()) {
+                    met.or(kids_meeting.computeIfAbsent(nc, c -> get_kids_meeting(node, kids, c)));
+                }
+
+                if (met.cardinality() != kids.size()) {
+                    bits.clear(i);
+                }
+            }
+        }
+
+        private BitSet get_kids_meeting(Node node, List<Node> kids, NodeConstraint nc) {
+            BitSet result = new BitSet(kids.size());
+
+            for (int i = 0; i < kids.size(); i++) {
+                Node child = kids.get(i);
+
+                if (meets_type_constraint(child, nc) && meets_parent_relation_constraint(child, node, nc)) {
+                    result.set(i);
+                }
+            }
+
+            return result;
         }
     }
 }
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl;
+
+import org.dataconservancy.dcs.util.FormatScanPolicy;
+import org.dataconservancy.packaging.tool.api.support.FileInfoEnrichment;
+import org.dataconservancy.packaging.tool.impl.support.FilenameValidator;
+import org.dataconservancy.packaging.tool.impl.support.FixityCache;
+import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
+import org.dataconservancy.packaging.tool.model.ipm.Node;
+import org.dataconservancy.packaging.tool.model.ipm.NodeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds a tree of nodes from the file system in three stages.
+ * <ol>
+ *     <li>The directories are walked in parallel, on a work stealing pool. Each directory is listed once, however
+ *     many symbolic links lead to it, and the attributes, real path and visibility of each entry are read.</li>
+ *     <li>The nodes are then created from the listings on the calling thread, in the same depth first order as a
+ *     single threaded walk. Symbolic link cycles and ignored files are handled exactly as they were when the tree was
+ *     built by a single threaded walk, so the tree has the same shape. The name of every entry is validated as it is
+ *     reached, and if any are invalid they are all reported together, before any file is read.</li>
+ *     <li>Finally the file information of the nodes, which means reading and identifying every file, is created in
+ *     parallel by a bounded number of workers. Files already known from an existing tree, whose size, modification
+ *     time and file key are unchanged, keep their known checksums and formats instead of being read again.</li>
+ * </ol>
+ * <p>
+ * The last stage can instead be left to run in the background with {@link #buildStructure(Path,
+ * FileInfoEnrichment.ProgressListener)}. Each node is then given file information holding only the attributes read
+ * while walking, which is replaced once its file has been read.
+ * </p>
+ * <p>
+ * If the calling thread is interrupted, building stops as soon as possible, the interrupt is preserved and no tree
+ * is returned.
+ * </p>
+ */
+class FileSystemTreeBuilder {
+    private final Logger log = LoggerFactory.getLogger(IPMServiceImpl.class);
+
+    private final URIGenerator uriGenerator;
+    private final FixityCache fixityCache;
+    private final FormatScanPolicy formatScanPolicy;
+    private final int threads;
+    private final Map<URI, FileInfo> knownFiles;
+    private final NodeStore nodeStore;
+    private final boolean computeChecksums;
+    private final FilenameValidator filenameValidator = new FilenameValidator();
+
+    // The listings of the walked directories, keyed by their real path
+    private final Map<Path, Listing> listings = new ConcurrentHashMap<>();
+    private volatile boolean cancelled;
+
+    // The nodes of the tree in depth first order, and the entries they were created from
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * @param uriGenerator generator of the node identifiers
+     * @param fixityCache cache of file information to use, or null to read every file
+     * @param formatScanPolicy policy for detecting the formats of files
+     * @param threads the number of threads used to walk directories and read files
+     * @param knownFiles information about files already in a tree, keyed by their location
+     * @param nodeStore store to create the nodes in, or null to keep them in memory
+     * @param computeChecksums whether to compute the checksums of files, rather than only their fingerprints
+     */
+    FileSystemTreeBuilder(URIGenerator uriGenerator, FixityCache fixityCache, FormatScanPolicy formatScanPolicy,
+                          int threads, Map<URI, FileInfo> knownFiles, NodeStore nodeStore, boolean computeChecksums) {
+        this.uriGenerator = uriGenerator;
+        this.fixityCache = fixityCache;
+        this.formatScanPolicy = formatScanPolicy;
+        this.threads = Math.max(1, threads);
+        this.knownFiles = knownFiles;
+        this.nodeStore = nodeStore;
+        this.computeChecksums = computeChecksums;
+    }
+
+    /**
+     * Builds the tree under the given path.
+     * @param path the path of the root of the tree
+     * @return the root of the tree, or null if the calling thread was interrupted
+     * @throws IOException if the file system can't be read
+     */
+    Node build(Path path) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Node root = createStructure(pool, path, false);
+            return root != null && createFileInfo(pool) ? root : null;
+        } finally {
+            cancelled = true;
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Builds the structure of the tree under the given path, and starts reading its files in the background.
+     * @param path the path of the root of the tree
+     * @param listener notified as the file information of each node is created, or null
+     * @return the enrichment of the tree, or null if the calling thread was interrupted
+     * @throws IOException if the file system can't be walked
+     */
+    FileInfoEnrichment buildStructure(Path path, FileInfoEnrichment.ProgressListener listener) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Node root = null;
+        try {
+            root = createStructure(pool, path, true);
+        } finally {
+            if (root == null) {
+                cancelled = true;
+                pool.shutdownNow();
+            }
+        }
+        if (root == null) {
+            return null;
+        }
+
+        Enrichment enrichment = new Enrichment(root, listener);
+        enrichment.start(pool);
+        return enrichment;
+    }
+
+    /*
+     * Walks the directories under the path and creates the nodes of the tree, returning its root, or null if the
+     * calling thread was interrupted. Nodes are given basic file information from their attributes if asked.
+     */
+    private Node createStructure(ForkJoinPool pool, Path path, boolean basicFileInfo) throws IOException {
+        Entry rootEntry = new Entry(path, false);
+        if (rootEntry.directory) {
+            listings.put(rootEntry.realPath, Listing.PENDING);
+            if (!await(pool.submit(new WalkTask(rootEntry)))) {
+                return null;
+            }
+        }
+
+        List<String> invalidNames = new ArrayList<>();
+        Node root = createNode(null, rootEntry, path, new HashSet<>(), basicFileInfo, invalidNames);
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+        if (!invalidNames.isEmpty()) {
+            throw new IOException("Error creating package tree. File names must not be a Windows reserved file name or contain any of the illegal characters    \" *  /  :  <  >  ?  \\  |  ~ \nThe follow names were invalid:\n\n" + String.join("\n", invalidNames));
+        }
+        return root;
+    }
+
+    /*
+     * Creates a Node in the tree for the given entry, and its children if it is a directory. Each real path is only
+     * added to the tree once, in the order it's first reached. The path of the entry below the root of the tree, as
+     * the user sees it, is given so it can be reported if its name is invalid.
+     */
+    private Node createNode(Node parent, Entry entry, Path treePath, Set<Path> visitedFiles, boolean basicFileInfo,
+                            List<String> invalidNames) throws IOException {
+        //Check if the process is being cancelled by GUI
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+
+        //File names are validated for cross-platform compatibility as defined by the Data Conservancy BagIt Profile
+        Path fileName = treePath.getFileName();
+        if ((fileName != null && !filenameValidator.isValid(fileName.toString()))
+                || treePath.toString().length() > 1024) {
+            invalidNames.add(treePath.toString());
+        }
+
+        if (entry.error != null) {
+            log.error("Error getting path for file", entry.error);
+            throw new IOException("Error determining canonical path of " + entry.path.toFile(), entry.error);
+        }
+
+        //Tests to ensure any symbolic links do not create cycles in the tree.
+        if (!visitedFiles.add(entry.realPath)) {
+            if (entry.symbolicLink) {
+                log.warn("Symbolic link cycle detected." +
+                                 "Fix offending symbolic link at " +
+                                 entry.path.toFile().toString() +
+                                 ", which points to " +
+                                 entry.realPath);
+            } else {
+                log.warn("Symbolic link cycle detected." +
+                                 "There is a symbolic link under " +
+                                 entry.path.getRoot().toString() +
+                                 " which points to " + entry.path +
+                                 ".  Find the link and remove it.");
+            }
+            return null;
+        }
+
+        URI identifier = uriGenerator.generateNodeURI();
+        Node node = nodeStore != null ? nodeStore.createNode(identifier) : new Node(identifier);
+        nodes.add(node);
+        entries.add(entry);
+        if (basicFileInfo) {
+            node.setFileInfo(new FileInfo(entry.realPath, entry.attributes, null, null));
+        }
+
+        //If it's not the root set the parent child information.
+        if (parent != null) {
+            parent.addChild(node);
+
+            //If the parent of this new node was previously ignored, ignore this node as well.
+            if (parent.isIgnored()) {
+                node.setIgnored(true);
+            }
+
+            node.setParent(parent);
+        }
+
+        //If the file is hidden or starts with a "." set it to ignored.
+        //The "." semantics are carried over from the old rules based approach.
+        //but do not ignore the root node in any case
+        if (parent != null && (entry.hidden || entry.realPath.getFileName().toString().startsWith("."))) {
+            node.setIgnored(true);
+        }
+
+        //If the path represents a directory loop through all children and add them to the tree.
+        if (entry.directory) {
+            Listing listing = listings.get(entry.realPath);
+            if (listing != null) {
+                if (listing.error != null) {
+                    throw listing.error;
+                }
+                for (Entry child : listing.entries) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    createNode(node, child, treePath.resolve(child.path.getFileName()), visitedFiles,
+                               basicFileInfo, invalidNames);
+                }
+            }
+        }
+        return node;
+    }
+
+    /*
+     * Creates the file information of every node, with each worker taking the next node still to be done.
+     */
+    private boolean createFileInfo(ForkJoinPool pool) throws IOException {
+        AtomicInteger next = new AtomicInteger();
+        Callable<Void> worker = () -> {
+            for (int i = next.getAndIncrement(); i < nodes.size() && !cancelled; i = next.getAndIncrement()) {
+                createFileInfo(i);
+            }
+            return null;
+        };
+
+        List<Future<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(threads, nodes.size()); i++) {
+            workers.add(pool.submit(worker));
+        }
+        for (Future<Void> future : workers) {
+            if (!await(future)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Creates the file information of a node, reusing the attributes read while walking rather than reading them again.
+     */
+    private void createFileInfo(int i) {
+        Entry entry = entries.get(i);
+        FileInfo info = createKnownFileInfo(entry);
+        if (info == null) {
+            info = fixityCache != null ?
+                    fixityCache.createFileInfo(entry.realPath, entry.attributes, formatScanPolicy, computeChecksums) :
+                    new FileInfo(entry.realPath, entry.attributes, formatScanPolicy, computeChecksums);
+        }
+        nodes.get(i).setFileInfo(info);
+    }
+
+    /*
+     * Creates the file information of a file from what is already known about it, if the file looks unchanged. Known
+     * modification times may have been loaded from a saved package, so they are compared to the millisecond.
+     */
+    private FileInfo createKnownFileInfo(Entry entry) {
+        if (!entry.attributes.isRegularFile()) {
+            return null;
+        }
+
+        FileInfo known = knownFiles.get(entry.realPath.toUri());
+        if (known == null || !known.isFile() || known.getSize() != entry.attributes.size()
+                || known.getLastModifiedTime() == null
+                || known.getLastModifiedTime().toMillis() != entry.attributes.lastModifiedTime().toMillis()
+                || (known.getFileKey() != null && entry.attributes.fileKey() != null
+                    && !known.getFileKey().equals(entry.attributes.fileKey()))) {
+            return null;
+        }
+
+        String md5 = known.getChecksum(FileInfo.Algorithm.MD5);
+        String sha1 = known.getChecksum(FileInfo.Algorithm.SHA1);
+        boolean hasChecksums = md5 != null && sha1 != null;
+        if (computeChecksums ? !hasChecksums : !hasChecksums && known.getFingerprint() == null) {
+            return null;
+        }
+
+        Map<FileInfo.Algorithm, String> checksums = null;
+        if (hasChecksums) {
+            checksums = new HashMap<>();
+            checksums.put(FileInfo.Algorithm.MD5, md5);
+            checksums.put(FileInfo.Algorithm.SHA1, sha1);
+        }
+        List<String> formats = known.getFormats() != null ? new ArrayList<>(known.getFormats()) : new ArrayList<>();
+        FileInfo info = new FileInfo(entry.realPath, entry.attributes, formats, checksums);
+        info.setFingerprint(known.getFingerprint());
+        return info;
+    }
+
+    /*
+     * Waits for a task to finish, returning false if the calling thread was interrupted while waiting.
+     */
+    private boolean await(Future<?> future) throws IOException {
+        try {
+            future.get();
+            return true;
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            cancelled = true;
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Creates the file information of the nodes in the background, with a bounded number of workers each taking the
+     * next node still to be done, as {@link #build(Path)} does. The pool is shut down once they have all finished.
+     */
+    private class Enrichment implements FileInfoEnrichment {
+        private final Node root;
+        private final ProgressListener listener;
+        private final CompletableFuture<Node> completion = new CompletableFuture<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger enriched = new AtomicInteger();
+
+        private Enrichment(Node root, ProgressListener listener) {
+            this.root = root;
+            this.listener = listener;
+        }
+
+        private void start(ForkJoinPool pool) {
+            int workers = Math.min(threads, nodes.size());
+            AtomicInteger running = new AtomicInteger(workers);
+            Runnable worker = () -> {
+                try {
+                    for (int i = next.getAndIncrement(); i < nodes.size() && !completion.isDone();
+                         i = next.getAndIncrement()) {
+                        createFileInfo(i);
+                        int count = enriched.incrementAndGet();
+                        if (listener != null) {
+                            listener.nodeEnriched(nodes.get(i), count, nodes.size());
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    completion.completeExceptionally(e);
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        completion.complete(root);
+                        cancelled = true;
+                        pool.shutdown();
+                    }
+                }
+            };
+
+            for (int i = 0; i < workers; i++) {
+                pool.execute(worker);
+            }
+        }
+
+        @Override
+        public Node getRoot() {
+            return root;
+        }
+
+        @Override
+        public int getTotal() {
+            return nodes.size();
+        }
+
+        @Override
+        public int getEnriched() {
+            return enriched.get();
+        }
+
+        @Override
+        public CompletableFuture<Node> getCompletion() {
+            return completion;
+        }
+
+        @Override
+        public Node await() throws IOException, InterruptedException {
+            try {
+                return completion.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public void cancel() {
+            completion.cancel(false);
+        }
+    }
+
+    /**
+     * Lists a directory, and walks each of its subdirectories which hasn't already been claimed by another task.
+     */
+    private class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry directory;
+
+        private WalkTask(Entry directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.realPath)) {
+                for (Path childPath : stream) {
+                    if (cancelled) {
+                        return;
+                    }
+                    entries.add(new Entry(childPath, true));
+                }
+            } catch (IOException e) {
+                listings.put(directory.realPath, new Listing(null, e));
+                return;
+            } catch (DirectoryIteratorException e) {
+                listings.put(directory.realPath, new Listing(null, e.getCause()));
+                return;
+            }
+
+            List<WalkTask> subdirectories = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (entry.directory && listings.putIfAbsent(entry.realPath, Listing.PENDING) == null) {
+                    subdirectories.add(new WalkTask(entry));
+                }
+            }
+            listings.put(directory.realPath, new Listing(entries, null));
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * A path found while walking, with everything needed to add it to the tree.
+     */
+    private static class Entry {
+        private final Path path;
+        private Path realPath;
+        private BasicFileAttributes attributes;
+        private IOException error;
+        private boolean symbolicLink;
+        private boolean hidden;
+        private boolean directory;
+
+        /*
+         * An entry listed from a real directory is its own real path unless it is a symbolic link, so only links and
+         * the root of the tree need their real path resolved.
+         */
+        private Entry(Path path, boolean inRealDirectory) {
+            this.path = path;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                symbolicLink = attributes.isSymbolicLink();
+                if (symbolicLink || !inRealDirectory) {
+                    realPath = path.toRealPath();
+                    if (symbolicLink) {
+                        attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+                    }
+                } else {
+                    realPath = path;
+                }
+                hidden = Files.isHidden(realPath);
+                directory = attributes.isDirectory();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * The entries of a directory, or the error listing it.
+     */
+    private static class Listing {
+        private static final Listing PENDING = new Listing(Collections.<Entry>emptyList(), null);
+
+        private final List<Entry> entries;
+        private final IOException error;
+
+        private Listing(List<Entry> entries, IOException error) {
+            this.entries = entries;
+            this.error = error;
+        }
+    }
+}
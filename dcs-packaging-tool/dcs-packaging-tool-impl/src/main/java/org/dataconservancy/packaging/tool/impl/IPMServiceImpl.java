@@ -1,135 +1,184 @@
 package org.dataconservancy.packaging.tool.impl;
 
+import org.dataconservancy.dcs.util.FormatScanPolicy;
 import org.dataconservancy.packaging.tool.api.IPMService;
+import org.dataconservancy.packaging.tool.api.support.FileInfoEnrichment;
 import org.dataconservancy.packaging.tool.api.support.NodeComparison;
-import org.dataconservancy.packaging.tool.impl.support.FilenameValidatorService;
+import org.dataconservancy.packaging.tool.impl.support.FixityCache;
 import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
+import org.dataconservancy.packaging.tool.model.ipm.NodeIndex;
+import org.dataconservancy.packaging.tool.model.ipm.NodeStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 public class IPMServiceImpl implements IPMService {
-    private Set<Path> visitedFiles = new HashSet<>();
     private final URIGenerator uriGenerator;
-    private FilenameValidatorService validatorService;
+    private FixityCache fixityCache;
+    private FormatScanPolicy formatScanPolicy = FormatScanPolicy.FULL_SCAN;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean incrementalRefresh;
+    private boolean computeChecksums = true;
+    private String nodeStoreDirectory;
+    private NodeStore nodeStore;
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     public IPMServiceImpl(URIGenerator uriGenerator) {
         this.uriGenerator = uriGenerator;
-        this.validatorService = new FilenameValidatorService();
     }
 
-    @Override
-    public Node createTreeFromFileSystem(Path path) throws IOException {
+    /**
+     * Sets the cache used to avoid re-reading the checksums and formats of files that haven't changed since the last
+     * time a tree was built over them. If no cache is set, every file is read and identified.
+     * @param fixityCache the cache of file checksums and formats
+     */
+    public void setFixityCache(FixityCache fixityCache) {
+        this.fixityCache = fixityCache;
+    }
 
-        List<String> invalidNamesList = validatorService.findInvalidFilenames(path);
-        if (invalidNamesList != null && !invalidNamesList.isEmpty()) {
-            String invalidNames = "";
-            for (int i = 0; i < invalidNamesList.size(); i++) {
-                invalidNames += invalidNamesList.get(i);
+    /**
+     * Sets the policy controlling how much of each file is read to detect its formats when a tree is built. If no
+     * policy is set, the whole of every file is scanned.
+     * @param formatScanPolicy the policy to use for format detection
+     */
+    public void setFormatScanPolicy(FormatScanPolicy formatScanPolicy) {
+        this.formatScanPolicy = formatScanPolicy != null ? formatScanPolicy : FormatScanPolicy.FULL_SCAN;
+    }
 
-                if (i + 1 < invalidNamesList.size()) {
-                    invalidNames += "\n";
-                }
-            }
+    /**
+     * Sets the number of threads used to walk directories, and to read and identify files, when a tree is built. If
+     * not set, the number of available processors is used.
+     * @param threads the number of threads to use
+     */
+    public void setThreads(int threads) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
 
-            throw new IOException("Error creating package tree. File names must not be a Windows reserved file name or contain any of the illegal characters    \" *  /  :  <  >  ?  \\  |  ~ \nThe follow names were invalid:\n\n" + invalidNames);
-        }
+    /**
+     * Sets whether refreshing a tree only reads the files that look changed. When set, a file whose size, last
+     * modified time and file key are the same as those in the tree being refreshed keeps its checksums and formats
+     * from that tree, and only other files are read and identified. Otherwise every file is read again.
+     * @param incrementalRefresh true to only read files that look changed when a tree is refreshed
+     */
+    public void setIncrementalRefresh(boolean incrementalRefresh) {
+        this.incrementalRefresh = incrementalRefresh;
+    }
 
-        visitedFiles.clear();
-        Node root;
-        root = createTree(null, path);
-        return root;
+    /**
+     * Sets whether the MD5 and SHA1 checksums of files are computed when a tree is built. Every file is given a fast
+     * fingerprint, which is enough to tell when it changes, so the checksums can be left to be computed when a package
+     * is generated. If not set, checksums are computed.
+     * @param computeChecksums true to compute the checksums of files when a tree is built
+     */
+    public void setComputeChecksums(boolean computeChecksums) {
+        this.computeChecksums = computeChecksums;
     }
 
-    /*
-     * Creates a Node in the tree for the given path, and will recurse the file structure to add all child files and folders.
+    /**
+     * Sets a directory in which to keep the nodes of the trees that are built, rather than in memory, for content
+     * with too many files for its tree to fit in the heap. If not set, trees are kept in memory.
+     * @param nodeStoreDirectory the directory to keep the nodes of trees in
      */
-    private Node createTree(Node parent, Path path) throws IOException {
-        //Check if the process is being cancelled by GUI
-        if (Thread.currentThread().isInterrupted()) {
-            return null;
-        }
+    public void setNodeStoreDirectory(String nodeStoreDirectory) {
+        this.nodeStoreDirectory = nodeStoreDirectory;
+    }
+
+    @Override
+    public Node createTreeFromFileSystem(Path path) throws IOException {
+        return createTree(path, Collections.emptyMap(), getNodeStore());
+    }
 
-        //Tests to ensure any symbolic links do not create cycles in the tree.
+    @Override
+    public FileInfoEnrichment createTreeStructureFromFileSystem(Path path,
+                                                                FileInfoEnrichment.ProgressListener listener)
+        throws IOException {
+        return createTreeStructureFromFileSystem(path, formatScanPolicy, listener);
+    }
+
+    @Override
+    public FileInfoEnrichment createTreeStructureFromFileSystem(Path path, FormatScanPolicy formatScanPolicy,
+                                                                FileInfoEnrichment.ProgressListener listener)
+        throws IOException {
+        FileInfoEnrichment enrichment;
         try {
-            if (visitedFiles.contains(path.toRealPath())) {
-                if (Files.isSymbolicLink(path)) {
-                    log.warn("Symbolic link cycle detected." +
-                                              "Fix offending symbolic link at " +
-                                              path.toFile().toString() +
-                                              ", which points to " +
-                                              path.toRealPath());
-                    return null;
-                } else {
-                    log.warn("Symbolic link cycle detected." +
-                                              "There is a symbolic link under " +
-                                              path.getRoot().toString() +
-                                              " which points to " + path +
-                                              ".  Find the link and remove it.");
-                    return null;
-                }
-            } else {
-                visitedFiles.add(path.toRealPath());
+            enrichment = new FileSystemTreeBuilder(uriGenerator, fixityCache, formatScanPolicy, threads,
+                                                   Collections.emptyMap(), getNodeStore(), computeChecksums)
+                .buildStructure(path, listener);
+        } catch (IOException | RuntimeException e) {
+            if (fixityCache != null) {
+                fixityCache.flush();
             }
-        } catch (IOException e) {
-            log.error("Error getting path for file", e);
-            throw new IOException(
-                "Error determining canonical path of " + path.toFile(), e);
+            throw e;
         }
 
-        Node node = null;
-        //Just as a fail safe ensure the file exists before adding.
-        if (path.toRealPath().toFile().exists()) {
-            node = new Node(uriGenerator.generateNodeURI());
-
-            FileInfo info = new FileInfo(path.toRealPath());
-            node.setFileInfo(info);
-
-            //If it's not the root set the parent child information.
-            if (parent != null) {
-                parent.addChild(node);
-
-                //If the parent of this new node was previously ignored, ignore this node as well.
-                if (parent.isIgnored()) {
-                    node.setIgnored(true);
-                }
+        if (enrichment != null && fixityCache != null) {
+            enrichment.getCompletion().whenComplete((root, error) -> fixityCache.flush());
+        }
+        return enrichment;
+    }
 
-                node.setParent(parent);
+    /*
+     * Creates the tree under the path in the store, reusing the checksums and formats of the known files that are
+     * unchanged.
+     */
+    private Node createTree(Path path, Map<URI, FileInfo> knownFiles, NodeStore store) throws IOException {
+        //File names are validated as the tree is built, and any invalid names are reported before files are read
+        Node root;
+        try {
+            root = new FileSystemTreeBuilder(uriGenerator, fixityCache, formatScanPolicy, threads, knownFiles,
+                                             store, computeChecksums).build(path);
+        } finally {
+            if (fixityCache != null) {
+                fixityCache.flush();
             }
+        }
+        return root;
+    }
 
-            //If the file is hidden or starts with a "." set it to ignored.
-            //The "." semantics are carried over from the old rules based approach.
-            //but do not ignore the root node in any case
-            if (parent != null && (Files.isHidden(path.toRealPath()) || path.toRealPath().getFileName().toString().startsWith("."))) {
-                node.setIgnored(true);
-            }
+    /**
+     * Closes the store that trees are kept in, if there is one, deleting its files. The trees built by the service
+     * must not be used afterwards.
+     * @throws IOException if the store's files can't be deleted
+     */
+    public synchronized void close() throws IOException {
+        if (nodeStore != null) {
+            NodeStore store = nodeStore;
+            nodeStore = null;
+            store.close();
+        }
+    }
 
-            //If the path represents a directory loop through all children and add them to the tree.
-            if (Files.isDirectory(path.toRealPath())) {
-                DirectoryStream<Path> stream = Files.newDirectoryStream(path.toRealPath());
-                for (Path childPath : stream) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        break;
-                    }
-                    createTree(node, childPath);
-                }
+    /*
+     * Answers the store that trees are built in, creating it the first time, or null if trees are kept in memory.
+     */
+    synchronized NodeStore getNodeStore() throws IOException {
+        if (nodeStore == null) {
+            nodeStore = createNodeStore();
+        }
+        return nodeStore;
+    }
 
-            }
+    /*
+     * Creates a new store in the node store directory, or answers null if trees are kept in memory.
+     */
+    private NodeStore createNodeStore() throws IOException {
+        if (nodeStoreDirectory == null || nodeStoreDirectory.isEmpty()) {
+            return null;
         }
-        return node;
+        return new NodeStore(Paths.get(nodeStoreDirectory));
     }
 
     @Override
@@ -187,8 +236,6 @@ public class IPMServiceImpl implements IPMService {
             existingTree.setIdentifier(newRoot.getIdentifier());
             existingTree.setFileInfo(newRoot.getFileInfo());
             existingTree.setDomainObject(newRoot.getDomainObject());
-            existingTree.getChildren().clear();
-
             existingTree.setChildren(newRoot.getChildren());
             existingTree.setNodeType(newRoot.getNodeType());
             existingTree.setSubNodeTypes(newRoot.getSubNodeTypes());
@@ -229,28 +276,38 @@ public class IPMServiceImpl implements IPMService {
 
         Map<Node, NodeComparison> nodeMap = new HashMap<>();
 
-        //Generate maps of existing locations in the trees
-        Map<URI, Node> existingLocationMap = new HashMap<>();
-        Map<URI, Node> comparisonLocationMap = new HashMap<>();
+        //The comparison tree is looked up in its index, which is asked for once as a stored tree builds it each time
+        NodeIndex comparisonIndex = comparisonTree.getIndex();
+
+        //The comparison nodes that have been matched with a node at the same location in the existing tree
+        Set<Node> matchedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
 
-        addNodeLocation(existingTree, existingLocationMap);
-        addNodeLocation(comparisonTree, comparisonLocationMap);
+        //Only the compared part of the existing tree is looked up, so it is mapped by location as it is walked
+        List<Node> existingNodes = new ArrayList<>();
+        Map<URI, Node> existingLocations = new HashMap<>();
+        existingTree.walk(node -> {
+            //If the node has no file information leave it out of the comparison
+            if (node.getFileInfo() != null) {
+                existingNodes.add(node);
+                existingLocations.putIfAbsent(node.getFileInfo().getLocation(), node);
+            }
+        });
 
-        for (URI location : existingLocationMap.keySet()) {
-            if (comparisonLocationMap.containsKey(location)) {
-                Node existingNode = existingLocationMap.get(location);
-                Node comparisonNode = comparisonLocationMap.get(location);
+        for (Node existingNode : existingNodes) {
+            URI location = existingNode.getFileInfo().getLocation();
+            Node comparisonNode = comparisonIndex.getNodeByLocation(location);
 
+            if (comparisonNode != null) {
                 //This is a specialized case that occurs when we create a node in the tree with no backing file entity
                 if (existingNode.getParent() != null && existingNode.getParent().getFileInfo() == null) {
-                    checkFileUpdate(location, existingNode, comparisonNode, nodeMap, comparisonLocationMap);
+                    checkFileUpdate(existingNode, comparisonNode, nodeMap, matchedNodes);
                 } else if (existingNode.getParent() != null && comparisonNode.getParent() == null) {
                     //In the event we refreshed on a sub node, the sub node is the root of the comparison tree so it's options are limited we can simply check for update.
                     //Note that this is only true because in the GUI currently you can't refresh a node whose file content is missing.
-                    checkFileUpdate(location, existingNode, comparisonNode, nodeMap, comparisonLocationMap);
+                    checkFileUpdate(existingNode, comparisonNode, nodeMap, matchedNodes);
                 } else if ((existingNode.getParent() == null && comparisonNode.getParent() == null) || existingNode.getParent().getFileInfo().getLocation().equals(comparisonNode.getParent().getFileInfo().getLocation())) {
                     //If both nodes are root or the node's parent location is the same then we consider it the same
-                    checkFileUpdate(location, existingNode, comparisonNode, nodeMap, comparisonLocationMap);
+                    checkFileUpdate(existingNode, comparisonNode, nodeMap, matchedNodes);
                 } else {
                     //The node has moved so we consider it a delete and add.
                     markNodesRemoved(existingNode, existingNode.getParent(), nodeMap);
@@ -265,69 +322,72 @@ public class IPMServiceImpl implements IPMService {
                         parent = existingNode.getParent();
                     }
                     nodeMap.put(comparisonNode, new NodeComparison(NodeComparison.Status.ADDED, parent));
-                    comparisonLocationMap.remove(location);
+                    matchedNodes.add(comparisonNode);
                 }
             } else {
-                markNodesRemoved(existingLocationMap.get(location), existingLocationMap.get(location).getParent(), nodeMap);
+                markNodesRemoved(existingNode, existingNode.getParent(), nodeMap);
             }
         }
 
-        //Anything remaining in the comparison location map should be added
-        if (!comparisonLocationMap.isEmpty()) {
-            for (URI location : comparisonLocationMap.keySet()) {
-                //Determine what the parent of the new node will be it will either be already in the tree, or a new node being added.
-                Node parent = null;
+        //Anything remaining in the comparison tree should be added
+        comparisonTree.walk(newNode -> {
+            if (newNode.getFileInfo() == null || matchedNodes.contains(newNode)) {
+                return;
+            }
 
-                Node newNode = comparisonLocationMap.get(location);
-                if (newNode.getParent() != null) {
-                    if (existingLocationMap.get(newNode.getParent().getFileInfo().getLocation()) != null) {
-                        parent = existingLocationMap.get(newNode.getParent().getFileInfo().getLocation());
-                    }
+            //Determine what the parent of the new node will be it will either be already in the tree, or a new node being added.
+            Node parent = null;
+            if (newNode.getParent() != null) {
+                URI parentLocation = newNode.getParent().getFileInfo().getLocation();
+                parent = existingLocations.get(parentLocation);
 
-                    //If the parent isn't existing then we must have added it
-                    if (parent == null) {
-                        parent = comparisonLocationMap.get(newNode.getParent().getFileInfo().getLocation());
-                    }
+                //If the parent isn't existing then we must have added it
+                if (parent == null) {
+                    parent = comparisonIndex.getNodeByLocation(parentLocation);
                 }
-                nodeMap.put(newNode, new NodeComparison(NodeComparison.Status.ADDED, parent));
             }
-        }
+            nodeMap.put(newNode, new NodeComparison(NodeComparison.Status.ADDED, parent));
+        });
 
         return nodeMap;
     }
 
-    private void checkFileUpdate(URI location, Node existingNode, Node comparisonNode, Map<Node, NodeComparison> nodeMap, Map<URI, Node> comparisonLocationMap) {
+    private void checkFileUpdate(Node existingNode, Node comparisonNode, Map<Node, NodeComparison> nodeMap, Set<Node> matchedNodes) {
         if (existingNode.getFileInfo().isFile() && comparisonNode.getFileInfo().isFile()
-                && !existingNode.getFileInfo().getChecksum(FileInfo.Algorithm.MD5).equalsIgnoreCase(comparisonNode.getFileInfo().getChecksum(FileInfo.Algorithm.MD5))
-                && !existingNode.getFileInfo().getChecksum(FileInfo.Algorithm.SHA1).equalsIgnoreCase(comparisonNode.getFileInfo().getChecksum(FileInfo.Algorithm.SHA1))) {
+                && isContentChanged(existingNode.getFileInfo(), comparisonNode.getFileInfo())) {
 
-            //The checksums are different so we consider this an update
+            //The content is different so we consider this an update
             nodeMap.put(comparisonNode, new NodeComparison(NodeComparison.Status.UPDATED, existingNode));
-            comparisonLocationMap.remove(location);
-        } else {
-            //The file location is completely unchanged and not updated
-            comparisonLocationMap.remove(location);
-        }
-    }
-    private void markNodesRemoved(Node node, Node parent, Map<Node, NodeComparison> nodeMap) {
-        nodeMap.put(node, new NodeComparison(NodeComparison.Status.DELETED, parent));
-        if (node.getChildren() != null) {
-            for (Node child : node.getChildren()) {
-                markNodesRemoved(child, node, nodeMap);
-            }
         }
+        //Otherwise the file location is completely unchanged and not updated
+        matchedNodes.add(comparisonNode);
     }
 
-    private void addNodeLocation(Node node, Map<URI, Node> nodeLocationMap) {
+    /*
+     * Compares the fingerprints of two files where both have one. Trees loaded from packages made before files were
+     * fingerprinted are compared by checksums instead, or failing that by size and last modified time.
+     */
+    private boolean isContentChanged(FileInfo existing, FileInfo comparison) {
+        if (existing.getFingerprint() != null && comparison.getFingerprint() != null) {
+            return !existing.getFingerprint().equals(comparison.getFingerprint());
+        }
 
-        //If the node has no file information leave it out of the map
-        if (node.getFileInfo() != null) {
-            nodeLocationMap.put(node.getFileInfo().getLocation(), node);
+        String existingMd5 = existing.getChecksum(FileInfo.Algorithm.MD5);
+        String existingSha1 = existing.getChecksum(FileInfo.Algorithm.SHA1);
+        String comparisonMd5 = comparison.getChecksum(FileInfo.Algorithm.MD5);
+        String comparisonSha1 = comparison.getChecksum(FileInfo.Algorithm.SHA1);
+        if (existingMd5 != null && existingSha1 != null && comparisonMd5 != null && comparisonSha1 != null) {
+            return !existingMd5.equalsIgnoreCase(comparisonMd5) && !existingSha1.equalsIgnoreCase(comparisonSha1);
         }
 
+        return existing.getSize() != comparison.getSize()
+                || !Objects.equals(existing.getLastModifiedTime(), comparison.getLastModifiedTime());
+    }
+    private void markNodesRemoved(Node node, Node parent, Map<Node, NodeComparison> nodeMap) {
+        nodeMap.put(node, new NodeComparison(NodeComparison.Status.DELETED, parent));
         if (node.getChildren() != null) {
             for (Node child : node.getChildren()) {
-                addNodeLocation(child, nodeLocationMap);
+                markNodesRemoved(child, node, nodeMap);
             }
         }
     }
@@ -351,7 +411,7 @@ public class IPMServiceImpl implements IPMService {
         if (node.getFileInfo().getLocation() != null) {
             oldPath = Paths.get(node.getFileInfo().getLocation());
         }
-        node.setFileInfo(new FileInfo(newPath));
+        node.setFileInfo(new FileInfo(newPath, formatScanPolicy));
 
         //If we have an old path try to remap children
         if (oldPath != null && node.getChildren() != null) {
@@ -374,71 +434,152 @@ public class IPMServiceImpl implements IPMService {
 
     @Override
     public Map<Node, NodeComparison> refreshTreeContent(Node node) throws IOException {
-        Node newTree = buildComparisonTree(node);
-        return compareTree(node, newTree);
+        Map<URI, FileInfo> knownFiles = new HashMap<>();
+        if (incrementalRefresh) {
+            addKnownFiles(node, knownFiles);
+        }
+
+        //The comparison tree is only needed until it has been compared, so it is built in a store of its own which is
+        //closed once the nodes the comparison refers to have been copied out of it
+        try (NodeStore comparisonStore = createNodeStore()) {
+            Node newTree = buildComparisonTree(node, knownFiles, comparisonStore);
+            Map<Node, NodeComparison> comparison = compareTree(node, newTree);
+            return comparisonStore != null ? copyComparedNodes(comparison) : comparison;
+        }
+    }
+
+    /**
+     * Copies the nodes of the comparison tree that a comparison refers to, so the store the comparison tree was built
+     * in can be closed. Added nodes are copied into the store trees are kept in, linked to each other as they were in
+     * the comparison tree, as they become part of the existing tree when it is merged. Updated nodes only lend their
+     * file information to the existing tree, so they are copied into memory.
+     * @param comparisonResult The result of comparing the existing tree with the comparison tree
+     * @return The same comparison referring to the copies of the comparison tree's nodes
+     * @throws IOException If the store trees are kept in can't be created.
+     */
+    private Map<Node, NodeComparison> copyComparedNodes(Map<Node, NodeComparison> comparisonResult) throws IOException {
+        NodeStore store = getNodeStore();
+        Map<Node, Node> copies = new IdentityHashMap<>();
+        for (Map.Entry<Node, NodeComparison> entry : comparisonResult.entrySet()) {
+            if (entry.getValue().getStatus() == NodeComparison.Status.ADDED) {
+                copies.put(entry.getKey(), copyNode(entry.getKey(), store));
+            } else if (entry.getValue().getStatus() == NodeComparison.Status.UPDATED) {
+                copies.put(entry.getKey(), copyNode(entry.getKey(), null));
+            }
+        }
+
+        for (Map.Entry<Node, Node> copy : copies.entrySet()) {
+            if (copy.getKey().getChildren() != null) {
+                for (Node child : copy.getKey().getChildren()) {
+                    Node childCopy = copies.get(child);
+                    if (childCopy != null) {
+                        copy.getValue().addChild(childCopy);
+                    }
+                }
+            }
+        }
+
+        Map<Node, NodeComparison> copiedResult = new HashMap<>();
+        for (Map.Entry<Node, NodeComparison> entry : comparisonResult.entrySet()) {
+            Node node = copies.getOrDefault(entry.getKey(), entry.getKey());
+            Node parent = entry.getValue().getNode();
+            copiedResult.put(node, new NodeComparison(entry.getValue().getStatus(),
+                                                      parent != null ? copies.getOrDefault(parent, parent) : null));
+        }
+        return copiedResult;
+    }
+
+    /*
+     * Copies a node of a comparison tree, which being built from the file system only has file information and
+     * whether it is ignored.
+     */
+    private Node copyNode(Node node, NodeStore store) {
+        Node copy = store != null ? store.createNode(node.getIdentifier()) : new Node(node.getIdentifier());
+        copy.setFileInfo(node.getFileInfo());
+        copy.setIgnored(node.isIgnored());
+        return copy;
+    }
+
+    /**
+     * Collects the file information of every file in the existing tree, by location.
+     * @param node The node of the existing tree to collect the files under
+     * @param knownFiles The map to add the file information to
+     */
+    private void addKnownFiles(Node node, Map<URI, FileInfo> knownFiles) {
+        if (node.getFileInfo() != null && node.getFileInfo().isFile() && node.getFileInfo().getLocation() != null) {
+            knownFiles.put(node.getFileInfo().getLocation(), node.getFileInfo());
+        }
+
+        if (node.getChildren() != null) {
+            for (Node child : node.getChildren()) {
+                addKnownFiles(child, knownFiles);
+            }
+        }
     }
 
     /**
      * Builds a tree from the current file system to compare with the existing file system.
      * @param node The node from the existing tree that will be the root of the comparison
+     * @param knownFiles The file information from the existing tree that can be reused for unchanged files
+     * @param store The store to build the new tree in, or null to build it in memory
      * @return The root of the new tree to compare
      * @throws IOException If there is a problem reading from the file system.
      */
-    private Node buildComparisonTree(Node node) throws IOException {
-        Node newTree = createTreeFromFileSystem(Paths.get(node.getFileInfo().getLocation()));
-        buildContentRoots(node, newTree);
+    private Node buildComparisonTree(Node node, Map<URI, FileInfo> knownFiles, NodeStore store) throws IOException {
+        Node newTree = createTree(Paths.get(node.getFileInfo().getLocation()), knownFiles, store);
+        buildContentRoots(node, newTree, newTree, knownFiles, store);
 
         return newTree;
     }
 
     /**
      * Loops through the existing tree to find any content locations different from their parent, it then builds a tree from the file system under that location.
+     * The new tree is walked alongside the existing tree, so the node a content location is added to is found without looking it up in the new tree.
      * @param node The node to check for different content locations
+     * @param newNode The node of the new tree at the same location as the node, or null if there is none
      * @param newTree The new tree to add the tree from the file system to
+     * @param knownFiles The file information from the existing tree that can be reused for unchanged files
+     * @param store The store the new tree is built in, or null if it is built in memory
      * @throws IOException If there is a problem reading from the file system.
      */
-    private void buildContentRoots(Node node, Node newTree) throws IOException {
+    private void buildContentRoots(Node node, Node newNode, Node newTree, Map<URI, FileInfo> knownFiles, NodeStore store) throws IOException {
         if (node.getChildren() != null) {
+            Map<URI, Node> newChildren = null;
             for (Node child : node.getChildren()) {
-                if (child.getFileInfo() != null && Paths.get(child.getFileInfo().getLocation()).toFile().exists()) {
-                    if (!Paths.get(child.getFileInfo().getLocation()).startsWith(Paths.get(node.getFileInfo().getLocation()))) {
-                        Node newTreeParent = getNewTreeNodeForExistingNode(node, newTree);
-                        if (newTreeParent != null) {
-                            newTreeParent.addChild(buildComparisonTree(child));
-                        } else {
-                            newTree.addChild(buildComparisonTree(child));
-                        }
-                    } else if (child.getChildren() != null) {
-                        buildContentRoots(child, newTree);
+                if (child.getFileInfo() != null && Paths.get(child.getFileInfo().getLocation()).toFile().exists()
+                        && !Paths.get(child.getFileInfo().getLocation()).startsWith(Paths.get(node.getFileInfo().getLocation()))) {
+                    if (newNode != null) {
+                        newNode.addChild(buildComparisonTree(child, knownFiles, store));
+                    } else {
+                        newTree.addChild(buildComparisonTree(child, knownFiles, store));
                     }
                 } else if (child.getChildren() != null) {
-                    buildContentRoots(child, newTree);
+                    Node newChild = null;
+                    if (child.getFileInfo() != null) {
+                        if (newChildren == null) {
+                            newChildren = childrenByLocation(newNode);
+                        }
+                        newChild = newChildren.get(child.getFileInfo().getLocation());
+                    }
+                    buildContentRoots(child, newChild, newTree, knownFiles, store);
                 }
             }
         }
     }
 
     /**
-     * Finds nodes in the new comparison tree that correspond to nodes in the existing tree.
-     * This is used to ensure new content locations are placed in the correct spot in the tree.
-     * @param node The node to find in the new tree.
-     * @param newTree The new tree to search for the node.
-     * @return The node from the new tree or false if none exists
+     * @param node A node of the new tree, or null.
+     * @return The children of the node by location.
      */
-    private Node getNewTreeNodeForExistingNode(Node node, Node newTree) {
-        Node foundNode = null;
-        if (node.getFileInfo() != null && newTree.getFileInfo() != null
-            && node.getFileInfo().getLocation().equals(newTree.getFileInfo().getLocation())) {
-            foundNode =  newTree;
-        } else if (newTree.getChildren() != null){
-            for (Node newTreeChild : newTree.getChildren()) {
-                foundNode = getNewTreeNodeForExistingNode(node, newTreeChild);
-                if (foundNode != null) {
-                    break;
+    private Map<URI, Node> childrenByLocation(Node node) {
+        Map<URI, Node> children = new HashMap<>();
+        if (node != null && node.getChildren() != null) {
+            for (Node child : node.getChildren()) {
+                if (child.getFileInfo() != null) {
+                    children.putIfAbsent(child.getFileInfo().getLocation(), child);
                 }
             }
         }
-
-        return foundNode;
+        return children;
     }
 }
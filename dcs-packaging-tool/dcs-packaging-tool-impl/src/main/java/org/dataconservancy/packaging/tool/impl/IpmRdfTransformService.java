@@ -17,6 +17,7 @@ import org.dataconservancy.packaging.tool.model.RDFTransformException;
 import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
 import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
+import org.dataconservancy.packaging.tool.model.ipm.NodeStore;
 
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -25,6 +26,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 public class IpmRdfTransformService implements PackageResourceMapConstants  {
 
@@ -41,6 +43,7 @@ public class IpmRdfTransformService implements PackageResourceMapConstants  {
     public static final Property HAS_FORMAT = ResourceFactory.createProperty(DC_IPM_NS_URI, "hasFormat");
     public static final Property HAS_SHA1_CHECKSUM = ResourceFactory.createProperty(DC_IPM_NS_URI, "hasSHA1Checksum");
     public static final Property HAS_MD5_CHECKSUM = ResourceFactory.createProperty(DC_IPM_NS_URI, "hasMD5Checksum");
+    public static final Property HAS_FINGERPRINT = ResourceFactory.createProperty(DC_IPM_NS_URI, "hasFingerprint");
     public static final Property HAS_SIZE = ResourceFactory.createProperty(DC_IPM_NS_URI, "hasSize");
     public static final Property IS_DIRECTORY = ResourceFactory.createProperty(DC_IPM_NS_URI, "isDirectory");
     public static final Property HAS_CREATED_DATE = ResourceFactory.createProperty(DC_IPM_NS_URI, "hasCreatedDate");
@@ -137,6 +140,19 @@ public class IpmRdfTransformService implements PackageResourceMapConstants  {
 
     public Node transformToNode(Model model)
         throws RDFTransformException {
+        return transformToNode(model, null);
+    }
+
+    /**
+     * Transforms a tree, creating its nodes in the given store rather than in memory.
+     * @param model the RDF of the tree
+     * @param nodeStore the store to create the nodes in, or null to keep them in memory
+     * @return the root of the tree
+     * @throws RDFTransformException if the RDF is not a valid tree
+     */
+    public Node transformToNode(Model model, NodeStore nodeStore)
+        throws RDFTransformException {
+        Function<URI, Node> nodeFactory = nodeStore != null ? nodeStore::createNode : Node::new;
 
         Resource rootResource;
         ResIterator nodeIterator = model.listResourcesWithProperty(IS_ROOT);
@@ -148,20 +164,21 @@ public class IpmRdfTransformService implements PackageResourceMapConstants  {
 
         Node rootNode = null;
         if (rootResource != null) {
-            rootNode = transformNodeFromResource(model, rootResource, null);
+            rootNode = transformNodeFromResource(model, rootResource, null, nodeFactory);
         }
         return rootNode;
     }
 
     private Node transformNodeFromResource(Model model,
                                                   Resource nodeResource,
-                                                  Node parent)
+                                                  Node parent,
+                                                  Function<URI, Node> nodeFactory)
         throws RDFTransformException {
         Node node = null;
         if (nodeResource != null) {
             if (nodeResource.hasProperty(HAS_ID)) {
                 try {
-                    node = new Node(new URI(getLiteral(nodeResource, HAS_ID)));
+                    node = nodeFactory.apply(new URI(getLiteral(nodeResource, HAS_ID)));
                 } catch (URISyntaxException e) {
                     throw new RDFTransformException("Expected node id to be a uri", e);
                 }
@@ -222,7 +239,7 @@ public class IpmRdfTransformService implements PackageResourceMapConstants  {
                     if (!child.isResource()) {
                         throw new RDFTransformException("Expected child node to be a resource");
                     }
-                    node.addChild(transformNodeFromResource(model, child.asResource(), node));
+                    node.addChild(transformNodeFromResource(model, child.asResource(), node, nodeFactory));
                 }
             }
 
@@ -265,6 +282,10 @@ public class IpmRdfTransformService implements PackageResourceMapConstants  {
             fileInfoResource.addProperty(HAS_MD5_CHECKSUM, info.getChecksum(FileInfo.Algorithm.MD5));
         }
 
+        if (info.getFingerprint() != null) {
+            fileInfoResource.addProperty(HAS_FINGERPRINT, info.getFingerprint());
+        }
+
         if (info.getCreationTime() != null) {
             fileInfoResource.addLiteral(HAS_CREATED_DATE, info.getCreationTime().toMillis());
         }
@@ -303,6 +324,12 @@ public class IpmRdfTransformService implements PackageResourceMapConstants  {
             if (fileInfoResource.hasProperty(HAS_MD5_CHECKSUM)) {
                 md5Checksum = getLiteral(fileInfoResource, HAS_MD5_CHECKSUM);
             }
+
+            String fingerprint = null;
+            if (fileInfoResource.hasProperty(HAS_FINGERPRINT)) {
+                fingerprint = getLiteral(fileInfoResource, HAS_FINGERPRINT);
+            }
+
             Map<FileInfo.Algorithm, String> checksumMap = null;
             if (md5Checksum != null || sha1Checksum != null) {
                 checksumMap = new HashMap<>();
@@ -342,6 +369,7 @@ public class IpmRdfTransformService implements PackageResourceMapConstants  {
             fileInfo.setIsDirectory(!isFile);
             fileInfo.setIsFile(isFile);
             fileInfo.setChecksums(checksumMap);
+            fileInfo.setFingerprint(fingerprint);
             fileInfo.setFormats(formats);
         }
 
@@ -25,6 +25,8 @@ import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -33,7 +35,8 @@ import java.util.Map;
 import java.util.Set;
 
 /**
- *  Implementation of the PackageChecksumService interface
+ *  Implementation of the PackageChecksumService interface. All of the requested checksums for a file are calculated
+ *  from a single read of that file.
  */
 public class PackageChecksumServiceImpl implements PackageChecksumService {
 
@@ -41,24 +44,52 @@ public class PackageChecksumServiceImpl implements PackageChecksumService {
     public Map<File, List<Checksum>> generatePackageFileChecksums(
             Set<File> packageFiles, List<String> checksumAlgorithms) throws PackageToolException {
 
+        validateAlgorithms(checksumAlgorithms);
+
         Map<File, List<Checksum>> packageChecksums = new HashMap<>();
         for(File file : packageFiles){
-            List<Checksum> fileChecksums = new ArrayList<>();
-            for(String algorithm : checksumAlgorithms){
-                try{
-                    FileInputStream fis = new FileInputStream(file);
-                    ChecksumImpl checksum = new ChecksumImpl(algorithm, ChecksumGeneratorVerifier.generateChecksum(algorithm, fis));
-                    fileChecksums.add(checksum);
-                } catch (FileNotFoundException fnfe) {
-                   throw new PackageToolException(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION, fnfe, file.getPath());
-                } catch (NoSuchAlgorithmException nsae){
-                   throw new PackageToolException(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION, nsae, algorithm);
-                }
-                packageChecksums.put(file, fileChecksums);
+            packageChecksums.put(file, generateFileChecksums(file, checksumAlgorithms));
+        }
+        return packageChecksums;
+    }
+
+    /**
+     * Verifies that checksums can be calculated with each of the supplied algorithms, before any file is read.
+     * @param checksumAlgorithms the algorithms to check
+     * @throws PackageToolException if an algorithm is not known
+     */
+    void validateAlgorithms(List<String> checksumAlgorithms) throws PackageToolException {
+        for (String algorithm : checksumAlgorithms) {
+            if (!ChecksumGeneratorVerifier.isSupportedAlgorithm(algorithm)) {
+                throw new PackageToolException(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION,
+                        new NoSuchAlgorithmException(algorithm), algorithm);
             }
+        }
+    }
 
+    /**
+     * Calculates each of the requested checksums for a single file, reading the file once.
+     * @param file the file to calculate checksums for
+     * @param checksumAlgorithms the algorithms to calculate
+     * @return the checksums of the file, in the same order as the supplied algorithms
+     * @throws PackageToolException if the file can't be found or read, or an algorithm is not known
+     */
+    List<Checksum> generateFileChecksums(File file, List<String> checksumAlgorithms) throws PackageToolException {
+        List<Checksum> fileChecksums = new ArrayList<>();
+        try (InputStream fis = new FileInputStream(file)) {
+            Map<String, String> checksums = ChecksumGeneratorVerifier.generateChecksums(checksumAlgorithms, fis);
+            for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+                fileChecksums.add(new ChecksumImpl(checksum.getKey(), checksum.getValue()));
+            }
+        } catch (FileNotFoundException fnfe) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION, fnfe, file.getPath());
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION, nsae,
+                    nsae.getMessage());
+        } catch (IOException ioe) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, ioe, file.getPath());
         }
-        return packageChecksums;
+        return fileChecksums;
     }
 
 }
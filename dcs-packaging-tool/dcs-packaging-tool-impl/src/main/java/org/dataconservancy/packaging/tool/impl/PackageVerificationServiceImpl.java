@@ -0,0 +1,478 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.dataconservancy.dcs.model.Checksum;
+import org.dataconservancy.dcs.util.ChecksumGeneratorVerifier;
+import org.dataconservancy.packaging.tool.api.PackageChecksumService;
+import org.dataconservancy.packaging.tool.api.PackageVerificationService;
+import org.dataconservancy.packaging.tool.model.BagItParameterNames;
+import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.PackageVerificationReport;
+import org.dataconservancy.packaging.tool.model.PackageVerificationReport.ProblemType;
+import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Verifies BagIt packages against their payload and tag manifests, and their Payload-Oxum.
+ * <p>
+ * Exploded bags are verified by checksumming their files with a {@link PackageChecksumService}, which by default
+ * checksums several files at once. Archived bags (tar or zip, optionally compressed) are verified by streaming the
+ * archive, without extracting it. Every file in the archive is checksummed with the archive algorithms (md5 and sha1 by
+ * default), as well as with the algorithm of any manifest which has already been passed. As the manifests of an
+ * archived bag may come after the files they describe, the files which still lack a checksum needed by a manifest are
+ * then checksummed in a second pass over the archive, which reads no other files.
+ * </p>
+ */
+public class PackageVerificationServiceImpl implements PackageVerificationService {
+
+    private static final String BAGIT_TXT = "bagit.txt";
+    private static final String BAG_INFO_TXT = "bag-info.txt";
+    private static final String PAYLOAD_DIR = "data/";
+    private static final Pattern MANIFEST_NAME = Pattern.compile("(tag)?manifest-([A-Za-z0-9]+)\\.txt");
+    private static final Pattern SHA2_NAME = Pattern.compile("sha(224|256|384|512)");
+
+    private PackageChecksumService checksumService = new ParallelPackageChecksumServiceImpl();
+
+    private List<String> archiveAlgorithms =
+            Arrays.asList(ChecksumGeneratorVerifier.ALGORITHM_MD5, ChecksumGeneratorVerifier.ALGORITHM_SHA1);
+
+    /**
+     * @param checksumService the service used to checksum the files of exploded bags
+     */
+    public void setChecksumService(PackageChecksumService checksumService) {
+        this.checksumService = checksumService;
+    }
+
+    /**
+     * @param archiveAlgorithms the algorithms every file in an archived bag is checksummed with
+     */
+    public void setArchiveAlgorithms(List<String> archiveAlgorithms) {
+        this.archiveAlgorithms = archiveAlgorithms;
+    }
+
+    @Override
+    public PackageVerificationReport verifyPackage(File pkg) throws PackageToolException {
+        return verifyPackage(pkg, checksumService);
+    }
+
+    @Override
+    public PackageVerificationReport verifyPackage(File pkg, int threads) throws PackageToolException {
+        if (threads < 0) {
+            throw new IllegalArgumentException("The number of threads can't be negative: " + threads);
+        }
+
+        //The service's own checksum service is left as it is, as the service may be shared
+        if (threads == 0) {
+            return verifyPackage(pkg, checksumService);
+        }
+        return verifyPackage(pkg, threads == 1 ? new PackageChecksumServiceImpl()
+                : new ParallelPackageChecksumServiceImpl(threads));
+    }
+
+    private PackageVerificationReport verifyPackage(File pkg, PackageChecksumService checksumService) {
+        if (!pkg.exists()) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION, pkg.getPath());
+        }
+
+        PackageVerificationReport report = new PackageVerificationReport(pkg.getPath());
+        if (pkg.isDirectory()) {
+            verifyExplodedBag(findBagDirectory(pkg), checksumService, report);
+        } else {
+            verifyArchivedBag(pkg, report);
+        }
+        return report;
+    }
+
+    /**
+     * An exploded package may be either the bag directory itself, or the directory the bag was written to.
+     */
+    private File findBagDirectory(File dir) {
+        if (new File(dir, BAGIT_TXT).isFile()) {
+            return dir;
+        }
+
+        File[] bagDirs = dir.listFiles(f -> f.isDirectory() && new File(f, BAGIT_TXT).isFile());
+        return bagDirs != null && bagDirs.length == 1 ? bagDirs[0] : dir;
+    }
+
+    private void verifyExplodedBag(File bagDir, PackageChecksumService checksumService,
+                                   PackageVerificationReport report) {
+        Manifests manifests = new Manifests();
+        File[] bagFiles = bagDir.listFiles(File::isFile);
+        if (bagFiles != null) {
+            for (File bagFile : bagFiles) {
+                if (isManifestOrBagInfo(bagFile.getName())) {
+                    try (InputStream in = new FileInputStream(bagFile)) {
+                        manifests.read(bagFile.getName(), in, report);
+                    } catch (IOException e) {
+                        throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e, bagFile.getPath());
+                    }
+                }
+            }
+        }
+
+        if (!new File(bagDir, BAGIT_TXT).isFile() || manifests.payloadAlgorithms.isEmpty()) {
+            report.addProblem(ProblemType.NOT_A_BAG, null, null, null, null);
+            return;
+        }
+
+        Map<String, Long> payloadSizes = new TreeMap<>();
+        Path bagPath = bagDir.toPath();
+        Path payloadPath = bagPath.resolve(PAYLOAD_DIR);
+        if (Files.isDirectory(payloadPath)) {
+            try (Stream<Path> payload = Files.walk(payloadPath)) {
+                for (Path file : payload.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                    payloadSizes.put(FilenameUtils.separatorsToUnix(bagPath.relativize(file).toString()),
+                            Files.size(file));
+                }
+            } catch (IOException e) {
+                throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e, payloadPath.toString());
+            }
+        }
+
+        verifyExplodedFiles(bagDir, manifests.payload, manifests.payloadAlgorithms, checksumService, report);
+        verifyExplodedFiles(bagDir, manifests.tag, manifests.tagAlgorithms, checksumService, report);
+        checkPayload(manifests, payloadSizes, report);
+    }
+
+    private void verifyExplodedFiles(File bagDir, Map<String, Map<String, String>> expected, Set<String> algorithms,
+                                     PackageChecksumService checksumService, PackageVerificationReport report) {
+        Map<File, String> files = new HashMap<>();
+        for (String path : expected.keySet()) {
+            File file = new File(bagDir, FilenameUtils.separatorsToSystem(path));
+            if (file.isFile()) {
+                files.put(file, path);
+            } else {
+                report.addProblem(ProblemType.MISSING_FILE, path, null, null, null);
+            }
+        }
+
+        if (files.isEmpty()) {
+            return;
+        }
+
+        Map<File, List<Checksum>> fileChecksums =
+                checksumService.generatePackageFileChecksums(files.keySet(), new ArrayList<>(algorithms));
+
+        long bytes = 0;
+        for (Map.Entry<File, String> file : files.entrySet()) {
+            Map<String, String> actual = new HashMap<>();
+            for (Checksum checksum : fileChecksums.get(file.getKey())) {
+                actual.put(checksum.getAlgorithm(), checksum.getValue());
+            }
+            compare(file.getValue(), expected.get(file.getValue()), actual, report);
+            bytes += file.getKey().length();
+        }
+        report.setFilesVerified(report.getFilesVerified() + files.size());
+        report.setBytesVerified(report.getBytesVerified() + bytes);
+    }
+
+    private void verifyArchivedBag(File pkg, PackageVerificationReport report) {
+        Map<String, Map<String, String>> entryChecksums = new HashMap<>();
+        Map<String, Long> entrySizes = new HashMap<>();
+        Map<String, byte[]> bagFiles = new HashMap<>();
+        Set<String> algorithms = new LinkedHashSet<>(archiveAlgorithms);
+
+        readArchive(pkg, (name, entryContent) -> {
+            String fileName = name.substring(name.lastIndexOf('/') + 1);
+            InputStream content = entryContent;
+            if (isBagDirectoryEntry(name) && (isManifestOrBagInfo(fileName) || fileName.equals(BAGIT_TXT))) {
+                //Bag declaration files are small, and are kept to be read once the bag directory is known
+                byte[] bytes = IOUtils.toByteArray(content);
+                bagFiles.put(name, bytes);
+                content = new ByteArrayInputStream(bytes);
+
+                Matcher manifest = MANIFEST_NAME.matcher(fileName);
+                if (manifest.matches() && isSupported(manifest.group(2))) {
+                    algorithms.add(digestAlgorithm(manifest.group(2)));
+                }
+            }
+
+            CountingInputStream counting = new CountingInputStream(content);
+            entryChecksums.put(name, ChecksumGeneratorVerifier.generateChecksums(algorithms, counting));
+            entrySizes.put(name, counting.getByteCount());
+        });
+
+        report.setFilesVerified(entrySizes.size());
+        report.setBytesVerified(entrySizes.values().stream().mapToLong(Long::longValue).sum());
+
+        //The bag directory is the one holding the outermost bagit.txt
+        String base = null;
+        for (String name : bagFiles.keySet()) {
+            if ((name.equals(BAGIT_TXT) || name.endsWith("/" + BAGIT_TXT)) &&
+                    (base == null || name.length() - BAGIT_TXT.length() < base.length())) {
+                base = name.substring(0, name.length() - BAGIT_TXT.length());
+            }
+        }
+
+        Manifests manifests = new Manifests();
+        if (base != null) {
+            for (Map.Entry<String, byte[]> bagFile : bagFiles.entrySet()) {
+                String path = bagFile.getKey().substring(Math.min(base.length(), bagFile.getKey().length()));
+                if (bagFile.getKey().startsWith(base) && path.indexOf('/') < 0 && isManifestOrBagInfo(path)) {
+                    manifests.read(path, new ByteArrayInputStream(bagFile.getValue()), report);
+                }
+            }
+        }
+
+        if (base == null || manifests.payloadAlgorithms.isEmpty()) {
+            report.addProblem(ProblemType.NOT_A_BAG, null, null, null, null);
+            return;
+        }
+
+        //Files which came before the manifest of one of their algorithms are read again for the missing checksums
+        Map<String, Set<String>> missingAlgorithms = new HashMap<>();
+        for (Map<String, Map<String, String>> expected : Arrays.asList(manifests.payload, manifests.tag)) {
+            for (Map.Entry<String, Map<String, String>> file : expected.entrySet()) {
+                Map<String, String> actual = entryChecksums.get(base + file.getKey());
+                for (String algorithm : file.getValue().keySet()) {
+                    if (actual != null && !actual.containsKey(algorithm)) {
+                        missingAlgorithms.computeIfAbsent(base + file.getKey(), name -> new LinkedHashSet<>())
+                                .add(algorithm);
+                    }
+                }
+            }
+        }
+        if (!missingAlgorithms.isEmpty()) {
+            readArchive(pkg, (name, content) -> {
+                Set<String> missing = missingAlgorithms.get(name);
+                if (missing != null) {
+                    entryChecksums.get(name).putAll(ChecksumGeneratorVerifier.generateChecksums(missing, content));
+                }
+            });
+        }
+
+        for (Map<String, Map<String, String>> expected : Arrays.asList(manifests.payload, manifests.tag)) {
+            for (Map.Entry<String, Map<String, String>> file : expected.entrySet()) {
+                Map<String, String> actual = entryChecksums.get(base + file.getKey());
+                if (actual == null) {
+                    report.addProblem(ProblemType.MISSING_FILE, file.getKey(), null, null, null);
+                } else {
+                    compare(file.getKey(), file.getValue(), actual, report);
+                }
+            }
+        }
+
+        Map<String, Long> payloadSizes = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : entrySizes.entrySet()) {
+            if (entry.getKey().startsWith(base + PAYLOAD_DIR)) {
+                payloadSizes.put(entry.getKey().substring(base.length()), entry.getValue());
+            }
+        }
+        checkPayload(manifests, payloadSizes, report);
+    }
+
+    /**
+     * Passes the name and content of each file in an archived package to the handler, in the order they are archived.
+     */
+    private void readArchive(File pkg, ArchiveEntryHandler handler) {
+        try (InputStream in = openArchive(pkg)) {
+            ArchiveInputStream ais = new ArchiveStreamFactory().createArchiveInputStream(in);
+            ArchiveEntry entry;
+            while ((entry = ais.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    handler.handle(entry.getName(), new CloseShieldInputStream(ais));
+                }
+            }
+        } catch (ArchiveException e) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e,
+                    pkg.getPath() + " is not a supported archive");
+        } catch (IOException e) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e, pkg.getPath());
+        } catch (NoSuchAlgorithmException e) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION, e,
+                    e.getMessage());
+        }
+    }
+
+    private InputStream openArchive(File pkg) throws IOException {
+        //Apache commons compress requires buffered input streams to detect formats
+        InputStream in = new BufferedInputStream(new FileInputStream(pkg));
+        try {
+            return new BufferedInputStream(new CompressorStreamFactory().createCompressorInputStream(in));
+        } catch (CompressorException e) {
+            //Not compressed
+            return in;
+        }
+    }
+
+    /**
+     * Checks that every payload file is listed in every payload manifest, and that the payload matches the
+     * Payload-Oxum.
+     */
+    private void checkPayload(Manifests manifests, Map<String, Long> payloadSizes, PackageVerificationReport report) {
+        for (String path : payloadSizes.keySet()) {
+            Map<String, String> listed = manifests.payload.get(path);
+            for (String algorithm : manifests.payloadAlgorithms) {
+                if (listed == null || !listed.containsKey(algorithm)) {
+                    report.addProblem(ProblemType.UNLISTED_FILE, path, algorithm, null, null);
+                }
+            }
+        }
+
+        if (manifests.payloadOxum != null) {
+            String oxum = payloadSizes.values().stream().mapToLong(Long::longValue).sum() + "." + payloadSizes.size();
+            if (!oxum.equals(manifests.payloadOxum)) {
+                report.addProblem(ProblemType.OXUM_MISMATCH, BAG_INFO_TXT, null, manifests.payloadOxum, oxum);
+            }
+        }
+    }
+
+    private void compare(String path, Map<String, String> expected, Map<String, String> actual,
+                         PackageVerificationReport report) {
+        for (Map.Entry<String, String> checksum : expected.entrySet()) {
+            String actualValue = actual.get(checksum.getKey());
+            if (actualValue == null) {
+                report.addProblem(ProblemType.NOT_VERIFIED, path, checksum.getKey(), checksum.getValue(), null);
+            } else if (!actualValue.equalsIgnoreCase(checksum.getValue())) {
+                report.addProblem(ProblemType.CHECKSUM_MISMATCH, path, checksum.getKey(), checksum.getValue(),
+                        actualValue);
+            }
+        }
+    }
+
+    /**
+     * The declaration and manifest files of an archived bag are at the top of the bag directory, which is either the
+     * root of the archive or a directory at its root. Deeper files, and files in the payload directory, are payload
+     * however they are named, so are only ever streamed.
+     */
+    private static boolean isBagDirectoryEntry(String name) {
+        int separator = name.indexOf('/');
+        return separator < 0 || (name.indexOf('/', separator + 1) < 0 && !name.startsWith(PAYLOAD_DIR));
+    }
+
+    private static boolean isManifestOrBagInfo(String fileName) {
+        return fileName.equals(BAG_INFO_TXT) || MANIFEST_NAME.matcher(fileName).matches();
+    }
+
+    private static boolean isSupported(String bagItAlgorithm) {
+        return ChecksumGeneratorVerifier.isSupportedAlgorithm(digestAlgorithm(bagItAlgorithm));
+    }
+
+    /**
+     * BagIt names the SHA-2 algorithms without a hyphen, e.g. manifest-sha256.txt, which isn't a name the Java
+     * security providers recognise.
+     */
+    private static String digestAlgorithm(String bagItAlgorithm) {
+        String algorithm = bagItAlgorithm.toLowerCase();
+        Matcher sha2 = SHA2_NAME.matcher(algorithm);
+        return sha2.matches() ? "SHA-" + sha2.group(1) : algorithm;
+    }
+
+    /**
+     * Handles the content of a file read from an archived package.
+     */
+    private interface ArchiveEntryHandler {
+        void handle(String name, InputStream content) throws IOException, NoSuchAlgorithmException;
+    }
+
+    /**
+     * The checksums listed in the manifests of a bag, and its Payload-Oxum.
+     */
+    private static class Manifests {
+        private final Map<String, Map<String, String>> payload = new TreeMap<>();
+        private final Map<String, Map<String, String>> tag = new TreeMap<>();
+        private final Set<String> payloadAlgorithms = new LinkedHashSet<>();
+        private final Set<String> tagAlgorithms = new LinkedHashSet<>();
+        private String payloadOxum;
+
+        private void read(String fileName, InputStream in, PackageVerificationReport report) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            try {
+                if (fileName.equals(BAG_INFO_TXT)) {
+                    readBagInfo(reader);
+                    return;
+                }
+
+                Matcher manifest = MANIFEST_NAME.matcher(fileName);
+                if (!manifest.matches()) {
+                    return;
+                }
+                if (!isSupported(manifest.group(2))) {
+                    report.addProblem(ProblemType.UNSUPPORTED_ALGORITHM, fileName, manifest.group(2), null, null);
+                    return;
+                }
+
+                String algorithm = digestAlgorithm(manifest.group(2));
+                Map<String, Map<String, String>> checksums = manifest.group(1) != null ? tag : payload;
+                (manifest.group(1) != null ? tagAlgorithms : payloadAlgorithms).add(algorithm);
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] parts = line.trim().split("\\s+", 2);
+                    if (parts.length < 2) {
+                        report.addProblem(ProblemType.MALFORMED_MANIFEST, fileName, algorithm, null, line);
+                        continue;
+                    }
+                    String path = parts[1].startsWith("*") ? parts[1].substring(1) : parts[1];
+                    checksums.computeIfAbsent(FilenameUtils.separatorsToUnix(path), p -> new LinkedHashMap<>())
+                            .put(algorithm, parts[0].toLowerCase());
+                }
+            } catch (IOException e) {
+                throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e, fileName);
+            }
+        }
+
+        private void readBagInfo(BufferedReader reader) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(':');
+                if (separator > 0 && line.substring(0, separator).trim().equals(BagItParameterNames.PAYLOAD_OXUM)) {
+                    payloadOxum = line.substring(separator + 1).trim();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl;
+
+import org.dataconservancy.dcs.model.Checksum;
+import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Implementation of the PackageChecksumService interface which calculates the checksums of several files at once,
+ * using a bounded pool of worker threads. Files are submitted largest first, so that the longest running checksums
+ * are started as early as possible and don't hold up the end of the run.
+ * <p>
+ * Errors encountered for any one file are reported with the same {@code PackagingToolReturnInfo} codes used by
+ * {@link PackageChecksumServiceImpl}; checksums still outstanding when an error occurs are cancelled.
+ * </p>
+ */
+public class ParallelPackageChecksumServiceImpl extends PackageChecksumServiceImpl {
+
+    private final int poolSize;
+
+    /**
+     * Creates a service with one worker thread per available processor.
+     */
+    public ParallelPackageChecksumServiceImpl() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a service which uses at most the supplied number of worker threads.
+     * @param poolSize the maximum number of files to checksum at once, must be at least 1
+     */
+    public ParallelPackageChecksumServiceImpl(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Checksum pool size must be at least 1, was " + poolSize);
+        }
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @return the maximum number of files this service will checksum at once
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    @Override
+    public Map<File, List<Checksum>> generatePackageFileChecksums(
+            Set<File> packageFiles, List<String> checksumAlgorithms) throws PackageToolException {
+
+        int threads = Math.min(poolSize, packageFiles.size());
+        if (threads <= 1) {
+            return super.generatePackageFileChecksums(packageFiles, checksumAlgorithms);
+        }
+
+        validateAlgorithms(checksumAlgorithms);
+
+        List<File> largestFirst = new ArrayList<>(packageFiles);
+        largestFirst.sort(Comparator.comparingLong(File::length).reversed());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<File, Future<List<Checksum>>> pending = new LinkedHashMap<>();
+        try {
+            for (File file : largestFirst) {
+                pending.put(file, executor.submit(() -> generateFileChecksums(file, checksumAlgorithms)));
+            }
+            executor.shutdown();
+
+            Map<File, List<Checksum>> packageChecksums = new HashMap<>();
+            for (Map.Entry<File, Future<List<Checksum>>> entry : pending.entrySet()) {
+                packageChecksums.put(entry.getKey(), entry.getValue().get());
+            }
+            return packageChecksums;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PackageToolException) {
+                throw (PackageToolException) e.getCause();
+            }
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION,
+                    e.getCause() instanceof Exception ? (Exception) e.getCause() : e,
+                    "Exception occurred when calculating package file checksums.");
+        } catch (InterruptedException e) {
+            //To support the cancelling of package creation, pass the interrupt along to the caller.
+            Thread.currentThread().interrupt();
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e,
+                    "Calculating package file checksums was interrupted.");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -32,13 +32,17 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 
+import org.dataconservancy.dcs.util.ChecksumGeneratorVerifier;
+import org.dataconservancy.dcs.util.ChecksumOutputStream;
 import org.dataconservancy.dcs.util.UriUtility;
 import org.dataconservancy.dcs.model.Checksum;
+import org.dataconservancy.dcs.model.ChecksumImpl;
 import org.dataconservancy.packaging.tool.api.PackageChecksumService;
 import org.dataconservancy.packaging.tool.api.generator.PackageAssembler;
 import org.dataconservancy.packaging.tool.api.generator.PackageResourceType;
 import org.dataconservancy.packaging.tool.api.Package;
 import org.dataconservancy.packaging.tool.impl.PackageChecksumServiceImpl;
+import org.dataconservancy.packaging.tool.impl.ParallelPackageChecksumServiceImpl;
 import org.dataconservancy.packaging.tool.impl.support.FilenameValidator;
 import org.dataconservancy.packaging.tool.model.BagItParameterNames;
 import org.dataconservancy.packaging.tool.model.GeneralParameterNames;
@@ -46,6 +50,7 @@ import org.dataconservancy.packaging.tool.model.PackageGenerationParameters;
 import org.dataconservancy.packaging.tool.model.PackageToolException;
 import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
 import org.dataconservancy.packaging.tool.model.SupportedMimeTypes;
+import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 
@@ -66,8 +71,12 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -105,7 +114,7 @@ public class BagItPackageAssembler implements PackageAssembler {
     private final static String VERSION = "0.97";
     private final static String PROFILE_ID = "http://dataconservancy.org/formats/data-conservancy-pkg-1.0";
 
-    private static PackageChecksumService checksumService = new PackageChecksumServiceImpl();
+    private PackageChecksumService checksumService = new PackageChecksumServiceImpl();
 
     private PackageGenerationParameters params = null;
 
@@ -137,6 +146,21 @@ public class BagItPackageAssembler implements PackageAssembler {
      */
     private Set<File> tagFiles = new HashSet<>();
 
+    /**
+     * Checksums of the files written by this Assembler, calculated as each file was written.
+     */
+    private Map<File, List<Checksum>> writtenFileChecksums = new HashMap<>();
+
+    /**
+     * Sizes of the files written by this Assembler, counted as each file was written.
+     */
+    private Map<File, Long> writtenFileSizes = new HashMap<>();
+
+    /**
+     * Whether checksums recorded in the package tree may be used for files which haven't changed since.
+     */
+    private boolean trustedFixity = false;
+
     /**
      * List of checksums algs to be performed when creating bags
      */
@@ -172,6 +196,8 @@ public class BagItPackageAssembler implements PackageAssembler {
      * <li> archiving-format: when not set, is defaulted to ".tar" </li>
      * <li> compression-format: when not set, no compression will be performed on the serialized content. </li>
      * <li> checksum-algs: when not set, is defaulted to "md5" </li>
+     * <li> checksum-threads: when not set, is defaulted to the number of available processors </li>
+     * <li> trusted-fixity: when not set, is defaulted to false, and every file is checksummed as it is written </li>
      * </ul>
      * <p>
      * NOTE: If this is called a second time, the first initialization will still take effect unless parameters are
@@ -204,6 +230,13 @@ public class BagItPackageAssembler implements PackageAssembler {
             String defaultChecksumAlg = "md5";
             checksumAlgs.add(defaultChecksumAlg);
         }
+        validateChecksumAlgorithms();
+
+        //retrieve the number of files to checksum at once, if it is set in the input parameters
+        checksumService = createChecksumService(params.getParam(GeneralParameterNames.CHECKSUM_THREADS, 0));
+
+        //retrieve whether checksums recorded in the package tree can be used, if it is set in the input parameters
+        trustedFixity = Boolean.parseBoolean(params.getParam(GeneralParameterNames.TRUSTED_FIXITY, 0));
 
         //retrieve archiving format, if it is set in the input parameters
         if (params.getParam(BagItParameterNames.ARCHIVING_FORMAT) != null &&
@@ -436,7 +469,7 @@ public class BagItPackageAssembler implements PackageAssembler {
     public void putResource(URI uri, InputStream content) {
         URI resolvableURI = fileURIMap.get(uri);
         File newFile = new File(resolvableURI);
-        try (OutputStream fileOS = new FileOutputStream(newFile)) {
+        try (OutputStream fileOS = newOutputStream(newFile)) {
             IOUtils.copy(content, fileOS);
         } catch (FileNotFoundException e) {
             throw new PackageToolException(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION, e);
@@ -463,6 +496,89 @@ public class BagItPackageAssembler implements PackageAssembler {
         return resourceUri;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When the trusted-fixity parameter is set, and the source file has the same size and last modified time as when
+     * its checksums were recorded, the recorded checksums are used for the manifests and the file is copied without
+     * being checksummed. If the number of bytes copied differs from the recorded size, the staged file is checksummed
+     * when the package is assembled instead.
+     * </p>
+     *
+     * @param path
+     *        Logical file path (including filename) of the resource relative to
+     *        the package.
+     * @param type
+     *        Resource type (e.g. data, metadata, etc).
+     * @param source FileInfo describing the file whose content is to be added
+     * @return the URI
+     */
+    @Override
+    public URI createResource(String path, PackageResourceType type, FileInfo source) {
+        List<Checksum> knownChecksums = trustedFixity ? getKnownChecksums(source) : null;
+        if (knownChecksums == null) {
+            return PackageAssembler.super.createResource(path, type, source);
+        }
+
+        URI resourceUri = reserveResource(path, type);
+        File newFile = new File(fileURIMap.get(resourceUri));
+        try (OutputStream fileOS = new FileOutputStream(newFile)) {
+            long size = Files.copy(Paths.get(source.getLocation()), fileOS);
+            if (size == source.getSize()) {
+                writtenFileChecksums.put(newFile, knownChecksums);
+                writtenFileSizes.put(newFile, size);
+            } else {
+                log.warn("Size of " + source.getLocation() + " changed while it was being copied, " +
+                        "its recorded checksums will not be used.");
+            }
+        } catch (FileNotFoundException e) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION, e);
+        } catch (IOException e) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_IO_EXCEPTION, e);
+        }
+
+        return resourceUri;
+    }
+
+    /**
+     * Returns the recorded checksums of a file for each of the checksum algorithms of the bag, provided the file is
+     * unchanged since they were recorded.
+     * @param source FileInfo describing the file
+     * @return the recorded checksums, or null if they are incomplete or may no longer be current
+     */
+    private List<Checksum> getKnownChecksums(FileInfo source) {
+        if (!source.isFile() || source.getLastModifiedTime() == null || !"file".equals(source.getLocation().getScheme())) {
+            return null;
+        }
+
+        List<Checksum> knownChecksums = new ArrayList<>();
+        for (String alg : checksumAlgs) {
+            String value = null;
+            if (ChecksumGeneratorVerifier.ALGORITHM_MD5.equalsIgnoreCase(alg)) {
+                value = source.getChecksum(FileInfo.Algorithm.MD5);
+            } else if (ChecksumGeneratorVerifier.ALGORITHM_SHA1.equalsIgnoreCase(alg)) {
+                value = source.getChecksum(FileInfo.Algorithm.SHA1);
+            }
+            if (value == null || value.isEmpty()) {
+                return null;
+            }
+            knownChecksums.add(new ChecksumImpl(alg, value));
+        }
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(Paths.get(source.getLocation()), BasicFileAttributes.class);
+            if (attrs.size() != source.getSize() ||
+                    attrs.lastModifiedTime().toMillis() != source.getLastModifiedTime().toMillis()) {
+                log.info("File " + source.getLocation() + " has changed since its checksums were recorded.");
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return knownChecksums;
+    }
+
     /**
      * {@inheritDoc}
      * The process of assembling a BagIt bag includes these following steps:
@@ -473,6 +589,9 @@ public class BagItPackageAssembler implements PackageAssembler {
      *     <li>Write manifest files</li>
      *     <li>Write tag-manifest files</li>
      * </ul>
+     * Checksums and sizes of files written through this Assembler are captured as the files are written, so those
+     * files are not read again here. Only files that were reserved but not written by this Assembler have their
+     * checksums calculated from the staged content.
      *
      *
      * @return A {@link org.dataconservancy.packaging.tool.api.Package} object which encapsulate the following elements
@@ -502,8 +621,7 @@ public class BagItPackageAssembler implements PackageAssembler {
             tagFiles.add(bagItFile);
 
             //calculate payload files checksums
-            Map<File, List<Checksum>> payloadFileChecksums =
-                    checksumService.generatePackageFileChecksums(dataFiles, checksumAlgs);
+            Map<File, List<Checksum>> payloadFileChecksums = getFileChecksums(dataFiles);
 
             //write manifest files.
             for (String alg : checksumAlgs) {
@@ -513,8 +631,7 @@ public class BagItPackageAssembler implements PackageAssembler {
             }
 
             //calculate checksums for tag files, including the newly create manifest files.
-            Map<File, List<Checksum>> tagFileChecksums =
-                    checksumService.generatePackageFileChecksums(tagFiles, checksumAlgs);
+            Map<File, List<Checksum>> tagFileChecksums = getFileChecksums(tagFiles);
 
             for (String alg: checksumAlgs) {
                 String tagManifestName = "tagmanifest-" + alg + ".txt";
@@ -595,6 +712,45 @@ public class BagItPackageAssembler implements PackageAssembler {
         return manifestFile;
     }
 
+    /**
+     * Returns the checksums of the supplied files, using the checksums captured when the files were written where
+     * possible. Any other files are read to calculate their checksums.
+     * @param files the files to get checksums for
+     * @return a map of each file to its checksums
+     */
+    private Map<File, List<Checksum>> getFileChecksums(Set<File> files) {
+        Map<File, List<Checksum>> fileChecksums = new HashMap<>();
+        Set<File> unwrittenFiles = new HashSet<>();
+        for (File file : files) {
+            List<Checksum> checksums = writtenFileChecksums.get(file);
+            if (checksums != null) {
+                fileChecksums.put(file, checksums);
+            } else {
+                unwrittenFiles.add(file);
+            }
+        }
+
+        if (!unwrittenFiles.isEmpty()) {
+            fileChecksums.putAll(checksumService.generatePackageFileChecksums(unwrittenFiles, checksumAlgs));
+        }
+        return fileChecksums;
+    }
+
+    /**
+     * Returns the total size in bytes of the supplied files, using the sizes counted when the files were written
+     * where possible.
+     * @param files the files to total
+     * @return the total size of the files
+     */
+    private long getFileSizes(Collection<File> files) {
+        long size = 0;
+        for (File file : files) {
+            Long writtenSize = writtenFileSizes.get(file);
+            size += writtenSize != null ? writtenSize : file.length();
+        }
+        return size;
+    }
+
     private File writeBagInfoTxt() throws PackageToolException {
         File bagInfoFile = new File(bagBaseDir, "bag-info.txt");
         try (Writer writer = newWriter(bagInfoFile)) {
@@ -605,10 +761,11 @@ public class BagItPackageAssembler implements PackageAssembler {
                 packageMetadata.put(BagItParameterNames.BAGIT_PROFILE_ID, Collections.singletonList(PROFILE_ID));
             }
 
+            long payloadSize = getFileSizes(dataFiles);
             packageMetadata.put(BagItParameterNames.PAYLOAD_OXUM, Collections.singletonList(
-                    FileUtils.sizeOfDirectory(payloadDir) + "." + dataFiles.size()));
+                    payloadSize + "." + dataFiles.size()));
             packageMetadata.put(BagItParameterNames.BAG_SIZE, Collections.singletonList(
-                    FileUtils.byteCountToDisplaySize(FileUtils.sizeOfDirectory(bagBaseDir))));
+                    FileUtils.byteCountToDisplaySize(payloadSize + getFileSizes(tagFiles))));
 
             // DC-2197: The field names are sorted so that we can more easily test; field value ordering is preserved
             TreeSet<String> bagInfoFields = packageMetadata.keySet().stream()
@@ -823,6 +980,36 @@ public class BagItPackageAssembler implements PackageAssembler {
         return true;
     }
 
+    private PackageChecksumService createChecksumService(String checksumThreads) {
+        if (checksumThreads == null || checksumThreads.trim().isEmpty()) {
+            return new ParallelPackageChecksumServiceImpl();
+        }
+
+        int poolSize;
+        try {
+            poolSize = Integer.parseInt(checksumThreads.trim());
+        } catch (NumberFormatException e) {
+            poolSize = 0;
+        }
+
+        if (poolSize < 1) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_ASSEMBLER_INVALID_PARAMS,
+                    String.format("Specified %s <%s> is not supported. The value must be a positive integer.",
+                            GeneralParameterNames.CHECKSUM_THREADS, checksumThreads));
+        }
+
+        return poolSize == 1 ? new PackageChecksumServiceImpl() : new ParallelPackageChecksumServiceImpl(poolSize);
+    }
+
+    private void validateChecksumAlgorithms() {
+        for (String alg : checksumAlgs) {
+            if (!ChecksumGeneratorVerifier.isSupportedAlgorithm(alg)) {
+                throw new PackageToolException(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION,
+                        new NoSuchAlgorithmException(alg), alg);
+            }
+        }
+    }
+
     private void validateArchivingFormat() {
         if (!archivingFormat.equals(ArchiveStreamFactory.CPIO)
                 && !archivingFormat.equals(ArchiveStreamFactory.TAR)
@@ -865,6 +1052,32 @@ public class BagItPackageAssembler implements PackageAssembler {
      * @throws UnsupportedEncodingException if the {@lnk #ENCODING} is not supported by the platform
      */
     private Writer newWriter(File forFile) throws FileNotFoundException, UnsupportedEncodingException {
-        return new OutputStreamWriter(new FileOutputStream(forFile), ENCODING);
+        return new OutputStreamWriter(newOutputStream(forFile), ENCODING);
+    }
+
+    /**
+     * Creates a new OutputStream for a file in the bag. The checksums and size of the file are recorded when the
+     * stream is closed, so that the file doesn't need to be read again when the manifests are written.
+     *
+     * @param forFile the file the OutputStream will write to
+     * @return an OutputStream which records the checksums of what is written to it
+     * @throws FileNotFoundException if the supplied file can't be opened for writing
+     */
+    private OutputStream newOutputStream(File forFile) throws FileNotFoundException {
+        try {
+            return new ChecksumOutputStream(new FileOutputStream(forFile), checksumAlgs) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    List<Checksum> checksums = new ArrayList<>();
+                    getChecksums().forEach((alg, value) -> checksums.add(new ChecksumImpl(alg, value)));
+                    writtenFileChecksums.put(forFile, checksums);
+                    writtenFileSizes.put(forFile, getByteCount());
+                }
+            };
+        } catch (NoSuchAlgorithmException e) {
+            throw new PackageToolException(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION, e,
+                    e.getMessage());
+        }
     }
 }
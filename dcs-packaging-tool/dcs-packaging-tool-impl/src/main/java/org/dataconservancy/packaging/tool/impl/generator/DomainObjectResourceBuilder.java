@@ -36,6 +36,7 @@ import org.apache.jena.riot.RDFFormat;
 import org.apache.jena.util.ResourceUtils;
 
 import org.dataconservancy.packaging.tool.api.generator.PackageResourceType;
+import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
 import org.dataconservancy.packaging.tool.ontologies.Ontologies;
 import org.dataconservancy.packaging.tool.ser.PackageStateSerializer;
@@ -155,10 +156,7 @@ class DomainObjectResourceBuilder
                                                                     + path(node,
                                                                            ""),
                                                             PackageResourceType.DATA,
-                                                            node.getFileInfo()
-                                                                    .getLocation()
-                                                                    .toURL()
-                                                                    .openStream());
+                                                            node.getFileInfo());
 
                             URI originalFileLocation =
                                     node.getFileInfo().getLocation();
@@ -190,7 +188,9 @@ class DomainObjectResourceBuilder
 
                             }
 
-                            node.getFileInfo().setLocation(newFileLocation);
+                            FileInfo fileInfo = node.getFileInfo();
+                            fileInfo.setLocation(newFileLocation);
+                            node.setFileInfo(fileInfo);
                         } catch (Exception e) {
                             throw new RuntimeException(e);
                         }
@@ -206,7 +206,9 @@ class DomainObjectResourceBuilder
 
                         state.renamedContentLocations.put(node.getFileInfo()
                                 .getLocation(), newLocation);
-                        node.getFileInfo().setLocation(newLocation);
+                        FileInfo fileInfo = node.getFileInfo();
+                        fileInfo.setLocation(newLocation);
+                        node.setFileInfo(fileInfo);
                     }
 
                     node.setDomainObject(newDomainObjectURI);
@@ -16,6 +16,8 @@
 
 package org.dataconservancy.packaging.tool.impl.generator;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -29,6 +31,9 @@ import org.dataconservancy.packaging.tool.impl.IpmRdfTransformService;
 import org.dataconservancy.packaging.tool.model.PackageGenerationParameters;
 import org.dataconservancy.packaging.tool.model.PackageState;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
+import org.dataconservancy.packaging.tool.model.ipm.NodeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Builds package models by crawling an IPM tree and invoking a set of
@@ -55,6 +60,8 @@ import org.dataconservancy.packaging.tool.model.ipm.Node;
 public class PackageModelBuilderImpl
         implements PackageModelBuilder {
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
     IpmRdfTransformService rdf2ipm;
 
     public void setIpmRdfTransformService(IpmRdfTransformService svc) {
@@ -65,16 +72,29 @@ public class PackageModelBuilderImpl
 
     private PackageGenerationParameters params;
 
+    private String nodeStoreDirectory;
+
     public void setNodeVisitors(List<NodeVisitor> visitors) {
         this.visitors = visitors;
     }
 
+    /**
+     * Sets a directory in which to keep the nodes of the package tree while the model is built, rather than in
+     * memory. If not set, the tree is kept in memory.
+     *
+     * @param nodeStoreDirectory the directory to keep the nodes of the tree in
+     */
+    public void setNodeStoreDirectory(String nodeStoreDirectory) {
+        this.nodeStoreDirectory = nodeStoreDirectory;
+    }
+
     @Override
     public PackageModelBuilder newInstance(PackageGenerationParameters params) {
         PackageModelBuilderImpl builder = new PackageModelBuilderImpl();
         builder.setNodeVisitors(visitors);
         builder.params = params;
         builder.rdf2ipm = rdf2ipm;
+        builder.nodeStoreDirectory = nodeStoreDirectory;
 
         return builder;
     }
@@ -95,10 +115,15 @@ public class PackageModelBuilderImpl
             throw new RuntimeException("Error cloning package state: " + e.getMessage(), e);
         }
 
+        NodeStore nodeStore = null;
         try {
 
+            if (nodeStoreDirectory != null && !nodeStoreDirectory.isEmpty()) {
+                nodeStore = new NodeStore(Paths.get(nodeStoreDirectory));
+            }
+
             builderState.tree =
-                    rdf2ipm.transformToNode(RdfUtil.copy(pstate.getPackageTree(), new SimpleSelector()));
+                    rdf2ipm.transformToNode(RdfUtil.copy(pstate.getPackageTree(), new SimpleSelector()), nodeStore);
 
             visitors.forEach(v -> v.init(builderState));
 
@@ -109,6 +134,14 @@ public class PackageModelBuilderImpl
 
         } catch (Exception e) {
             throw new RuntimeException("Error deserializing package tree: " + e.getMessage(), e);
+        } finally {
+            if (nodeStore != null) {
+                try {
+                    nodeStore.close();
+                } catch (IOException e) {
+                    log.warn("Could not delete the files of the node store: " + e.getMessage());
+                }
+            }
         }
     }
 
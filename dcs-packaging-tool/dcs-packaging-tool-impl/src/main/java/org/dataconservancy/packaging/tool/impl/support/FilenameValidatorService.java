@@ -23,7 +23,9 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -51,40 +53,35 @@ public class FilenameValidatorService {
     public final List<String> findInvalidFilenames(Path rootDirectoryPath) throws IOException {
         List<String> invalidFilenames = new ArrayList<>();
 
-        List<Path> visitedPaths = new ArrayList<>();
+        // Files already seen, by their file key where the file system has them and by their real path otherwise
+        Set<Object> visitedFiles = new HashSet<>();
 
         Files.walkFileTree(rootDirectoryPath, new SimpleFileVisitor<Path>() {
 
             @Override
             public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs)
                     throws IOException {
-
-                if (!filenameValidator.isValid(path.getFileName().toString()) || path.toString().length() > 1024) {
-                    invalidFilenames.add(path.toString());
-                }
-
-                if (visitedPaths.contains(path.toRealPath())) {
-                    return FileVisitResult.SKIP_SUBTREE;
-                }
-
-                visitedPaths.add(path);
-
-                return FileVisitResult.CONTINUE;
+                return visit(path, attrs);
             }
 
             @Override
-            public FileVisitResult visitFile(Path path, BasicFileAttributes mainAtts)
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
                     throws IOException {
-                if (!filenameValidator.isValid(path.getFileName().toString()) || path.toString().length() > 1024) {
+                return visit(path, attrs);
+            }
+
+            private FileVisitResult visit(Path path, BasicFileAttributes attrs) throws IOException {
+                Path fileName = path.getFileName();
+                if ((fileName != null && !filenameValidator.isValid(fileName.toString()))
+                        || path.toString().length() > 1024) {
                     invalidFilenames.add(path.toString());
                 }
 
-                if (visitedPaths.contains(path.toRealPath())) {
+                Object fileKey = attrs.fileKey() != null ? attrs.fileKey() : path.toRealPath();
+                if (!visitedFiles.add(fileKey)) {
                     return FileVisitResult.SKIP_SUBTREE;
                 }
 
-                visitedPaths.add(path);
-
                 return FileVisitResult.CONTINUE;
             }
         });
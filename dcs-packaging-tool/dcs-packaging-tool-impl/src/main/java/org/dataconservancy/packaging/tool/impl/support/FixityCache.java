@@ -0,0 +1,478 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl.support;
+
+import org.dataconservancy.dcs.util.FormatScanPolicy;
+import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An on-disk cache of the checksums and detected formats of files, so that building a package tree over files that
+ * have not changed since they were last seen doesn't have to re-read and re-identify their content.
+ * <p>
+ * Entries are keyed by the real path of a file, and are only used while the file's size, last modified time and
+ * file key (where the file system provides one) are the same as when the entry was recorded. Once the cache holds
+ * more than its maximum number of entries, the least recently used entries are evicted.
+ * </p>
+ * <p>
+ * Each entry records the {@link FormatScanPolicy} its formats were detected with. Formats detected with
+ * {@link FormatScanPolicy#FULL_SCAN} are reused by trees built with any policy, but formats detected with a bounded
+ * policy are only reused by trees built with the same scan window and trusted extensions. Otherwise the formats of the
+ * file are detected again, reusing its checksums.
+ * </p>
+ * <p>
+ * The cache is loaded from its store file when it is created. The store file is a journal of the entries added and
+ * removed, and {@link #flush()} appends the changes made since the last flush to it. Once the journal is much longer
+ * than the cache, it is compacted by writing out only the current entries. A store file that can't be read is
+ * ignored, as is one written in any other format, and the cache starts out empty; if only the end of it can't be
+ * read, the entries before are kept.
+ * </p>
+ */
+public class FixityCache {
+
+    private static final int MAGIC = 0x44435346;
+    private static final int VERSION = 1;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * The number of journal records, beyond twice the number of entries, allowed before the store file is compacted.
+     */
+    private static final int JOURNAL_SLACK = 1024;
+
+    /**
+     * System property naming the store file of the cache returned by {@link #fromSystemProperties()}.
+     */
+    public static final String STORE_FILE_PROPERTY = "dcs.fixity.cache.file";
+
+    /**
+     * System property giving the maximum number of entries of the cache returned by {@link #fromSystemProperties()}.
+     */
+    public static final String MAX_ENTRIES_PROPERTY = "dcs.fixity.cache.entries";
+
+    /**
+     * The maximum number of entries of the cache returned by {@link #fromSystemProperties()}, unless configured.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path storeFile;
+    private final int maxEntries;
+    private final Map<String, CacheEntry> entries;
+
+    // Entries added or removed since the last flush, in the order they were first changed; removals map to null
+    private final Map<String, CacheEntry> changes = new LinkedHashMap<>();
+    private int journalLength = 0;
+    private boolean compact = false;
+
+    /**
+     * Creates a cache backed by the supplied store file, loading any entries previously written to it.
+     * @param storeFile the file the cache is persisted to, it will be created when the cache is first flushed
+     * @param maxEntries the maximum number of files to hold information for, must be at least 1
+     */
+    public FixityCache(File storeFile, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Fixity cache must hold at least one entry, was " + maxEntries);
+        }
+        this.storeFile = storeFile.toPath();
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > FixityCache.this.maxEntries;
+            }
+        };
+        load();
+    }
+
+    /**
+     * Creates the cache configured by system properties. The cache is only used if the
+     * {@value #STORE_FILE_PROPERTY} property names its store file, and holds at most the number of entries given by
+     * the {@value #MAX_ENTRIES_PROPERTY} property, or {@value #DEFAULT_MAX_ENTRIES} if it isn't set.
+     * @return the configured cache, or null if no store file is configured
+     */
+    public static FixityCache fromSystemProperties() {
+        String storeFile = System.getProperty(STORE_FILE_PROPERTY);
+        if (storeFile == null || storeFile.trim().isEmpty()) {
+            return null;
+        }
+        return new FixityCache(new File(storeFile.trim()),
+                Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * Creates the FileInfo for a path, using the cached checksums and formats of the file if they are still current.
+     * Otherwise the file is read and identified as usual, and the result is added to the cache.
+     * @param realPath the real path of the file or directory
+     * @return the FileInfo for the path
+     * @throws IOException if the attributes of the file can't be read
+     */
+    public FileInfo createFileInfo(Path realPath) throws IOException {
+        return createFileInfo(realPath, FormatScanPolicy.FULL_SCAN);
+    }
+
+    /**
+     * Creates the FileInfo for a path as {@link #createFileInfo(Path)} does, detecting the formats of files that have
+     * to be identified as directed by the supplied policy.
+     * @param realPath the real path of the file or directory
+     * @param formatScanPolicy the policy controlling how much of a file is read to detect its formats
+     * @return the FileInfo for the path
+     * @throws IOException if the attributes of the file can't be read
+     */
+    public FileInfo createFileInfo(Path realPath, FormatScanPolicy formatScanPolicy) throws IOException {
+        return createFileInfo(realPath, Files.readAttributes(realPath, BasicFileAttributes.class), formatScanPolicy);
+    }
+
+    /**
+     * Creates the FileInfo for a path as {@link #createFileInfo(Path, FormatScanPolicy)} does, when the attributes of
+     * the file have already been read.
+     * @param realPath the real path of the file or directory
+     * @param attrs the basic attributes of the file or directory
+     * @param formatScanPolicy the policy controlling how much of a file is read to detect its formats
+     * @return the FileInfo for the path
+     */
+    public FileInfo createFileInfo(Path realPath, BasicFileAttributes attrs, FormatScanPolicy formatScanPolicy) {
+        return createFileInfo(realPath, attrs, formatScanPolicy, true);
+    }
+
+    /**
+     * Creates the FileInfo for a path as {@link #createFileInfo(Path, BasicFileAttributes, FormatScanPolicy)} does,
+     * optionally leaving the checksums of a file to be computed later. When checksums aren't computed, the cached
+     * fingerprint of a file is used if there is one, and any cached checksums are kept with it.
+     * @param realPath the real path of the file or directory
+     * @param attrs the basic attributes of the file or directory
+     * @param formatScanPolicy the policy controlling how much of a file is read to detect its formats
+     * @param computeChecksums whether the checksums of a file are needed, rather than only its fingerprint
+     * @return the FileInfo for the path
+     */
+    public FileInfo createFileInfo(Path realPath, BasicFileAttributes attrs, FormatScanPolicy formatScanPolicy,
+                                   boolean computeChecksums) {
+        if (!attrs.isRegularFile()) {
+            return new FileInfo(realPath, attrs, formatScanPolicy, computeChecksums);
+        }
+        String key = realPath.toString();
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && !entry.matches(attrs)) {
+            entry = null;
+        }
+
+        if (entry != null && (computeChecksums ? entry.hasChecksums() : entry.fingerprint != null)) {
+            if (entry.hasFormatsFor(formatScanPolicy)) {
+                return entry.createFileInfo(realPath, attrs, new ArrayList<>(entry.formats));
+            }
+
+            // Only the formats are out of date, so there is no need to read the file for its checksums again
+            List<String> formats = FileInfo.detectFormats(realPath, formatScanPolicy);
+            synchronized (this) {
+                put(key, new CacheEntry(entry.size, entry.modifiedTime, entry.fileKey, entry.md5, entry.sha1,
+                        entry.fingerprint, new ArrayList<>(formats), formatScanPolicy));
+            }
+            return entry.createFileInfo(realPath, attrs, formats);
+        }
+
+        FileInfo info = new FileInfo(realPath, attrs, formatScanPolicy, computeChecksums);
+        String md5 = info.getChecksum(FileInfo.Algorithm.MD5);
+        String sha1 = info.getChecksum(FileInfo.Algorithm.SHA1);
+        if (md5 == null && sha1 == null && entry != null && entry.hasChecksums()) {
+            // The file was only read for its fingerprint, and the checksums already known for it are still current
+            md5 = entry.md5;
+            sha1 = entry.sha1;
+            info.setChecksums(entry.checksums());
+        }
+
+        if ((md5 != null && sha1 != null) || info.getFingerprint() != null) {
+            CacheEntry newEntry = new CacheEntry(attrs.size(), modifiedTime(attrs), fileKey(attrs), md5, sha1,
+                    info.getFingerprint(),
+                    info.getFormats() != null ? new ArrayList<>(info.getFormats()) : new ArrayList<>(), formatScanPolicy);
+            synchronized (this) {
+                put(key, newEntry);
+            }
+        }
+
+        return info;
+    }
+
+    /**
+     * Removes any cached information for the file at the supplied path, so it will be read again the next time it is
+     * seen.
+     * @param realPath the real path of the file
+     */
+    public synchronized void invalidate(Path realPath) {
+        String key = realPath.toString();
+        if (entries.remove(key) != null) {
+            changes.put(key, null);
+        }
+    }
+
+    /**
+     * Removes cached information for every file.
+     */
+    public synchronized void invalidateAll() {
+        if (!entries.isEmpty()) {
+            entries.clear();
+            changes.clear();
+            compact = true;
+        }
+    }
+
+    /**
+     * @return the number of files the cache currently holds information for
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the changes made to the cache since it was loaded or last flushed to its store file. Failing to write the
+     * cache only means files will be read again next time, so errors are logged rather than thrown.
+     */
+    public synchronized void flush() {
+        if (!compact && changes.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (storeFile.getParent() != null) {
+                Files.createDirectories(storeFile.getParent());
+            }
+            if (compact || !Files.isRegularFile(storeFile)
+                    || journalLength + changes.size() > 2 * entries.size() + JOURNAL_SLACK) {
+                writeStoreFile();
+            } else {
+                appendChanges();
+            }
+            changes.clear();
+            compact = false;
+        } catch (IOException e) {
+            // The end of the journal may be incomplete, so write it out afresh next time
+            compact = true;
+            log.warn("Unable to write fixity cache to " + storeFile + ": " + e.getMessage());
+        }
+    }
+
+    private void put(String key, CacheEntry entry) {
+        entries.put(key, entry);
+        changes.put(key, entry);
+    }
+
+    private void writeStoreFile() throws IOException {
+        Path tmpFile = storeFile.resolveSibling(storeFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, CacheEntry> e : entries.entrySet()) {
+                writeRecord(out, e.getKey(), e.getValue());
+            }
+        }
+        Files.move(tmpFile, storeFile, StandardCopyOption.REPLACE_EXISTING);
+        journalLength = entries.size();
+    }
+
+    private void appendChanges() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(storeFile, StandardOpenOption.APPEND)))) {
+            for (Map.Entry<String, CacheEntry> e : changes.entrySet()) {
+                writeRecord(out, e.getKey(), e.getValue());
+            }
+        }
+        journalLength += changes.size();
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, CacheEntry entry) throws IOException {
+        out.writeByte(entry != null ? PUT : REMOVE);
+        out.writeUTF(key);
+        if (entry != null) {
+            entry.write(out);
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(storeFile)) {
+            return;
+        }
+
+        // Whatever can't be read from the store file is written over by the next flush
+        compact = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(storeFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("Ignoring fixity cache at " + storeFile + " written in an unknown format");
+                return;
+            }
+
+            int op;
+            while ((op = in.read()) != -1) {
+                String key = in.readUTF();
+                if (op == PUT) {
+                    entries.put(key, CacheEntry.read(in));
+                } else if (op == REMOVE) {
+                    entries.remove(key);
+                } else {
+                    throw new IOException("Unknown journal record " + op);
+                }
+                journalLength++;
+            }
+            compact = false;
+        } catch (IOException e) {
+            log.warn("Unable to read all of the fixity cache from " + storeFile + ", keeping the " + entries.size()
+                    + " entries read: " + e.getMessage());
+        }
+    }
+
+    private static long modifiedTime(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        return attrs.fileKey() != null ? attrs.fileKey().toString() : "";
+    }
+
+    /**
+     * The recorded identity and fixity of a single file.
+     */
+    private static class CacheEntry {
+        private final long size;
+        private final long modifiedTime;
+        private final String fileKey;
+        private final String md5;
+        private final String sha1;
+        private final String fingerprint;
+        private final List<String> formats;
+        // The policy the formats were detected with, or null if none was given
+        private final FormatScanPolicy formatScanPolicy;
+
+        private CacheEntry(long size, long modifiedTime, String fileKey, String md5, String sha1, String fingerprint,
+                      List<String> formats, FormatScanPolicy formatScanPolicy) {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.fileKey = fileKey;
+            this.md5 = md5;
+            this.sha1 = sha1;
+            this.fingerprint = fingerprint;
+            this.formats = formats;
+            this.formatScanPolicy = formatScanPolicy;
+        }
+
+        private boolean hasFormatsFor(FormatScanPolicy policy) {
+            return FormatScanPolicy.FULL_SCAN.equals(formatScanPolicy) ||
+                    (formatScanPolicy != null && formatScanPolicy.equals(policy));
+        }
+
+        private boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && modifiedTime == modifiedTime(attrs) && fileKey.equals(fileKey(attrs));
+        }
+
+        private boolean hasChecksums() {
+            return md5 != null && sha1 != null;
+        }
+
+        private Map<FileInfo.Algorithm, String> checksums() {
+            if (!hasChecksums()) {
+                return null;
+            }
+
+            Map<FileInfo.Algorithm, String> checksums = new HashMap<>();
+            checksums.put(FileInfo.Algorithm.MD5, md5);
+            checksums.put(FileInfo.Algorithm.SHA1, sha1);
+            return checksums;
+        }
+
+        private FileInfo createFileInfo(Path realPath, BasicFileAttributes attrs, List<String> formats) {
+            FileInfo info = new FileInfo(realPath, attrs, formats, checksums());
+            info.setFingerprint(fingerprint);
+            return info;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(modifiedTime);
+            out.writeUTF(fileKey);
+            // Entries may have a fingerprint without checksums, or checksums without a fingerprint
+            out.writeUTF(md5 != null ? md5 : "");
+            out.writeUTF(sha1 != null ? sha1 : "");
+            out.writeUTF(fingerprint != null ? fingerprint : "");
+            out.writeInt(formats.size());
+            for (String format : formats) {
+                out.writeUTF(format);
+            }
+            out.writeBoolean(formatScanPolicy != null);
+            if (formatScanPolicy != null) {
+                out.writeLong(formatScanPolicy.getScanWindow());
+                out.writeInt(formatScanPolicy.getTrustedExtensions().size());
+                for (String extension : formatScanPolicy.getTrustedExtensions()) {
+                    out.writeUTF(extension);
+                }
+            }
+        }
+
+        private static CacheEntry read(DataInputStream in) throws IOException {
+            long size = in.readLong();
+            long modifiedTime = in.readLong();
+            String fileKey = in.readUTF();
+            String md5 = emptyToNull(in.readUTF());
+            String sha1 = emptyToNull(in.readUTF());
+            String fingerprint = emptyToNull(in.readUTF());
+            int formatCount = in.readInt();
+            List<String> formats = new ArrayList<>(formatCount);
+            for (int i = 0; i < formatCount; i++) {
+                formats.add(in.readUTF());
+            }
+            return new CacheEntry(size, modifiedTime, fileKey, md5, sha1, fingerprint, formats,
+                    readFormatScanPolicy(in));
+        }
+
+        private static FormatScanPolicy readFormatScanPolicy(DataInputStream in) throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+
+            long scanWindow = in.readLong();
+            int extensionCount = in.readInt();
+            List<String> trustedExtensions = new ArrayList<>(extensionCount);
+            for (int i = 0; i < extensionCount; i++) {
+                trustedExtensions.add(in.readUTF());
+            }
+            return new FormatScanPolicy(scanWindow, trustedExtensions);
+        }
+
+        private static String emptyToNull(String value) {
+            return value.isEmpty() ? null : value;
+        }
+    }
+}
@@ -182,6 +182,14 @@ public class IpmTreeFactory {
         return sb.toString();
     }
 
+    /**
+     * Seeds the random names and file placement of the trees that are built, so the same trees can be built again.
+     * @param seed The seed to use.
+     */
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
     /**
      * Sets the NodeType setter that should be used to assign types while building the tree.
      * @param setter The node type setter to use while building the tree, if null no types will be assigned.
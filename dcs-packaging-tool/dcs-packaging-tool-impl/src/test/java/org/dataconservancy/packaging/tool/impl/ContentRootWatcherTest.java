@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl;
+
+import org.dataconservancy.packaging.tool.api.IPMService;
+import org.dataconservancy.packaging.tool.api.support.NodeComparison;
+import org.dataconservancy.packaging.tool.model.ipm.Node;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentRootWatcherTest {
+
+    @Rule
+    public TemporaryFolder tmpfolder = new TemporaryFolder();
+
+    private IPMService ipmService;
+
+    // The thread owning the trees of the tests which start a watcher
+    private ExecutorService owner;
+
+    @Before
+    public void setup() {
+        ipmService = new IPMServiceImpl(new SimpleURIGenerator());
+        owner = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        owner.shutdownNow();
+        owner.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tests that files added, changed and removed on the file system are reported and can be merged into the tree.
+     * @throws Exception
+     */
+    @Test
+    public void testChangesAreMerged() throws Exception {
+        File mainDir = tmpfolder.newFolder("farm");
+        File subDir = new File(mainDir, "moo");
+        subDir.mkdir();
+        File cow = new File(subDir, "cow.txt");
+        Files.write(cow.toPath(), "moo".getBytes());
+
+        Node root = ipmService.createTreeFromFileSystem(mainDir.toPath());
+        Node subDirNode = root.getChildren().get(0);
+        Path subDirPath = subDir.toPath();
+
+        try (ContentRootWatcher watcher = new ContentRootWatcher(ipmService, root, Runnable::run, changes -> { })) {
+            File pig = new File(subDir, "pig.txt");
+            Files.write(pig.toPath(), "oink".getBytes());
+            watcher.pathChanged(subDirPath, pig.toPath());
+            Node pigNode = mergeChange(root, watcher.compareBatch(watcher.takeBatch()), NodeComparison.Status.ADDED);
+            assertEquals("pig.txt", pigNode.getFileInfo().getName());
+            assertEquals(2, subDirNode.getChildren().size());
+
+            Files.write(cow.toPath(), "moo moo".getBytes());
+            watcher.pathChanged(subDirPath, cow.toPath());
+            watcher.pathChanged(subDirPath, cow.toPath());
+            Node cowNode = mergeChange(root, watcher.compareBatch(watcher.takeBatch()), NodeComparison.Status.UPDATED);
+            assertEquals("cow.txt", cowNode.getFileInfo().getName());
+            assertEquals(7, cowNode.getFileInfo().getSize());
+
+            Files.delete(pig.toPath());
+            watcher.pathChanged(subDirPath, pig.toPath());
+            assertEquals(pigNode, mergeChange(root, watcher.compareBatch(watcher.takeBatch()),
+                                              NodeComparison.Status.DELETED));
+            assertEquals(1, subDirNode.getChildren().size());
+            assertTrue(watcher.takeBatch().isEmpty());
+        }
+    }
+
+    /**
+     * Tests that when events for a directory are lost only that directory is rescanned.
+     * @throws Exception
+     */
+    @Test
+    public void testOverflowRescansOnlyAffectedDirectory() throws Exception {
+        File mainDir = tmpfolder.newFolder("barn");
+        File stallA = new File(mainDir, "a");
+        File stallB = new File(mainDir, "b");
+        stallA.mkdir();
+        stallB.mkdir();
+        Files.write(new File(stallA, "horse.txt").toPath(), "neigh".getBytes());
+        Files.write(new File(stallB, "goat.txt").toPath(), "baa".getBytes());
+
+        Node root = ipmService.createTreeFromFileSystem(mainDir.toPath());
+        assertNotNull(findChild(root, "a"));
+
+        Files.write(new File(stallA, "horse.txt").toPath(), "neigh neigh".getBytes());
+        Files.write(new File(stallB, "goat.txt").toPath(), "baa baa".getBytes());
+
+        try (ContentRootWatcher watcher = new ContentRootWatcher(ipmService, root, Runnable::run, changes -> { })) {
+            watcher.directoryOverflowed(stallA.toPath());
+            watcher.pathChanged(stallA.toPath(), new File(stallA, "horse.txt").toPath());
+            Map<Node, NodeComparison> changes = watcher.compareBatch(watcher.takeBatch());
+
+            assertEquals(1, changes.size());
+            Map.Entry<Node, NodeComparison> change = changes.entrySet().iterator().next();
+            assertEquals(NodeComparison.Status.UPDATED, change.getValue().getStatus());
+            assertEquals("horse.txt", change.getKey().getFileInfo().getName());
+            assertTrue(watcher.takeBatch().isEmpty());
+        }
+    }
+
+    /**
+     * Tests that a started watcher picks up changes made on the file system, merging them on the owner's thread, and
+     * watches the directories it adds.
+     * @throws Exception
+     */
+    @Test
+    public void testWatchedChangesAreMerged() throws Exception {
+        File mainDir = tmpfolder.newFolder("pasture");
+        File subDir = new File(mainDir, "moo");
+        subDir.mkdir();
+        File cow = new File(subDir, "cow.txt");
+        Files.write(cow.toPath(), "moo".getBytes());
+
+        Node root = owner.submit(() -> ipmService.createTreeFromFileSystem(mainDir.toPath())).get();
+        ContentRootWatcher watcher = owner.submit(() -> new ContentRootWatcher(ipmService, root, owner,
+                changes -> ipmService.mergeTree(root, changes))).get();
+        try {
+            watcher.setBatchDelay(50);
+            watcher.start();
+
+            File pig = new File(subDir, "pig.txt");
+            Files.write(pig.toPath(), "oink".getBytes());
+            awaitTree(() -> findChild(root, "moo", "pig.txt") != null);
+
+            Files.write(cow.toPath(), "moo moo".getBytes());
+            awaitTree(() -> findChild(root, "moo", "cow.txt").getFileInfo().getSize() == 7);
+
+            Files.delete(pig.toPath());
+            awaitTree(() -> findChild(root, "moo", "pig.txt") == null);
+
+            // A new directory is added to the tree, and then watched itself
+            File calfDir = new File(subDir, "calf");
+            calfDir.mkdir();
+            awaitTree(() -> findChild(root, "moo", "calf") != null);
+
+            Files.write(new File(calfDir, "milk.txt").toPath(), "slurp".getBytes());
+            awaitTree(() -> findChild(root, "moo", "calf", "milk.txt") != null);
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Tests that when more events arrive for a directory than the watch service keeps, the directory is rescanned.
+     * @throws Exception
+     */
+    @Test
+    public void testWatchedOverflowIsRescanned() throws Exception {
+        File mainDir = tmpfolder.newFolder("coop");
+        File subDir = new File(mainDir, "hens");
+        subDir.mkdir();
+
+        Node root = owner.submit(() -> ipmService.createTreeFromFileSystem(mainDir.toPath())).get();
+        ContentRootWatcher watcher = owner.submit(() -> new ContentRootWatcher(ipmService, root, owner,
+                changes -> ipmService.mergeTree(root, changes))).get();
+        try {
+            // The events queue up while the watcher isn't started, until the watch service drops them
+            int count = 1000;
+            for (int i = 0; i < count; i++) {
+                Files.write(new File(subDir, "egg" + i + ".txt").toPath(), "cluck".getBytes());
+            }
+
+            watcher.setBatchDelay(50);
+            watcher.start();
+            awaitTree(() -> findChild(root, "hens").getChildren() != null
+                    && findChild(root, "hens").getChildren().size() == count);
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Waits for a condition on a tree to hold, checking it on the owner's thread.
+     */
+    private void awaitTree(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!owner.submit(condition).get()) {
+            assertTrue("Timed out waiting for the change to be merged", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Finds a node by the names of the files on the path to it from the given node.
+     */
+    private Node findChild(Node node, String... names) {
+        for (String name : names) {
+            Node found = null;
+            if (node.getChildren() != null) {
+                for (Node child : node.getChildren()) {
+                    if (child.getFileInfo() != null && name.equals(child.getFileInfo().getName())) {
+                        found = child;
+                    }
+                }
+            }
+            if (found == null) {
+                return null;
+            }
+            node = found;
+        }
+        return node;
+    }
+
+    /**
+     * Merges a batch of changes into the tree, checking it holds exactly one change of the expected status.
+     */
+    private Node mergeChange(Node root, Map<Node, NodeComparison> changes, NodeComparison.Status status) {
+        assertEquals(changes.toString(), 1, changes.size());
+        Map.Entry<Node, NodeComparison> change = changes.entrySet().iterator().next();
+        assertEquals(status, change.getValue().getStatus());
+        ipmService.mergeTree(root, changes);
+        return change.getKey();
+    }
+}
@@ -4,18 +4,31 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.dataconservancy.packaging.tool.api.support.TreeValidation;
+import org.dataconservancy.packaging.tool.impl.support.IpmTreeFactory;
+import org.dataconservancy.packaging.tool.model.dprofile.CardinalityConstraint;
+import org.dataconservancy.packaging.tool.model.dprofile.DomainProfile;
+import org.dataconservancy.packaging.tool.model.dprofile.FileAssociation;
+import org.dataconservancy.packaging.tool.model.dprofile.NodeConstraint;
 import org.dataconservancy.packaging.tool.model.dprofile.NodeTransform;
 import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
 import org.dataconservancy.packaging.tool.model.dprofile.Property;
+import org.dataconservancy.packaging.tool.model.dprofile.StructuralRelation;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
 import org.junit.Before;
 import org.junit.Test;
@@ -267,6 +280,301 @@ public class DomainProfileServiceImplTest {
         assertEquals(child_type, child.getNodeType());
     }
     
+    /**
+     * Test assigning types to a deep tree where every directory could be one of two types which only fail at the
+     * bottom of the tree. Trying every combination of those types would take 2^40 steps.
+     */
+    @Test(timeout = 10000)
+    public void testAssignAmbiguousDeepTree() {
+        NodeType a1 = nodeType("test:a1", FileAssociation.DIRECTORY);
+        NodeType a2 = nodeType("test:a2", FileAssociation.DIRECTORY);
+        NodeType b = nodeType("test:b", FileAssociation.DIRECTORY);
+        NodeType f = nodeType("test:f", FileAssociation.REGULAR_FILE);
+        a1.setParentConstraints(Arrays.asList(constraint(null, true, false), constraint(null, false, true)));
+        a2.setParentConstraints(Arrays.asList(constraint(null, true, false), constraint(null, false, true)));
+        b.setParentConstraints(Arrays.asList(constraint(null, false, true), constraint(b, false, false)));
+        f.setParentConstraints(Collections.singletonList(constraint(b, false, false)));
+
+        DomainProfile ambiguous = new DomainProfile();
+        ambiguous.setIdentifier(URI.create("test:ambiguous"));
+        ambiguous.setNodeTypes(Arrays.asList(f, b, a2, a1));
+
+        Node root = new IpmTreeFactory().createTree(40, 1, false);
+
+        assertTrue(service.assignNodeTypes(ambiguous, root));
+
+        root.walk(n -> assertEquals(n.isLeaf() ? f : b, n.getNodeType()));
+    }
+
+    /**
+     * Test that changes made to a profile between assignments are seen by the next assignment.
+     */
+    @Test
+    public void testAssignAfterProfileChange() {
+        NodeType x = nodeType("test:x", FileAssociation.DIRECTORY);
+        NodeType y = nodeType("test:y", FileAssociation.DIRECTORY);
+        x.setParentConstraints(Collections.singletonList(constraint(null, false, true)));
+        y.setParentConstraints(Collections.singletonList(constraint(null, false, true)));
+
+        DomainProfile changing = new DomainProfile();
+        changing.setIdentifier(URI.create("test:changing"));
+        changing.setNodeTypes(Arrays.asList(y, x));
+
+        Node root = new IpmTreeFactory().createSingleDirectoryTree(null);
+
+        assertTrue(service.assignNodeTypes(changing, root));
+        assertSame(x, root.getNodeType());
+
+        x.setFileAssociation(FileAssociation.REGULAR_FILE);
+
+        assertTrue(service.assignNodeTypes(changing, root));
+        assertSame(y, root.getNodeType());
+    }
+
+    /**
+     * Test that type assignment gives the same types as a depth first search over every combination of types, for
+     * random profiles and trees.
+     */
+    @Test
+    public void testAssignmentMatchesExhaustiveSearch() {
+        Random random = new Random(1234);
+        IpmTreeFactory treeFactory = new IpmTreeFactory();
+        treeFactory.setSeed(4321);
+        int assigned = 0;
+
+        for (int i = 0; i < 300; i++) {
+            DomainProfile randomProfile = randomProfile(random);
+            Node root = treeFactory.createTree(2 + random.nextInt(3), 1 + random.nextInt(3), random.nextBoolean());
+            root.walk(n -> {
+                if (n.getParent() != null && (n.getParent().isIgnored() || random.nextInt(8) == 0)) {
+                    n.setIgnored(true);
+                }
+            });
+
+            List<NodeType> sortedTypes = new ArrayList<>(randomProfile.getNodeTypes());
+            sortedTypes.sort((t1, t2) -> t1.getIdentifier().compareTo(t2.getIdentifier()));
+            boolean expectedSuccess = searchTypes(sortedTypes, root);
+            Map<Node, NodeType> expected = new IdentityHashMap<>();
+            root.walk(n -> expected.put(n, n.isIgnored() ? null : n.getNodeType()));
+
+            root.walk(Node::clearNodeTypes);
+
+            assertEquals("Profile " + i, expectedSuccess, service.assignNodeTypes(randomProfile, root));
+            if (expectedSuccess) {
+                assigned++;
+                root.walk(n -> assertSame(expected.get(n), n.getNodeType()));
+            }
+        }
+
+        // Make sure that enough of the random profiles could be assigned to be compared
+        assertTrue(assigned > 50);
+    }
+
+    /**
+     * Test that assigning types and validating in parallel gives the same results as on one thread, for random
+     * profiles and wide trees.
+     */
+    @Test
+    public void testParallelAssignmentMatchesSequential() {
+        Random random = new Random(5678);
+        IpmTreeFactory treeFactory = new IpmTreeFactory();
+        treeFactory.setSeed(8765);
+        URIGenerator urigen = new SimpleURIGenerator();
+        int assigned = 0;
+
+        for (int i = 0; i < 100; i++) {
+            DomainProfile randomProfile = randomProfile(random);
+            Node root = treeFactory.createTree(2 + random.nextInt(3), 2 + random.nextInt(4), random.nextBoolean());
+            root.walk(n -> {
+                if (n.getParent() != null && (n.getParent().isIgnored() || random.nextInt(8) == 0)) {
+                    n.setIgnored(true);
+                }
+            });
+
+            boolean expectedSuccess = service.assignNodeTypes(randomProfile, root);
+            Map<Node, NodeType> expected = new IdentityHashMap<>();
+            root.walk(n -> expected.put(n, n.getNodeType()));
+
+            root.walk(Node::clearNodeTypes);
+
+            DomainProfileObjectStore parallelStore = new DomainProfileObjectStoreImpl(ModelFactory.createDefaultModel(),
+                                                                                      urigen);
+            DomainProfileServiceImpl parallel = new DomainProfileServiceImpl(parallelStore, urigen);
+            parallel.setThreads(4);
+
+            try {
+                assertEquals("Profile " + i, expectedSuccess, parallel.assignNodeTypes(randomProfile, root));
+                if (expectedSuccess) {
+                    assigned++;
+                    root.walk(n -> assertSame(expected.get(n), n.getNodeType()));
+
+                    DomainProfileServiceImpl sequential = new DomainProfileServiceImpl(parallelStore, urigen);
+                    assertEquals(sequential.validateTree(root), parallel.validateTree(root));
+
+                    // Break the tree somewhere below the root
+                    List<Node> typed = root.stream().filter(n -> n.getNodeType() != null && n.getParent() != null)
+                            .collect(Collectors.toList());
+                    if (!typed.isEmpty()) {
+                        typed.get(random.nextInt(typed.size())).setNodeType(null);
+                        assertFalse(sequential.validateTree(root));
+                        assertFalse(parallel.validateTree(root));
+                    }
+                }
+            } finally {
+                parallel.close();
+            }
+        }
+
+        assertTrue(assigned > 20);
+    }
+
+    /**
+     * Test that a service assigning and validating in parallel can be used again after it is closed.
+     */
+    @Test
+    public void testParallelServiceUsedAfterClose() {
+        URIGenerator urigen = new SimpleURIGenerator();
+        DomainProfileServiceImpl parallel = new DomainProfileServiceImpl(
+                new DomainProfileObjectStoreImpl(ModelFactory.createDefaultModel(), urigen), urigen);
+        parallel.setThreads(4);
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                Node root = ipmfact.createCompleteTree(3, 3);
+                root.walk(Node::clearNodeTypes);
+
+                assertTrue(parallel.assignNodeTypes(profile, root));
+                assertTrue(parallel.validateTree(root));
+
+                parallel.close();
+            }
+        } finally {
+            parallel.close();
+        }
+    }
+
+    private DomainProfile randomProfile(Random random) {
+        FileAssociation[] associations = {null, FileAssociation.DIRECTORY, FileAssociation.REGULAR_FILE};
+
+        List<NodeType> types = new ArrayList<>();
+        for (int i = 2 + random.nextInt(3); i > 0; i--) {
+            types.add(nodeType("test:type" + i, associations[random.nextInt(associations.length)]));
+        }
+
+        for (NodeType type : types) {
+            List<NodeConstraint> constraints = new ArrayList<>();
+            for (int i = random.nextInt(3); i > 0; i--) {
+                int kind = random.nextInt(4);
+                constraints.add(constraint(kind > 1 ? types.get(random.nextInt(types.size())) : null, kind == 0,
+                                           kind == 1));
+            }
+            type.setParentConstraints(constraints);
+
+            if (random.nextInt(3) == 0) {
+                type.setPreferredParentType(types.get(random.nextInt(types.size())));
+            }
+            if (random.nextInt(4) == 0) {
+                CardinalityConstraint count = new CardinalityConstraint();
+                count.setMin(random.nextInt(2));
+                count.setMax(random.nextBoolean() ? -1 : 1 + random.nextInt(2));
+                type.setChildFileConstraint(count);
+            }
+        }
+
+        DomainProfile randomProfile = new DomainProfile();
+        randomProfile.setIdentifier(URI.create("test:random"));
+        randomProfile.setNodeTypes(types);
+        return randomProfile;
+    }
+
+    private NodeType nodeType(String identifier, FileAssociation association) {
+        NodeType type = new NodeType();
+        type.setIdentifier(URI.create(identifier));
+        type.setFileAssociation(association);
+        return type;
+    }
+
+    private NodeConstraint constraint(NodeType type, boolean matchesAny, boolean matchesNone) {
+        NodeConstraint constraint = new NodeConstraint();
+        constraint.setNodeType(type);
+        constraint.setMatchesAny(matchesAny);
+        constraint.setMatchesNone(matchesNone);
+        return constraint;
+    }
+
+    /*
+     * Assigns types by trying every combination of the possible types of the nodes, depth first, as type assignment
+     * did before its results were remembered.
+     */
+    private boolean searchTypes(List<NodeType> sortedTypes, Node node) {
+        List<NodeType> validTypes = new ArrayList<>();
+        for (NodeType type : sortedTypes) {
+            if (mayBeType(node, type)) {
+                if (isPreferredType(node, type)) {
+                    validTypes.add(0, type);
+                } else {
+                    validTypes.add(type);
+                }
+            }
+        }
+
+        if (validTypes.isEmpty()) {
+            return false;
+        }
+
+        if (node.isLeaf()) {
+            node.setNodeType(validTypes.get(0));
+            return true;
+        }
+
+        next: for (NodeType type : validTypes) {
+            node.setNodeType(type);
+
+            for (Node child : node.getChildren()) {
+                if (!child.isIgnored() && !searchTypes(sortedTypes, child)) {
+                    continue next;
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean mayBeType(Node node, NodeType type) {
+        FileAssociation association = type.getFileAssociation();
+        if (association != null && !(node.getFileInfo().isFile() && association == FileAssociation.REGULAR_FILE)
+                && !(node.getFileInfo().isDirectory() && association == FileAssociation.DIRECTORY)) {
+            return false;
+        }
+
+        if (type.getParentConstraints() == null || type.getParentConstraints().isEmpty()) {
+            return true;
+        }
+
+        Node parent = node.getParent();
+        for (NodeConstraint constraint : type.getParentConstraints()) {
+            if (constraint.matchesNone() ? parent == null : parent != null && (constraint.matchesAny()
+                    || constraint.getNodeType() == null
+                    || constraint.getNodeType().getIdentifier().equals(parent.getNodeType().getIdentifier()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPreferredType(Node node, NodeType type) {
+        CardinalityConstraint count = type.getPreferredCountOfChildrenWithFiles();
+        if (count != null) {
+            long files = node.isLeaf() ? 0 : node.getChildren().stream().filter(c -> c.getFileInfo().isFile()).count();
+            return files >= count.getMinimum() && (files <= count.getMaximum() || count.getMaximum() == -1);
+        }
+
+        return type.getPreferredParentType() != null && node.getParent() != null
+                && type.getPreferredParentType().equals(node.getParent().getNodeType());
+    }
+
     /**
      * Test validating properties on a Cow in the Farm domain profile.
      */
@@ -411,6 +719,124 @@ public class DomainProfileServiceImplTest {
         assertFalse(service.validateTree(root));
     }
 
+    /**
+     * Test that a tree validation notices edits made through the service, and edits it is told of.
+     */
+    @Test
+    public void testTreeValidation() {
+        Node root = ipmfact.createSimpleTree();
+        Node barn = root.getChildren().get(0);
+        Node cow = barn.getChildren().get(0);
+
+        root.walk(store::updateObject);
+
+        TreeValidation validation = service.createTreeValidation(root);
+
+        assertSame(root, validation.getRoot());
+        assertTrue(validation.isValid());
+        assertTrue(validation.getInvalidNodes().isEmpty());
+        assertEquals(service.validateProperties(cow, cow.getNodeType()), validation.getPropertyViolations(cow));
+        assertFalse(validation.getPropertyViolations(cow).isEmpty());
+
+        // The species is a default property
+        Property title = new Property(profile.getTitlePropertyType());
+        title.setStringValue("Good cow");
+        service.addProperty(cow, title);
+        Property weight = new Property(profile.getWeightPropertyType());
+        weight.setLongValue(100);
+        service.addProperty(cow, weight);
+
+        assertEquals(Collections.singleton(cow), validation.update());
+        assertTrue(validation.getPropertyViolations(cow).isEmpty());
+
+        // Edits made directly to the tree are only seen once the validation is told of them
+        cow.setNodeType(null);
+        assertTrue(validation.update().isEmpty());
+        assertTrue(validation.isValid());
+
+        validation.invalidate(cow);
+        assertTrue(validation.update().contains(cow));
+        assertFalse(validation.isValid());
+        assertTrue(validation.getInvalidNodes().contains(cow));
+        assertFalse(service.validateTree(root));
+
+        cow.setNodeType(profile.getCowNodeType());
+        validation.invalidate(cow);
+        assertTrue(validation.update().contains(cow));
+        assertTrue(validation.isValid());
+
+        // Ignored nodes are forgotten
+        barn.walk(n -> n.setIgnored(true));
+        validation.invalidate(barn);
+        validation.update();
+        assertTrue(validation.isValid());
+        assertTrue(validation.getPropertyViolations(barn).isEmpty());
+
+        root.setIgnored(true);
+        validation.invalidate(root);
+        validation.update();
+        assertFalse(validation.isValid());
+    }
+
+    /**
+     * Test that a tree validation updated after random edits gives the same results as validating the tree again.
+     */
+    @Test
+    public void testTreeValidationMatchesValidateTree() {
+        Random random = new Random(2468);
+        IPMServiceImpl ipmService = new IPMServiceImpl(new SimpleURIGenerator());
+        List<NodeType> types = profile.getNodeTypes();
+
+        Node root = ipmfact.createCompleteTree(4, 3);
+        root.walk(Node::clearNodeTypes);
+        assertTrue(service.assignNodeTypes(profile, root));
+
+        TreeValidation validation = service.createTreeValidation(root);
+        List<Node> nodes = root.stream().filter(n -> n != root).collect(Collectors.toList());
+
+        for (int i = 0; i < 200; i++) {
+            Node node = nodes.get(random.nextInt(nodes.size()));
+
+            switch (random.nextInt(4)) {
+            case 0:
+                if (!node.isIgnored()) {
+                    List<NodeTransform> transforms = service.getNodeTransforms(node);
+                    if (!transforms.isEmpty()) {
+                        service.transformNode(node, transforms.get(random.nextInt(transforms.size())));
+                    }
+                }
+                break;
+            case 1:
+                node.setNodeType(types.get(random.nextInt(types.size())));
+                if (node.getDomainObject() != null && node.getParent().getDomainObject() != null) {
+                    store.updateObject(node);
+                }
+                validation.invalidate(node);
+                break;
+            case 2:
+                ipmService.ignoreNode(node, !node.isIgnored());
+                validation.invalidate(node);
+                break;
+            default:
+                if (node.getDomainObject() != null) {
+                    Property title = new Property(profile.getTitlePropertyType());
+                    title.setStringValue("Title " + i);
+                    service.addProperty(node, title);
+                }
+                break;
+            }
+
+            validation.update();
+            TreeValidation expected = service.createTreeValidation(root);
+
+            assertEquals(service.validateTree(root), validation.isValid());
+            assertEquals(expected.getInvalidNodes(), validation.getInvalidNodes());
+            root.walk(n -> assertEquals(expected.getPropertyViolations(n), validation.getPropertyViolations(n)));
+
+            nodes = root.stream().filter(n -> n != root).collect(Collectors.toList());
+        }
+    }
+
     private void update_object_and_get_transforms(Node node) {
         node.walk(store::updateObject);
         node.walk(service::getNodeTransforms);
@@ -495,6 +921,97 @@ public class DomainProfileServiceImplTest {
         assertEquals(0, result.size());
     }
     
+    /**
+     * Test that the transforms of random selections of nodes are those which every node of the selection can have,
+     * checking each transform against each node.
+     */
+    @Test
+    public void testNodeTransformsOfRandomSelections() {
+        Random random = new Random(1357);
+        Node root = ipmfact.createCompleteTree(4, 3);
+        root.walk(Node::clearNodeTypes);
+        assertTrue(service.assignNodeTypes(profile, root));
+
+        List<Node> nodes = root.stream().collect(Collectors.toList());
+        nodes.stream().filter(n -> n != root && random.nextInt(10) == 0).forEach(n -> n.setIgnored(true));
+
+        for (int i = 0; i < 200; i++) {
+            List<Node> selection = new ArrayList<>();
+            for (int j = 1 + random.nextInt(i % 2 == 0 ? 2 : 20); j > 0; j--) {
+                selection.add(nodes.get(random.nextInt(nodes.size())));
+            }
+
+            List<NodeTransform> expected = new ArrayList<>();
+            for (NodeTransform tr : profile.getNodeTransforms()) {
+                if (selection.stream().allMatch(n -> !n.isIgnored() && canTransform(n, tr))) {
+                    expected.add(tr);
+                }
+            }
+
+            assertEquals(expected, service.getNodeTransforms(selection));
+        }
+    }
+
+    /*
+     * Checks whether a node can have a transform, as the service did before transforms were compiled.
+     */
+    private boolean canTransform(Node node, NodeTransform tr) {
+        if (tr.getSourceNodeType() != null
+                && !node.getNodeType().getIdentifier().equals(tr.getSourceNodeType().getIdentifier())) {
+            return false;
+        }
+
+        List<NodeConstraint> childConstraints = tr.getSourceChildConstraints();
+        List<Node> kids = new ArrayList<>();
+        if (node.hasChildren()) {
+            node.getChildren().stream().filter(child -> !child.isIgnored()).forEach(kids::add);
+        }
+
+        if (childConstraints != null && !childConstraints.isEmpty()) {
+            if (kids.isEmpty()) {
+                if (childConstraints.stream().noneMatch(NodeConstraint::matchesNone)) {
+                    return false;
+                }
+            } else {
+                for (Node child : kids) {
+                    if (childConstraints.stream().noneMatch(nc -> meetsType(child, nc)
+                            && meetsRelation(child, node, nc))) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        NodeConstraint parentConstraint = tr.getSourceParentConstraint();
+        return parentConstraint == null
+                || (meetsType(node.getParent(), parentConstraint) && meetsRelation(node, node.getParent(), parentConstraint));
+    }
+
+    // Whether the type of a node, or the absence of one, is one the constraint allows
+    private boolean meetsType(Node node, NodeConstraint constraint) {
+        if (constraint.matchesNone()) {
+            return node == null;
+        }
+        if (node == null) {
+            return false;
+        }
+        return constraint.matchesAny() || constraint.getNodeType() == null
+                || constraint.getNodeType().getIdentifier().equals(node.getNodeType().getIdentifier());
+    }
+
+    private boolean meetsRelation(Node node, Node parent, NodeConstraint constraint) {
+        StructuralRelation relation = constraint.getStructuralRelation();
+        if (parent == null || relation == null) {
+            return true;
+        }
+        return (relation.getHasParentPredicate() == null
+                || store.hasRelationship(node.getDomainObject(), relation.getHasParentPredicate(),
+                                         parent.getDomainObject()))
+                && (relation.getHasChildPredicate() == null
+                || store.hasRelationship(parent.getDomainObject(), relation.getHasChildPredicate(),
+                                         node.getDomainObject()));
+    }
+
     @Test
     public void testGetNodeTransformsWithIgnoredNodes() {
         Node root = ipmfact.createSimpleTree();
@@ -1,6 +1,8 @@
 package org.dataconservancy.packaging.tool.impl;
 
+import org.dataconservancy.dcs.util.FormatScanPolicy;
 import org.dataconservancy.packaging.tool.api.IPMService;
+import org.dataconservancy.packaging.tool.api.support.FileInfoEnrichment;
 import org.dataconservancy.packaging.tool.api.support.NodeComparison;
 import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
@@ -17,15 +19,20 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IPMServiceTest {
 
@@ -98,6 +105,378 @@ public class IPMServiceTest {
         assertTrue(subDirFound);
     }
 
+    /**
+     * Tests that a tree built by many threads is the same as one built by a single thread, with its children in the
+     * same order, the same files ignored and the same file information.
+     * @throws IOException
+     */
+    @Test
+    public void testParallelTreeMatchesSingleThreadedTree() throws IOException {
+        File mainDir = tmpfolder.newFolder("granary");
+        for (int i = 0; i < 6; i++) {
+            File stall = new File(mainDir, (i % 3 == 0 ? "." : "") + "stall" + i);
+            for (int j = 0; j < 4; j++) {
+                File pen = new File(stall, "pen" + j);
+                pen.mkdirs();
+                for (int k = 0; k < 5; k++) {
+                    Files.write(new File(pen, "animal" + k + ".txt").toPath(), ("stall " + i + " pen " + j + " animal " + k).getBytes());
+                }
+            }
+        }
+
+        try {
+            Files.createSymbolicLink(new File(mainDir, "stall1/pen0/link").toPath(), new File(mainDir, "stall2").toPath());
+            Files.createSymbolicLink(new File(mainDir, "stall2/pen1/cycle").toPath(), new File(mainDir, "stall2").toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            /* The trees are still compared without symbolic links */
+        }
+
+        IPMServiceImpl singleThreaded = new IPMServiceImpl(uriGenerator);
+        singleThreaded.setThreads(1);
+        Node expected = singleThreaded.createTreeFromFileSystem(mainDir.toPath());
+
+        IPMServiceImpl parallel = new IPMServiceImpl(uriGenerator);
+        parallel.setThreads(8);
+        for (int i = 0; i < 3; i++) {
+            assertSameTree(expected, parallel.createTreeFromFileSystem(mainDir.toPath()));
+        }
+    }
+
+    /**
+     * Tests that a tree whose structure is built first has basic file information straight away, and once its files
+     * have been read in the background is the same as a tree built all at once.
+     * @throws Exception
+     */
+    @Test
+    public void testTreeStructureEnrichedInBackground() throws Exception {
+        File mainDir = tmpfolder.newFolder("coop");
+        for (int i = 0; i < 3; i++) {
+            File nest = new File(mainDir, "nest" + i);
+            nest.mkdirs();
+            for (int j = 0; j < 10; j++) {
+                Files.write(new File(nest, "egg" + j + ".txt").toPath(), ("nest " + i + " egg " + j).getBytes());
+            }
+        }
+
+        IPMServiceImpl service = new IPMServiceImpl(uriGenerator);
+        service.setThreads(4);
+        Node expected = service.createTreeFromFileSystem(mainDir.toPath());
+
+        List<Integer> progress = Collections.synchronizedList(new ArrayList<>());
+        FileInfoEnrichment enrichment = service.createTreeStructureFromFileSystem(mainDir.toPath(),
+            (node, enriched, total) -> {
+                assertTrue(node.getFileInfo().getFingerprint() != null || node.getFileInfo().isDirectory());
+                progress.add(enriched);
+            });
+        Node root = enrichment.getRoot();
+        assertEquals(34, enrichment.getTotal());
+        root.walk(node -> {
+            assertNotNull(node.getFileInfo());
+            assertTrue(node.getFileInfo().isFile() || node.getFileInfo().isDirectory());
+        });
+
+        assertEquals(root, enrichment.await());
+        assertTrue(enrichment.getCompletion().isDone());
+        assertEquals(34, enrichment.getEnriched());
+        assertEquals(34, progress.size());
+        assertTrue(progress.contains(34));
+        assertSameTree(expected, root);
+        root.walk(node -> assertEquals(node.getFileInfo().isFile(), node.getFileInfo().getFingerprint() != null));
+
+        // A cancelled enrichment can't be waited for
+        FileInfoEnrichment cancelled = service.createTreeStructureFromFileSystem(mainDir.toPath(), null);
+        cancelled.cancel();
+        assertTrue(cancelled.getCompletion().isCancelled());
+        try {
+            cancelled.await();
+            fail("Expected the enrichment to be cancelled");
+        } catch (CancellationException e) {
+            /* expected */
+        }
+    }
+
+    /**
+     * Tests that a tree can be built with a format scan policy of its own, leaving the service's policy alone.
+     * @throws Exception
+     */
+    @Test
+    public void testTreeStructureWithFormatScanPolicy() throws Exception {
+        File mainDir = tmpfolder.newFolder("silo");
+        Path archive = new File(mainDir, "grain.txt").toPath();
+        Files.copy(getClass().getResourceAsStream("/org/dataconservancy/packaging/tool/impl/fakebag.zip"), archive);
+
+        FormatScanPolicy trustTxt = new FormatScanPolicy(1024, Collections.singletonList("txt"));
+        Node trusted = underTest.createTreeStructureFromFileSystem(mainDir.toPath(), trustTxt, null).await();
+        assertFalse(trusted.getChildren().get(0).getFileInfo().getFormats().contains("application/zip"));
+
+        Node scanned = underTest.createTreeStructureFromFileSystem(mainDir.toPath(), null).await();
+        assertTrue(scanned.getChildren().get(0).getFileInfo().getFormats().contains("application/zip"));
+    }
+
+    /**
+     * Tests that every invalid file name in the tree is reported together, including those in ignored directories, and
+     * that names are checked against the path the tree was built from.
+     * @throws IOException
+     */
+    @Test
+    public void testInvalidFilenamesReportedTogether() throws IOException {
+        File mainDir = tmpfolder.newFolder("farmyard");
+        File subDir = new File(mainDir, "coop");
+        File hiddenDir = new File(subDir, ".nest");
+        hiddenDir.mkdirs();
+
+        Files.createFile(new File(mainDir, "goat.txt").toPath());
+        Files.createFile(new File(mainDir, "pig:1.txt").toPath());
+        Files.createFile(new File(subDir, "CON.txt").toPath());
+        Files.createFile(new File(hiddenDir, "egg?.txt").toPath());
+
+        try {
+            underTest.createTreeFromFileSystem(mainDir.toPath());
+            fail("Expected the invalid file names to be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(new File(mainDir, "pig:1.txt").getPath()));
+            assertTrue(e.getMessage(), e.getMessage().contains(new File(subDir, "CON.txt").getPath()));
+            assertTrue(e.getMessage(), e.getMessage().contains(new File(hiddenDir, "egg?.txt").getPath()));
+            assertFalse(e.getMessage(), e.getMessage().contains("goat.txt"));
+        }
+    }
+
+    /**
+     * Tests that an incremental refresh only reads the files that look changed, and reports the same changes a full
+     * refresh would for them.
+     * @throws IOException
+     */
+    @Test
+    public void testIncrementalRefresh() throws IOException {
+        File mainDir = tmpfolder.newFolder("henhouse");
+        File unchanged = new File(mainDir, "hen.txt");
+        File changed = new File(mainDir, "rooster.txt");
+        Files.write(unchanged.toPath(), "cluck".getBytes());
+        Files.write(changed.toPath(), "crow".getBytes());
+
+        IPMServiceImpl service = new IPMServiceImpl(uriGenerator);
+        service.setIncrementalRefresh(true);
+        Node root = service.createTreeFromFileSystem(mainDir.toPath());
+
+        // A fingerprint and checksums that don't match the file show whether the file was read again
+        Node unchangedNode = root.getChildren().stream().filter(child -> child.getFileInfo().getName().equals("hen.txt")).findFirst().get();
+        unchangedNode.getFileInfo().setFingerprint("0123456789abcdef");
+        unchangedNode.getFileInfo().addChecksum(FileInfo.Algorithm.MD5, "not-read-again");
+        unchangedNode.getFileInfo().addChecksum(FileInfo.Algorithm.SHA1, "not-read-again");
+
+        Files.write(changed.toPath(), "cock-a-doodle-doo".getBytes());
+        Files.write(new File(mainDir, "chick.txt").toPath(), "cheep".getBytes());
+
+        Map<Node, NodeComparison> incremental = service.refreshTreeContent(root);
+        assertEquals(2, incremental.size());
+        for (Map.Entry<Node, NodeComparison> comparison : incremental.entrySet()) {
+            switch (comparison.getKey().getFileInfo().getName()) {
+                case "rooster.txt":
+                    assertEquals(NodeComparison.Status.UPDATED, comparison.getValue().getStatus());
+                    break;
+                case "chick.txt":
+                    assertEquals(NodeComparison.Status.ADDED, comparison.getValue().getStatus());
+                    assertEquals(root, comparison.getValue().getNode());
+                    break;
+                default:
+                    fail("Unexpected change " + comparison.getKey().getFileInfo().getName());
+            }
+        }
+
+        // A full refresh reads every file, so it sees the fingerprint that doesn't match
+        service.setIncrementalRefresh(false);
+        Map<Node, NodeComparison> full = service.refreshTreeContent(root);
+        assertEquals(3, full.size());
+        assertTrue(full.values().stream().anyMatch(comparison -> comparison.getNode() == unchangedNode));
+    }
+
+    /**
+     * Tests that a tree built without checksums fingerprints its files, and that the fingerprints show which files
+     * changed when the tree is refreshed.
+     * @throws IOException
+     */
+    @Test
+    public void testFingerprintedTree() throws IOException {
+        File mainDir = tmpfolder.newFolder("duckpond");
+        File unchanged = new File(mainDir, "duck.txt");
+        File changed = new File(mainDir, "goose.txt");
+        Files.write(unchanged.toPath(), "quack".getBytes());
+        Files.write(changed.toPath(), "honk".getBytes());
+
+        IPMServiceImpl service = new IPMServiceImpl(uriGenerator);
+        service.setComputeChecksums(false);
+        Node root = service.createTreeFromFileSystem(mainDir.toPath());
+
+        for (Node child : root.getChildren()) {
+            assertNull(child.getFileInfo().getChecksum(FileInfo.Algorithm.MD5));
+            assertNotNull(child.getFileInfo().getFingerprint());
+        }
+
+        // The same size, so only the content shows the file changed
+        Files.write(changed.toPath(), "hiss".getBytes());
+
+        Map<Node, NodeComparison> comparisons = service.refreshTreeContent(root);
+        assertEquals(1, comparisons.size());
+        Map.Entry<Node, NodeComparison> comparison = comparisons.entrySet().iterator().next();
+        assertEquals("goose.txt", comparison.getKey().getFileInfo().getName());
+        assertEquals(NodeComparison.Status.UPDATED, comparison.getValue().getStatus());
+
+        // Checksums are still computed by default, along with the fingerprint
+        Node checksummed = underTest.createTreeFromFileSystem(mainDir.toPath());
+        for (Node child : checksummed.getChildren()) {
+            assertNotNull(child.getFileInfo().getChecksum(FileInfo.Algorithm.MD5));
+            assertNotNull(child.getFileInfo().getChecksum(FileInfo.Algorithm.SHA1));
+            assertNotNull(child.getFileInfo().getFingerprint());
+        }
+    }
+
+    /**
+     * Tests that building a tree stops, and returns no tree, when the thread is interrupted, and that the interrupt is
+     * preserved.
+     * @throws IOException
+     */
+    @Test
+    public void testInterruptedTreeBuild() throws IOException {
+        File mainDir = tmpfolder.newFolder("pasture");
+        Files.createFile(new File(mainDir, "sheep.txt").toPath());
+
+        Thread.currentThread().interrupt();
+        try {
+            assertNull(underTest.createTreeFromFileSystem(mainDir.toPath()));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Tests that a tree kept in a node store is the same as one kept in memory, and can be refreshed and merged.
+     * @throws IOException
+     */
+    @Test
+    public void testNodeStoreTree() throws IOException {
+        File mainDir = tmpfolder.newFolder("stable");
+        for (int i = 0; i < 3; i++) {
+            File stall = new File(mainDir, (i == 0 ? "." : "") + "stall" + i);
+            stall.mkdirs();
+            for (int j = 0; j < 4; j++) {
+                Files.write(new File(stall, "horse" + j + ".txt").toPath(), ("stall " + i + " horse " + j).getBytes());
+            }
+        }
+
+        Node expected = underTest.createTreeFromFileSystem(mainDir.toPath());
+
+        IPMServiceImpl stored = new IPMServiceImpl(uriGenerator);
+        stored.setNodeStoreDirectory(tmpfolder.newFolder("nodes").getPath());
+        Node root = stored.createTreeFromFileSystem(mainDir.toPath());
+        assertSameTree(expected, root);
+
+        File stall = new File(mainDir, "stall1");
+        Files.write(new File(stall, "pony.txt").toPath(), "neigh".getBytes());
+        Files.delete(new File(stall, "horse0.txt").toPath());
+
+        Map<Node, NodeComparison> changes = stored.refreshTreeContent(root);
+        assertEquals(2, changes.size());
+        assertTrue(stored.mergeTree(root, changes));
+
+        Node stallNode = root.getIndex().getNodeByLocation(stall.toPath().toUri());
+        assertEquals(4, stallNode.getChildren().size());
+        assertTrue(stallNode.getChildren().stream().anyMatch(child -> child.getFileInfo().getName().equals("pony.txt")));
+        assertFalse(stallNode.getChildren().stream().anyMatch(child -> child.getFileInfo().getName().equals("horse0.txt")));
+        stallNode.getChildren().forEach(child -> assertEquals(stallNode, child.getParent()));
+    }
+
+    /**
+     * Tests that content added to a stored tree from outside its directory is refreshed under the node it was added to.
+     * @throws IOException
+     */
+    @Test
+    public void testRefreshContentRoots() throws IOException {
+        File mainDir = tmpfolder.newFolder("hayloft");
+        File loft = new File(mainDir, "loft");
+        loft.mkdirs();
+        Files.write(new File(loft, "hay.txt").toPath(), "bale".getBytes());
+
+        File fieldDir = tmpfolder.newFolder("meadow");
+        Files.write(new File(fieldDir, "grass.txt").toPath(), "green".getBytes());
+
+        IPMServiceImpl stored = new IPMServiceImpl(uriGenerator);
+        stored.setNodeStoreDirectory(tmpfolder.newFolder("hayloft-nodes").getPath());
+        Node root = stored.createTreeFromFileSystem(mainDir.toPath());
+        Node loftNode = root.getChildren().get(0);
+        Node fieldNode = stored.createTreeFromFileSystem(fieldDir.toPath());
+        loftNode.addChild(fieldNode);
+
+        Files.write(new File(fieldDir, "clover.txt").toPath(), "purple".getBytes());
+
+        Map<Node, NodeComparison> changes = stored.refreshTreeContent(root);
+        assertEquals(1, changes.size());
+        Node added = changes.keySet().iterator().next();
+        assertEquals("clover.txt", added.getFileInfo().getName());
+        assertEquals(NodeComparison.Status.ADDED, changes.get(added).getStatus());
+        assertEquals(fieldNode, changes.get(added).getNode());
+    }
+
+    /**
+     * Tests that refreshing a stored tree again and again doesn't grow the store, as each comparison tree is built in
+     * a store of its own which is deleted once the tree has been compared.
+     * @throws IOException
+     */
+    @Test
+    public void testRepeatedRefreshKeepsStoreBounded() throws IOException {
+        File mainDir = tmpfolder.newFolder("dovecote");
+        for (int i = 0; i < 5; i++) {
+            Files.write(new File(mainDir, "dove" + i + ".txt").toPath(), ("coo " + i).getBytes());
+        }
+
+        File nodeStoreDirectory = tmpfolder.newFolder("dovecote-nodes");
+        IPMServiceImpl stored = new IPMServiceImpl(uriGenerator);
+        stored.setNodeStoreDirectory(nodeStoreDirectory.getPath());
+        Node root = stored.createTreeFromFileSystem(mainDir.toPath());
+        int size = stored.getNodeStore().size();
+        long dataSize = stored.getNodeStore().dataSize();
+        int files = nodeStoreDirectory.list().length;
+
+        for (int i = 0; i < 20; i++) {
+            Files.write(new File(mainDir, "dove0.txt").toPath(), ("coo coo " + i).getBytes());
+            Map<Node, NodeComparison> changes = stored.refreshTreeContent(root);
+            assertEquals(1, changes.size());
+            assertEquals(NodeComparison.Status.UPDATED, changes.values().iterator().next().getStatus());
+            assertTrue(stored.mergeTree(root, changes));
+
+            assertEquals(size, stored.getNodeStore().size());
+            assertEquals(dataSize, stored.getNodeStore().dataSize());
+            assertEquals(files, nodeStoreDirectory.list().length);
+        }
+
+        // Added nodes are kept in the store, as they become part of the tree
+        Files.write(new File(mainDir, "pigeon.txt").toPath(), "coo".getBytes());
+        Map<Node, NodeComparison> changes = stored.refreshTreeContent(root);
+        assertTrue(stored.mergeTree(root, changes));
+        assertEquals(size + 1, stored.getNodeStore().size());
+        assertEquals(6, root.getChildren().size());
+        assertTrue(root.getChildren().stream().anyMatch(child -> child.getFileInfo().getName().equals("pigeon.txt")));
+        root.getChildren().forEach(child -> assertEquals(root, child.getParent()));
+    }
+
+    private void assertSameTree(Node expected, Node actual) {
+        assertEquals(expected.getFileInfo().getLocation(), actual.getFileInfo().getLocation());
+        assertEquals(expected.isIgnored(), actual.isIgnored());
+        assertEquals(expected.getFileInfo().getFormats(), actual.getFileInfo().getFormats());
+        assertEquals(expected.getFileInfo().getChecksum(FileInfo.Algorithm.MD5), actual.getFileInfo().getChecksum(FileInfo.Algorithm.MD5));
+        assertEquals(expected.getFileInfo().getChecksum(FileInfo.Algorithm.SHA1), actual.getFileInfo().getChecksum(FileInfo.Algorithm.SHA1));
+
+        if (expected.getChildren() == null) {
+            assertNull(actual.getChildren());
+            return;
+        }
+        assertEquals(expected.getChildren().size(), actual.getChildren().size());
+        for (int i = 0; i < expected.getChildren().size(); i++) {
+            assertEquals(actual, actual.getChildren().get(i).getParent());
+            assertSameTree(expected.getChildren().get(i), actual.getChildren().get(i));
+        }
+    }
+
     /**
      * Tests that symbolic links that create cycles are ignored and not added to the package
      * @throws Exception
@@ -12,6 +12,7 @@ import org.dataconservancy.packaging.tool.model.RDFTransformException;
 import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
 import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 import org.dataconservancy.packaging.tool.model.ipm.Node;
+import org.dataconservancy.packaging.tool.model.ipm.NodeStore;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -219,8 +220,22 @@ public class IpmRdfTransformServiceTest {
      */
     @Test
     public void testRoundTrip() throws RDFTransformException {
-        Node returnedNode = transformService.transformToNode(transformService.transformToRDF(root));
+        assertSameAsRoot(transformService.transformToNode(transformService.transformToRDF(root)));
+    }
+
+    /**
+     * Tests that a node tree can be read from RDF into a node store.
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTripToNodeStore() throws Exception {
+        try (NodeStore nodeStore = new NodeStore(tmpfolder.newFolder("nodes").toPath())) {
+            assertSameAsRoot(transformService.transformToNode(transformService.transformToRDF(root), nodeStore));
+            assertEquals(3, nodeStore.size());
+        }
+    }
 
+    private void assertSameAsRoot(Node returnedNode) {
         assertEquals(root, returnedNode);
 
         //Node equals only checks identifier so make some additional checks to ensure everything is in order
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.dataconservancy.dcs.util.ChecksumGeneratorVerifier;
+import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.PackageVerificationReport;
+import org.dataconservancy.packaging.tool.model.PackageVerificationReport.ProblemType;
+import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackageVerificationServiceImplTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private PackageVerificationServiceImpl underTest;
+
+    private Map<String, String> payload;
+
+    @Before
+    public void setUp() {
+        underTest = new PackageVerificationServiceImpl();
+
+        payload = new LinkedHashMap<>();
+        payload.put("data/one.txt", "The first payload file.");
+        payload.put("data/sub/two.txt", "The second payload file, which is a little longer.");
+        payload.put("data/sub/three.bin", "3");
+    }
+
+    /**
+     * Tests that a well formed exploded bag is valid, whether the bag directory or its parent is given.
+     */
+    @Test
+    public void testValidExplodedBag() throws IOException {
+        File bagDir = writeBag(tmpFolder.newFolder("out"), "md5", "sha1");
+
+        PackageVerificationReport report = underTest.verifyPackage(bagDir);
+        assertTrue(report.getProblems().toString(), report.isValid());
+        assertEquals(payload.size() + 4, report.getFilesVerified());
+
+        report = underTest.verifyPackage(bagDir.getParentFile());
+        assertTrue(report.getProblems().toString(), report.isValid());
+    }
+
+    /**
+     * Tests that an exploded bag can be verified with a given number of threads, which can't be negative.
+     */
+    @Test
+    public void testThreads() throws IOException {
+        File bagDir = writeBag(tmpFolder.newFolder("out"), "md5");
+
+        for (int threads = 0; threads <= 3; threads++) {
+            PackageVerificationReport report = underTest.verifyPackage(bagDir, threads);
+            assertTrue(report.getProblems().toString(), report.isValid());
+            assertEquals(payload.size() + 3, report.getFilesVerified());
+        }
+
+        try {
+            underTest.verifyPackage(bagDir, -1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
+    /**
+     * Tests that modified, missing and unlisted payload files are all reported for an exploded bag.
+     */
+    @Test
+    public void testInvalidExplodedBag() throws IOException {
+        File bagDir = writeBag(tmpFolder.newFolder("out"), "md5");
+        Files.write(bagDir.toPath().resolve("data/one.txt"), "Changed".getBytes(StandardCharsets.UTF_8));
+        Files.delete(bagDir.toPath().resolve("data/sub/three.bin"));
+        Files.write(bagDir.toPath().resolve("data/extra.txt"), "Extra".getBytes(StandardCharsets.UTF_8));
+
+        PackageVerificationReport report = underTest.verifyPackage(bagDir);
+
+        assertFalse(report.isValid());
+        assertEquals(ProblemType.CHECKSUM_MISMATCH, problemFor(report, "data/one.txt").getType());
+        assertEquals(ProblemType.MISSING_FILE, problemFor(report, "data/sub/three.bin").getType());
+        assertEquals(ProblemType.UNLISTED_FILE, problemFor(report, "data/extra.txt").getType());
+        assertEquals(ProblemType.OXUM_MISMATCH, problemFor(report, "bag-info.txt").getType());
+    }
+
+    /**
+     * Tests that a compressed tar of a well formed bag is valid.
+     */
+    @Test
+    public void testValidTarGzBag() throws IOException {
+        File bagDir = writeBag(tmpFolder.newFolder("out"), "md5", "sha256");
+        File archive = new File(tmpFolder.getRoot(), "bag.tar.gz");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(
+                new GzipCompressorOutputStream(new FileOutputStream(archive)))) {
+            writeArchive(tar, bagDir, true);
+        }
+
+        PackageVerificationReport report = underTest.verifyPackage(archive);
+        assertTrue(report.getProblems().toString(), report.isValid());
+        assertEquals(payload.size() + 6, report.getFilesVerified());
+    }
+
+    /**
+     * Tests that payload files archived before the manifests of algorithms which aren't archive algorithms are still
+     * verified with those algorithms.
+     */
+    @Test
+    public void testManifestsAfterPayload() throws IOException {
+        File bagDir = writeBag(tmpFolder.newFolder("out"), "sha256", "sha512");
+        Files.write(bagDir.toPath().resolve("data/one.txt"), "Changed".getBytes(StandardCharsets.UTF_8));
+        File archive = new File(tmpFolder.getRoot(), "bag.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new FileOutputStream(archive))) {
+            writeArchive(tar, bagDir, true, true);
+        }
+
+        PackageVerificationReport report = underTest.verifyPackage(archive);
+
+        assertEquals(payload.size() + 6, report.getFilesVerified());
+        for (PackageVerificationReport.Problem problem : report.getProblems()) {
+            assertEquals(report.getProblems().toString(), "data/one.txt".equals(problem.getPath()) ?
+                    ProblemType.CHECKSUM_MISMATCH : ProblemType.OXUM_MISMATCH, problem.getType());
+        }
+        assertEquals(3, report.getProblems().size());
+    }
+
+    /**
+     * Tests that payload files named like tag files are verified as payload, rather than read as tag files.
+     */
+    @Test
+    public void testPayloadNamedLikeTagFiles() throws IOException {
+        payload.put("data/bagit.txt", "Not a declaration");
+        payload.put("data/sub/manifest-sha512.txt", "0123  data/one.txt");
+        File bagDir = writeBag(tmpFolder.newFolder("out"), "md5");
+        File archive = new File(tmpFolder.getRoot(), "bag.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new FileOutputStream(archive))) {
+            writeArchive(tar, bagDir, true, true);
+        }
+
+        PackageVerificationReport report = underTest.verifyPackage(archive);
+        assertTrue(report.getProblems().toString(), report.isValid());
+        assertEquals(payload.size() + 4, report.getFilesVerified());
+    }
+
+    /**
+     * Tests that a tampered payload file in a zip is reported without extracting the archive.
+     */
+    @Test
+    public void testInvalidZipBag() throws IOException {
+        File bagDir = writeBag(tmpFolder.newFolder("out"), "sha1");
+        Files.write(bagDir.toPath().resolve("data/sub/two.txt"), "Tampered".getBytes(StandardCharsets.UTF_8));
+        File archive = new File(tmpFolder.getRoot(), "bag.zip");
+        try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(new FileOutputStream(archive))) {
+            writeArchive(zip, bagDir, false);
+        }
+
+        PackageVerificationReport report = underTest.verifyPackage(archive);
+
+        assertFalse(report.isValid());
+        PackageVerificationReport.Problem problem = problemFor(report, "data/sub/two.txt");
+        assertEquals(ProblemType.CHECKSUM_MISMATCH, problem.getType());
+        assertEquals("sha1", problem.getAlgorithm());
+        assertEquals(ProblemType.OXUM_MISMATCH, problemFor(report, "bag-info.txt").getType());
+    }
+
+    /**
+     * Tests that a directory which is not a bag is reported as such.
+     */
+    @Test
+    public void testNotABag() throws IOException {
+        PackageVerificationReport report = underTest.verifyPackage(tmpFolder.newFolder("empty"));
+
+        assertFalse(report.isValid());
+        assertEquals(ProblemType.NOT_A_BAG, report.getProblems().get(0).getType());
+    }
+
+    /**
+     * Tests that a package which doesn't exist is an error.
+     */
+    @Test
+    public void testMissingPackage() {
+        try {
+            underTest.verifyPackage(new File(tmpFolder.getRoot(), "missing.tar"));
+            fail("Expected a PackageToolException");
+        } catch (PackageToolException e) {
+            assertEquals(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION.returnCode(), e.getCode());
+        }
+    }
+
+    /**
+     * Tests that the report is written as JSON, with its problems.
+     */
+    @Test
+    public void testReportJson() {
+        PackageVerificationReport report = new PackageVerificationReport("C:\\bags\\\"quoted\".tar");
+        report.setFilesVerified(2);
+        report.addProblem(ProblemType.CHECKSUM_MISMATCH, "data/a.txt", "md5", "abc", "def");
+
+        JSONObject json = new JSONObject(report.toJson());
+        assertEquals("C:\\bags\\\"quoted\".tar", json.getString("package"));
+        assertFalse(json.getBoolean("valid"));
+        assertEquals(2, json.getLong("filesVerified"));
+        assertEquals(0, json.getLong("bytesVerified"));
+
+        JSONArray problems = json.getJSONArray("problems");
+        assertEquals(1, problems.length());
+        JSONObject problem = problems.getJSONObject(0);
+        assertEquals("CHECKSUM_MISMATCH", problem.getString("type"));
+        assertEquals("data/a.txt", problem.getString("path"));
+        assertEquals("md5", problem.getString("algorithm"));
+        assertEquals("abc", problem.getString("expected"));
+        assertEquals("def", problem.getString("actual"));
+
+        report.addProblem(ProblemType.NOT_A_BAG, null, null, null, null);
+        assertTrue(new JSONObject(report.toJson()).getJSONArray("problems").getJSONObject(1).isNull("path"));
+    }
+
+    private PackageVerificationReport.Problem problemFor(PackageVerificationReport report, String path) {
+        return report.getProblems().stream().filter(p -> path.equals(p.getPath())).findFirst()
+                .orElseThrow(() -> new AssertionError("No problem reported for " + path + ": " + report.getProblems()));
+    }
+
+    /**
+     * Writes a bag named "bag" with a payload and tag manifest for each of the algorithms.
+     */
+    private File writeBag(File parent, String... algorithms) throws IOException {
+        Path bag = parent.toPath().resolve("bag");
+        long payloadSize = 0;
+        for (Map.Entry<String, String> file : payload.entrySet()) {
+            Path path = bag.resolve(file.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, file.getValue().getBytes(StandardCharsets.UTF_8));
+            payloadSize += Files.size(path);
+        }
+        write(bag.resolve("bagit.txt"), "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n");
+        write(bag.resolve("bag-info.txt"), "Payload-Oxum: " + payloadSize + "." + payload.size() + "\n");
+
+        for (String algorithm : algorithms) {
+            StringBuilder manifest = new StringBuilder();
+            for (String path : payload.keySet()) {
+                manifest.append(checksum(algorithm, bag.resolve(path))).append("  ").append(path).append("\n");
+            }
+            write(bag.resolve("manifest-" + algorithm + ".txt"), manifest.toString());
+        }
+        for (String algorithm : algorithms) {
+            StringBuilder tagManifest = new StringBuilder();
+            for (Path tagFile : Files.list(bag).filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().startsWith("tagmanifest-"))
+                    .collect(Collectors.toList())) {
+                tagManifest.append(checksum(algorithm, tagFile)).append("  ")
+                        .append(tagFile.getFileName()).append("\n");
+            }
+            write(bag.resolve("tagmanifest-" + algorithm + ".txt"), tagManifest.toString());
+        }
+        return bag.toFile();
+    }
+
+    private void write(Path path, String content) throws IOException {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String checksum(String algorithm, Path file) throws IOException {
+        try {
+            String digestAlgorithm = algorithm.matches("sha[0-9]{3}") ? "SHA-" + algorithm.substring(3) : algorithm;
+            return ChecksumGeneratorVerifier.generateChecksums(Collections.singletonList(digestAlgorithm),
+                    new ByteArrayInputStream(Files.readAllBytes(file))).get(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void writeArchive(ArchiveOutputStream out, File bagDir, boolean tar) throws IOException {
+        writeArchive(out, bagDir, tar, false);
+    }
+
+    /**
+     * Archives a bag, optionally with all of its payload files before its tag files.
+     */
+    private void writeArchive(ArchiveOutputStream out, File bagDir, boolean tar, boolean payloadFirst)
+            throws IOException {
+        Path base = bagDir.toPath().getParent();
+        List<Path> files = Files.walk(bagDir.toPath()).filter(Files::isRegularFile).collect(Collectors.toList());
+        if (payloadFirst) {
+            Path payloadDir = bagDir.toPath().resolve("data");
+            files.sort(Comparator.comparing(file -> !file.startsWith(payloadDir)));
+        }
+        for (Path file : files) {
+            String name = base.relativize(file).toString().replace(File.separatorChar, '/');
+            if (tar) {
+                TarArchiveEntry entry = new TarArchiveEntry(name);
+                entry.setSize(Files.size(file));
+                out.putArchiveEntry(entry);
+            } else {
+                out.putArchiveEntry(new ZipArchiveEntry(name));
+            }
+            try (OutputStream entryOut = new CloseShieldOutputStream(out)) {
+                Files.copy(file, entryOut);
+            }
+            out.closeArchiveEntry();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dataconservancy.dcs.model.Checksum;
+import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.PackagingToolReturnInfo;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test class for ParallelPackageChecksumServiceImpl
+ */
+public class ParallelPackageChecksumServiceImplTest {
+    private ParallelPackageChecksumServiceImpl underTest;
+
+    private Set<File> files;
+
+    private List<String> algorithms = Arrays.asList("md5", "sha1");
+
+    @Rule
+    public TemporaryFolder tmpfolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws Exception {
+        underTest = new ParallelPackageChecksumServiceImpl(4);
+
+        files = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            File file = tmpfolder.newFile("testFile" + i + ".txt");
+            try (PrintWriter out = new PrintWriter(file)) {
+                for (int j = 0; j <= i * 100; j++) {
+                    out.println("This is line " + j + " of test file " + i);
+                }
+            }
+            files.add(file);
+        }
+    }
+
+    /**
+     * Tests that the checksums calculated in parallel are the same as those calculated one file at a time.
+     */
+    @Test
+    public void testSameChecksumsAsSequentialService() {
+        Map<File, List<Checksum>> expected = new PackageChecksumServiceImpl().generatePackageFileChecksums(files, algorithms);
+        Map<File, List<Checksum>> result = underTest.generatePackageFileChecksums(files, algorithms);
+
+        assertEquals(files.size(), result.size());
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testUnknownAlgorithmThrowsException() {
+        boolean exception = false;
+        try {
+            underTest.generatePackageFileChecksums(files, Arrays.asList("md5", "bogusUnknownAlgorithm"));
+        } catch (PackageToolException e) {
+            exception = true;
+            assertEquals(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION.returnCode(), e.getCode());
+            assertEquals(PackagingToolReturnInfo.PKG_NO_SUCH_CHECKSUM_ALGORITHM_EXCEPTION.stringMessage() + ": bogusUnknownAlgorithm", e.getMessage());
+        }
+        assertTrue(exception);
+    }
+
+    /**
+     * Tests that an error checksumming one of the files is reported with the same code as the sequential service.
+     */
+    @Test
+    public void testDeletedFileThrowsException() {
+        File deleted = files.iterator().next();
+        assertTrue(deleted.delete());
+
+        boolean exception = false;
+        try {
+            underTest.generatePackageFileChecksums(files, algorithms);
+        } catch (PackageToolException e) {
+            exception = true;
+            assertEquals(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION.returnCode(), e.getCode());
+            assertEquals(PackagingToolReturnInfo.PKG_FILE_NOT_FOUND_EXCEPTION.stringMessage() + ": " + deleted.getPath(), e.getMessage());
+        }
+        assertTrue(exception);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPoolSize() {
+        new ParallelPackageChecksumServiceImpl(0);
+    }
+}
@@ -28,6 +28,7 @@ import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.io.IOUtils;
+import org.dataconservancy.dcs.util.ChecksumGeneratorVerifier;
 
 import org.dataconservancy.packaging.tool.api.Package;
 import org.dataconservancy.packaging.tool.api.generator.PackageResourceType;
@@ -35,6 +36,7 @@ import org.dataconservancy.packaging.tool.model.BagItParameterNames;
 import org.dataconservancy.packaging.tool.model.GeneralParameterNames;
 import org.dataconservancy.packaging.tool.model.PackageGenerationParameters;
 import org.dataconservancy.packaging.tool.model.PackageToolException;
+import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
 
 import org.junit.After;
 import org.junit.Before;
@@ -42,6 +44,7 @@ import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 
 import org.slf4j.Logger;
@@ -61,8 +64,13 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -112,6 +120,9 @@ public class BagItPackageAssemblerTest {
     @Rule
     public ExpectedException expected = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
     @Before
     public void setUp() throws URISyntaxException {
         //Set up parameters
@@ -685,6 +696,113 @@ public class BagItPackageAssemblerTest {
         assertFalse(files.contains(bagFilePath + "tagmanifest-sha1.txt"));
     }
 
+    /**
+     * Test that the manifest entries and payload oxum, which are captured as resources are written, match the
+     * content that was put into the package.
+     */
+    @Test
+    public void testManifestMatchesWrittenContent() throws IOException, CompressorException, ArchiveException {
+        String filePath = "myProject/dataFile.txt";
+        URI result = underTest.reserveResource(filePath, PackageResourceType.DATA);
+        String fileContent = "This is the data file. data data data data data data data data data data data data.";
+        underTest.putResource(result, new ByteArrayInputStream(fileContent.getBytes()));
+        String expectedChecksum =
+                ChecksumGeneratorVerifier.generateMD5checksum(new ByteArrayInputStream(fileContent.getBytes()));
+
+        Package pkg = underTest.assemblePackage();
+
+        CompressorInputStream cis = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.GZIP, pkg.serialize());
+        ArchiveInputStream ais = new ArchiveStreamFactory().createArchiveInputStream(ArchiveStreamFactory.TAR, cis);
+
+        String manifest = null;
+        String bagInfo = null;
+        ArchiveEntry entry = ais.getNextEntry();
+        while (entry != null) {
+            if (entry.getName().equals(packageName + "/manifest-md5.txt")) {
+                manifest = IOUtils.toString(ais, "UTF-8");
+            } else if (entry.getName().equals(packageName + "/bag-info.txt")) {
+                bagInfo = IOUtils.toString(ais, "UTF-8");
+            }
+            entry = ais.getNextEntry();
+        }
+
+        assertNotNull(manifest);
+        assertTrue(manifest.contains(expectedChecksum + "  data/" + filePath));
+        assertNotNull(bagInfo);
+        assertTrue(bagInfo.contains(BagItParameterNames.PAYLOAD_OXUM + ": " + fileContent.getBytes().length + ".1"));
+    }
+
+    /**
+     * Test that with trusted fixity, the checksum recorded for an unchanged file is written to the manifest without
+     * the file being checksummed again.
+     */
+    @Test
+    public void testTrustedFixityUsesRecordedChecksums() throws IOException, CompressorException, ArchiveException {
+        String recordedChecksum = "0123456789abcdef0123456789abcdef";
+        FileInfo source = createSourceFileInfo(recordedChecksum);
+
+        PackageGenerationParameters params = new PackageGenerationParameters();
+        setupCommonPackageParams(params, packageMetadata);
+        params.addParam(GeneralParameterNames.CHECKSUM_ALGORITHMS, checksumAlg);
+        params.addParam(GeneralParameterNames.COMPRESSION_FORMAT, CompressorStreamFactory.GZIP);
+        params.addParam(GeneralParameterNames.TRUSTED_FIXITY, "true");
+        underTest = new BagItPackageAssembler();
+        underTest.init(params, packageMetadata);
+
+        underTest.createResource("myProject/dataFile.txt", PackageResourceType.DATA, source);
+
+        assertTrue(readManifest(underTest.assemblePackage()).contains(recordedChecksum + "  data/myProject/dataFile.txt"));
+    }
+
+    /**
+     * Test that with trusted fixity, a file which has been modified since its checksum was recorded is checksummed
+     * again.
+     */
+    @Test
+    public void testTrustedFixityIgnoresChangedFile() throws IOException, CompressorException, ArchiveException {
+        FileInfo source = createSourceFileInfo("0123456789abcdef0123456789abcdef");
+        source.setLastModifiedTime(FileTime.fromMillis(source.getLastModifiedTime().toMillis() - 10000));
+
+        PackageGenerationParameters params = new PackageGenerationParameters();
+        setupCommonPackageParams(params, packageMetadata);
+        params.addParam(GeneralParameterNames.CHECKSUM_ALGORITHMS, checksumAlg);
+        params.addParam(GeneralParameterNames.COMPRESSION_FORMAT, CompressorStreamFactory.GZIP);
+        params.addParam(GeneralParameterNames.TRUSTED_FIXITY, "true");
+        underTest = new BagItPackageAssembler();
+        underTest.init(params, packageMetadata);
+
+        underTest.createResource("myProject/dataFile.txt", PackageResourceType.DATA, source);
+
+        String actualChecksum = ChecksumGeneratorVerifier.generateMD5checksum(Files.newInputStream(Paths.get(source.getLocation())));
+        assertTrue(readManifest(underTest.assemblePackage()).contains(actualChecksum + "  data/myProject/dataFile.txt"));
+    }
+
+    /**
+     * Test that without trusted fixity, recorded checksums are not used.
+     */
+    @Test
+    public void testRecordedChecksumsNotTrustedByDefault() throws IOException, CompressorException, ArchiveException {
+        FileInfo source = createSourceFileInfo("0123456789abcdef0123456789abcdef");
+
+        underTest.createResource("myProject/dataFile.txt", PackageResourceType.DATA, source);
+
+        String actualChecksum = ChecksumGeneratorVerifier.generateMD5checksum(Files.newInputStream(Paths.get(source.getLocation())));
+        assertTrue(readManifest(underTest.assemblePackage()).contains(actualChecksum + "  data/myProject/dataFile.txt"));
+    }
+
+    @Test
+    public void testInvalidChecksumAlgorithmThrowsError() {
+        PackageGenerationParameters params = new PackageGenerationParameters();
+        setupCommonPackageParams(params, packageMetadata);
+        params.addParam(GeneralParameterNames.CHECKSUM_ALGORITHMS, "fake");
+
+        expected.expect(PackageToolException.class);
+        expected.expectMessage("fake");
+
+        underTest = new BagItPackageAssembler();
+        underTest.init(params, packageMetadata);
+    }
+
     /**
      * Test that the assembler generates both manifest files one for sha1 and one for md5
      * @throws IOException
@@ -846,6 +964,20 @@ public class BagItPackageAssemblerTest {
         underTest.init(params, packageMetadata);
     }
 
+    @Test
+    public void testInvalidChecksumThreadsThrowsError() {
+        PackageGenerationParameters params = new PackageGenerationParameters();
+        setupCommonPackageParams(params, packageMetadata);
+        params.addParam(GeneralParameterNames.CHECKSUM_THREADS, "none");
+
+        expected.expect(PackageToolException.class);
+        expected.expectMessage("One or more initial parameters for the package assembler was invalid : " +
+                "Specified Checksum-Threads <none> is not supported. The value must be a positive integer.");
+
+        underTest = new BagItPackageAssembler();
+        underTest.init(params, packageMetadata);
+    }
+
     @Test
     public void testValidArchiveNoCompressionAssemblesUncompressedArchive() throws ArchiveException, IOException {
         PackageGenerationParameters params = new PackageGenerationParameters();
@@ -900,6 +1032,30 @@ public class BagItPackageAssemblerTest {
         assertNotNull(ais.getNextEntry());
     }
 
+    private FileInfo createSourceFileInfo(String md5) throws IOException {
+        Path sourceFile = tmpFolder.newFile("dataFile.txt").toPath();
+        Files.write(sourceFile, "This is the data file. data data data data data data data.".getBytes());
+
+        Map<FileInfo.Algorithm, String> checksums = new HashMap<>();
+        checksums.put(FileInfo.Algorithm.MD5, md5);
+        return new FileInfo(sourceFile, Files.readAttributes(sourceFile, BasicFileAttributes.class),
+                new ArrayList<>(), checksums);
+    }
+
+    private String readManifest(Package pkg) throws IOException, CompressorException, ArchiveException {
+        CompressorInputStream cis = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.GZIP, pkg.serialize());
+        ArchiveInputStream ais = new ArchiveStreamFactory().createArchiveInputStream(ArchiveStreamFactory.TAR, cis);
+
+        ArchiveEntry entry = ais.getNextEntry();
+        while (entry != null) {
+            if (entry.getName().equals(packageName + "/manifest-md5.txt")) {
+                return IOUtils.toString(ais, "UTF-8");
+            }
+            entry = ais.getNextEntry();
+        }
+        return null;
+    }
+
     private void setupCommonPackageParams(PackageGenerationParameters params, Map<String, List<String>> packageMetadata) {
         params.addParam(GeneralParameterNames.PACKAGE_NAME, packageName);
         params.addParam(GeneralParameterNames.PACKAGE_LOCATION, packageLocationName);
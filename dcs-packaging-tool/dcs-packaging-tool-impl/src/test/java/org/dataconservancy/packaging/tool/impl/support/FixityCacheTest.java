@@ -0,0 +1,338 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.impl.support;
+
+import org.dataconservancy.dcs.util.FormatScanPolicy;
+import org.dataconservancy.packaging.tool.model.ipm.FileInfo;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FixityCacheTest {
+    @Rule
+    public TemporaryFolder tmpfolder = new TemporaryFolder();
+
+    private File storeFile;
+    private Path file;
+
+    @Before
+    public void setup() throws IOException {
+        storeFile = new File(tmpfolder.getRoot(), "cache/fixity-cache");
+        file = tmpfolder.newFile("content.txt").toPath().toRealPath();
+        Files.write(file, "Original content".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests that file information is written to the store file and read back by a new cache.
+     */
+    @Test
+    public void testEntriesArePersisted() throws IOException {
+        FixityCache cache = new FixityCache(storeFile, 10);
+        FileInfo original = cache.createFileInfo(file);
+        assertEquals(1, cache.size());
+        cache.flush();
+        assertTrue(storeFile.exists());
+
+        FixityCache reloaded = new FixityCache(storeFile, 10);
+        assertEquals(1, reloaded.size());
+        FileInfo cached = reloaded.createFileInfo(file);
+        assertEquals(original, cached);
+        assertEquals(original.getSize(), cached.getSize());
+        assertTrue(cached.isFile());
+    }
+
+    /**
+     * Tests that flushing appends the changes to the store file, and that removed entries stay removed when the cache
+     * is read back.
+     */
+    @Test
+    public void testFlushAppendsChanges() throws IOException {
+        Path other = tmpfolder.newFile("other.txt").toPath().toRealPath();
+        FixityCache cache = new FixityCache(storeFile, 10);
+        cache.createFileInfo(file);
+        cache.flush();
+        byte[] journal = Files.readAllBytes(storeFile.toPath());
+
+        cache.createFileInfo(other);
+        cache.invalidate(file);
+        cache.flush();
+        byte[] appended = Files.readAllBytes(storeFile.toPath());
+        assertTrue(appended.length > journal.length);
+        assertArrayEquals(journal, Arrays.copyOf(appended, journal.length));
+
+        FixityCache reloaded = new FixityCache(storeFile, 10);
+        assertEquals(1, reloaded.size());
+        cache.flush();
+        assertEquals(appended.length, storeFile.length());
+    }
+
+    /**
+     * Tests that the store file is compacted rather than growing without bound as the same file keeps changing.
+     */
+    @Test
+    public void testStoreFileIsCompacted() throws IOException {
+        FixityCache cache = new FixityCache(storeFile, 10);
+        cache.createFileInfo(file);
+        cache.flush();
+        long entryLength = storeFile.length();
+
+        for (int i = 0; i < 1000; i++) {
+            cache.invalidate(file);
+            cache.flush();
+            cache.createFileInfo(file);
+            cache.flush();
+        }
+
+        assertTrue("Store file grew to " + storeFile.length() + " bytes", storeFile.length() < 1100 * entryLength);
+        assertEquals(1, new FixityCache(storeFile, 10).size());
+    }
+
+    /**
+     * Tests that a cache is only configured by system properties when they name its store file.
+     */
+    @Test
+    public void testFromSystemProperties() {
+        String original = System.getProperty(FixityCache.STORE_FILE_PROPERTY);
+        try {
+            System.clearProperty(FixityCache.STORE_FILE_PROPERTY);
+            assertNull(FixityCache.fromSystemProperties());
+
+            System.setProperty(FixityCache.STORE_FILE_PROPERTY, storeFile.getPath());
+            FixityCache cache = FixityCache.fromSystemProperties();
+            assertNotNull(cache);
+            assertEquals(0, cache.size());
+            assertFalse(storeFile.exists());
+        } finally {
+            if (original != null) {
+                System.setProperty(FixityCache.STORE_FILE_PROPERTY, original);
+            } else {
+                System.clearProperty(FixityCache.STORE_FILE_PROPERTY);
+            }
+        }
+    }
+
+    /**
+     * Tests that cached information is used while the size and modification time of the file are unchanged, by
+     * changing the content while keeping both the same.
+     */
+    @Test
+    public void testUnchangedFileIsNotReadAgain() throws IOException {
+        FixityCache cache = new FixityCache(storeFile, 10);
+        FileInfo original = cache.createFileInfo(file);
+
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, "Modified content".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, modified);
+
+        assertEquals(original.getChecksum(FileInfo.Algorithm.MD5), cache.createFileInfo(file).getChecksum(FileInfo.Algorithm.MD5));
+
+        cache.invalidate(file);
+        assertEquals(0, cache.size());
+        assertNotEquals(original.getChecksum(FileInfo.Algorithm.MD5), cache.createFileInfo(file).getChecksum(FileInfo.Algorithm.MD5));
+    }
+
+    /**
+     * Tests that a file whose size or modification time changed is read again.
+     */
+    @Test
+    public void testChangedFileIsReadAgain() throws IOException {
+        FixityCache cache = new FixityCache(storeFile, 10);
+        FileInfo original = cache.createFileInfo(file);
+
+        Files.write(file, "Content that is longer than before".getBytes(StandardCharsets.UTF_8));
+
+        FileInfo updated = cache.createFileInfo(file);
+        assertNotEquals(original.getChecksum(FileInfo.Algorithm.SHA1), updated.getChecksum(FileInfo.Algorithm.SHA1));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Tests that the least recently used entries are evicted once the cache is full.
+     */
+    @Test
+    public void testEviction() throws IOException {
+        FixityCache cache = new FixityCache(storeFile, 2);
+        for (int i = 0; i < 5; i++) {
+            Path other = tmpfolder.newFile("other" + i + ".txt").toPath().toRealPath();
+            Files.write(other, ("Content " + i).getBytes(StandardCharsets.UTF_8));
+            cache.createFileInfo(other);
+        }
+        assertEquals(2, cache.size());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that a file only fingerprinted is cached and read back without checksums, and that the checksums of a file
+     * are kept when it is later only fingerprinted.
+     */
+    @Test
+    public void testFingerprintOnlyEntries() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        FixityCache cache = new FixityCache(storeFile, 10);
+        FileInfo fingerprinted = cache.createFileInfo(file, attrs, FormatScanPolicy.FULL_SCAN, false);
+        assertNull(fingerprinted.getChecksum(FileInfo.Algorithm.MD5));
+        assertNotNull(fingerprinted.getFingerprint());
+        assertEquals(1, cache.size());
+        cache.flush();
+
+        FixityCache reloaded = new FixityCache(storeFile, 10);
+        assertEquals(fingerprinted, reloaded.createFileInfo(file, attrs, FormatScanPolicy.FULL_SCAN, false));
+
+        // Checksums aren't known for the file yet, so it is read again for them, and they are kept with the fingerprint
+        FileInfo checksummed = reloaded.createFileInfo(file, attrs, FormatScanPolicy.FULL_SCAN, true);
+        assertNotNull(checksummed.getChecksum(FileInfo.Algorithm.MD5));
+        assertEquals(fingerprinted.getFingerprint(), checksummed.getFingerprint());
+        assertEquals(checksummed, reloaded.createFileInfo(file, attrs, FormatScanPolicy.FULL_SCAN, false));
+    }
+
+    /**
+     * Tests that directories are never cached.
+     */
+    @Test
+    public void testDirectoriesAreNotCached() throws IOException {
+        FixityCache cache = new FixityCache(storeFile, 10);
+        FileInfo info = cache.createFileInfo(tmpfolder.getRoot().toPath().toRealPath());
+        assertTrue(info.isDirectory());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that an unreadable store file results in an empty cache rather than an error.
+     */
+    @Test
+    public void testCorruptStoreFileIsIgnored() throws IOException {
+        storeFile.getParentFile().mkdirs();
+        Files.write(storeFile.toPath(), "not a cache".getBytes(StandardCharsets.UTF_8));
+
+        FixityCache cache = new FixityCache(storeFile, 10);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that a store file written in another format is treated as an empty cache, and is replaced by the next
+     * flush.
+     */
+    @Test
+    public void testStoreFileInOtherFormatIsIgnored() throws IOException {
+        storeFile.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(storeFile))) {
+            out.writeInt(0x44435346);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeInt(1);
+            out.writeUTF(file.toString());
+        }
+
+        FixityCache cache = new FixityCache(storeFile, 10);
+        assertEquals(0, cache.size());
+
+        cache.createFileInfo(file);
+        cache.flush();
+        assertEquals(1, new FixityCache(storeFile, 10).size());
+    }
+
+    /**
+     * Tests that formats detected with a bounded scan policy are detected again by a full scan, without the checksums
+     * being calculated again, and that formats from a full scan are reused by bounded scans.
+     */
+    @Test
+    public void testBoundedFormatsAreDetectedAgainByFullScan() throws IOException {
+        Path zipFile = tmpfolder.getRoot().toPath().toRealPath().resolve("archive.txt");
+        Files.copy(getClass().getResourceAsStream("/org/dataconservancy/packaging/tool/impl/fakebag.zip"), zipFile,
+                StandardCopyOption.REPLACE_EXISTING);
+        FormatScanPolicy trustTxt = new FormatScanPolicy(1024, Collections.singletonList("txt"));
+
+        FixityCache cache = new FixityCache(storeFile, 10);
+        FileInfo bounded = cache.createFileInfo(zipFile, trustTxt);
+        assertFalse(bounded.getFormats().contains("application/zip"));
+        assertEquals(bounded.getFormats(), cache.createFileInfo(zipFile, trustTxt).getFormats());
+
+        // Change the content without changing the size or modification time, so only cached checksums can match
+        FileTime modified = Files.getLastModifiedTime(zipFile);
+        byte[] content = Files.readAllBytes(zipFile);
+        content[content.length - 1]++;
+        Files.write(zipFile, content);
+        Files.setLastModifiedTime(zipFile, modified);
+
+        FileInfo full = cache.createFileInfo(zipFile, FormatScanPolicy.FULL_SCAN);
+        assertTrue(full.getFormats().contains("application/zip"));
+        assertEquals(bounded.getChecksum(FileInfo.Algorithm.MD5), full.getChecksum(FileInfo.Algorithm.MD5));
+
+        cache.flush();
+        FixityCache reloaded = new FixityCache(storeFile, 10);
+        assertEquals(full.getFormats(), reloaded.createFileInfo(zipFile, trustTxt).getFormats());
+    }
+
+    /**
+     * Tests that formats detected with a bounded scan policy are only reused by the same policy, and are detected again
+     * by a policy with a different scan window or different trusted extensions.
+     */
+    @Test
+    public void testBoundedFormatsAreOnlyReusedBySamePolicy() throws IOException {
+        Path zipFile = tmpfolder.getRoot().toPath().toRealPath().resolve("archive.txt");
+        Files.copy(getClass().getResourceAsStream("/org/dataconservancy/packaging/tool/impl/fakebag.zip"), zipFile,
+                StandardCopyOption.REPLACE_EXISTING);
+        FormatScanPolicy trustTxt = new FormatScanPolicy(1024, Collections.singletonList("txt"));
+        FormatScanPolicy trustNothing = new FormatScanPolicy(1024, Collections.<String>emptyList());
+        FormatScanPolicy largerWindow = new FormatScanPolicy(4096, Collections.singletonList("txt"));
+
+        FixityCache cache = new FixityCache(storeFile, 10);
+        FileInfo trusted = cache.createFileInfo(zipFile, trustTxt);
+        assertFalse(trusted.getFormats().contains("application/zip"));
+
+        assertEquals(trusted.getFormats(), cache.createFileInfo(zipFile, largerWindow).getFormats());
+
+        FileInfo untrusted = cache.createFileInfo(zipFile, trustNothing);
+        assertTrue(untrusted.getFormats().contains("application/zip"));
+        assertEquals(trusted.getChecksum(FileInfo.Algorithm.MD5), untrusted.getChecksum(FileInfo.Algorithm.MD5));
+        assertEquals(1, cache.size());
+        cache.flush();
+
+        // Spoil the zip signature without changing the size or modification time, so only cached formats can match
+        FileTime modified = Files.getLastModifiedTime(zipFile);
+        byte[] content = Files.readAllBytes(zipFile);
+        content[0] = 'X';
+        Files.write(zipFile, content);
+        Files.setLastModifiedTime(zipFile, modified);
+
+        FixityCache reloaded = new FixityCache(storeFile, 10);
+        assertEquals(untrusted.getFormats(), reloaded.createFileInfo(zipFile, trustNothing).getFormats());
+        assertEquals(trusted.getFormats(), reloaded.createFileInfo(zipFile, largerWindow).getFormats());
+    }
+}
@@ -24,6 +24,48 @@ public class GeneralParameterNames {
 	public static final String CHECKSUM_ALGORITHMS = "Checksum-Algs";
 	public static final String COMPRESSION_FORMAT = "Compression-Format";
 
+	/**
+	 * Parameter specifying the maximum number of files whose checksums are
+	 * calculated at the same time when generating a package.
+	 * <p>
+	 * Must be a positive integer. When not set, one file per available
+	 * processor is checksummed at a time; a value of 1 calculates checksums
+	 * one file after another.
+	 * </p>
+	 */
+	public static final String CHECKSUM_THREADS = "Checksum-Threads";
+
+	/**
+	 * Parameter which, when set to {@code true}, allows the checksums recorded
+	 * in the package tree to be used for the payload manifests.
+	 * <p>
+	 * A recorded checksum is only used if the size and last modified time of
+	 * the file are unchanged since the tree was built; otherwise the file is
+	 * checksummed as it is copied into the package, as it is when this
+	 * parameter is not set.
+	 * </p>
+	 */
+	public static final String TRUSTED_FIXITY = "Trusted-Fixity";
+
+	/**
+	 * Parameter specifying the number of bytes at the beginning and at the
+	 * end of each file that are searched for format signatures when the
+	 * package tree is built.
+	 * <p>
+	 * When not set, or negative, the whole of every file is scanned. Files
+	 * identified as containers, such as zip files, are always read as much
+	 * as is needed to identify them.
+	 * </p>
+	 */
+	public static final String FORMAT_SCAN_WINDOW = "Format-Scan-Window";
+
+	/**
+	 * Parameter listing the file extensions whose formats are trusted, so
+	 * files with them are identified by their extension alone, without
+	 * reading their content.
+	 */
+	public static final String FORMAT_TRUSTED_EXTENSIONS = "Format-Trusted-Extensions";
+
     /**
      * Parameter identifying the format used to serialized RDF-based resources in
      * the package.  Possible values are contained in {@code GeneralParameterNames#SERIALIZATION_FORMAT}.
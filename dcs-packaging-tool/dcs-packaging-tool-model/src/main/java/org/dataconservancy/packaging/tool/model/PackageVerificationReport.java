@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.packaging.tool.model;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of verifying the fixity of a package: how much of it was checked, and every problem that was found.
+ * A package is valid if no problems were found.
+ * <p>
+ * The report can be written as JSON using {@link #toJson()}, for tools which consume verification results.
+ * </p>
+ */
+public class PackageVerificationReport {
+
+    /**
+     * The kinds of problem which can be found when verifying a package.
+     */
+    public enum ProblemType {
+        /** The package has no bagit.txt, or no payload manifest. */
+        NOT_A_BAG,
+        /** A line of a manifest could not be parsed. */
+        MALFORMED_MANIFEST,
+        /** A manifest uses a checksum algorithm which is not supported. */
+        UNSUPPORTED_ALGORITHM,
+        /** A file listed in a manifest is not in the package. */
+        MISSING_FILE,
+        /** A payload file is not listed in a payload manifest. */
+        UNLISTED_FILE,
+        /** The checksum of a file is not the one listed in a manifest. */
+        CHECKSUM_MISMATCH,
+        /** The checksum of a file could not be calculated with the algorithm of a manifest. */
+        NOT_VERIFIED,
+        /** The Payload-Oxum in bag-info.txt does not match the payload. */
+        OXUM_MISMATCH
+    }
+
+    /**
+     * A single problem found in a package.
+     */
+    public static class Problem {
+        private final ProblemType type;
+        private final String path;
+        private final String algorithm;
+        private final String expected;
+        private final String actual;
+
+        public Problem(ProblemType type, String path, String algorithm, String expected, String actual) {
+            this.type = type;
+            this.path = path;
+            this.algorithm = algorithm;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        /**
+         * @return the kind of problem
+         */
+        public ProblemType getType() {
+            return type;
+        }
+
+        /**
+         * @return the path of the affected file relative to the bag, or null if the problem is not with a file
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the checksum algorithm involved, or null
+         */
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        /**
+         * @return the value the package says to expect, or null
+         */
+        public String getExpected() {
+            return expected;
+        }
+
+        /**
+         * @return the value that was found, or null
+         */
+        public String getActual() {
+            return actual;
+        }
+
+        @Override
+        public String toString() {
+            return type + ": " + path + (algorithm != null ? " (" + algorithm + ")" : "") +
+                    (expected != null || actual != null ? " expected <" + expected + "> but was <" + actual + ">" : "");
+        }
+    }
+
+    private final String packageLocation;
+    private long filesVerified;
+    private long bytesVerified;
+    private final List<Problem> problems = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param packageLocation the location of the package being verified
+     */
+    public PackageVerificationReport(String packageLocation) {
+        this.packageLocation = packageLocation;
+    }
+
+    /**
+     * @return the location of the package that was verified
+     */
+    public String getPackageLocation() {
+        return packageLocation;
+    }
+
+    /**
+     * @return true if no problems were found in the package
+     */
+    public boolean isValid() {
+        return problems.isEmpty();
+    }
+
+    /**
+     * @return the number of files whose checksums were calculated
+     */
+    public long getFilesVerified() {
+        return filesVerified;
+    }
+
+    public void setFilesVerified(long filesVerified) {
+        this.filesVerified = filesVerified;
+    }
+
+    /**
+     * @return the number of bytes read to calculate checksums
+     */
+    public long getBytesVerified() {
+        return bytesVerified;
+    }
+
+    public void setBytesVerified(long bytesVerified) {
+        this.bytesVerified = bytesVerified;
+    }
+
+    /**
+     * @return the problems found in the package
+     */
+    public List<Problem> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    /**
+     * Records a problem found in the package.
+     * @param type the kind of problem
+     * @param path the path of the affected file relative to the bag, or null
+     * @param algorithm the checksum algorithm involved, or null
+     * @param expected the value the package says to expect, or null
+     * @param actual the value that was found, or null
+     */
+    public void addProblem(ProblemType type, String path, String algorithm, String expected, String actual) {
+        problems.add(new Problem(type, path, algorithm, expected, actual));
+    }
+
+    /**
+     * @return the report as a JSON object
+     */
+    public String toJson() {
+        JSONArray problemsJson = new JSONArray();
+        synchronized (problems) {
+            for (Problem problem : problems) {
+                JSONObject problemJson = new JSONObject();
+                problemJson.put("type", problem.getType().name());
+                problemJson.put("path", orNull(problem.getPath()));
+                problemJson.put("algorithm", orNull(problem.getAlgorithm()));
+                problemJson.put("expected", orNull(problem.getExpected()));
+                problemJson.put("actual", orNull(problem.getActual()));
+                problemsJson.put(problemJson);
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("package", orNull(packageLocation));
+        json.put("valid", isValid());
+        json.put("filesVerified", filesVerified);
+        json.put("bytesVerified", bytesVerified);
+        json.put("problems", problemsJson);
+        return json.toString(2) + "\n";
+    }
+
+    private static Object orNull(String value) {
+        return value != null ? value : JSONObject.NULL;
+    }
+}
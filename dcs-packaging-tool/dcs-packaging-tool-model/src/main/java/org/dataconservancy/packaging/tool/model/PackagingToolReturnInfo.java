@@ -30,6 +30,7 @@ public enum PackagingToolReturnInfo {
                                 "with name ending in .xml"),
     CMD_LINE_CANT_ASSIGN_NODE_TYPES(7, "Unable to assign node types to tree"),
     CMD_LINE_CANT_TRANSFORM_TO_RDF(8, "Error transforming the tree's internal package model to RDF"),
+    CMD_LINE_PACKAGE_NOT_VERIFIED(9, "Commandline App: Package failed verification."),
 
     /* general exceptions used across the board */
     PKG_FILE_NOT_FOUND_EXCEPTION (100,"File not found"),
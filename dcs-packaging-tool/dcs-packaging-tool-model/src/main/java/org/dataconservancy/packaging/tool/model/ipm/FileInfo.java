@@ -3,18 +3,24 @@ package org.dataconservancy.packaging.tool.model.ipm;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.dataconservancy.dcs.model.DetectedFormat;
 import org.dataconservancy.dcs.util.ChecksumGeneratorVerifier;
 import org.dataconservancy.dcs.util.ContentDetectionService;
+import org.dataconservancy.dcs.util.FormatScanPolicy;
 
 /**
  * Information about a file or directory.
@@ -26,52 +32,141 @@ public class FileInfo {
         MD5
     }
 
-    private URI location;
+    // Flags for the file attributes
+    private static final byte HAS_ATTRIBUTES = 1;
+    private static final byte REGULAR_FILE = 2;
+    private static final byte DIRECTORY = 4;
+    private static final byte SYMBOLIC_LINK = 8;
+    private static final byte HAS_FINGERPRINT = 16;
+
+    // Marks a time that isn't known
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    // Formats repeat the same few PRONOM URIs and mime types, so each distinct value is kept once
+    private static final int MAX_DICTIONARY_SIZE = 10000;
+    private static final Map<String, String> FORMAT_DICTIONARY = new ConcurrentHashMap<>();
+
+    /*
+     * Trees can have millions of files, so the information is kept compactly. The location is split into the
+     * location of the parent directory, which is interned so it is shared by the directory's files, and the rest of
+     * the location, which is usually the name of the file. Checksums in lower case hex are kept as their digests, and
+     * the times are kept as milliseconds since the epoch.
+     */
+    private String locationBase;
+    private String locationName;
     private String name;
-    private List<String> formats;
-    private Map<Algorithm, String> checksums;
-    private FileInfoAttributes fileAttributes;
+    private String[] formats;
+    private Object[] checksums;
+    private byte flags;
+    private long size;
+    private long creationTime = NO_TIME;
+    private long lastModifiedTime = NO_TIME;
+    private Object fileKey;
+    private long fingerprint;
 
     /**
      * Default constructor that should be used in most cases. Will read the file at the path location and load the necessary file attributes.
      * @param path The path to the file.
      */
     public FileInfo(Path path) {
-        location = path.toUri();
+        this(path, FormatScanPolicy.FULL_SCAN);
+    }
+
+    /**
+     * Constructor which reads the file at the path location, detecting its formats as directed by the supplied policy.
+     * @param path The path to the file.
+     * @param formatScanPolicy The policy controlling how much of the file is read to detect its formats.
+     */
+    public FileInfo(Path path, FormatScanPolicy formatScanPolicy) {
+        this(path, readAttributes(path), formatScanPolicy);
+    }
+
+    /**
+     * Constructor which reads the file at the path location when its attributes have already been read, detecting its
+     * formats as directed by the supplied policy.
+     * @param path The path to the file.
+     * @param attributes The basic file attributes of the file, or null if they couldn't be read.
+     * @param formatScanPolicy The policy controlling how much of the file is read to detect its formats.
+     */
+    public FileInfo(Path path, BasicFileAttributes attributes, FormatScanPolicy formatScanPolicy) {
+        this(path, attributes, formatScanPolicy, true);
+    }
+
+    /**
+     * Constructor which reads the file at the path location when its attributes have already been read, computing the
+     * fingerprint of a file but leaving its checksums to be computed later if they aren't wanted yet.
+     * @param path The path to the file.
+     * @param attributes The basic file attributes of the file, or null if they couldn't be read.
+     * @param formatScanPolicy The policy controlling how much of the file is read to detect its formats.
+     * @param computeChecksums Whether to compute the MD5 and SHA1 checksums of a file as well as its fingerprint.
+     */
+    public FileInfo(Path path, BasicFileAttributes attributes, FormatScanPolicy formatScanPolicy, boolean computeChecksums) {
         name = path.getFileName().toString();
+        setLocation(path.toUri());
 
-        try {
-            fileAttributes = new FileInfoAttributes(Files.readAttributes(path, BasicFileAttributes.class));
-            if (fileAttributes.isRegularFile()) {
-                checksums = new HashMap<>();
-                formats = new ArrayList<>();
-
-                InputStream md5Fis = Files.newInputStream(path);
-                String md5Checksum = ChecksumGeneratorVerifier.generateMD5checksum(md5Fis);
-                checksums.put(Algorithm.MD5, md5Checksum);
-                md5Fis.close();
-
-                InputStream sha1Fis = Files.newInputStream(path);
-                String sha1Checksum = ChecksumGeneratorVerifier.generateSHA1checksum(sha1Fis);
-                checksums.put(Algorithm.SHA1, sha1Checksum);
-                sha1Fis.close();
-
-                List<DetectedFormat> fileFormats = ContentDetectionService.getInstance().detectFormats(path.toFile());
-                for (DetectedFormat format : fileFormats) {
-                    if (format.getId() != null && !format.getId().isEmpty()) {
-                        formats.add(createFormatURIString(format));
-                    }
+        if (attributes == null) {
+            return;
+        }
 
-                    if (format.getMimeType() != null && !format.getMimeType().isEmpty()) {
-                        formats.add(format.getMimeType());
+        try {
+            setAttributes(attributes);
+            if (isFile()) {
+                List<String> algorithms = computeChecksums ?
+                    Arrays.asList(ChecksumGeneratorVerifier.ALGORITHM_XXH64, ChecksumGeneratorVerifier.ALGORITHM_MD5,
+                                  ChecksumGeneratorVerifier.ALGORITHM_SHA1) :
+                    Collections.singletonList(ChecksumGeneratorVerifier.ALGORITHM_XXH64);
+
+                //The fingerprint and any checksums are calculated from a single read of the file
+                try (InputStream fis = Files.newInputStream(path)) {
+                    Map<String, byte[]> fileChecksums = ChecksumGeneratorVerifier.generateChecksumsAsBytes(algorithms, fis);
+                    fingerprint = ByteBuffer.wrap(fileChecksums.get(ChecksumGeneratorVerifier.ALGORITHM_XXH64)).getLong();
+                    flags |= HAS_FINGERPRINT;
+                    if (computeChecksums) {
+                        checksums = new Object[Algorithm.values().length];
+                        checksums[Algorithm.MD5.ordinal()] = fileChecksums.get(ChecksumGeneratorVerifier.ALGORITHM_MD5);
+                        checksums[Algorithm.SHA1.ordinal()] = fileChecksums.get(ChecksumGeneratorVerifier.ALGORITHM_SHA1);
                     }
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
                 }
+
+                setFormats(detectFormats(path, formatScanPolicy));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Detects the formats of a file, as they are recorded by a FileInfo.
+     * @param path The path to the file.
+     * @param formatScanPolicy The policy controlling how much of the file is read to detect its formats.
+     * @return The PRONOM format URIs and mime types of the file.
+     */
+    public static List<String> detectFormats(Path path, FormatScanPolicy formatScanPolicy) {
+        List<String> formats = new ArrayList<>();
+        List<DetectedFormat> fileFormats = ContentDetectionService.getInstance().detectFormats(path.toFile(), formatScanPolicy);
+        for (DetectedFormat format : fileFormats) {
+            if (format.getId() != null && !format.getId().isEmpty()) {
+                formats.add(createFormatURIString(format));
+            }
+
+            if (format.getMimeType() != null && !format.getMimeType().isEmpty()) {
+                formats.add(format.getMimeType());
+            }
+        }
+        return formats;
+    }
+
     /**
      * Constructor to use when loading existing file information.
      * @param path The path of the File info
@@ -80,12 +175,12 @@ public class FileInfo {
      * @param checksums The checksum map
      */
     public FileInfo(Path path, BasicFileAttributes fileAttributes, List<String> formats, Map<Algorithm, String> checksums) {
-        location = path.toUri();
         name = path.getFileName().toString();
+        setLocation(path.toUri());
 
-        this.fileAttributes = new FileInfoAttributes(fileAttributes);
-        this.formats = formats;
-        this.checksums = checksums;
+        setAttributes(fileAttributes);
+        setFormats(formats);
+        setChecksums(checksums);
     }
 
     /**
@@ -95,38 +190,79 @@ public class FileInfo {
      * @param name The name of the File System Entity referenced by this FileInfo object.
      */
     public FileInfo(URI location, String name) {
-        this.location = location;
         this.name = name;
+        setLocation(location);
     }
 
     public FileInfo(URI location, String name, FileTime creationTime, FileTime modifiedTime, boolean isFile, boolean isDirectory, long size,
                     List<String> formats, Map<Algorithm, String> checksums) {
-        this.location = location;
         this.name = name;
+        setLocation(location);
 
-        this.formats = formats;
-        this.checksums = checksums;
+        setFormats(formats);
+        setChecksums(checksums);
 
-        fileAttributes = new FileInfoAttributes();
-        fileAttributes.setCreationTime(creationTime);
-        fileAttributes.setLastModifiedTime(modifiedTime);
-        fileAttributes.setIsRegularFile(isFile);
-        fileAttributes.setIsDirectory(isDirectory);
-        fileAttributes.setSize(size);
+        flags |= HAS_ATTRIBUTES;
+        setCreationTime(creationTime);
+        setLastModifiedTime(modifiedTime);
+        setIsFile(isFile);
+        setIsDirectory(isDirectory);
+        setSize(size);
+    }
+
+    private void setAttributes(BasicFileAttributes attributes) {
+        flags = (byte) (HAS_ATTRIBUTES | (flags & HAS_FINGERPRINT));
+        setFlag(REGULAR_FILE, attributes.isRegularFile());
+        setFlag(DIRECTORY, attributes.isDirectory());
+        setFlag(SYMBOLIC_LINK, attributes.isSymbolicLink());
+        size = attributes.size();
+        creationTime = toMillis(attributes.creationTime());
+        lastModifiedTime = toMillis(attributes.lastModifiedTime());
+        fileKey = attributes.fileKey();
+    }
+
+    private void setFlag(byte flag, boolean value) {
+        flags = (byte) (value ? flags | flag | HAS_ATTRIBUTES : (flags & ~flag) | HAS_ATTRIBUTES);
+    }
+
+    private boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    private static long toMillis(FileTime time) {
+        return time != null ? time.toMillis() : NO_TIME;
+    }
+
+    private static FileTime toFileTime(long millis) {
+        return millis != NO_TIME ? FileTime.fromMillis(millis) : null;
     }
 
     /**
      * @return Location of file or directory.
      */
     public URI getLocation() {
-        return location;
+        if (locationName == null) {
+            return null;
+        }
+        return URI.create(locationBase.isEmpty() ? locationName : locationBase + locationName);
     }
 
     /**
      * @param location the location of a file or directory.
      */
     public void setLocation(URI location) {
-        this.location = location;
+        if (location == null) {
+            locationBase = null;
+            locationName = null;
+            return;
+        }
+
+        String uri = location.toString();
+        int slash = uri.lastIndexOf('/', uri.length() - 2);
+        String rest = uri.substring(slash + 1);
+
+        locationBase = slash >= 0 ? uri.substring(0, slash + 1).intern() : "";
+        locationName = rest.equals(name) ? name : rest;
     }
 
     /**
@@ -136,7 +272,8 @@ public class FileInfo {
     public String getChecksum(Algorithm algorithm) {
         String value = null;
         if (checksums != null) {
-            value = checksums.get(algorithm);
+            Object checksum = checksums[algorithm.ordinal()];
+            value = checksum instanceof byte[] ? ChecksumGeneratorVerifier.toHexString((byte[]) checksum) : (String) checksum;
         }
         return value;
     }
@@ -148,10 +285,10 @@ public class FileInfo {
      */
     public void addChecksum(Algorithm algorithm, String value) {
         if (checksums == null) {
-            checksums = new HashMap<>();
+            checksums = new Object[Algorithm.values().length];
         }
 
-        checksums.put(algorithm, value);
+        checksums[algorithm.ordinal()] = encodeChecksum(value);
     }
 
     /**
@@ -159,7 +296,62 @@ public class FileInfo {
      * @param checksumMap The map of checksums for the FileInfo object.
      */
     public void setChecksums(Map<Algorithm, String> checksumMap) {
-        this.checksums = checksumMap;
+        if (checksumMap == null) {
+            checksums = null;
+            return;
+        }
+
+        checksums = new Object[Algorithm.values().length];
+        for (Map.Entry<Algorithm, String> checksum : checksumMap.entrySet()) {
+            checksums[checksum.getKey().ordinal()] = encodeChecksum(checksum.getValue());
+        }
+    }
+
+    /*
+     * Keeps a lower case hex checksum as its digest, and any other value as it is given.
+     */
+    private static Object encodeChecksum(String value) {
+        if (value == null || value.isEmpty() || value.length() % 2 != 0) {
+            return value;
+        }
+
+        byte[] digest = new byte[value.length() / 2];
+        for (int i = 0; i < digest.length; i++) {
+            int high = Character.digit(value.charAt(2 * i), 16);
+            int low = Character.digit(value.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0 || Character.isUpperCase(value.charAt(2 * i)) || Character.isUpperCase(value.charAt(2 * i + 1))) {
+                return value;
+            }
+            digest[i] = (byte) ((high << 4) | low);
+        }
+        return digest;
+    }
+
+    /**
+     * @return The xxHash64 fingerprint of the file's content as 16 hex digits, or null if it isn't known. Unlike the
+     * checksums, the fingerprint is only meant for telling whether the content of a file has changed.
+     */
+    public String getFingerprint() {
+        if (!hasFlag(HAS_FINGERPRINT)) {
+            return null;
+        }
+
+        String hex = Long.toHexString(fingerprint);
+        return hex.length() < 16 ? "0000000000000000".substring(hex.length()) + hex : hex;
+    }
+
+    /**
+     * Sets the fingerprint of the file's content.
+     * @param fingerprint The xxHash64 fingerprint as hex digits, or null if it isn't known.
+     */
+    public void setFingerprint(String fingerprint) {
+        if (fingerprint == null) {
+            flags &= ~HAS_FINGERPRINT;
+            this.fingerprint = 0;
+        } else {
+            this.fingerprint = Long.parseUnsignedLong(fingerprint, 16);
+            flags |= HAS_FINGERPRINT;
+        }
     }
 
     /**
@@ -173,7 +365,7 @@ public class FileInfo {
      * @return List of formats for the file.
      */
     public List<String> getFormats() {
-        return formats;
+        return formats != null ? Collections.unmodifiableList(Arrays.asList(formats)) : null;
     }
 
     /**
@@ -182,10 +374,11 @@ public class FileInfo {
      */
     public void addFormat(String format) {
         if (formats == null) {
-            formats = new ArrayList<>();
+            formats = new String[] {internFormat(format)};
+        } else {
+            formats = Arrays.copyOf(formats, formats.length + 1);
+            formats[formats.length - 1] = internFormat(format);
         }
-
-        formats.add(format);
     }
 
     /**
@@ -193,19 +386,38 @@ public class FileInfo {
      * @param formats The list of formats to add.
      */
     public void setFormats(List<String> formats) {
-        this.formats = formats;
+        if (formats == null) {
+            this.formats = null;
+            return;
+        }
+
+        this.formats = new String[formats.size()];
+        for (int i = 0; i < this.formats.length; i++) {
+            this.formats[i] = internFormat(formats.get(i));
+        }
+    }
+
+    private static String internFormat(String format) {
+        if (format == null) {
+            return null;
+        }
+
+        String interned = FORMAT_DICTIONARY.get(format);
+        if (interned == null) {
+            interned = format;
+            if (FORMAT_DICTIONARY.size() < MAX_DICTIONARY_SIZE) {
+                String existing = FORMAT_DICTIONARY.putIfAbsent(format, format);
+                interned = existing != null ? existing : format;
+            }
+        }
+        return interned;
     }
 
     /**
      * @return Size of the file or -1 if directory.
      */
     public long getSize() {
-        long size = -1;
-        if (fileAttributes != null) {
-            size = fileAttributes.size();
-        }
-
-        return size;
+        return hasFlag(HAS_ATTRIBUTES) ? size : -1;
     }
 
     /**
@@ -213,23 +425,15 @@ public class FileInfo {
      * @param size The size in bytes of the file backing this FileInfo object.
      */
     public void setSize(long size) {
-        if (fileAttributes == null) {
-            fileAttributes = new FileInfoAttributes();
-        }
-
-        fileAttributes.setSize(size);
+        flags |= HAS_ATTRIBUTES;
+        this.size = size;
     }
 
     /**
      * @return Whether or not a file is being described.
      */
     public boolean isFile() {
-        boolean isFile = false;
-        if (fileAttributes != null) {
-            isFile = fileAttributes.isRegularFile();
-        }
-
-        return isFile;
+        return hasFlag(REGULAR_FILE);
     }
 
     /**
@@ -237,23 +441,14 @@ public class FileInfo {
      * @param isFile True if the FileInfo object describes a file, false otherwise.
      */
     public void setIsFile(boolean isFile) {
-        if (fileAttributes == null) {
-            fileAttributes = new FileInfoAttributes();
-        }
-
-        fileAttributes.setIsRegularFile(isFile);
+        setFlag(REGULAR_FILE, isFile);
     }
 
     /**
      * @return Whether or not a directory is being described.
      */
     public boolean isDirectory() {
-        boolean isDirectory = false;
-        if (fileAttributes != null) {
-            isDirectory = fileAttributes.isDirectory();
-        }
-
-        return isDirectory;
+        return hasFlag(DIRECTORY);
     }
 
     /**
@@ -261,23 +456,14 @@ public class FileInfo {
      * @param isDirectory True if the FileInfo object describes a directory, false otherwise.
      */
     public void setIsDirectory(boolean isDirectory) {
-        if (fileAttributes == null) {
-            fileAttributes = new FileInfoAttributes();
-        }
-
-        fileAttributes.setIsDirectory(isDirectory);
+        setFlag(DIRECTORY, isDirectory);
     }
 
     /**
      * @return Creation time of file.
      */
     public FileTime getCreationTime() {
-        FileTime creationTime = null;
-        if (fileAttributes != null) {
-            creationTime = fileAttributes.creationTime();
-        }
-
-        return creationTime;
+        return toFileTime(creationTime);
     }
 
     /**
@@ -285,23 +471,15 @@ public class FileInfo {
      * @param creationTime The FileTime representing when this file was created.
      */
     public void setCreationTime(FileTime creationTime) {
-        if (fileAttributes == null) {
-            fileAttributes = new FileInfoAttributes();
-        }
-
-        fileAttributes.setCreationTime(creationTime);
+        flags |= HAS_ATTRIBUTES;
+        this.creationTime = toMillis(creationTime);
     }
 
     /**
      * @return Last modification time of file.
      */
     public FileTime getLastModifiedTime() {
-        FileTime modifiedTime = null;
-        if (fileAttributes != null) {
-            modifiedTime = fileAttributes.lastModifiedTime();
-        }
-
-        return modifiedTime;
+        return toFileTime(lastModifiedTime);
     }
 
     /**
@@ -309,11 +487,30 @@ public class FileInfo {
      * @param modifiedTime The FileTime representing when this file was last modified.
      */
     public void setLastModifiedTime(FileTime modifiedTime) {
-        if (fileAttributes == null) {
-            fileAttributes = new FileInfoAttributes();
-        }
+        flags |= HAS_ATTRIBUTES;
+        this.lastModifiedTime = toMillis(modifiedTime);
+    }
 
-        fileAttributes.setLastModifiedTime(modifiedTime);
+    /**
+     * @return The key uniquely identifying the file on its file system, or null if it isn't known. The key is only
+     * known when the attributes were read from the file system, it isn't kept when file information is loaded.
+     */
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    /*
+     * Whether any file attributes have been set, as opposed to only a location and name.
+     */
+    boolean hasAttributes() {
+        return hasFlag(HAS_ATTRIBUTES);
+    }
+
+    /*
+     * Whether checksums have been set, even if there is none for an algorithm.
+     */
+    boolean hasChecksums() {
+        return checksums != null;
     }
 
     /**
@@ -322,7 +519,7 @@ public class FileInfo {
      * @param format the DetectedFormat object
      * @return a formatURI string with qualifying namespace
      */
-    private String createFormatURIString(DetectedFormat format) {
+    private static String createFormatURIString(DetectedFormat format) {
         String formatString = "";
         if (format.getId() != null && !format.getId().isEmpty()) {
             formatString = "info:pronom/" + format.getId();
@@ -342,20 +539,25 @@ public class FileInfo {
 
         FileInfo fileInfo = (FileInfo) o;
 
-        if (location != null ? !location.equals(fileInfo.location) :
-            fileInfo.location != null) {
+        if (locationBase != null ? !locationBase.equals(fileInfo.locationBase) :
+            fileInfo.locationBase != null) {
+            return false;
+        }
+        if (locationName != null ? !locationName.equals(fileInfo.locationName) :
+            fileInfo.locationName != null) {
             return false;
         }
         if (name != null ? !name.equals(fileInfo.name) :
             fileInfo.name != null) {
             return false;
         }
-        if (formats != null ? !formats.equals(fileInfo.formats) :
-            fileInfo.formats != null) {
+        if (!Arrays.equals(formats, fileInfo.formats)) {
+            return false;
+        }
+        if (!Arrays.deepEquals(checksums, fileInfo.checksums)) {
             return false;
         }
-        if (checksums != null ? !checksums.equals(fileInfo.checksums) :
-            fileInfo.checksums != null) {
+        if (hasFlag(HAS_FINGERPRINT) != fileInfo.hasFlag(HAS_FINGERPRINT) || fingerprint != fileInfo.fingerprint) {
             return false;
         }
 
@@ -365,163 +567,34 @@ public class FileInfo {
 
     @Override
     public int hashCode() {
-        int result = location != null ? location.hashCode() : 0;
+        int result = locationBase != null ? locationBase.hashCode() : 0;
+        result = 31 * result + (locationName != null ? locationName.hashCode() : 0);
         result = 31 * result + (name != null ? name.hashCode() : 0);
-        result = 31 * result + (formats != null ? formats.hashCode() : 0);
-        result = 31 * result + (checksums != null ? checksums.hashCode() : 0);
+        result = 31 * result + Arrays.hashCode(formats);
+        result = 31 * result + Arrays.deepHashCode(checksums);
+        result = 31 * result + Long.hashCode(fingerprint);
         return result;
     }
-    
-    
 
     @Override
     public String toString() {
-        return "FileInfo [location=" + location + ", name=" + name + ", formats=" + formats + ", checksums=" + checksums
-                + ", fileAttributes=" + fileAttributes + "]";
+        return "FileInfo [location=" + getLocation() + ", name=" + name + ", formats=" + getFormats() + ", checksums="
+                + checksumsToString() + ", fingerprint=" + getFingerprint() + ", isRegularFile=" + isFile() + ", isDirectory=" + isDirectory()
+                + ", isSymbolicLink=" + hasFlag(SYMBOLIC_LINK) + ", size=" + getSize() + ", creationTime="
+                + getCreationTime() + ", lastModifiedTime=" + getLastModifiedTime() + "]";
     }
 
-
-    private class FileInfoAttributes implements BasicFileAttributes {
-        private FileTime lastModifiedTime;
-        private FileTime creationTime;
-        private boolean isRegularFile;
-        private boolean isDirectory;
-        private boolean isSymbolicLink;
-        private long size;
-
-        public FileInfoAttributes() {
-
-        }
-
-        public FileInfoAttributes(BasicFileAttributes superAttributes) {
-            lastModifiedTime = superAttributes.lastModifiedTime();
-            creationTime = superAttributes.creationTime();
-            isRegularFile = superAttributes.isRegularFile();
-            isDirectory = superAttributes.isDirectory();
-            isSymbolicLink = superAttributes.isSymbolicLink();
-            size = superAttributes.size();
-        }
-
-        @Override
-        public FileTime lastModifiedTime() {
-            return lastModifiedTime;
-        }
-
-        public void setLastModifiedTime(FileTime lastModifiedTime) {
-            this.lastModifiedTime = lastModifiedTime;
-        }
-
-        @Override
-        public FileTime lastAccessTime() {
-            return null;
-        }
-
-        @Override
-        public FileTime creationTime() {
-            return creationTime;
-        }
-
-        public void setCreationTime(FileTime creationTime) {
-            this.creationTime = creationTime;
-        }
-
-        @Override
-        public boolean isRegularFile() {
-            return isRegularFile;
-        }
-
-        public void setIsRegularFile(boolean regularFile) {
-            this.isRegularFile = regularFile;
-        }
-
-        @Override
-        public boolean isDirectory() {
-            return isDirectory;
-        }
-
-        public void setIsDirectory(boolean isDirectory) {
-            this.isDirectory = isDirectory;
-        }
-
-        @Override
-        public boolean isSymbolicLink() {
-            return isSymbolicLink;
-        }
-
-        public void setIsSymbolicLink(boolean symbolicLink) {
-            this.isSymbolicLink = symbolicLink;
-        }
-
-        @Override
-        public boolean isOther() {
-            return false;
-        }
-
-        @Override
-        public long size() {
-            return size;
-        }
-
-        public void setSize(long size) {
-            this.size = size;
-        }
-
-        @Override
-        public Object fileKey() {
+    private String checksumsToString() {
+        if (checksums == null) {
             return null;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (!(o instanceof FileInfoAttributes)) {
-                return false;
+        Map<Algorithm, String> values = new EnumMap<>(Algorithm.class);
+        for (Algorithm algorithm : Algorithm.values()) {
+            if (checksums[algorithm.ordinal()] != null) {
+                values.put(algorithm, getChecksum(algorithm));
             }
-
-            FileInfoAttributes that = (FileInfoAttributes) o;
-
-            if (isRegularFile != that.isRegularFile) {
-                return false;
-            }
-            if (isDirectory != that.isDirectory) {
-                return false;
-            }
-            if (isSymbolicLink != that.isSymbolicLink) {
-                return false;
-            }
-            if (size != that.size) {
-                return false;
-            }
-            if (lastModifiedTime !=
-                null ? !lastModifiedTime.equals(that.lastModifiedTime) :
-                that.lastModifiedTime != null) {
-                return false;
-            }
-            return !(
-                creationTime != null ? !creationTime.equals(that.creationTime) :
-                    that.creationTime != null);
-        }
-
-        @Override
-        public int hashCode() {
-            int result =
-                lastModifiedTime != null ? lastModifiedTime.hashCode() : 0;
-            result = 31 * result +
-                (creationTime != null ? creationTime.hashCode() : 0);
-            result = 31 * result + (isRegularFile ? 1 : 0);
-            result = 31 * result + (isDirectory ? 1 : 0);
-            result = 31 * result + (isSymbolicLink ? 1 : 0);
-            result = 31 * result + (int) (size ^ (size >>> 32));
-            return result;
-        }
-        
-        @Override
-        public String toString() {
-            return "FileInfoAttributes [lastModifiedTime=" + lastModifiedTime + ", creationTime=" + creationTime
-                    + ", isRegularFile=" + isRegularFile + ", isDirectory=" + isDirectory + ", isSymbolicLink="
-                    + isSymbolicLink + ", size=" + size + "]";
         }
+        return values.toString();
     }
 }
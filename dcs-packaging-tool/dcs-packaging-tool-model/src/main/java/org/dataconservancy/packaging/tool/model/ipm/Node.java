@@ -5,8 +5,11 @@ import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountedCompleter;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A node in the PTG tree which the user views and manipulates. The tree is a
@@ -24,11 +27,15 @@ public class Node {
     private Node parent;
     private List<Node> children;
     private URI domainObject;
-    private FileInfo fileInfo;
+    // Volatile so that file information enriched in the background is seen whole by other threads
+    private volatile FileInfo fileInfo;
     private NodeType nodeType;
     private boolean ignored;
     private List<NodeType> subTypes;
 
+    // Index of the tree the node is in, shared by every node of the tree once it has been asked for
+    NodeIndex index;
+
     /**
      * Identifier is required to be unique for each node.
      * @param identifier A unique identifier representing the node
@@ -51,6 +58,9 @@ public class Node {
      */
     public void setIdentifier(URI id) {
         this.identifier = id;
+        if (index != null) {
+            index.reindex(this);
+        }
     }
 
     /**
@@ -83,11 +93,13 @@ public class Node {
      */
     public void addChild(Node node) {
         if (children == null) {
-            children = new ArrayList<>();
+            //Most directories have few children, so the list starts small rather than at the default capacity
+            children = new ArrayList<>(1);
         }
 
         children.add(node);
         node.setParent(this);
+        attach(node);
     }
 
     /**
@@ -96,8 +108,8 @@ public class Node {
      * @param node The child node to remove from the node.
      */
     public void removeChild(Node node) {
-        if (children != null) {
-            children.remove(node);
+        if (children != null && children.remove(node)) {
+            detach(node);
         }
         
         node.setParent(null);
@@ -108,7 +120,15 @@ public class Node {
      * @param children The children to add for the node.
      */
     public void setChildren(List<Node> children) {
+        if (this.children != null) {
+            this.children.forEach(this::detach);
+        }
+
         this.children = children;
+
+        if (children != null) {
+            children.forEach(this::attach);
+        }
     }
 
     /**
@@ -125,6 +145,9 @@ public class Node {
      */
     public void setDomainObject(URI id) {
         this.domainObject = id;
+        if (index != null) {
+            index.reindex(this);
+        }
     }
 
     /**
@@ -140,9 +163,19 @@ public class Node {
      * @param info The FileInfo associated with this node.
      */
    public void setFileInfo(FileInfo info) {
+       FileInfo old = fileInfo;
        this.fileInfo = info;
+       // Replacing the file information with new information for the same location, as is done when it is enriched
+       // in the background, leaves the index alone
+       if (index != null && (info == old || !Objects.equals(location(old), location(info)))) {
+           index.reindex(this);
+       }
    }
 
+    private static URI location(FileInfo info) {
+        return info != null ? info.getLocation() : null;
+    }
+
     /**
      * @return The primary(structural) type of the node.
      */
@@ -165,7 +198,7 @@ public class Node {
      */
     public void addSubNodeType(NodeType subNodeType) {
         if (subTypes == null) {
-            subTypes = new ArrayList<>();
+            subTypes = new ArrayList<>(1);
         }
 
         subTypes.add(subNodeType);
@@ -207,6 +240,7 @@ public class Node {
      * @return Whether or not the node is a leaf.
      */
     public boolean isLeaf() {
+        List<Node> children = getChildren();
         return children == null || children.isEmpty();
     }
     
@@ -214,6 +248,7 @@ public class Node {
      * @return Whether or not the node has children.
      */
     public boolean hasChildren() {
+        List<Node> children = getChildren();
         return children != null && !children.isEmpty();
     }
 
@@ -221,49 +256,95 @@ public class Node {
      * @return Whether or not node is the root of the tree.
      */
     public boolean isRoot() {
-        return parent == null;
+        return getParent() == null;
+    }
+
+    /**
+     * Answers the index of the tree this node is in, creating it if the tree has not been indexed yet. The index is
+     * kept up to date as the tree is changed.
+     *
+     * @return The index of the tree.
+     */
+    public NodeIndex getIndex() {
+        if (index == null) {
+            Node root = this;
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+            new NodeIndex().addTree(root);
+
+            //The parent of a node may be set without the node being added to its children
+            if (index == null) {
+                new NodeIndex().addTree(this);
+            }
+        }
+        return index;
+    }
+
+    /*
+     * Add a new child, and its descendants, to the index of this node's tree.
+     */
+    void attach(Node child) {
+        if (index != null) {
+            if (child.index != index) {
+                index.addTree(child);
+            }
+        } else if (child.index != null) {
+            child.index.removeTree(child);
+        }
+    }
+
+    /*
+     * Remove a child that is no longer in the tree, and its descendants, from the index of this node's tree.
+     */
+    void detach(Node child) {
+        if (index != null && child.index == index) {
+            index.removeTree(child);
+        }
     }
 
     /**
-     * Do a pre-order tree traversal.
+     * Do a pre-order tree traversal. The children of each node are read once the consumer has accepted the node, and
+     * the traversal is not recursive, so trees of any depth can be walked.
      * 
      * @param consumer The consumer of the walk.
      */
     public void walk(Consumer<Node> consumer) {
-        consumer.accept(this);
-        
-        if (children != null) {
-            children.forEach(child -> child.walk(consumer));
-        }
+        new NodeSpliterator(this).forEachRemaining(consumer);
     }
 
     /**
-     * Answers a {@code Stream} of {@code Node} as a pre-order tree traversal.
+     * Visit every node of the tree, visiting subtrees in parallel. Each node is visited before its descendants, but
+     * otherwise nodes are visited in no particular order, so the consumer must be safe to call from several threads.
+     * The tree must not be changed while it is being walked, other than by the consumer changing the node it was
+     * given.
+     *
+     * @param consumer The consumer of the walk.
+     */
+    public void parallelWalk(Consumer<Node> consumer) {
+        new WalkTask(null, this, null, consumer).invoke();
+    }
+
+    /**
+     * Answers a {@code Stream} of {@code Node} as a pre-order tree traversal. Nodes are read as the stream is
+     * consumed, rather than collected beforehand.
      *
      * @return {@code Stream} of {@code Node}
      */
     public Stream<Node> stream() {
-        NodeStreamBuilder builder = new NodeStreamBuilder();
-        return buildStream(builder, this).build();
+        return StreamSupport.stream(new NodeSpliterator(this), false);
     }
 
     /**
-     * Recursively invoked to build the {@code Stream}.  The caller will have to transition
-     * the state of the builder by calling {@link Stream.Builder#build()}.
+     * Answers a parallel {@code Stream} of {@code Node} which is split by subtree. The tree must not be changed while
+     * the stream is being consumed.
      *
-     * @param builder the {@code Stream.Builder}
-     * @param n the {@code Node}
-     * @return the {@code Stream.Builder} with all the {@code Node} instances
+     * @return parallel {@code Stream} of {@code Node}
      */
-    private Stream.Builder<Node> buildStream(Stream.Builder<Node> builder, Node n) {
-        builder.add(n);
-        if (children != null) {
-            children.forEach(child -> child.buildStream(builder, child));
-        }
-
-        return builder;
+    public Stream<Node> parallelStream() {
+        return StreamSupport.stream(new NodeSpliterator(this), true);
     }
-    
+
     /**
      * Remove all node types set on node.
      */
@@ -284,8 +365,9 @@ public class Node {
 
         Node node = (Node) o;
 
-        if (identifier != null ? !identifier.equals(node.identifier) :
-            node.identifier != null) {
+        URI identifier = getIdentifier();
+        if (identifier != null ? !identifier.equals(node.getIdentifier()) :
+            node.getIdentifier() != null) {
             return false;
         }
 
@@ -294,11 +376,69 @@ public class Node {
 
     @Override
     public int hashCode() {
+        URI identifier = getIdentifier();
         return identifier != null ? identifier.hashCode() : 0;
     }
 
+    /*
+     * Visits a subtree, or a batch of leaves, forking a task for each child subtree once the node has been visited.
+     */
+    private static final class WalkTask extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        // Leaves are visited in batches rather than each in its own task
+        private static final int LEAF_BATCH = 256;
+
+        private final Node node;
+        private final List<Node> leaves;
+        private final Consumer<Node> consumer;
+
+        private WalkTask(WalkTask parent, Node node, List<Node> leaves, Consumer<Node> consumer) {
+            super(parent);
+            this.node = node;
+            this.leaves = leaves;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void compute() {
+            if (leaves != null) {
+                leaves.forEach(consumer);
+            } else {
+                consumer.accept(node);
+
+                List<Node> children = node.getChildren();
+                if (children != null) {
+                    List<Node> batch = new ArrayList<>();
+                    for (Node child : children) {
+                        if (child.hasChildren()) {
+                            forkChild(new WalkTask(this, child, null, consumer));
+                        } else {
+                            batch.add(child);
+                            if (batch.size() == LEAF_BATCH) {
+                                forkChild(new WalkTask(this, null, batch, consumer));
+                                batch = new ArrayList<>();
+                            }
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        forkChild(new WalkTask(this, null, batch, consumer));
+                    }
+                }
+            }
+
+            tryComplete();
+        }
+
+        private void forkChild(WalkTask task) {
+            addToPendingCount(1);
+            task.fork();
+        }
+    }
+
     @Override
     public String toString() {
-        return "Node [identifier=" + identifier + ", parent=" + (parent == null ? "null" : parent.getIdentifier()) + ", domainObject=" + domainObject + ", fileInfo=" + fileInfo + "]";
+        Node parent = getParent();
+        return "Node [identifier=" + getIdentifier() + ", parent=" + (parent == null ? "null" : parent.getIdentifier()) + ", domainObject=" + getDomainObject() + ", fileInfo=" + getFileInfo() + "]";
     }
 }
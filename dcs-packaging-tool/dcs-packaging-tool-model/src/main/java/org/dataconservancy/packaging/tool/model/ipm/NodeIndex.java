@@ -0,0 +1,192 @@
+package org.dataconservancy.packaging.tool.model.ipm;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An index of the nodes in a tree by their identifier, by the location of their file and by their domain object.
+ *
+ * The index of a tree is created the first time it is asked for with {@link Node#getIndex()}, and is then kept up to
+ * date as nodes are added and removed with {@link Node#addChild(Node)}, {@link Node#removeChild(Node)} and
+ * {@link Node#setChildren(List)}, and as their identifier, file information and domain object are set. Changes made
+ * in place, such as setting the location of a node's existing file information, are only picked up when the node is
+ * found under its old value; set the file information on the node again to index it under its new location.
+ *
+ * Like the tree itself, the index is not safe to use from several threads while the tree is being changed.
+ */
+public class NodeIndex {
+
+    private final Map<URI, Node> byIdentifier = new HashMap<>();
+    private final Map<URI, List<Node>> byLocation = new HashMap<>();
+    private final Map<URI, List<Node>> byDomainObject = new HashMap<>();
+
+    // The values each node was indexed under, which may since have changed
+    private final Map<Node, Keys> indexed = new IdentityHashMap<>();
+
+    /**
+     * @param identifier The identifier of a node.
+     * @return The node in the tree with the identifier, or null if there is none.
+     */
+    public Node getNode(URI identifier) {
+        Node node = byIdentifier.get(identifier);
+        if (node != null && !Objects.equals(identifier, node.getIdentifier())) {
+            reindex(node);
+            node = byIdentifier.get(identifier);
+        }
+        return node;
+    }
+
+    /**
+     * @param location The location of a file.
+     * @return A node in the tree for the file, or null if there is none.
+     */
+    public Node getNodeByLocation(URI location) {
+        Node node = first(byLocation, location);
+        if (node != null && !Objects.equals(location, location(node))) {
+            reindex(node);
+            node = first(byLocation, location);
+        }
+        return node;
+    }
+
+    /**
+     * @param domainObject The identifier of a domain object.
+     * @return A node in the tree for the domain object, or null if there is none.
+     */
+    public Node getNodeByDomainObject(URI domainObject) {
+        Node node = first(byDomainObject, domainObject);
+        if (node != null && !Objects.equals(domainObject, node.getDomainObject())) {
+            reindex(node);
+            node = first(byDomainObject, domainObject);
+        }
+        return node;
+    }
+
+    /**
+     * @param node A node.
+     * @return Whether or not the node is in the tree.
+     */
+    public boolean contains(Node node) {
+        return indexed.containsKey(node);
+    }
+
+    /**
+     * @return The number of nodes in the tree.
+     */
+    public int size() {
+        return indexed.size();
+    }
+
+    /**
+     * Index a node and all of its descendants.
+     * @param node The root of the subtree to add.
+     */
+    void addTree(Node node) {
+        node.walk(n -> {
+            if (n.index != null && n.index != this) {
+                n.index.remove(n);
+            }
+            n.index = this;
+            add(n);
+        });
+    }
+
+    /**
+     * Index a tree without keeping the index up to date as the tree changes.
+     * @param root The root of the tree.
+     * @return An index of the tree as it is now.
+     */
+    static NodeIndex snapshot(Node root) {
+        NodeIndex index = new NodeIndex();
+        root.walk(index::add);
+        return index;
+    }
+
+    /**
+     * Remove a node and all of its descendants from the index.
+     * @param node The root of the subtree to remove.
+     */
+    void removeTree(Node node) {
+        node.walk(n -> {
+            if (n.index == this) {
+                remove(n);
+                n.index = null;
+            }
+        });
+    }
+
+    /**
+     * Index a node under its current values.
+     * @param node The node to index again.
+     */
+    void reindex(Node node) {
+        remove(node);
+        add(node);
+    }
+
+    private void add(Node node) {
+        Keys keys = new Keys(node.getIdentifier(), location(node), node.getDomainObject());
+        indexed.put(node, keys);
+
+        if (keys.identifier != null) {
+            byIdentifier.put(keys.identifier, node);
+        }
+        put(byLocation, keys.location, node);
+        put(byDomainObject, keys.domainObject, node);
+    }
+
+    private void remove(Node node) {
+        Keys keys = indexed.remove(node);
+        if (keys == null) {
+            return;
+        }
+
+        if (keys.identifier != null && byIdentifier.get(keys.identifier) == node) {
+            byIdentifier.remove(keys.identifier);
+        }
+        remove(byLocation, keys.location, node);
+        remove(byDomainObject, keys.domainObject, node);
+    }
+
+    private static URI location(Node node) {
+        return node.getFileInfo() != null ? node.getFileInfo().getLocation() : null;
+    }
+
+    private static Node first(Map<URI, List<Node>> map, URI key) {
+        List<Node> nodes = key != null ? map.get(key) : null;
+        return nodes != null ? nodes.get(0) : null;
+    }
+
+    private static void put(Map<URI, List<Node>> map, URI key, Node node) {
+        if (key != null) {
+            map.computeIfAbsent(key, k -> new ArrayList<>(1)).add(node);
+        }
+    }
+
+    private static void remove(Map<URI, List<Node>> map, URI key, Node node) {
+        List<Node> nodes = key != null ? map.get(key) : null;
+        if (nodes != null) {
+            nodes.removeIf(n -> n == node);
+            if (nodes.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static class Keys {
+        private final URI identifier;
+        private final URI location;
+        private final URI domainObject;
+
+        private Keys(URI identifier, URI location, URI domainObject) {
+            this.identifier = identifier;
+            this.location = location;
+            this.domainObject = domainObject;
+        }
+    }
+}
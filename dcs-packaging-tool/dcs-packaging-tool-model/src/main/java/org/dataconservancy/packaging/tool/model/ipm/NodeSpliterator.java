@@ -0,0 +1,110 @@
+package org.dataconservancy.packaging.tool.model.ipm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Traverses a tree in pre-order without recursion, reading the children of each node only once the node itself has
+ * been visited. It splits by subtree, so the subtrees of a tree can be traversed in parallel.
+ *
+ * The nodes still to be visited are kept as a stack of subtrees, with the next subtree on top. Splitting hands the
+ * top half of the stack to a new spliterator, which keeps the nodes in order. A stack holding a single subtree is
+ * split into its root, and the subtrees of its children.
+ */
+class NodeSpliterator implements Spliterator<Node> {
+
+    private static final int CHARACTERISTICS = Spliterator.ORDERED | Spliterator.NONNULL;
+
+    private final Deque<Node> pending;
+
+    // The size of a tree isn't known, so like other spliterators of unknown size the estimate is halved by each split
+    private long estimatedSize;
+
+    /**
+     * @param root The root of the tree to traverse.
+     */
+    NodeSpliterator(Node root) {
+        this(new ArrayDeque<>(), Long.MAX_VALUE);
+        pending.push(root);
+    }
+
+    private NodeSpliterator(Deque<Node> pending, long estimatedSize) {
+        this.pending = pending;
+        this.estimatedSize = estimatedSize;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Node> action) {
+        Node node = pending.poll();
+        if (node == null) {
+            return false;
+        }
+
+        action.accept(node);
+        pushChildren(node);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Node> action) {
+        Node node;
+        while ((node = pending.poll()) != null) {
+            action.accept(node);
+            pushChildren(node);
+        }
+    }
+
+    @Override
+    public Spliterator<Node> trySplit() {
+        int count = pending.size();
+        if (count == 1) {
+            Node node = pending.peek();
+            if (!node.hasChildren()) {
+                return null;
+            }
+
+            pending.poll();
+            pushChildren(node);
+            return Spliterators.spliterator(new Object[] {node}, CHARACTERISTICS);
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        Deque<Node> prefix = new ArrayDeque<>(count / 2);
+        for (int i = 0; i < count / 2; i++) {
+            prefix.add(pending.poll());
+        }
+        estimatedSize >>>= 1;
+        return new NodeSpliterator(prefix, estimatedSize);
+    }
+
+    @Override
+    public long estimateSize() {
+        return pending.isEmpty() ? 0 : estimatedSize;
+    }
+
+    @Override
+    public int characteristics() {
+        return CHARACTERISTICS;
+    }
+
+    /*
+     * Pushes the children of a node onto the stack, so the first child is on top.
+     */
+    private void pushChildren(Node node) {
+        List<Node> children = node.getChildren();
+        if (children != null) {
+            ListIterator<Node> iterator = children.listIterator(children.size());
+            while (iterator.hasPrevious()) {
+                pending.push(iterator.previous());
+            }
+        }
+    }
+}
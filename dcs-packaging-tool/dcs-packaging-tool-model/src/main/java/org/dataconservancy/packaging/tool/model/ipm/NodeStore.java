@@ -0,0 +1,648 @@
+package org.dataconservancy.packaging.tool.model.ipm;
+
+import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the nodes of trees on disk rather than in the heap, for trees with too many nodes to fit in memory.
+ *
+ * The nodes created by a store are ordinary {@link Node}s, but their parents, children, file information, domain
+ * objects and types are read from the store when they are used, behind the usual methods such as
+ * {@link Node#getChildren()}, {@link Node#walk(java.util.function.Consumer)} and {@link Node#stream()}, and each
+ * change to them is written straight back. A node that is no longer referenced can be garbage collected, and is read
+ * again when it is next reached. The data is kept in memory-mapped files, so the operating system pages it in and out
+ * as it is used.
+ *
+ * Nodes that are not in the store can be added to a stored tree; they, and the stored nodes they are attached to,
+ * stay in memory. Changes made in place to the file information of a stored node are only kept while the node is in
+ * memory, so set the file information on the node again to store them.
+ *
+ * A store is scratch space for the trees of a session, not a persistent format. Its files are deleted when it is
+ * closed, so it must be closed once its trees are no longer needed, and its nodes must not be used afterwards.
+ */
+public class NodeStore implements Closeable {
+
+    static final int NONE = -1;
+
+    // Each node has a fixed size slot holding its links to other nodes, its flags and where its data is
+    private static final int SLOT_SIZE = 40;
+    private static final int PARENT = 0;
+    private static final int FIRST_CHILD = 4;
+    private static final int LAST_CHILD = 8;
+    private static final int NEXT_SIBLING = 12;
+    private static final int PREVIOUS_SIBLING = 16;
+    private static final int FLAGS = 20;
+    private static final int DATA_POSITION = 24;
+    private static final int DATA_LENGTH = 32;
+
+    private static final int IGNORED = 1;
+    private static final int HAS_CHILD_LIST = 2;
+    private static final int LINKED = 4;
+
+    // Files are mapped in segments, and no slot or data record crosses the end of a segment
+    private static final int SLOT_SEGMENT_SIZE = SLOT_SIZE * (1 << 20);
+    private static final int DATA_SEGMENT_SIZE = 1 << 26;
+
+    private final MappedFile slots;
+    private final MappedFile data;
+    private int nodeCount;
+    private long dataEnd;
+
+    // The nodes in memory, so there is only ever one instance of each node
+    private final Map<Integer, NodeReference> loaded = new HashMap<>();
+    private final ReferenceQueue<StoredNode> collected = new ReferenceQueue<>();
+
+    // Nodes which must stay in memory because they are linked to nodes that are not in the store
+    private final Map<Integer, StoredNode> pinned = new HashMap<>();
+
+    // Node types are stored as codes for the instances they were set with
+    private final List<NodeType> nodeTypes = new ArrayList<>();
+    private final Map<NodeType, Integer> nodeTypeCodes = new IdentityHashMap<>();
+
+    // Incremented whenever children are added or removed, so lists of children read earlier are read again
+    private int structureVersion;
+
+    // The index of the tree last asked for, with its root and the structure it was built for
+    private SoftReference<NodeIndex> index;
+    private int indexRoot = NONE;
+    private int indexVersion;
+
+    /**
+     * Creates an empty store, with its files in the given directory.
+     * @param directory The directory to keep the store's files in, which is created if it does not exist.
+     * @throws IOException If the files can't be created.
+     */
+    public NodeStore(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        slots = new MappedFile(Files.createTempFile(directory, "nodes", ".dat"), SLOT_SEGMENT_SIZE);
+        data = new MappedFile(Files.createTempFile(directory, "node-data", ".dat"), DATA_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a node in the store, which is not yet in any tree.
+     * @param identifier The unique identifier of the node.
+     * @return The new node.
+     */
+    public synchronized Node createNode(URI identifier) {
+        int number = nodeCount++;
+        setSlot(number, PARENT, NONE);
+        setSlot(number, FIRST_CHILD, NONE);
+        setSlot(number, LAST_CHILD, NONE);
+        setSlot(number, NEXT_SIBLING, NONE);
+        setSlot(number, PREVIOUS_SIBLING, NONE);
+        setSlot(number, FLAGS, 0);
+
+        NodeData nodeData = new NodeData();
+        nodeData.identifier = identifier;
+        writeData(number, nodeData);
+
+        return node(number);
+    }
+
+    /**
+     * @return The number of nodes that have been created in the store.
+     */
+    public synchronized int size() {
+        return nodeCount;
+    }
+
+    /**
+     * @return The number of bytes taken by the data of the store's nodes, including data that has been replaced.
+     */
+    public synchronized long dataSize() {
+        return dataEnd;
+    }
+
+    /**
+     * Deletes the store's files.
+     * @throws IOException If the files can't be closed or deleted.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        loaded.clear();
+        pinned.clear();
+        try {
+            slots.close();
+        } finally {
+            data.close();
+        }
+    }
+
+    /*
+     * Answers the one instance of a node, reading it from the store if it isn't in memory.
+     */
+    synchronized StoredNode node(int number) {
+        if (number == NONE) {
+            return null;
+        }
+
+        expungeCollectedNodes();
+        NodeReference reference = loaded.get(number);
+        StoredNode node = reference != null ? reference.get() : null;
+        if (node == null) {
+            node = new StoredNode(this, number);
+            loaded.put(number, new NodeReference(node, collected));
+        }
+        return node;
+    }
+
+    private void expungeCollectedNodes() {
+        NodeReference reference;
+        while ((reference = (NodeReference) collected.poll()) != null) {
+            if (loaded.get(reference.number) == reference) {
+                loaded.remove(reference.number);
+            }
+        }
+    }
+
+    synchronized StoredNode parent(int number) {
+        return node(getSlot(number, PARENT));
+    }
+
+    synchronized void setParent(int number, int parent) {
+        setSlot(number, PARENT, parent);
+        structureVersion++;
+    }
+
+    /*
+     * Answers the numbers of the stored children of a node in order, or null if no children have been added.
+     */
+    synchronized int[] children(int number) {
+        if (!hasFlag(number, HAS_CHILD_LIST)) {
+            return null;
+        }
+
+        int[] children = new int[4];
+        int count = 0;
+        for (int child = getSlot(number, FIRST_CHILD); child != NONE; child = getSlot(child, NEXT_SIBLING)) {
+            if (count == children.length) {
+                children = Arrays.copyOf(children, count * 2);
+            }
+            children[count++] = child;
+        }
+        return Arrays.copyOf(children, count);
+    }
+
+    synchronized boolean isChild(int child, int parent) {
+        return hasFlag(child, LINKED) && getSlot(child, PARENT) == parent;
+    }
+
+    /*
+     * Makes a node the last child of a parent, first removing it from the children of any other parent.
+     */
+    synchronized void link(int parent, int child) {
+        unlink(child);
+
+        int previous = getSlot(parent, LAST_CHILD);
+        setSlot(child, PARENT, parent);
+        setSlot(child, PREVIOUS_SIBLING, previous);
+        setSlot(child, NEXT_SIBLING, NONE);
+        if (previous == NONE) {
+            setSlot(parent, FIRST_CHILD, child);
+        } else {
+            setSlot(previous, NEXT_SIBLING, child);
+        }
+        setSlot(parent, LAST_CHILD, child);
+
+        setFlag(child, LINKED, true);
+        setFlag(parent, HAS_CHILD_LIST, true);
+        structureVersion++;
+    }
+
+    /*
+     * Removes a node from the children of its parent, leaving its parent set as a node's parent is when it is
+     * removed from a list of children.
+     */
+    synchronized void unlink(int child) {
+        if (!hasFlag(child, LINKED)) {
+            return;
+        }
+
+        int parent = getSlot(child, PARENT);
+        int previous = getSlot(child, PREVIOUS_SIBLING);
+        int next = getSlot(child, NEXT_SIBLING);
+        if (previous == NONE) {
+            setSlot(parent, FIRST_CHILD, next);
+        } else {
+            setSlot(previous, NEXT_SIBLING, next);
+        }
+        if (next == NONE) {
+            setSlot(parent, LAST_CHILD, previous);
+        } else {
+            setSlot(next, PREVIOUS_SIBLING, previous);
+        }
+
+        setSlot(child, PREVIOUS_SIBLING, NONE);
+        setSlot(child, NEXT_SIBLING, NONE);
+        setFlag(child, LINKED, false);
+        structureVersion++;
+    }
+
+    /*
+     * Removes all of the stored children of a node.
+     */
+    synchronized void unlinkAll(int parent, boolean hasChildList) {
+        int child = getSlot(parent, FIRST_CHILD);
+        while (child != NONE) {
+            int next = getSlot(child, NEXT_SIBLING);
+            setSlot(child, PREVIOUS_SIBLING, NONE);
+            setSlot(child, NEXT_SIBLING, NONE);
+            setFlag(child, LINKED, false);
+            child = next;
+        }
+
+        setSlot(parent, FIRST_CHILD, NONE);
+        setSlot(parent, LAST_CHILD, NONE);
+        setFlag(parent, HAS_CHILD_LIST, hasChildList);
+        structureVersion++;
+    }
+
+    synchronized void setHasChildList(int number) {
+        setFlag(number, HAS_CHILD_LIST, true);
+        structureVersion++;
+    }
+
+    synchronized int structureVersion() {
+        return structureVersion;
+    }
+
+    /*
+     * Answers an index of the tree under a root, reusing the index built last time if the structure of the store
+     * hasn't changed since. The index isn't kept while nodes that are not in the store are linked to stored nodes, as
+     * changes to them aren't seen by the store.
+     */
+    synchronized NodeIndex index(Node root) {
+        if (!(root instanceof StoredNode) || ((StoredNode) root).getNumber() == NONE || !pinned.isEmpty()) {
+            index = null;
+            return NodeIndex.snapshot(root);
+        }
+
+        int number = ((StoredNode) root).getNumber();
+        NodeIndex cached = index != null && indexRoot == number && indexVersion == structureVersion ? index.get()
+            : null;
+        if (cached == null) {
+            cached = NodeIndex.snapshot(root);
+            index = new SoftReference<>(cached);
+            indexRoot = number;
+            indexVersion = structureVersion;
+        }
+        return cached;
+    }
+
+    /*
+     * Indexes a node again under its current values, if it is in the index that is kept.
+     */
+    synchronized void reindex(StoredNode node) {
+        NodeIndex cached = index != null ? index.get() : null;
+        if (cached != null && cached.contains(node)) {
+            cached.reindex(node);
+        }
+    }
+
+    synchronized boolean isIgnored(int number) {
+        return hasFlag(number, IGNORED);
+    }
+
+    synchronized void setIgnored(int number, boolean ignored) {
+        setFlag(number, IGNORED, ignored);
+    }
+
+    synchronized void pin(StoredNode node, boolean pin) {
+        if (pin) {
+            pinned.put(node.getNumber(), node);
+        } else {
+            pinned.remove(node.getNumber());
+        }
+    }
+
+    synchronized int nodeTypeCode(NodeType nodeType) {
+        if (nodeType == null) {
+            return NONE;
+        }
+
+        Integer code = nodeTypeCodes.get(nodeType);
+        if (code == null) {
+            code = nodeTypes.size();
+            nodeTypes.add(nodeType);
+            nodeTypeCodes.put(nodeType, code);
+        }
+        return code;
+    }
+
+    synchronized NodeType nodeType(int code) {
+        return code != NONE ? nodeTypes.get(code) : null;
+    }
+
+    synchronized NodeData readData(int number) {
+        long position = slots.getLong(slot(number) + DATA_POSITION);
+        byte[] bytes = new byte[slots.getInt(slot(number) + DATA_LENGTH)];
+        data.read(position, bytes);
+
+        try {
+            return NodeData.decode(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read node " + number, e);
+        }
+    }
+
+    /*
+     * Writes the data of a node over the data it replaces if it fits, otherwise to the end of the data file, leaving
+     * the data it replaces where it is. Most changes, such as a file's information being refreshed, keep the size of
+     * the data, so the data file only grows as nodes are added or their data grows.
+     */
+    synchronized void writeData(int number, NodeData nodeData) {
+        byte[] bytes;
+        try {
+            bytes = nodeData.encode();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write node " + number, e);
+        }
+        if (bytes.length > DATA_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("The data of node " + nodeData.identifier + " is too large to store");
+        }
+
+        if (bytes.length <= slots.getInt(slot(number) + DATA_LENGTH)) {
+            data.write(slots.getLong(slot(number) + DATA_POSITION), bytes);
+            slots.putInt(slot(number) + DATA_LENGTH, bytes.length);
+            return;
+        }
+
+        long offset = dataEnd % DATA_SEGMENT_SIZE;
+        if (offset + bytes.length > DATA_SEGMENT_SIZE) {
+            dataEnd += DATA_SEGMENT_SIZE - offset;
+        }
+        data.write(dataEnd, bytes);
+        slots.putLong(slot(number) + DATA_POSITION, dataEnd);
+        slots.putInt(slot(number) + DATA_LENGTH, bytes.length);
+        dataEnd += bytes.length;
+    }
+
+    private static long slot(int number) {
+        return (long) number * SLOT_SIZE;
+    }
+
+    private int getSlot(int number, int field) {
+        return slots.getInt(slot(number) + field);
+    }
+
+    private void setSlot(int number, int field, int value) {
+        slots.putInt(slot(number) + field, value);
+    }
+
+    private boolean hasFlag(int number, int flag) {
+        return (getSlot(number, FLAGS) & flag) != 0;
+    }
+
+    private void setFlag(int number, int flag, boolean value) {
+        int flags = getSlot(number, FLAGS);
+        setSlot(number, FLAGS, value ? flags | flag : flags & ~flag);
+    }
+
+    /*
+     * The data of a node which doesn't fit in its slot.
+     */
+    static final class NodeData {
+        URI identifier;
+        URI domainObject;
+        FileInfo fileInfo;
+        int nodeType = NONE;
+        int[] subTypes;
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            writeString(out, identifier != null ? identifier.toString() : null);
+            writeString(out, domainObject != null ? domainObject.toString() : null);
+            out.writeInt(nodeType);
+            out.writeInt(subTypes != null ? subTypes.length : NONE);
+            if (subTypes != null) {
+                for (int subType : subTypes) {
+                    out.writeInt(subType);
+                }
+            }
+
+            out.writeBoolean(fileInfo != null);
+            if (fileInfo != null) {
+                writeString(out, fileInfo.getName());
+                writeString(out, fileInfo.getLocation() != null ? fileInfo.getLocation().toString() : null);
+
+                out.writeBoolean(fileInfo.hasAttributes());
+                if (fileInfo.hasAttributes()) {
+                    out.writeLong(fileInfo.getSize());
+                    out.writeBoolean(fileInfo.isFile());
+                    out.writeBoolean(fileInfo.isDirectory());
+                    writeTime(out, fileInfo.getCreationTime());
+                    writeTime(out, fileInfo.getLastModifiedTime());
+                }
+
+                List<String> formats = fileInfo.getFormats();
+                out.writeInt(formats != null ? formats.size() : NONE);
+                if (formats != null) {
+                    for (String format : formats) {
+                        writeString(out, format);
+                    }
+                }
+
+                writeString(out, fileInfo.getFingerprint());
+
+                out.writeBoolean(fileInfo.hasChecksums());
+                if (fileInfo.hasChecksums()) {
+                    for (FileInfo.Algorithm algorithm : FileInfo.Algorithm.values()) {
+                        writeString(out, fileInfo.getChecksum(algorithm));
+                    }
+                }
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        static NodeData decode(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            NodeData nodeData = new NodeData();
+
+            nodeData.identifier = readUri(in);
+            nodeData.domainObject = readUri(in);
+            nodeData.nodeType = in.readInt();
+            int subTypeCount = in.readInt();
+            if (subTypeCount != NONE) {
+                nodeData.subTypes = new int[subTypeCount];
+                for (int i = 0; i < subTypeCount; i++) {
+                    nodeData.subTypes[i] = in.readInt();
+                }
+            }
+
+            if (in.readBoolean()) {
+                String name = readString(in);
+                FileInfo fileInfo = new FileInfo(readUri(in), name);
+
+                if (in.readBoolean()) {
+                    fileInfo.setSize(in.readLong());
+                    fileInfo.setIsFile(in.readBoolean());
+                    fileInfo.setIsDirectory(in.readBoolean());
+                    fileInfo.setCreationTime(readTime(in));
+                    fileInfo.setLastModifiedTime(readTime(in));
+                }
+
+                int formatCount = in.readInt();
+                if (formatCount != NONE) {
+                    List<String> formats = new ArrayList<>(formatCount);
+                    for (int i = 0; i < formatCount; i++) {
+                        formats.add(readString(in));
+                    }
+                    fileInfo.setFormats(formats);
+                }
+
+                fileInfo.setFingerprint(readString(in));
+
+                if (in.readBoolean()) {
+                    Map<FileInfo.Algorithm, String> checksums = new EnumMap<>(FileInfo.Algorithm.class);
+                    for (FileInfo.Algorithm algorithm : FileInfo.Algorithm.values()) {
+                        String checksum = readString(in);
+                        if (checksum != null) {
+                            checksums.put(algorithm, checksum);
+                        }
+                    }
+                    fileInfo.setChecksums(checksums);
+                }
+
+                nodeData.fileInfo = fileInfo;
+            }
+
+            return nodeData;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private static URI readUri(DataInputStream in) throws IOException {
+            String value = readString(in);
+            return value != null ? URI.create(value) : null;
+        }
+
+        private static void writeTime(DataOutputStream out, FileTime time) throws IOException {
+            out.writeBoolean(time != null);
+            if (time != null) {
+                out.writeLong(time.toMillis());
+            }
+        }
+
+        private static FileTime readTime(DataInputStream in) throws IOException {
+            return in.readBoolean() ? FileTime.fromMillis(in.readLong()) : null;
+        }
+    }
+
+    /*
+     * A weak reference to a node in memory, which remembers the node's number once it has been collected.
+     */
+    private static final class NodeReference extends WeakReference<StoredNode> {
+        private final int number;
+
+        private NodeReference(StoredNode node, ReferenceQueue<StoredNode> queue) {
+            super(node, queue);
+            this.number = node.getNumber();
+        }
+    }
+
+    /*
+     * A file which is memory-mapped in segments as it grows.
+     */
+    private static final class MappedFile implements Closeable {
+        private final Path path;
+        private final FileChannel channel;
+        private final int segmentSize;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+        private MappedFile(Path path, int segmentSize) throws IOException {
+            this.path = path;
+            this.segmentSize = segmentSize;
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private ByteBuffer segment(long position) {
+            int index = (int) (position / segmentSize);
+            try {
+                while (segments.size() <= index) {
+                    segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize,
+                                             segmentSize));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not map " + path, e);
+            }
+            return segments.get(index);
+        }
+
+        private int offset(long position) {
+            return (int) (position % segmentSize);
+        }
+
+        private int getInt(long position) {
+            return segment(position).getInt(offset(position));
+        }
+
+        private void putInt(long position, int value) {
+            segment(position).putInt(offset(position), value);
+        }
+
+        private long getLong(long position) {
+            return segment(position).getLong(offset(position));
+        }
+
+        private void putLong(long position, long value) {
+            segment(position).putLong(offset(position), value);
+        }
+
+        private void read(long position, byte[] bytes) {
+            ByteBuffer buffer = segment(position).duplicate();
+            buffer.position(offset(position));
+            buffer.get(bytes);
+        }
+
+        private void write(long position, byte[] bytes) {
+            ByteBuffer buffer = segment(position).duplicate();
+            buffer.position(offset(position));
+            buffer.put(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            segments.clear();
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
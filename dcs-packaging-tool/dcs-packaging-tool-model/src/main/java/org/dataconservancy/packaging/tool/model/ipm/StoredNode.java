@@ -0,0 +1,309 @@
+package org.dataconservancy.packaging.tool.model.ipm;
+
+import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
+
+import java.lang.ref.SoftReference;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * A node kept in a {@link NodeStore}. Its data is read from the store when it is used, and kept until the memory is
+ * needed, and every change to it is written back to the store.
+ */
+class StoredNode extends Node {
+
+    private final NodeStore store;
+    private final int number;
+
+    private SoftReference<NodeStore.NodeData> data;
+    private SoftReference<List<Node>> children;
+    private int childrenVersion;
+
+    // Children and a parent which are not in the store
+    private List<Node> memoryChildren;
+    private Node memoryParent;
+
+    StoredNode(NodeStore store, int number) {
+        super(null);
+        this.store = store;
+        this.number = number;
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    /*
+     * The data is read and changed while holding the store's lock, so that file information enriched in the
+     * background isn't lost to a change made to the node at the same time.
+     */
+    private NodeStore.NodeData data() {
+        synchronized (store) {
+            NodeStore.NodeData nodeData = data != null ? data.get() : null;
+            if (nodeData == null) {
+                nodeData = store.readData(number);
+                data = new SoftReference<>(nodeData);
+            }
+            return nodeData;
+        }
+    }
+
+    private void update(Consumer<NodeStore.NodeData> change) {
+        synchronized (store) {
+            NodeStore.NodeData nodeData = data();
+            change.accept(nodeData);
+            store.writeData(number, nodeData);
+        }
+    }
+
+    private boolean isStored(Node node) {
+        return node instanceof StoredNode && ((StoredNode) node).store == store;
+    }
+
+    /*
+     * Keeps the node in memory while it is linked to nodes that are not in the store.
+     */
+    private void updatePin() {
+        store.pin(this, memoryParent != null || (memoryChildren != null && !memoryChildren.isEmpty()));
+    }
+
+    @Override
+    public URI getIdentifier() {
+        URI identifier = super.getIdentifier();
+        if (identifier == null) {
+            identifier = data().identifier;
+            super.setIdentifier(identifier);
+        }
+        return identifier;
+    }
+
+    @Override
+    public void setIdentifier(URI id) {
+        update(nodeData -> nodeData.identifier = id);
+        super.setIdentifier(id);
+        store.reindex(this);
+    }
+
+    @Override
+    public Node getParent() {
+        return memoryParent != null ? memoryParent : store.parent(number);
+    }
+
+    @Override
+    public void setParent(Node parent) {
+        if (parent == null || isStored(parent)) {
+            memoryParent = null;
+            store.setParent(number, parent != null ? ((StoredNode) parent).number : NodeStore.NONE);
+        } else {
+            memoryParent = parent;
+            store.setParent(number, NodeStore.NONE);
+        }
+        updatePin();
+    }
+
+    @Override
+    public List<Node> getChildren() {
+        List<Node> list = children != null ? children.get() : null;
+        int version = store.structureVersion();
+        if (list == null || childrenVersion != version) {
+            int[] numbers = store.children(number);
+            if (numbers == null && memoryChildren == null) {
+                return null;
+            }
+
+            list = new ArrayList<>((numbers != null ? numbers.length : 0) +
+                                       (memoryChildren != null ? memoryChildren.size() : 0));
+            if (numbers != null) {
+                for (int child : numbers) {
+                    list.add(store.node(child));
+                }
+            }
+            if (memoryChildren != null) {
+                list.addAll(memoryChildren);
+            }
+
+            list = Collections.unmodifiableList(list);
+            children = new SoftReference<>(list);
+            childrenVersion = version;
+        }
+        return list;
+    }
+
+    @Override
+    public void addChild(Node node) {
+        if (isStored(node)) {
+            StoredNode child = (StoredNode) node;
+            store.link(number, child.number);
+            child.memoryParent = null;
+            child.updatePin();
+        } else {
+            if (memoryChildren == null) {
+                memoryChildren = new ArrayList<>(1);
+            }
+            memoryChildren.add(node);
+            node.setParent(this);
+            store.setHasChildList(number);
+            updatePin();
+        }
+
+        attach(node);
+    }
+
+    @Override
+    public void removeChild(Node node) {
+        boolean removed = false;
+        if (memoryChildren != null && memoryChildren.remove(node)) {
+            removed = true;
+            store.setHasChildList(number);
+            updatePin();
+        } else if (isStored(node) && store.isChild(((StoredNode) node).number, number)) {
+            store.unlink(((StoredNode) node).number);
+            removed = true;
+        }
+
+        if (removed) {
+            detach(node);
+        }
+
+        node.setParent(null);
+    }
+
+    @Override
+    public void setChildren(List<Node> children) {
+        List<Node> existing = getChildren();
+        if (existing != null) {
+            existing.forEach(this::detach);
+        }
+
+        store.unlinkAll(number, children != null);
+        memoryChildren = null;
+
+        if (children != null) {
+            for (Node child : children) {
+                if (isStored(child)) {
+                    store.link(number, ((StoredNode) child).number);
+                    ((StoredNode) child).memoryParent = null;
+                    ((StoredNode) child).updatePin();
+                } else {
+                    if (memoryChildren == null) {
+                        memoryChildren = new ArrayList<>(1);
+                    }
+                    memoryChildren.add(child);
+                }
+                attach(child);
+            }
+        }
+        updatePin();
+    }
+
+    @Override
+    public URI getDomainObject() {
+        return data().domainObject;
+    }
+
+    @Override
+    public void setDomainObject(URI id) {
+        update(nodeData -> nodeData.domainObject = id);
+        store.reindex(this);
+    }
+
+    @Override
+    public FileInfo getFileInfo() {
+        return data().fileInfo;
+    }
+
+    @Override
+    public void setFileInfo(FileInfo info) {
+        FileInfo old = getFileInfo();
+        update(nodeData -> nodeData.fileInfo = info);
+        // As for other nodes, new file information for the same location, as is set when it is enriched in the
+        // background, leaves the index alone
+        if (info == old || !Objects.equals(location(old), location(info))) {
+            store.reindex(this);
+        }
+    }
+
+    private static URI location(FileInfo info) {
+        return info != null ? info.getLocation() : null;
+    }
+
+    @Override
+    public NodeType getNodeType() {
+        return store.nodeType(data().nodeType);
+    }
+
+    @Override
+    public void setNodeType(NodeType type) {
+        int code = store.nodeTypeCode(type);
+        update(nodeData -> nodeData.nodeType = code);
+    }
+
+    @Override
+    public void addSubNodeType(NodeType subNodeType) {
+        int code = store.nodeTypeCode(subNodeType);
+        update(nodeData -> {
+            int[] subTypes = nodeData.subTypes != null ? Arrays.copyOf(nodeData.subTypes, nodeData.subTypes.length + 1)
+                : new int[1];
+            subTypes[subTypes.length - 1] = code;
+            nodeData.subTypes = subTypes;
+        });
+    }
+
+    @Override
+    public void setSubNodeTypes(List<NodeType> subNodeTypes) {
+        int[] codes = null;
+        if (subNodeTypes != null) {
+            codes = new int[subNodeTypes.size()];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = store.nodeTypeCode(subNodeTypes.get(i));
+            }
+        }
+
+        int[] subTypes = codes;
+        update(nodeData -> nodeData.subTypes = subTypes);
+    }
+
+    @Override
+    public List<NodeType> getSubNodeTypes() {
+        int[] codes = data().subTypes;
+        if (codes == null) {
+            return null;
+        }
+
+        List<NodeType> subTypes = new ArrayList<>(codes.length);
+        for (int code : codes) {
+            subTypes.add(store.nodeType(code));
+        }
+        return Collections.unmodifiableList(subTypes);
+    }
+
+    @Override
+    public boolean isIgnored() {
+        return store.isIgnored(number);
+    }
+
+    @Override
+    public void setIgnored(boolean status) {
+        store.setIgnored(number, status);
+    }
+
+    /**
+     * The index of a stored tree is built by reading the whole tree, and is then kept by the store until children are
+     * added to or removed from any of its trees. It is only softly referenced, so it is built again if its memory is
+     * needed. Lookups made while the tree is unchanged, as when the nodes of a tree are compared in turn, share one
+     * index.
+     */
+    @Override
+    public NodeIndex getIndex() {
+        Node root = this;
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        return store.index(root);
+    }
+}
@@ -0,0 +1,49 @@
+package org.dataconservancy.packaging.tool.model.ipm;
+
+import java.net.URI;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the heap taken by file information with the heap the same information would take as a URI, a map of hex
+ * checksums, a list of format strings and file times for every file. This is a benchmark rather than a test, as the
+ * heap in use can only be measured approximately; run it from the test classpath with an optional number of files as
+ * its argument.
+ */
+public class FileInfoFootprintBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        //Load the classes used before measuring
+        FileInfoTest.createFileInfos(100);
+
+        long before = usedHeap();
+        List<FileInfo> infos = FileInfoTest.createFileInfos(count);
+        long compact = usedHeap() - before;
+
+        before = usedHeap();
+        List<Object[]> expanded = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = "file" + i + ".txt";
+            URI location = new URI("file:///data/project/dir" + (i / 100) + "/" + name);
+            location.getPath();
+            expanded.add(new Object[] {location, name, new ArrayList<>(FileInfoTest.formats()),
+                    FileInfoTest.checksums(i), FileTime.fromMillis(i), FileTime.fromMillis(i), (long) i});
+        }
+        long uncompacted = usedHeap() - before;
+
+        System.out.printf("%d files: %d bytes per file as FileInfo, %d bytes per file expanded%n", infos.size(),
+                compact / count, uncompacted / expanded.size());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
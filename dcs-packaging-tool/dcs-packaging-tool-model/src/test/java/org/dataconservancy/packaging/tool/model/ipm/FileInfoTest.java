@@ -8,10 +8,22 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class FileInfoTest {
 
@@ -79,4 +91,111 @@ public class FileInfoTest {
         FileInfo info = new FileInfo(tempFolder.toPath());
         assertNull(info.getFormats());
     }
+
+    /**
+     * Tests that values are returned as they were set, however they are kept.
+     */
+    @Test
+    public void testValuesRoundTrip() throws Exception {
+        URI location = new URI("file:///farm/barn/cow%20pen.txt");
+        Map<FileInfo.Algorithm, String> checksums = new HashMap<>();
+        checksums.put(FileInfo.Algorithm.MD5, "0123456789abcdef0123456789abcdef");
+        checksums.put(FileInfo.Algorithm.SHA1, "NOT-HEX");
+        FileTime created = FileTime.fromMillis(1000);
+
+        FileInfo info = new FileInfo(location, "cow pen.txt", created, null, true, false, 42,
+                Arrays.asList("info:pronom/x-fmt/111", "text/plain"), checksums);
+
+        assertEquals(location, info.getLocation());
+        assertEquals("0123456789abcdef0123456789abcdef", info.getChecksum(FileInfo.Algorithm.MD5));
+        assertEquals("NOT-HEX", info.getChecksum(FileInfo.Algorithm.SHA1));
+        assertEquals(Arrays.asList("info:pronom/x-fmt/111", "text/plain"), info.getFormats());
+        assertEquals(created, info.getCreationTime());
+        assertNull(info.getLastModifiedTime());
+        assertEquals(42, info.getSize());
+        assertTrue(info.isFile());
+        assertFalse(info.isDirectory());
+
+        FileInfo directory = new FileInfo(new URI("file:///farm/barn/"), "barn");
+        assertEquals(new URI("file:///farm/barn/"), directory.getLocation());
+        assertEquals(-1, directory.getSize());
+        assertNull(directory.getChecksum(FileInfo.Algorithm.MD5));
+        assertEquals(new URI("urn:uuid:1234"), new FileInfo(new URI("urn:uuid:1234"), "1234").getLocation());
+
+        info.setLocation(new URI("bag://package/data/cow.txt"));
+        assertEquals(new URI("bag://package/data/cow.txt"), info.getLocation());
+    }
+
+    /**
+     * Tests that file information is kept compactly: hex checksums as digests, and locations, names and formats shared
+     * between files rather than as a URI, a map of checksums, a list of formats and file times for every file. How
+     * much of the heap this saves is measured by {@link FileInfoFootprintBenchmark}.
+     */
+    @Test
+    public void testCompactRepresentation() throws Exception {
+        List<FileInfo> infos = createFileInfos(200);
+
+        for (Field field : FileInfo.class.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                assertTrue(field.getName() + " is a " + field.getType(), field.getType().isPrimitive() ||
+                        Arrays.asList(String.class, String[].class, Object[].class, Object.class)
+                                .contains(field.getType()));
+            }
+        }
+
+        for (int i = 0; i < infos.size(); i++) {
+            FileInfo info = infos.get(i);
+            FileInfo neighbour = infos.get(i % 100 == 0 ? i + 1 : i - 1);
+            String name = "file" + i + ".txt";
+
+            assertEquals(new URI("file:///data/project/dir" + (i / 100) + "/" + name), info.getLocation());
+            assertEquals(name, info.getName());
+            assertEquals(formats(), info.getFormats());
+            assertEquals(checksums(i).get(FileInfo.Algorithm.MD5), info.getChecksum(FileInfo.Algorithm.MD5));
+            assertEquals(checksums(i).get(FileInfo.Algorithm.SHA1), info.getChecksum(FileInfo.Algorithm.SHA1));
+            assertEquals(FileTime.fromMillis(i), info.getLastModifiedTime());
+            assertEquals(i, info.getSize());
+
+            //Files in the same directory share its location, and every file shares the strings of its formats
+            assertSame(field(info, "locationBase"), field(neighbour, "locationBase"));
+            assertSame(field(info, "name"), field(info, "locationName"));
+            String[] formats = (String[]) field(info, "formats");
+            String[] neighbourFormats = (String[]) field(neighbour, "formats");
+            for (int f = 0; f < formats.length; f++) {
+                assertSame(formats[f], neighbourFormats[f]);
+            }
+
+            Object[] checksums = (Object[]) field(info, "checksums");
+            assertEquals(16, ((byte[]) checksums[FileInfo.Algorithm.MD5.ordinal()]).length);
+            assertEquals(20, ((byte[]) checksums[FileInfo.Algorithm.SHA1.ordinal()]).length);
+        }
+    }
+
+    private Object field(FileInfo info, String name) throws Exception {
+        Field field = FileInfo.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(info);
+    }
+
+    static List<FileInfo> createFileInfos(int count) throws Exception {
+        List<FileInfo> infos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = "file" + i + ".txt";
+            infos.add(new FileInfo(new URI("file:///data/project/dir" + (i / 100) + "/" + name), name,
+                    FileTime.fromMillis(i), FileTime.fromMillis(i), true, false, i, formats(), checksums(i)));
+        }
+        return infos;
+    }
+
+    static List<String> formats() {
+        //Detected formats are new strings for every file
+        return Arrays.asList(new String("info:pronom/x-fmt/111"), new String("text/plain"));
+    }
+
+    static Map<FileInfo.Algorithm, String> checksums(int i) {
+        Map<FileInfo.Algorithm, String> checksums = new HashMap<>();
+        checksums.put(FileInfo.Algorithm.MD5, String.format("%032x", i));
+        checksums.put(FileInfo.Algorithm.SHA1, String.format("%040x", i));
+        return checksums;
+    }
 }
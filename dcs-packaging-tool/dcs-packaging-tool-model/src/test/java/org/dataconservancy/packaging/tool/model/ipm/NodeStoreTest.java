@@ -0,0 +1,220 @@
+package org.dataconservancy.packaging.tool.model.ipm;
+
+import org.dataconservancy.packaging.tool.model.dprofile.NodeType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NodeStoreTest {
+
+    @Rule
+    public TemporaryFolder tmpfolder = new TemporaryFolder();
+
+    private NodeStore store;
+
+    @Before
+    public void setup() throws Exception {
+        store = new NodeStore(tmpfolder.newFolder("nodes").toPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    /**
+     * Tests that closing a store deletes its files.
+     */
+    @Test
+    public void closeDeletesFilesTest() throws Exception {
+        File directory = tmpfolder.newFolder("closed");
+        NodeStore closed = new NodeStore(directory.toPath());
+        closed.createNode(URI.create("id:cow")).setDomainObject(URI.create("id:moo"));
+        assertEquals(2, directory.list().length);
+
+        closed.close();
+        assertEquals(0, directory.list().length);
+    }
+
+    /**
+     * Tests that the structure of a stored tree is kept as children are added, removed and replaced.
+     */
+    @Test
+    public void structureTest() {
+        Node root = store.createNode(URI.create("id:root"));
+        Node barn = store.createNode(URI.create("id:barn"));
+        Node cow = store.createNode(URI.create("id:cow"));
+        Node pig = store.createNode(URI.create("id:pig"));
+
+        assertNull(root.getChildren());
+        assertTrue(root.isLeaf());
+        root.addChild(barn);
+        barn.addChild(cow);
+        barn.addChild(pig);
+
+        assertEquals(Arrays.asList(barn), root.getChildren());
+        assertEquals(Arrays.asList(cow, pig), barn.getChildren());
+        assertSame(barn, pig.getParent());
+        assertTrue(root.isRoot());
+        assertFalse(barn.isLeaf());
+        assertEquals(Arrays.asList("id:root", "id:barn", "id:cow", "id:pig"), identifiers(root));
+
+        barn.removeChild(cow);
+        assertEquals(Arrays.asList(pig), barn.getChildren());
+        assertNull(cow.getParent());
+
+        // A node added to another parent is moved from its old one
+        root.addChild(pig);
+        assertTrue(barn.getChildren().isEmpty());
+        assertSame(root, pig.getParent());
+
+        barn.setChildren(new ArrayList<>(Arrays.asList(cow, pig)));
+        assertEquals(Arrays.asList(barn), root.getChildren());
+        assertEquals(Arrays.asList(cow, pig), barn.getChildren());
+
+        // Nodes that are not in the store can be added too
+        Node goat = new Node(URI.create("id:goat"));
+        barn.addChild(goat);
+        assertSame(barn, goat.getParent());
+        assertEquals(Arrays.asList("id:root", "id:barn", "id:cow", "id:pig", "id:goat"), identifiers(root));
+        assertEquals(root.getChildren().size(), root.stream().filter(n -> n.getParent() == root).count());
+
+        assertSame(pig, root.getIndex().getNode(URI.create("id:pig")));
+        assertEquals(4, store.size());
+    }
+
+    /**
+     * Tests that the index of a stored tree is kept while the tree is unchanged, and follows changes to the tree and
+     * to the values it indexes.
+     */
+    @Test
+    public void indexTest() throws Exception {
+        Node root = store.createNode(URI.create("id:root"));
+        Node barn = store.createNode(URI.create("id:barn"));
+        root.addChild(barn);
+
+        NodeIndex index = barn.getIndex();
+        assertSame(index, root.getIndex());
+        assertSame(barn, index.getNode(URI.create("id:barn")));
+
+        Node cow = store.createNode(URI.create("id:cow"));
+        barn.addChild(cow);
+        index = root.getIndex();
+        assertSame(cow, index.getNode(URI.create("id:cow")));
+        assertEquals(3, index.size());
+
+        File file = tmpfolder.newFile("cow.txt");
+        cow.setFileInfo(new FileInfo(file.toPath()));
+        cow.setDomainObject(URI.create("id:moo"));
+        assertSame(index, root.getIndex());
+        assertSame(cow, index.getNodeByLocation(file.toURI()));
+        assertSame(cow, index.getNodeByDomainObject(URI.create("id:moo")));
+
+        barn.removeChild(cow);
+        index = root.getIndex();
+        assertFalse(index.contains(cow));
+        assertNull(index.getNodeByLocation(file.toURI()));
+    }
+
+    /**
+     * Tests that the data of a node is written to the store and read back the same.
+     */
+    @Test
+    public void dataTest() throws Exception {
+        NodeType typeA = new NodeType();
+        typeA.setIdentifier(URI.create("id:A"));
+        NodeType typeB = new NodeType();
+        typeB.setIdentifier(URI.create("id:B"));
+
+        File file = tmpfolder.newFile("cow.txt");
+        Files.write(file.toPath(), "moo".getBytes());
+        FileInfo fileInfo = new FileInfo(file.toPath());
+        fileInfo.setFormats(Arrays.asList("text/plain", "info:pronom/x-fmt/111"));
+        fileInfo.setCreationTime(FileTime.fromMillis(1000));
+        Map<FileInfo.Algorithm, String> checksums = new EnumMap<>(FileInfo.Algorithm.class);
+        checksums.put(FileInfo.Algorithm.MD5, "c1b2a3");
+        checksums.put(FileInfo.Algorithm.SHA1, "NOT-HEX");
+        fileInfo.setChecksums(checksums);
+
+        StoredNode node = (StoredNode) store.createNode(URI.create("id:cow"));
+        node.setFileInfo(fileInfo);
+        node.setDomainObject(URI.create("do:cow"));
+        node.setNodeType(typeA);
+        node.addSubNodeType(typeB);
+        node.addSubNodeType(typeA);
+        node.setIgnored(true);
+
+        NodeStore.NodeData stored = store.readData(node.getNumber());
+        assertEquals(URI.create("id:cow"), stored.identifier);
+        assertEquals(URI.create("do:cow"), stored.domainObject);
+        assertEquals(fileInfo, stored.fileInfo);
+        assertEquals(fileInfo.getSize(), stored.fileInfo.getSize());
+        assertEquals(fileInfo.isFile(), stored.fileInfo.isFile());
+        assertEquals(fileInfo.getCreationTime(), stored.fileInfo.getCreationTime());
+        assertEquals(fileInfo.getLastModifiedTime(), stored.fileInfo.getLastModifiedTime());
+        assertEquals("NOT-HEX", stored.fileInfo.getChecksum(FileInfo.Algorithm.SHA1));
+
+        assertSame(typeA, node.getNodeType());
+        assertEquals(Arrays.asList(typeB, typeA), node.getSubNodeTypes());
+        assertTrue(node.isIgnored());
+
+        node.clearNodeTypes();
+        node.setFileInfo(null);
+        node.setIdentifier(URI.create("id:calf"));
+        stored = store.readData(node.getNumber());
+        assertNull(stored.fileInfo);
+        assertNull(node.getNodeType());
+        assertNull(node.getSubNodeTypes());
+        assertEquals(URI.create("id:calf"), node.getIdentifier());
+        assertEquals(URI.create("id:calf"), stored.identifier);
+    }
+
+    /**
+     * Tests that data which fits where the data it replaces was is written over it, rather than growing the store.
+     */
+    @Test
+    public void dataRewrittenInPlaceTest() throws Exception {
+        File file = tmpfolder.newFile("pig.txt");
+        Files.write(file.toPath(), "oink".getBytes());
+        Node node = store.createNode(URI.create("id:pig"));
+        node.setFileInfo(new FileInfo(file.toPath()));
+        long dataSize = store.dataSize();
+
+        for (int i = 0; i < 10; i++) {
+            FileInfo fileInfo = new FileInfo(file.toPath());
+            fileInfo.setLastModifiedTime(FileTime.fromMillis(i));
+            node.setFileInfo(fileInfo);
+            assertEquals(FileTime.fromMillis(i), store.readData(((StoredNode) node).getNumber()).fileInfo.getLastModifiedTime());
+        }
+        assertEquals(dataSize, store.dataSize());
+
+        // Data which no longer fits is written to the end
+        node.setDomainObject(URI.create("do:pig"));
+        assertTrue(store.dataSize() > dataSize);
+        assertEquals(URI.create("do:pig"), node.getDomainObject());
+        assertEquals(file.toPath().toUri(), node.getFileInfo().getLocation());
+    }
+
+    private List<String> identifiers(Node root) {
+        return root.stream().map(n -> n.getIdentifier().toString()).collect(Collectors.toList());
+    }
+}
@@ -8,6 +8,18 @@ import org.junit.Test;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class NodeTest {
 
@@ -31,4 +43,116 @@ public class NodeTest {
             .suppress(Warning.STRICT_INHERITANCE, Warning.NONFINAL_FIELDS)
             .verify();
     }
+
+    /**
+     * Tests that the index of a tree finds nodes by identifier, location and domain object, and is kept up to date as
+     * the tree changes.
+     */
+    @Test
+    public void indexTest() throws URISyntaxException {
+        Node root = node("id:root", "file:/farm", "do:root");
+        Node barn = node("id:barn", "file:/farm/barn", "do:barn");
+        Node cow = node("id:cow", "file:/farm/barn/cow", null);
+        root.addChild(barn);
+        barn.addChild(cow);
+
+        NodeIndex index = cow.getIndex();
+        assertSame(index, root.getIndex());
+        assertEquals(3, index.size());
+        assertSame(barn, index.getNode(new URI("id:barn")));
+        assertSame(cow, index.getNodeByLocation(new URI("file:/farm/barn/cow")));
+        assertSame(root, index.getNodeByDomainObject(new URI("do:root")));
+
+        //Nodes added to the tree are indexed along with their descendants
+        Node pen = node("id:pen", "file:/farm/pen", null);
+        Node pig = node("id:pig", "file:/farm/pen/pig", "do:pig");
+        pen.addChild(pig);
+        root.addChild(pen);
+        assertEquals(5, index.size());
+        assertSame(pig, index.getNodeByDomainObject(new URI("do:pig")));
+
+        //Removed nodes and their descendants are no longer indexed
+        root.removeChild(barn);
+        assertEquals(3, index.size());
+        assertFalse(index.contains(cow));
+        assertNull(index.getNodeByLocation(new URI("file:/farm/barn/cow")));
+        assertSame(cow, barn.getIndex().getNodeByLocation(new URI("file:/farm/barn/cow")));
+
+        //Changed values are indexed
+        pig.setDomainObject(new URI("do:hog"));
+        pig.setIdentifier(new URI("id:hog"));
+        assertNull(index.getNodeByDomainObject(new URI("do:pig")));
+        assertNull(index.getNode(new URI("id:pig")));
+        assertSame(pig, index.getNode(new URI("id:hog")));
+
+        FileInfo info = new FileInfo(new URI("file:/farm/sty"), "sty");
+        pen.setFileInfo(info);
+        assertSame(pen, index.getNodeByLocation(new URI("file:/farm/sty")));
+
+        //Locations changed in place are indexed again when the node is found under its old location
+        info.setLocation(new URI("file:/farm/pen"));
+        assertNull(index.getNodeByLocation(new URI("file:/farm/sty")));
+        assertSame(pen, index.getNodeByLocation(new URI("file:/farm/pen")));
+
+        //Replacing the children of a node replaces them in the index
+        root.setChildren(Arrays.asList(barn));
+        assertEquals(3, index.size());
+        assertTrue(index.contains(cow));
+        assertFalse(index.contains(pig));
+    }
+
+    /**
+     * Tests that streams and walks visit every node of the tree, in pre-order when sequential, and that trees deeper
+     * than the stack can hold can be traversed.
+     */
+    @Test
+    public void traversalTest() throws URISyntaxException {
+        Node root = new Node(new URI("id:root"));
+        List<URI> preOrder = new ArrayList<>();
+        preOrder.add(root.getIdentifier());
+        for (int i = 0; i < 20; i++) {
+            Node barn = new Node(new URI("id:barn" + i));
+            root.addChild(barn);
+            preOrder.add(barn.getIdentifier());
+            for (int j = 0; j < (i % 4) * 200; j++) {
+                Node animal = new Node(new URI("id:barn" + i + "/animal" + j));
+                barn.addChild(animal);
+                preOrder.add(animal.getIdentifier());
+            }
+        }
+
+        Node deepest = root;
+        for (int i = 0; i < 100000; i++) {
+            Node node = new Node(new URI("id:deep" + i));
+            deepest.addChild(node);
+            deepest = node;
+            preOrder.add(node.getIdentifier());
+        }
+
+        assertEquals(preOrder, root.stream().map(Node::getIdentifier).collect(Collectors.toList()));
+        assertEquals(preOrder, root.parallelStream().map(Node::getIdentifier).collect(Collectors.toList()));
+
+        List<URI> walked = new ArrayList<>();
+        root.walk(node -> walked.add(node.getIdentifier()));
+        assertEquals(preOrder, walked);
+
+        //A parallel walk visits each node once, after its parent
+        Set<Node> visited = ConcurrentHashMap.newKeySet();
+        root.parallelWalk(node -> {
+            assertTrue(node.isRoot() || visited.contains(node.getParent()));
+            assertTrue(visited.add(node));
+        });
+        assertEquals(preOrder.size(), visited.size());
+    }
+
+    private Node node(String id, String location, String domainObject) throws URISyntaxException {
+        Node node = new Node(new URI(id));
+        if (location != null) {
+            node.setFileInfo(new FileInfo(new URI(location), location.substring(location.lastIndexOf('/') + 1)));
+        }
+        if (domainObject != null) {
+            node.setDomainObject(new URI(domainObject));
+        }
+        return node;
+    }
 }
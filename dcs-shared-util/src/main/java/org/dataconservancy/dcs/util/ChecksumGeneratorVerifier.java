@@ -19,6 +19,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +31,10 @@ import org.slf4j.LoggerFactory;
  * This class provides helper methods that generate and verify a checksum. Methods are provided to generate checksums
  * either as hex strings or as byte arrays. The verifier method can be used with either two String
  * checksums or an input stream and a stored checksum to check against.
- * 
+ * <p>
+ * When more than one checksum is needed for the same content, {@link #generateChecksums(Collection, InputStream)}
+ * computes all of them from a single read of the stream, rather than re-reading the content once per algorithm.
+ * </p>
  */
 public final class ChecksumGeneratorVerifier {
     
@@ -36,6 +42,23 @@ public final class ChecksumGeneratorVerifier {
     public final static String ALGORITHM_MD5 = "md5";    //same as definition in our own Checksum class
     public final static String ALGORITHM_SHA1 = "sha1";   //same as definition in our own Checksum class
 
+    /**
+     * The fast, non-cryptographic {@link XxHash64} fingerprint, for detecting changes to content.
+     */
+    public final static String ALGORITHM_XXH64 = "xxh64";
+
+    /**
+     * Size of the buffer used when reading streams to be digested.
+     */
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Read buffers are reused per thread, so that digesting many files doesn't allocate a new buffer per file.
+     */
+    private final static ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Generates an MD5 checksum for a given file.
      * 
@@ -48,15 +71,8 @@ public final class ChecksumGeneratorVerifier {
 
                 byte[] mdBytes = generateChecksumAsBytes(ALGORITHM_MD5, inputStream);
                 
-                // Converting to hex string.
-                StringBuilder sb = new StringBuilder("");
-                for (byte mdByte : mdBytes) {
-                    sb.append(Integer.toString(
-                        (mdByte & 0xff) + 0x100, 16).substring(1));
-                }
-
                 inputStream.close();
-                return sb.toString();
+                return toHexString(mdBytes);
             }
             else {
                 LOG.error("Input stream is null!");
@@ -81,15 +97,8 @@ public final class ChecksumGeneratorVerifier {
 
                 byte[] mdBytes =  generateChecksumAsBytes(ALGORITHM_SHA1, inputStream);
                 
-                // Converting to hex string.
-                StringBuilder sb = new StringBuilder("");
-                for (byte mdByte : mdBytes) {
-                    sb.append(Integer.toString(
-                        (mdByte & 0xff) + 0x100, 16).substring(1));
-                }
-
                 inputStream.close();
-                return sb.toString();
+                return toHexString(mdBytes);
             }
             else {
                 LOG.error("Input stream is null!");
@@ -133,7 +142,7 @@ public final class ChecksumGeneratorVerifier {
     public static byte[] generateChecksumAsBytes(String algorithm, byte[] fileContents) {
         MessageDigest md;
         try {
-            md = MessageDigest.getInstance(algorithm);
+            md = newMessageDigest(algorithm);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Unable to calculate checksum for byte array : " + e.getMessage(), e);
         }
@@ -151,24 +160,134 @@ public final class ChecksumGeneratorVerifier {
     public static byte[] generateChecksumAsBytes(String algorithm, InputStream inputStream) {
         MessageDigest md;
         try {
-            md = MessageDigest.getInstance(algorithm);
+            md = newMessageDigest(algorithm);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
 
+        digest(inputStream, md);
+
+        return md.digest();
+    }
+
+    /**
+     * Generates checksums for each of the supplied algorithms, reading the supplied stream only once. The caller is
+     * responsible for closing the supplied Input Stream after this method returns.
+     *
+     * @param algorithms the algorithms to compute, e.g. {@link #ALGORITHM_MD5} and {@link #ALGORITHM_SHA1}
+     * @param inputStream the file's input stream
+     * @return a map of each requested algorithm to its checksum, as a hex string, in the order the algorithms were
+     *         supplied
+     * @throws NoSuchAlgorithmException if any of the algorithm strings does not represent a known algorithm
+     */
+    public static Map<String, String> generateChecksums(Collection<String> algorithms, InputStream inputStream)
+            throws NoSuchAlgorithmException {
+        Map<String, byte[]> digests = generateChecksumsAsBytes(algorithms, inputStream);
+        Map<String, String> checksums = new LinkedHashMap<>(digests.size() * 2);
+        for (Map.Entry<String, byte[]> digest : digests.entrySet()) {
+            checksums.put(digest.getKey(), toHexString(digest.getValue()));
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Generates checksums for each of the supplied algorithms, reading the supplied stream only once. The returned
+     * values are byte arrays, not converted to strings. The caller is responsible for closing the supplied Input
+     * Stream after this method returns.
+     *
+     * @param algorithms the algorithms to compute, e.g. {@link #ALGORITHM_MD5} and {@link #ALGORITHM_SHA1}
+     * @param inputStream the file's input stream
+     * @return a map of each requested algorithm to its checksum in the order the algorithms were supplied
+     * @throws NoSuchAlgorithmException if any of the algorithm strings does not represent a known algorithm
+     */
+    public static Map<String, byte[]> generateChecksumsAsBytes(Collection<String> algorithms, InputStream inputStream)
+            throws NoSuchAlgorithmException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("Input stream must not be null");
+        }
+
+        MessageDigest[] mds = new MessageDigest[algorithms.size()];
+        int i = 0;
+        for (String algorithm : algorithms) {
+            mds[i++] = newMessageDigest(algorithm);
+        }
+
+        digest(inputStream, mds);
+
+        Map<String, byte[]> checksums = new LinkedHashMap<>(mds.length * 2);
+        i = 0;
+        for (String algorithm : algorithms) {
+            checksums.put(algorithm, mds[i++].digest());
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Determines whether checksums can be generated using the supplied algorithm.
+     *
+     * @param algorithm the string representing the algorithm
+     * @return true if a checksum can be generated with the algorithm, false otherwise
+     */
+    public static boolean isSupportedAlgorithm(String algorithm) {
+        try {
+            newMessageDigest(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Converts a digest to a lower-case hex string.
+     *
+     * @param bytes the digest
+     * @return String hex checksum
+     */
+    public static String toHexString(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        int j = 0;
+        for (byte b : bytes) {
+            hex[j++] = HEX_DIGITS[(b >> 4) & 0x0f];
+            hex[j++] = HEX_DIGITS[b & 0x0f];
+        }
+
+        return new String(hex);
+    }
+
+    static MessageDigest newMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+        if (algorithm == null) {
+            throw new NoSuchAlgorithmException("The given algorithm <null> is not acceptable.");
+        }
+
+        if (ALGORITHM_XXH64.equalsIgnoreCase(algorithm)) {
+            return new XxHash64();
+        }
+
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new NoSuchAlgorithmException("The given algorithm <" + algorithm + "> is not acceptable.", e);
+        }
+    }
+
+    /**
+     * Reads the stream to its end, updating every supplied digest with each buffer that is read.
+     */
+    private static void digest(InputStream inputStream, MessageDigest... mds) {
+        byte[] buf = READ_BUFFER.get();
         int read;
-        int size = 1024;
-        byte[] buf = new byte[size];
         try {
-            while ((read = inputStream.read(buf, 0, size)) != -1) {
-                md.update(buf, 0, read);
+            while ((read = inputStream.read(buf, 0, buf.length)) != -1) {
+                for (MessageDigest md : mds) {
+                    md.update(buf, 0, read);
+                }
             }
         } catch (IOException e) {
             throw new RuntimeException("Unable to calculate checksum for Input Stream : " +
                     e.getMessage(), e);
         }
-
-        return md.digest();
     }
 
     /**
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.dcs.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An output stream which calculates checksums, and counts the bytes, of everything written through it. This allows
+ * the fixity of content to be captured while it is being written, instead of reading the content back afterwards.
+ */
+public class ChecksumOutputStream extends FilterOutputStream {
+
+    private final String[] algorithms;
+    private final MessageDigest[] mds;
+    private long byteCount = 0;
+    private Map<String, String> checksums = null;
+    private boolean closed = false;
+
+    /**
+     * Creates a stream which calculates a checksum for each of the supplied algorithms.
+     *
+     * @param out the stream to write to
+     * @param algorithms the algorithms to compute, e.g. {@link ChecksumGeneratorVerifier#ALGORITHM_MD5}
+     * @throws NoSuchAlgorithmException if any of the algorithm strings does not represent a known algorithm
+     */
+    public ChecksumOutputStream(OutputStream out, Collection<String> algorithms) throws NoSuchAlgorithmException {
+        super(out);
+        this.algorithms = algorithms.toArray(new String[algorithms.size()]);
+        this.mds = new MessageDigest[this.algorithms.length];
+        for (int i = 0; i < this.algorithms.length; i++) {
+            mds[i] = ChecksumGeneratorVerifier.newMessageDigest(this.algorithms[i]);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        for (MessageDigest md : mds) {
+            md.update((byte) b);
+        }
+        byteCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        for (MessageDigest md : mds) {
+            md.update(b, off, len);
+        }
+        byteCount += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            super.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes written to this stream
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns the checksums of the content written to this stream. Once this has been called, the checksums are
+     * complete, and nothing more should be written to the stream.
+     *
+     * @return a map of each algorithm to its checksum, as a hex string, in the order the algorithms were supplied
+     */
+    public Map<String, String> getChecksums() {
+        if (checksums == null) {
+            checksums = new LinkedHashMap<>(mds.length * 2);
+            for (int i = 0; i < mds.length; i++) {
+                checksums.put(algorithms[i], ChecksumGeneratorVerifier.toHexString(mds[i].digest()));
+            }
+        }
+        return checksums;
+    }
+}
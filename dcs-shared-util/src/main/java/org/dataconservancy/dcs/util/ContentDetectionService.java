@@ -75,12 +75,24 @@ public class ContentDetectionService {
      * @return {@link java.util.List} of {@link org.dataconservancy.dcs.model.DetectedFormat}s for the provided file.
      */
     public List<DetectedFormat> detectFormats(File file) {
+        return detectFormats(file, FormatScanPolicy.FULL_SCAN);
+    }
+
+    /**
+     * Detect bytestream format of the provided file as {@link #detectFormats(File)} does, reading no more of the
+     * file than is allowed by the supplied {@link FormatScanPolicy}.  Bounding the scan makes identifying large
+     * files much cheaper, at the cost of missing signatures which can only be found in the middle of a file.
+     * @param file - whose formats are to be detected
+     * @param policy - controls how much of the file is read
+     * @return {@link java.util.List} of {@link org.dataconservancy.dcs.model.DetectedFormat}s for the provided file.
+     */
+    public List<DetectedFormat> detectFormats(File file, FormatScanPolicy policy) {
 
         if (!file.exists()) {
             return detectFormats(file.getName());
         }
 
-        List<DetectedFormat> detectedFormats =  droidDriver.detectFormats(file);
+        List<DetectedFormat> detectedFormats =  droidDriver.detectFormats(file, policy);
         //according to the contract, must return this format if none is detected
         if(detectedFormats.size() == 0){
             String unknownType = "application/octet-stream";
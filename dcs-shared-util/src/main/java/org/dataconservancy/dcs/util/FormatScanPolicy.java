@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.dcs.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Controls how much of a file's content is read to detect its format.
+ * <p>
+ * Formats are detected in one of three ways, from cheapest to most expensive:
+ * </p>
+ * <ul>
+ *     <li>Files with a trusted extension are identified by their extension alone, and their content is not read.</li>
+ *     <li>Otherwise, signatures are only searched for within the scan window at the beginning and at the end of
+ *     the file. With a negative scan window, the whole file is searched.</li>
+ *     <li>If the signatures found identify the file as a container, such as a zip or OLE2 file, the container is
+ *     read as much as is needed to identify the format of its contents.</li>
+ * </ul>
+ * <p>
+ * {@link #FULL_SCAN}, which searches the whole of every file, is used unless another policy is given.
+ * </p>
+ */
+public final class FormatScanPolicy {
+
+    /**
+     * Policy which trusts no extensions and searches the whole of every file.
+     */
+    public static final FormatScanPolicy FULL_SCAN = new FormatScanPolicy(-1, Collections.<String>emptySet());
+
+    /**
+     * System property giving the scan window of the policy returned by {@link #fromSystemProperties()}.
+     */
+    public static final String SCAN_WINDOW_PROPERTY = "dcs.format.scan.window";
+
+    /**
+     * System property giving the comma separated trusted extensions of the policy returned by
+     * {@link #fromSystemProperties()}.
+     */
+    public static final String TRUSTED_EXTENSIONS_PROPERTY = "dcs.format.trusted.extensions";
+
+    private final long scanWindow;
+    private final Set<String> trustedExtensions;
+
+    /**
+     * @param scanWindow the number of bytes at the beginning and at the end of a file to search for signatures, or a
+     *                   negative number to search the whole file
+     * @param trustedExtensions the extensions of files which are identified by their extension alone, with or
+     *                          without a leading period; case is ignored
+     */
+    public FormatScanPolicy(long scanWindow, Collection<String> trustedExtensions) {
+        this.scanWindow = scanWindow < 0 ? -1 : scanWindow;
+
+        Set<String> extensions = new TreeSet<>();
+        for (String extension : trustedExtensions) {
+            String normalized = normalizeExtension(extension);
+            if (!normalized.isEmpty()) {
+                extensions.add(normalized);
+            }
+        }
+        this.trustedExtensions = Collections.unmodifiableSet(extensions);
+    }
+
+    /**
+     * Creates the policy configured by system properties. The scan window is given by the
+     * {@value #SCAN_WINDOW_PROPERTY} property, and the trusted extensions by the {@value #TRUSTED_EXTENSIONS_PROPERTY}
+     * property. Whole files are searched, and no extensions are trusted, unless they are set.
+     * @return the configured policy
+     * @throws IllegalArgumentException if the scan window isn't a number
+     */
+    public static FormatScanPolicy fromSystemProperties() {
+        String window = System.getProperty(SCAN_WINDOW_PROPERTY);
+        String extensions = System.getProperty(TRUSTED_EXTENSIONS_PROPERTY);
+        if ((window == null || window.trim().isEmpty()) && (extensions == null || extensions.trim().isEmpty())) {
+            return FULL_SCAN;
+        }
+
+        long scanWindow = -1;
+        if (window != null && !window.trim().isEmpty()) {
+            try {
+                scanWindow = Long.parseLong(window.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(SCAN_WINDOW_PROPERTY + " must be a number of bytes, was " + window,
+                        e);
+            }
+        }
+        return new FormatScanPolicy(scanWindow, extensions != null ? Arrays.asList(extensions.split(","))
+                : Collections.<String>emptyList());
+    }
+
+    /**
+     * @return the number of bytes at the beginning and at the end of a file that are searched for signatures, or -1
+     * if the whole file is searched
+     */
+    public long getScanWindow() {
+        return scanWindow;
+    }
+
+    /**
+     * @return the normalized extensions of the files which are identified by their extension alone
+     */
+    public Set<String> getTrustedExtensions() {
+        return trustedExtensions;
+    }
+
+    /**
+     * @param filename the name of a file
+     * @return true if the file should be identified by its extension alone
+     */
+    public boolean isTrusted(String filename) {
+        if (trustedExtensions.isEmpty() || filename == null || filename.lastIndexOf('.') < 0) {
+            return false;
+        }
+        return trustedExtensions.contains(normalizeExtension(filename.substring(filename.lastIndexOf('.'))));
+    }
+
+    private static String normalizeExtension(String extension) {
+        return extension.trim().replaceFirst("^[.]*", "").toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        FormatScanPolicy that = (FormatScanPolicy) o;
+        return scanWindow == that.scanWindow && trustedExtensions.equals(that.trustedExtensions);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(scanWindow) + trustedExtensions.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "FormatScanPolicy{scanWindow=" + scanWindow + ", trustedExtensions=" + trustedExtensions + "}";
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.dcs.util;
+
+import java.security.MessageDigest;
+
+/**
+ * The 64 bit xxHash of content, with a seed of zero. xxHash is not a cryptographic hash, but it is much faster than
+ * one, so it is suited to telling whether content has changed when the content doesn't need to be protected from
+ * deliberate tampering.
+ * <p>
+ * It is a {@link MessageDigest} so that it can be computed along with other checksums, for instance by
+ * {@link ChecksumGeneratorVerifier#generateChecksumsAsBytes(java.util.Collection, java.io.InputStream)} with the
+ * {@link ChecksumGeneratorVerifier#ALGORITHM_XXH64} algorithm. The digest is the hash as 8 big-endian bytes, which is
+ * the canonical form of xxHash values.
+ * </p>
+ */
+public final class XxHash64 extends MessageDigest implements Cloneable {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final int STRIPE_SIZE = 32;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+
+    // Input which doesn't yet fill a stripe
+    private byte[] buffer = new byte[STRIPE_SIZE];
+    private int buffered;
+
+    public XxHash64() {
+        super(ChecksumGeneratorVerifier.ALGORITHM_XXH64);
+        engineReset();
+    }
+
+    /**
+     * Hashes an array of bytes.
+     *
+     * @param bytes the bytes to hash
+     * @return the hash of the bytes
+     */
+    public static long hash(byte[] bytes) {
+        XxHash64 hash = new XxHash64();
+        hash.engineUpdate(bytes, 0, bytes.length);
+        return hash.getValue();
+    }
+
+    /**
+     * Answers the hash of the content so far, without resetting the digest.
+     *
+     * @return the hash of the content
+     */
+    public long getValue() {
+        long h;
+        if (totalLength >= STRIPE_SIZE) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = v3 + PRIME64_5;
+        }
+
+        h += totalLength;
+
+        int i = 0;
+        for (; i + 8 <= buffered; i += 8) {
+            h ^= round(0, readLong(buffer, i));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (i + 4 <= buffered) {
+            h ^= (readInt(buffer, i) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            i += 4;
+        }
+        for (; i < buffered; i++) {
+            h ^= (buffer[i] & 0xFFL) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 8;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        buffer[buffered++] = input;
+        totalLength++;
+        if (buffered == STRIPE_SIZE) {
+            processStripe(buffer, 0);
+            buffered = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        totalLength += length;
+        int end = offset + length;
+
+        if (buffered > 0) {
+            int fill = Math.min(STRIPE_SIZE - buffered, length);
+            System.arraycopy(input, offset, buffer, buffered, fill);
+            buffered += fill;
+            offset += fill;
+            if (buffered < STRIPE_SIZE) {
+                return;
+            }
+            processStripe(buffer, 0);
+            buffered = 0;
+        }
+
+        for (; offset + STRIPE_SIZE <= end; offset += STRIPE_SIZE) {
+            processStripe(input, offset);
+        }
+
+        buffered = end - offset;
+        System.arraycopy(input, offset, buffer, 0, buffered);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long h = getValue();
+        engineReset();
+
+        byte[] digest = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            digest[i] = (byte) h;
+            h >>>= 8;
+        }
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        v1 = PRIME64_1 + PRIME64_2;
+        v2 = PRIME64_2;
+        v3 = 0;
+        v4 = -PRIME64_1;
+        totalLength = 0;
+        buffered = 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        XxHash64 clone = (XxHash64) super.clone();
+        clone.buffer = buffer.clone();
+        return clone;
+    }
+
+    private void processStripe(byte[] input, int offset) {
+        v1 = round(v1, readLong(input, offset));
+        v2 = round(v2, readLong(input, offset + 8));
+        v3 = round(v3, readLong(input, offset + 16));
+        v4 = round(v4, readLong(input, offset + 24));
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL)
+                | (bytes[offset + 1] & 0xFFL) << 8
+                | (bytes[offset + 2] & 0xFFL) << 16
+                | (bytes[offset + 3] & 0xFFL) << 24
+                | (bytes[offset + 4] & 0xFFL) << 32
+                | (bytes[offset + 5] & 0xFFL) << 40
+                | (bytes[offset + 6] & 0xFFL) << 48
+                | (bytes[offset + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+                | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -17,13 +17,17 @@ package org.dataconservancy.dcs.util.droid;
 
 import org.dataconservancy.dcs.model.DetectedFormat;
 import org.dataconservancy.dcs.util.FilePathUtil;
+import org.dataconservancy.dcs.util.FormatScanPolicy;
 import uk.gov.nationalarchives.droid.core.interfaces.IdentificationResult;
 import uk.gov.nationalarchives.droid.core.interfaces.IdentificationResultCollection;
 import uk.gov.nationalarchives.droid.core.signature.FileFormat;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Wraps the Droid api and provides an easy method to be called by the service implementation.
@@ -34,6 +38,19 @@ public class DroidDriver {
     public final static String MIME_TYPE_SCHEME_URI = "http://www.iana.org/assignments/media-types/";
     DroidIdentifier droidIdentifier = new DroidIdentifier();
 
+    // The number of scan windows to keep identifiers for, beyond which the least recently used is released
+    private static final int MAX_BOUNDED_IDENTIFIERS = 4;
+
+    // Identifiers for bounded scans, keyed by their scan window. The scan window is shared by everything using an
+    // identifier, so each window needs an identifier of its own.
+    private final Map<Long, DroidIdentifier> boundedIdentifiers = Collections.synchronizedMap(
+            new LinkedHashMap<Long, DroidIdentifier>(MAX_BOUNDED_IDENTIFIERS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, DroidIdentifier> eldest) {
+                    return size() > MAX_BOUNDED_IDENTIFIERS;
+                }
+            });
+
     /**
      * Takes a file and returns a list of DetectedFormats after running file identification.  If the file
      * doesn't actually exist it will simply use detection based on the file name.
@@ -42,13 +59,26 @@ public class DroidDriver {
      * @return a List of the detected file formats
      */
     public List<DetectedFormat> detectFormats(File file) {
+        return detectFormats(file, FormatScanPolicy.FULL_SCAN);
+    }
+
+    /**
+     * Takes a file and returns a list of DetectedFormats after running file identification as directed by the
+     * policy.  If the file doesn't actually exist, or the policy trusts its extension, it will simply use detection
+     * based on the file name.
+     *
+     * @param file  the file.
+     * @param policy the policy controlling how much of the file is read
+     * @return a List of the detected file formats
+     */
+    public List<DetectedFormat> detectFormats(File file, FormatScanPolicy policy) {
         List<DetectedFormat> formats = new ArrayList<>();
 
-        if (!file.exists()) {
+        if (!file.exists() || policy.isTrusted(file.getName())) {
             return detectFormats(file.getName());
         }
 
-        IdentificationResultCollection identificationResultCollection = droidIdentifier.detectFormat(file);
+        IdentificationResultCollection identificationResultCollection = getIdentifier(policy).detectFormat(file);
         for (IdentificationResult identificationResult : identificationResultCollection.getResults()){
             DetectedFormat format = new DetectedFormat();
             format.setId(identificationResult.getPuid());
@@ -74,6 +104,17 @@ public class DroidDriver {
     }
 
 
+    /**
+     * @param policy the policy being applied
+     * @return the identifier that scans as much of a file as the policy allows
+     */
+    private DroidIdentifier getIdentifier(FormatScanPolicy policy) {
+        if (policy.getScanWindow() < 0) {
+            return droidIdentifier;
+        }
+        return boundedIdentifiers.computeIfAbsent(policy.getScanWindow(), DroidIdentifier::new);
+    }
+
     /**
      * Detect expected format types based on a filename only
      * @param filename The name of the file to detect
@@ -18,12 +18,14 @@ package org.dataconservancy.dcs.util.droid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.gov.nationalarchives.droid.container.ContainerFileIdentificationRequestFactory;
+import uk.gov.nationalarchives.droid.container.ContainerSignatureDefinitions;
 import uk.gov.nationalarchives.droid.container.ContainerSignatureSaxParser;
 import uk.gov.nationalarchives.droid.container.ole2.Ole2Identifier;
 import uk.gov.nationalarchives.droid.container.ole2.Ole2IdentifierEngine;
 import uk.gov.nationalarchives.droid.container.zip.ZipIdentifier;
 import uk.gov.nationalarchives.droid.container.zip.ZipIdentifierEngine;
 import uk.gov.nationalarchives.droid.core.BinarySignatureIdentifier;
+import uk.gov.nationalarchives.droid.core.SignatureParseException;
 import uk.gov.nationalarchives.droid.core.interfaces.IdentificationMethod;
 import uk.gov.nationalarchives.droid.core.interfaces.IdentificationRequest;
 import uk.gov.nationalarchives.droid.core.interfaces.IdentificationResult;
@@ -40,38 +42,74 @@ import uk.gov.nationalarchives.droid.core.interfaces.resource.RequestMetaData;
 import uk.gov.nationalarchives.droid.core.signature.FileFormat;
 import uk.gov.nationalarchives.droid.core.signature.droid6.FFSignatureFile;
 
+import javax.xml.bind.JAXBException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Wrapper class for the DROID API. 
- *
+ * <p>
+ * A DroidIdentifier is safe to use from multiple threads at once. The parsed signature files are shared by every
+ * identification, and everything specific to identifying a single file is held by that identification's own
+ * request, so files can be identified concurrently without any locking.
+ * </p>
  */
 public class DroidIdentifier {
     
     private final Logger log = LoggerFactory.getLogger(DroidIdentifier.class);
 
-    private String signatureFilePath;
-    private String containerSignatureFilePath;
     private BinarySignatureIdentifier droid;
     private ContainerIdentifierFactory containerIdentifierFactory;
     private ArchiveFormatResolver containerFormatResolver;
-    private IdentificationRequest identificationRequest;
     private boolean initialized;
+
+    // Formats indexed once when the signatures are loaded, so that lookups never need to reach into DROID
+    private Map<String, FileFormat> formatsByPuid = Collections.emptyMap();
+    private Map<String, List<FileFormat>> formatsByExtension = Collections.emptyMap();
     
-    // This is set to -1 so the entire file is always scanned.
-    private int maxBytes = -1;
+    // The number of bytes searched at each end of a file, -1 to scan the entire file.
+    private final long maxBytes;
 
+    /**
+     * Creates an identifier which scans the entire content of every file.
+     */
     public DroidIdentifier() {
+        this(-1);
+    }
+
+    /**
+     * Creates an identifier which only searches for binary signatures within the given number of bytes at the
+     * beginning and at the end of a file. Container formats are still read as much as is needed to identify them.
+     *
+     * @param maxBytesToScan the number of bytes to search at each end of a file, or a negative number to scan the
+     *                       entire file
+     */
+    public DroidIdentifier(long maxBytesToScan) {
+        this.maxBytes = maxBytesToScan < 0 ? -1 : maxBytesToScan;
         if (!initialized) {
             initializeDroid();
         }
     }
 
+    /**
+     * @return the number of bytes searched at each end of a file, or -1 if the entire file is scanned
+     */
+    public long getMaxBytesToScan() {
+        return maxBytes;
+    }
+
     /**
      * Identifies the format of a given file.
      * 
@@ -80,33 +118,42 @@ public class DroidIdentifier {
      */
     public IdentificationResultCollection detectFormat(File file) {
 
-        openIdentificationRequest(file);
-        droid.setMaxBytesToScan(maxBytes);
-        IdentificationResultCollection results = droid.matchBinarySignatures(identificationRequest);
-        results = processContainerResults(results);
-        droid.removeLowerPriorityHits(results);
-        if (results.getResults() != null && results.getResults().isEmpty()) {
-            // last resort check via file extension.
-            results = processExtensions();
+        IdentificationRequest identificationRequest = openIdentificationRequest(file);
+        try {
+            IdentificationResultCollection results = droid.matchBinarySignatures(identificationRequest);
+            results = processContainerResults(results, identificationRequest);
+            droid.removeLowerPriorityHits(results);
+            if (results.getResults() != null && results.getResults().isEmpty()) {
+                // last resort check via file extension.
+                results = processExtensions(identificationRequest);
+            }
+            droid.checkForExtensionsMismatches(results, identificationRequest.getExtension());
+            return results;
+        } finally {
+            closeIdentificationRequest(identificationRequest);
         }
-        droid.checkForExtensionsMismatches(results, identificationRequest.getExtension());
-        closeIdentificationRequest();
-        return results;
     }
 
     /**
      * Look up file formats applicable to the provided file extension
-     * @param extension the file extension
-     * @return List of applicable file formats
+     * @param extension the file extension, case is ignored
+     * @return unmodifiable List of applicable file formats, or null if there are none
      */
     public List<FileFormat> getFileFormatByExtension(String extension) {
-        try {
-            return retrieveSigFileDetails().getFileFormatsForExtension(extension);
-        } catch (Exception e) {
-            log.error("Could not retrieve Droid Signature file to looking file format for given extension \""
-                    + extension + "\"", e);
+        if (extension == null) {
+            return null;
         }
-        return null;
+        List<FileFormat> formats = formatsByExtension.get(extension);
+        return formats != null ? formats : formatsByExtension.get(extension.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Look up the file format with the provided PRONOM unique identifier
+     * @param puid the PUID of the format
+     * @return the file format, or null if there is none
+     */
+    public FileFormat getFileFormatByPuid(String puid) {
+        return puid != null ? formatsByPuid.get(puid) : null;
     }
     
     /**
@@ -114,32 +161,32 @@ public class DroidIdentifier {
      * returns the results as-is.
      * 
      * @param results  the collection of identification results
+     * @param identificationRequest the request for the file being identified
      * @return processed results
      */
-    private IdentificationResultCollection processContainerResults(IdentificationResultCollection results) {
-        IdentificationResultCollection containerResults = determineContainerFormats(results);
+    private IdentificationResultCollection processContainerResults(IdentificationResultCollection results,
+                                                                   IdentificationRequest identificationRequest) {
+        IdentificationResultCollection containerResults = determineContainerFormats(results, identificationRequest);
         
         if (containerResults == null) {
             return results;
         }
         else {
             for (IdentificationResult identificationResult : results.getResults()) {
-                try {
-                    FileFormat fileFormat = retrieveSigFileDetails().getFileFormat(identificationResult.getPuid());
-                    IdentificationResultImpl result = new IdentificationResultImpl();
-                    result.setMimeType(fileFormat.getMimeType());
-                    result.setName(fileFormat.getName());
-                    result.setVersion(fileFormat.getVersion());
-                    result.setPuid(fileFormat.getPUID());
-                    result.setMethod(IdentificationMethod.CONTAINER);
-                    result.setRequestMetaData(identificationResult.getMetaData());
-                    containerResults.removeResult(identificationResult);
-                    containerResults.addResult(result);
-                }
-                catch (Exception e) {
-                    log.error("Could not get the fileFormat.", e);
+                FileFormat fileFormat = getFileFormatByPuid(identificationResult.getPuid());
+                if (fileFormat == null) {
+                    log.error("Could not get the fileFormat for " + identificationResult.getPuid() + ".");
+                    continue;
                 }
-                
+                IdentificationResultImpl result = new IdentificationResultImpl();
+                result.setMimeType(fileFormat.getMimeType());
+                result.setName(fileFormat.getName());
+                result.setVersion(fileFormat.getVersion());
+                result.setPuid(fileFormat.getPUID());
+                result.setMethod(IdentificationMethod.CONTAINER);
+                result.setRequestMetaData(identificationResult.getMetaData());
+                containerResults.removeResult(identificationResult);
+                containerResults.addResult(result);
             }
             return containerResults;
         }
@@ -149,16 +196,17 @@ public class DroidIdentifier {
      * Identifies a container file's format.
      * 
      * @param results the collection of identification results
+     * @param identificationRequest the request for the file being identified
      * @return processed results
      */
-    private IdentificationResultCollection determineContainerFormats(IdentificationResultCollection results) {
+    private IdentificationResultCollection determineContainerFormats(IdentificationResultCollection results,
+                                                                     IdentificationRequest identificationRequest) {
         
         for (IdentificationResult identificationResult : results.getResults()) {
             String format = containerFormatResolver.forPuid(identificationResult.getPuid());
             if (format != null) {
                 try {
                     ContainerIdentifier containerIdentifier = containerIdentifierFactory.getIdentifier(format);
-                    containerIdentifier.setMaxBytesToScan(maxBytes);
                     IdentificationResultCollection containerResults = containerIdentifier.submit(identificationRequest);
                     if (containerResults.getResults().size() > 0) {
                         droid.removeLowerPriorityHits(containerResults);
@@ -183,9 +231,10 @@ public class DroidIdentifier {
     /**
      * Tries to identify the file using its extension as a last resort. This should only be called as a last resort.
      * 
+     * @param identificationRequest the request for the file being identified
      * @return processed results
      */
-    private IdentificationResultCollection processExtensions() {
+    private IdentificationResultCollection processExtensions(IdentificationRequest identificationRequest) {
         return droid.matchExtensions(identificationRequest, false);
     }
 
@@ -194,10 +243,17 @@ public class DroidIdentifier {
      */
     private void initializeDroid() {
         try {
-            setSignatureFiles();
+            DroidSignatureFileManager fileManager = new DroidSignatureFileManager();
+
+            // The container signatures are parsed in the background while the binary signatures are loaded
+            File containerFile = fileManager.getLatestContainerFile();
+            String containerSignatureFilePath = containerFile != null ? containerFile.getPath() : null;
+            CompletableFuture<ContainerSignatureDefinitions> containerSignatures =
+                    CompletableFuture.supplyAsync(() -> parseContainerSignatures(containerSignatureFilePath));
+
             droid = new BinarySignatureIdentifier();
-            droid.setSignatureFile(signatureFilePath);
-            droid.init();
+            indexFormats(loadBinarySignatures(fileManager));
+            droid.setMaxBytesToScan(maxBytes);
             
             containerIdentifierFactory = new ContainerIdentifierFactoryImpl();
             containerFormatResolver = new ArchiveFormatResolverImpl();
@@ -205,8 +261,11 @@ public class DroidIdentifier {
             Ole2Identifier ole2Identifier = new Ole2Identifier();
             ZipIdentifier zipIdentifier = new ZipIdentifier();
             
+            // Both container identifiers share the one parse of the container signatures
+            ContainerSignatureSaxParser containerSignatureParser = new ParsedContainerSignatures(containerSignatures);
+
             ole2Identifier.setSignatureFilePath(containerSignatureFilePath);
-            ole2Identifier.setSignatureFileParser(new ContainerSignatureSaxParser());
+            ole2Identifier.setSignatureFileParser(containerSignatureParser);
             ole2Identifier.setContainerType("OLE2");
             ole2Identifier.setDroidCore(droid);
             ole2Identifier.setContainerIdentifierFactory(containerIdentifierFactory);
@@ -217,7 +276,7 @@ public class DroidIdentifier {
             ole2Identifier.init();
             
             zipIdentifier.setSignatureFilePath(containerSignatureFilePath);
-            zipIdentifier.setSignatureFileParser(new ContainerSignatureSaxParser());
+            zipIdentifier.setSignatureFileParser(containerSignatureParser);
             zipIdentifier.setContainerType("ZIP");
             zipIdentifier.setDroidCore(droid);
             zipIdentifier.setContainerIdentifierFactory(containerIdentifierFactory);
@@ -226,6 +285,11 @@ public class DroidIdentifier {
             zipIdentifierEngine.setRequestFactory(new ContainerFileIdentificationRequestFactory());
             zipIdentifier.setIdentifierEngine(zipIdentifierEngine);
             zipIdentifier.init();
+
+            // The scan limit is shared by every identification, so it is only ever set here. Containers are
+            // identified from their structure, which may be anywhere in the file, so they are always fully scanned.
+            ole2Identifier.setMaxBytesToScan(-1);
+            zipIdentifier.setMaxBytesToScan(-1);
             initialized = true;
         }
         catch (Exception e) {
@@ -233,27 +297,107 @@ public class DroidIdentifier {
         }
     }
     
+    /**
+     * Loads the binary signatures into DROID from the compiled signature index, falling back to DROID parsing the
+     * signature file itself if the index can't be used.
+     *
+     * @param fileManager the manager of the signature files
+     * @return the signatures loaded into DROID
+     * @throws Exception if the signature file can't be parsed
+     */
+    private FFSignatureFile loadBinarySignatures(DroidSignatureFileManager fileManager) throws Exception {
+        Field sigFileField = BinarySignatureIdentifier.class.getDeclaredField("sigFile");
+        sigFileField.setAccessible(true);
+
+        byte[] signatureXml = fileManager.getSignatureFileContent();
+        if (signatureXml != null) {
+            try {
+                FFSignatureFile signatureFile = new DroidSignatureIndex().load(fileManager.getSignatureFileName(),
+                        signatureXml);
+                sigFileField.set(droid, signatureFile);
+                return signatureFile;
+            } catch (Exception e) {
+                log.warn("Could not load the signature index, parsing the signature file instead.", e);
+            }
+        }
+
+        File signatureFile = fileManager.getLatestSignatureFile();
+        if (signatureFile != null) {
+            droid.setSignatureFile(signatureFile.getPath());
+        }
+        droid.init();
+        return (FFSignatureFile) sigFileField.get(droid);
+    }
+
+    /**
+     * Indexes the formats of the loaded signatures by PUID and by extension. Extensions are indexed as DROID gives
+     * them, and in upper and lower case, so the usual lookups don't need to change their case.
+     *
+     * @param signatureFile the signatures loaded into DROID
+     */
+    private void indexFormats(FFSignatureFile signatureFile) {
+        Map<String, FileFormat> byPuid = new HashMap<>();
+        Map<String, List<FileFormat>> byExtension = new HashMap<>();
+
+        for (int i = 0; i < signatureFile.getNumFileFormats(); i++) {
+            FileFormat format = signatureFile.getFileFormat(i);
+            byPuid.put(format.getPUID(), format);
+
+            for (String extension : format.getExtensions()) {
+                List<FileFormat> formats = signatureFile.getFileFormatsForExtension(extension);
+                if (formats != null && !byExtension.containsKey(extension)) {
+                    List<FileFormat> indexed = Collections.unmodifiableList(new ArrayList<>(formats));
+                    byExtension.put(extension, indexed);
+                    byExtension.putIfAbsent(extension.toUpperCase(Locale.ROOT), indexed);
+                    byExtension.putIfAbsent(extension.toLowerCase(Locale.ROOT), indexed);
+                }
+            }
+        }
+
+        formatsByPuid = Collections.unmodifiableMap(byPuid);
+        formatsByExtension = Collections.unmodifiableMap(byExtension);
+    }
+
+    /**
+     * Parses the container signature file.
+     *
+     * @param containerSignatureFilePath the path of the container signature file
+     * @return the container signatures
+     */
+    private static ContainerSignatureDefinitions parseContainerSignatures(String containerSignatureFilePath) {
+        try (InputStream in = new FileInputStream(containerSignatureFilePath)) {
+            return new ContainerSignatureSaxParser().parse(in);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
     /**
      * Helper method to open an identification request.
+     *
+     * @param file the file to be identified
+     * @return the request for the file
      */
-    private void openIdentificationRequest(File file) {
-        try {
-            URI resourceUri = file.toURI();
-            RequestMetaData metadata = new RequestMetaData(file.length(), file.lastModified(), file.getName());
-            RequestIdentifier requestIdentifier = new RequestIdentifier(resourceUri);
-            identificationRequest = new FileSystemIdentificationRequest(metadata, requestIdentifier);
-            FileInputStream inputStream = new FileInputStream(file);
+    private IdentificationRequest openIdentificationRequest(File file) {
+        URI resourceUri = file.toURI();
+        RequestMetaData metadata = new RequestMetaData(file.length(), file.lastModified(), file.getName());
+        RequestIdentifier requestIdentifier = new RequestIdentifier(resourceUri);
+        IdentificationRequest identificationRequest = new FileSystemIdentificationRequest(metadata, requestIdentifier);
+        try (FileInputStream inputStream = new FileInputStream(file)) {
             identificationRequest.open(inputStream);
         }
         catch (Exception e) {
             log.error("Could not open identification request.", e);
         }
+        return identificationRequest;
     }
     
     /**
      * helper method to close an identification request.
+     *
+     * @param identificationRequest the request to close
      */
-    private void closeIdentificationRequest() {
+    private void closeIdentificationRequest(IdentificationRequest identificationRequest) {
         try {
             identificationRequest.close();
         }
@@ -263,25 +407,23 @@ public class DroidIdentifier {
     }
 
     /**
-     * Helper method that initializes DroidSignatureFile and sets signature files.
+     * Container signature parser which gives every container identifier the same container signatures, parsed once.
      */
-    private void setSignatureFiles() {
-        DroidSignatureFileManager fileManager = new DroidSignatureFileManager();
-        
-        File signatureFile = fileManager.getLatestSignatureFile();
-        if (signatureFile != null) {
-            signatureFilePath = signatureFile.getPath();
-        }
+    private static class ParsedContainerSignatures extends ContainerSignatureSaxParser {
+        private final CompletableFuture<ContainerSignatureDefinitions> definitions;
 
-        File containerFile = fileManager.getLatestContainerFile();
-        if (containerFile != null) {
-            containerSignatureFilePath = containerFile.getPath();
+        private ParsedContainerSignatures(CompletableFuture<ContainerSignatureDefinitions> definitions)
+                throws JAXBException {
+            this.definitions = definitions;
         }
-    }
 
-    private FFSignatureFile retrieveSigFileDetails() throws Exception {
-        Field privateField = BinarySignatureIdentifier.class.getDeclaredField("sigFile");
-        privateField.setAccessible(true);
-        return (FFSignatureFile) privateField.get(droid);
+        @Override
+        public ContainerSignatureDefinitions parse(InputStream in) throws SignatureParseException {
+            try {
+                return definitions.join();
+            } catch (CompletionException e) {
+                throw new SignatureParseException("Could not parse the container signature file.", e.getCause());
+            }
+        }
     }
 }
@@ -148,6 +148,32 @@ public class DroidSignatureFileManager {
         */
     }
 
+    /**
+     * Gets the name of the signature file whose content is returned by {@link #getSignatureFileContent()}.
+     *
+     * @return The name of the signature file.
+     */
+    public String getSignatureFileName() {
+        return DEFAULT_SIGNATURE_FILE.substring(DEFAULT_SIGNATURE_FILE.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Reads the signature file from the classpath, without copying it to a file first.
+     *
+     * @return The content of the signature file, or null if it could not be read.
+     */
+    public byte[] getSignatureFileContent() {
+        try (InputStream signatureFileStream = DroidSignatureFileManager.class.getResourceAsStream(DEFAULT_SIGNATURE_FILE)) {
+            if (signatureFileStream != null) {
+                return IOUtils.toByteArray(signatureFileStream);
+            }
+        } catch (IOException e) {
+            log.error("Error reading classpath signature file: " + DEFAULT_SIGNATURE_FILE + " exception: " + e.getMessage());
+        }
+
+        return null;
+    }
+
     /**
      * Gets the latest droid container file
      *
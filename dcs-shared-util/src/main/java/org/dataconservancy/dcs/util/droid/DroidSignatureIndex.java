@@ -0,0 +1,534 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.dcs.util.droid;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+import uk.gov.nationalarchives.droid.core.BinarySignatureIdentifier;
+import uk.gov.nationalarchives.droid.core.SignatureFileParser;
+import uk.gov.nationalarchives.droid.core.SignatureParseException;
+import uk.gov.nationalarchives.droid.core.signature.FileFormat;
+import uk.gov.nationalarchives.droid.core.signature.droid6.FFSignatureFile;
+import uk.gov.nationalarchives.droid.core.signature.xml.SimpleElement;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Loads DROID binary signature files, keeping a compiled index of each signature file so later loads don't have to
+ * parse its XML.
+ * <p>
+ * DROID builds its signature model from the XML by looking up a class for every element and a method for every
+ * parent and child, failing most of those lookups by throwing exceptions. That, rather than reading the XML, is what
+ * makes loading the signature file slow. This class builds the same model with each lookup made once and cached, and
+ * records the elements it was built from in a compact binary index. When the signature file is next loaded, the model
+ * is rebuilt straight from the index without parsing any XML.
+ * </p>
+ * <p>
+ * An index is only used if it was compiled from exactly the same signature file, by the same version of DROID. If
+ * there is no such index, or it can't be read, the XML is parsed and the index compiled again. If the index can't be
+ * written, the signature file is still loaded from its XML.
+ * </p>
+ * <p>
+ * As the index is trusted to build the model, it is only read from or written to a directory which belongs to the
+ * current user and which no one else can write to. The directory is created readable only by its owner, and if an
+ * existing directory fails those checks the signature file is loaded from its XML without an index.
+ * </p>
+ */
+public class DroidSignatureIndex {
+
+    /**
+     * System property naming the directory in which compiled signature indexes are kept.
+     */
+    public static final String INDEX_DIRECTORY_PROPERTY = "dcs.droid.index.dir";
+
+    private static final int MAGIC = 0x44534958;
+    private static final int VERSION = 1;
+
+    private static final byte END_OF_INDEX = 0;
+    private static final byte START_ELEMENT = 1;
+    private static final byte TEXT = 2;
+    private static final byte END_ELEMENT = 3;
+
+    private static final Set<PosixFilePermission> OWNER_ONLY =
+            EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+
+    private static final String FORMAT_PACKAGE = FileFormat.class.getPackage().getName();
+    private static final String SIGNATURE_PACKAGE = FFSignatureFile.class.getPackage().getName();
+
+    private final Logger log = LoggerFactory.getLogger(DroidSignatureIndex.class);
+
+    private final File indexDirectory;
+
+    /**
+     * Creates an index kept in the directory named by the {@value #INDEX_DIRECTORY_PROPERTY} system property, or in
+     * <tt>.dataconservancy/droid-index</tt> under the user's home directory if it isn't set.
+     */
+    public DroidSignatureIndex() {
+        this(new File(System.getProperty(INDEX_DIRECTORY_PROPERTY, System.getProperty("user.home") + File.separator
+                + ".dataconservancy" + File.separator + "droid-index")));
+    }
+
+    /**
+     * @param indexDirectory the directory in which compiled signature indexes are kept
+     */
+    public DroidSignatureIndex(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Loads a binary signature file, ready for use in identification.
+     *
+     * @param name the name of the signature file, which names its index
+     * @param signatureXml the content of the signature file
+     * @return the signature file
+     * @throws SignatureParseException if the signature file can't be parsed
+     */
+    public FFSignatureFile load(String name, byte[] signatureXml) throws SignatureParseException {
+        File indexFile = getIndexFile(name);
+        long checksum = checksum(signatureXml);
+        boolean trusted = isTrustedDirectory();
+
+        if (trusted && indexFile.isFile()) {
+            try {
+                FFSignatureFile signatureFile = readIndex(Files.readAllBytes(indexFile.toPath()), checksum,
+                        signatureXml.length);
+                if (signatureFile != null) {
+                    signatureFile.prepareForUse();
+                    return signatureFile;
+                }
+                log.info("Signature index " + indexFile + " is out of date, recompiling it.");
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to read signature index " + indexFile + ", recompiling it: " + e.getMessage());
+            }
+        }
+
+        ModelBuilder builder = new ModelBuilder(true);
+        parseXml(signatureXml, builder);
+        if (trusted) {
+            writeIndex(indexFile, builder, checksum, signatureXml.length);
+        }
+
+        FFSignatureFile signatureFile = builder.getSignatureFile();
+        signatureFile.prepareForUse();
+        return signatureFile;
+    }
+
+    /**
+     * @param name the name of a signature file
+     * @return the file its compiled index is kept in
+     */
+    File getIndexFile(String name) {
+        return new File(indexDirectory, name + ".idx");
+    }
+
+    /*
+     * Answers whether the index directory belongs to the current user and can't be written by anyone else, creating
+     * it readable only by its owner if it doesn't exist.
+     */
+    private boolean isTrustedDirectory() {
+        Path directory = indexDirectory.toPath();
+        try {
+            boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+                if (posix) {
+                    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } else {
+                    Files.createDirectories(directory);
+                }
+            }
+
+            UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)
+                    || !user.equals(Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS))) {
+                log.warn("Not using signature index directory " + directory + ", as it isn't a directory owned by "
+                        + user.getName());
+                return false;
+            }
+
+            if (posix) {
+                Set<PosixFilePermission> permissions =
+                        Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS);
+                if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+                        || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                    log.warn("Not using signature index directory " + directory + ", as others can write to it");
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            log.warn("Unable to use signature index directory " + directory + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void parseXml(byte[] signatureXml, ModelBuilder builder) throws SignatureParseException {
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(new InputSource(new InputStreamReader(
+                    new ByteArrayInputStream(signatureXml), StandardCharsets.UTF_8)), new XmlHandler(builder));
+        } catch (Exception e) {
+            throw new SignatureParseException(e.getMessage(), e);
+        }
+    }
+
+    private FFSignatureFile readIndex(byte[] index, long checksum, int length) throws SignatureParseException {
+        ByteBuffer buffer = ByteBuffer.wrap(index);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !droidVersion().equals(readString(buffer))
+                    || buffer.getLong() != checksum || buffer.getInt() != length) {
+                return null;
+            }
+
+            String[] names = new String[readCount(buffer)];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = readString(buffer);
+            }
+
+            ModelBuilder builder = new ModelBuilder(false);
+            byte event;
+            while ((event = buffer.get()) != END_OF_INDEX) {
+                switch (event) {
+                    case START_ELEMENT:
+                        String element = names[buffer.getInt()];
+                        int attributeCount = readCount(buffer);
+                        Map<String, String> attributes = new LinkedHashMap<>();
+                        for (int i = 0; i < attributeCount; i++) {
+                            attributes.put(names[buffer.getInt()], readString(buffer));
+                        }
+                        builder.startElement(element, attributes);
+                        break;
+                    case TEXT:
+                        builder.text(readString(buffer));
+                        break;
+                    case END_ELEMENT:
+                        builder.endElement(names[buffer.getInt()]);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown event " + event + " in signature index");
+                }
+            }
+            return builder.getSignatureFile();
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("Signature index is truncated", e);
+        }
+    }
+
+    private void writeIndex(File indexFile, ModelBuilder builder, long checksum, int length) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, droidVersion());
+            out.writeLong(checksum);
+            out.writeInt(length);
+            out.writeInt(builder.names.size());
+            for (String name : builder.names) {
+                writeString(out, name);
+            }
+            builder.events.writeTo(out);
+            out.writeByte(END_OF_INDEX);
+            out.flush();
+
+            Path tmpFile = Files.createTempFile(indexDirectory.toPath(), indexFile.getName(), ".tmp");
+            Files.write(tmpFile, bytes.toByteArray());
+            Files.move(tmpFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Unable to write signature index " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Reads a count, checking it is no more than the bytes left, so a corrupt index can't cause a huge allocation.
+     */
+    private static int readCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalStateException("Signature index is corrupt");
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static long checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    private static String droidVersion() {
+        String version = BinarySignatureIdentifier.class.getPackage().getImplementationVersion();
+        return version != null ? version : "";
+    }
+
+    /**
+     * Receives the elements of the signature file XML in the namespace DROID reads them from, merging runs of
+     * character data, and passes them on to the model builder.
+     */
+    private static class XmlHandler extends DefaultHandler {
+        private final ModelBuilder builder;
+        private final StringBuilder text = new StringBuilder();
+
+        private XmlHandler(ModelBuilder builder) {
+            this.builder = builder;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            flushText();
+            String name = elementName(uri, localName, qName);
+            if (name == null) {
+                return;
+            }
+            Map<String, String> attributeValues = new LinkedHashMap<>();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String attributeName = elementName(attributes.getURI(i), attributes.getLocalName(i),
+                        attributes.getQName(i));
+                if (attributeName != null) {
+                    attributeValues.put(attributeName, attributes.getValue(i));
+                }
+            }
+            builder.startElement(name, attributeValues);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            flushText();
+            String name = elementName(uri, localName, qName);
+            if (name != null) {
+                builder.endElement(name);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+
+        private void flushText() {
+            if (text.length() > 0) {
+                builder.text(text.toString());
+                text.setLength(0);
+            }
+        }
+
+        private static String elementName(String uri, String localName, String qName) {
+            if (SignatureFileParser.SIGNATURE_FILE_NS.equals(uri)) {
+                return localName;
+            } else if ("".equals(uri)) {
+                return qName;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Builds the signature model from the elements of the signature file in the same way DROID's own model builder
+     * does, but looking up each element class and property method only once. The elements can also be recorded, to
+     * be written to an index.
+     */
+    private static class ModelBuilder {
+        private static final Method NO_METHOD;
+
+        static {
+            try {
+                NO_METHOD = Object.class.getMethod("toString");
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private final Map<String, Class<?>> elementClasses = new HashMap<>();
+        private final Map<String, Method> propertyMethods = new HashMap<>();
+        private final Deque<SimpleElement> stack = new ArrayDeque<>();
+        private SimpleElement lastElement;
+
+        private final boolean record;
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameIndexes = new HashMap<>();
+        private final ByteArrayOutputStream events = new ByteArrayOutputStream();
+        private final DataOutputStream eventOut = new DataOutputStream(events);
+
+        private ModelBuilder(boolean record) {
+            this.record = record;
+        }
+
+        private void startElement(String name, Map<String, String> attributes) {
+            SimpleElement element = newElement(name);
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                element.setAttributeValue(attribute.getKey(), attribute.getValue());
+            }
+            stack.push(element);
+
+            if (record) {
+                try {
+                    eventOut.writeByte(START_ELEMENT);
+                    eventOut.writeInt(nameIndex(name));
+                    eventOut.writeInt(attributes.size());
+                    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                        eventOut.writeInt(nameIndex(attribute.getKey()));
+                        writeString(eventOut, attribute.getValue());
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        private void text(String text) {
+            if (!stack.isEmpty()) {
+                stack.peek().setText(text);
+            }
+
+            if (record) {
+                try {
+                    eventOut.writeByte(TEXT);
+                    writeString(eventOut, text);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        private void endElement(String name) {
+            lastElement = stack.pop();
+            lastElement.completeElementContent();
+            if (!stack.isEmpty()) {
+                setProperty(name, stack.peek(), lastElement);
+            }
+
+            if (record) {
+                try {
+                    eventOut.writeByte(END_ELEMENT);
+                    eventOut.writeInt(nameIndex(name));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        private FFSignatureFile getSignatureFile() throws SignatureParseException {
+            if (!(lastElement instanceof FFSignatureFile)) {
+                throw new SignatureParseException("Signature file has no FFSignatureFile element", null);
+            }
+            return (FFSignatureFile) lastElement;
+        }
+
+        private SimpleElement newElement(String name) {
+            Class<?> elementClass = elementClasses.computeIfAbsent(name, n -> {
+                String elementPackage = "FileFormat".equals(n) || "FileFormatHit".equals(n)
+                        || "FileFormatCollection".equals(n) ? FORMAT_PACKAGE : SIGNATURE_PACKAGE;
+                try {
+                    Class<?> c = Class.forName(elementPackage + "." + n);
+                    return SimpleElement.class.isAssignableFrom(c) ? c : SimpleElement.class;
+                } catch (ClassNotFoundException e) {
+                    return SimpleElement.class;
+                }
+            });
+
+            try {
+                return (SimpleElement) elementClass.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                return new SimpleElement();
+            }
+        }
+
+        /*
+         * Sets the child as a property of the parent, using the first of add<Name>(child), set<Name>(child),
+         * add<Name>(String) and set<Name>(String) which the parent has. The String methods are given the trimmed text
+         * of the child. Children the parent has no method for are ignored.
+         */
+        private void setProperty(String name, SimpleElement parent, SimpleElement child) {
+            String key = parent.getClass().getName() + "/" + name + "/" + child.getClass().getName();
+            Method method = propertyMethods.computeIfAbsent(key, k -> {
+                for (Class<?> type : new Class<?>[] {child.getClass(), String.class}) {
+                    for (String prefix : new String[] {"add", "set"}) {
+                        try {
+                            return parent.getClass().getMethod(prefix + name, type);
+                        } catch (NoSuchMethodException e) {
+                            // Try the next candidate
+                        }
+                    }
+                }
+                return NO_METHOD;
+            });
+
+            if (method == NO_METHOD) {
+                return;
+            }
+
+            try {
+                Object value = method.getParameterTypes()[0] == String.class ? child.getText().trim() : child;
+                method.invoke(parent, value);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to set " + name + " on " + parent.getElementName(), e);
+            }
+        }
+
+        private int nameIndex(String name) {
+            Integer index = nameIndexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                nameIndexes.put(name, index);
+            }
+            return index;
+        }
+    }
+}
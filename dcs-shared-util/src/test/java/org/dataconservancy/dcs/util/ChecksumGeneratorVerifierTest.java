@@ -20,6 +20,8 @@ import java.io.InputStream;
 import java.lang.String;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
@@ -153,5 +155,82 @@ public class ChecksumGeneratorVerifierTest {
         assertTrue("The checksums don't match.",
                 ChecksumGeneratorVerifier.verifyChecksum(file1, ChecksumGeneratorVerifier.ALGORITHM_SHA1, file1SHA1checksum));
     }
-    
+
+    /**
+     * Verify that MD5 and SHA1 checksums generated from a single read of the stream match the expected values, and
+     * are returned in the order the algorithms were supplied
+     * @throws NoSuchAlgorithmException if the supplied algorithm is not recognized
+     */
+    @Test
+    public void testGenerateMultipleChecksums() throws NoSuchAlgorithmException {
+        List<String> algorithms = Arrays.asList(ChecksumGeneratorVerifier.ALGORITHM_SHA1, ChecksumGeneratorVerifier.ALGORITHM_MD5);
+        Map<String, String> checksums = ChecksumGeneratorVerifier.generateChecksums(algorithms, file1);
+        assertEquals(algorithms, Arrays.asList(checksums.keySet().toArray()));
+        assertEquals(file1SHA1checksum, checksums.get(ChecksumGeneratorVerifier.ALGORITHM_SHA1));
+        assertEquals(file1MD5checksum, checksums.get(ChecksumGeneratorVerifier.ALGORITHM_MD5));
+    }
+
+    /**
+     * Verify that we can generate correct MD5 and SHA1 checksum byte arrays from a single read of the stream
+     * @throws NoSuchAlgorithmException if the supplied algorithm is not recognized
+     */
+    @Test
+    public void testGenerateMultipleChecksumsAsBytes() throws NoSuchAlgorithmException {
+        Map<String, byte[]> checksums = ChecksumGeneratorVerifier.generateChecksumsAsBytes(
+                Arrays.asList(ChecksumGeneratorVerifier.ALGORITHM_MD5, ChecksumGeneratorVerifier.ALGORITHM_SHA1), file1);
+        assertTrue(Arrays.equals(file1MD5checksumBytes, checksums.get(ChecksumGeneratorVerifier.ALGORITHM_MD5)));
+        assertTrue(Arrays.equals(file1SHA1checksumBytes, checksums.get(ChecksumGeneratorVerifier.ALGORITHM_SHA1)));
+    }
+
+    /**
+     * Verify that we get the expected exception when one of several algorithms is bogus
+     * @throws NoSuchAlgorithmException if the supplied algorithm is not recognized
+     */
+    @Test(expected=NoSuchAlgorithmException.class)
+    public void testMultipleChecksumsBadAlgorithm() throws NoSuchAlgorithmException {
+        ChecksumGeneratorVerifier.generateChecksums(Arrays.asList(ChecksumGeneratorVerifier.ALGORITHM_MD5, "BogusAlgorithm"), file1);
+    }
+
+    /**
+     * Verify that digests are converted to lower case hex strings, including leading zeros
+     */
+    @Test
+    public void testToHexString() {
+        assertEquals(file1MD5checksum, ChecksumGeneratorVerifier.toHexString(file1MD5checksumBytes));
+        assertEquals("000fa0ff", ChecksumGeneratorVerifier.toHexString(new byte[] {0x00, 0x0f, (byte) 0xa0, (byte) 0xff}));
+        assertEquals("", ChecksumGeneratorVerifier.toHexString(new byte[0]));
+    }
+
+    /**
+     * Verify the xxHash fingerprint against known values, and that it is the same however the content is read
+     * @throws NoSuchAlgorithmException if the supplied algorithm is not recognized
+     */
+    @Test
+    public void testXxHash64() throws NoSuchAlgorithmException {
+        assertEquals(0xef46db3751d8e999L, XxHash64.hash(new byte[0]));
+        assertEquals(0x44bc2cf5ad770999L, XxHash64.hash("abc".getBytes()));
+        assertEquals("fbcea83c8a378bf1", ChecksumGeneratorVerifier.toHexString(ChecksumGeneratorVerifier.generateChecksumAsBytes(
+            ChecksumGeneratorVerifier.ALGORITHM_XXH64, "Nobody inspects the spammish repetition".getBytes())));
+
+        byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        XxHash64 pieces = new XxHash64();
+        for (int i = 0; i < content.length; i += 7) {
+            pieces.update(content, i, Math.min(7, content.length - i));
+        }
+        XxHash64 bytes = new XxHash64();
+        for (byte b : content) {
+            bytes.update(b);
+        }
+        assertEquals(XxHash64.hash(content), pieces.getValue());
+        assertEquals(XxHash64.hash(content), bytes.getValue());
+
+        Map<String, String> checksums = ChecksumGeneratorVerifier.generateChecksums(
+            Arrays.asList(ChecksumGeneratorVerifier.ALGORITHM_XXH64, ChecksumGeneratorVerifier.ALGORITHM_MD5), file1);
+        assertEquals(file1MD5checksum, checksums.get(ChecksumGeneratorVerifier.ALGORITHM_MD5));
+        assertEquals(String.format("%016x", XxHash64.hash(file1Bytes)), checksums.get(ChecksumGeneratorVerifier.ALGORITHM_XXH64));
+    }
+
 }
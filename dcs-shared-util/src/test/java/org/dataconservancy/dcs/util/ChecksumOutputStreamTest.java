@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.dcs.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumOutputStreamTest {
+
+    private String file1MD5checksum = "1e75d5298fd12184f34bad372a81b3e6";
+    private String file1SHA1checksum = "428deee4e21cd468d81595597befdc9f21fdf8ee";
+
+    /**
+     * Tests that content written through the stream reaches the underlying stream, and that the checksums and byte
+     * count of the content are captured on the way.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    @Test
+    public void testChecksumsOfWrittenContent() throws IOException, NoSuchAlgorithmException {
+        byte[] content = IOUtils.toByteArray(ChecksumOutputStreamTest.class.getResourceAsStream("/file.txt"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ChecksumOutputStream cos = new ChecksumOutputStream(out, Arrays.asList(
+                ChecksumGeneratorVerifier.ALGORITHM_SHA1, ChecksumGeneratorVerifier.ALGORITHM_MD5));
+        cos.write(content[0]);
+        cos.write(content, 1, content.length - 1);
+        cos.close();
+
+        assertArrayEquals(content, out.toByteArray());
+        assertEquals(content.length, cos.getByteCount());
+
+        Map<String, String> checksums = cos.getChecksums();
+        assertEquals(Arrays.asList(ChecksumGeneratorVerifier.ALGORITHM_SHA1, ChecksumGeneratorVerifier.ALGORITHM_MD5),
+                Arrays.asList(checksums.keySet().toArray()));
+        assertEquals(file1SHA1checksum, checksums.get(ChecksumGeneratorVerifier.ALGORITHM_SHA1));
+        assertEquals(file1MD5checksum, checksums.get(ChecksumGeneratorVerifier.ALGORITHM_MD5));
+    }
+
+    /**
+     * Tests that an unknown algorithm is rejected when the stream is created.
+     * @throws NoSuchAlgorithmException
+     */
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void testBadAlgorithm() throws NoSuchAlgorithmException {
+        new ChecksumOutputStream(new ByteArrayOutputStream(), Collections.singletonList("fake"));
+    }
+}
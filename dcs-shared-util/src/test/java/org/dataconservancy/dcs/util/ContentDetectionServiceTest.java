@@ -18,11 +18,17 @@ package org.dataconservancy.dcs.util;
 import org.dataconservancy.dcs.model.DetectedFormat;
 import org.dataconservancy.dcs.util.droid.BaseFileSetUpTest;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
@@ -40,6 +46,9 @@ public class ContentDetectionServiceTest extends BaseFileSetUpTest {
 
     private static ContentDetectionService underTest;
 
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
     @BeforeClass
     public static void setUpStaticObjects() throws URISyntaxException {
         underTest = ContentDetectionService.getInstance();
@@ -204,6 +213,65 @@ public class ContentDetectionServiceTest extends BaseFileSetUpTest {
         assertEquals(XGZIP_MIMETYPE, detectedFormats.get(0).getMimeType());
     }
 
+    /**
+     * Tests that a bounded scan finds signatures at the beginning of a file, and still identifies containers.
+     */
+    @Test
+    public void testBoundedScanDetectsFormats() {
+        FormatScanPolicy policy = new FormatScanPolicy(1024, Collections.<String>emptyList());
+
+        assertEquals(PNG_MIMETYPE, underTest.detectFormats(PNG_FILE, policy).get(0).getMimeType());
+        assertEquals(ZIP_MIMETYPE, underTest.detectFormats(ZIP_FILE, policy).get(0).getMimeType());
+        assertEquals(PNG_MIMETYPE, underTest.detectFormats(PNG_TXT_FILE, policy).get(0).getMimeType());
+    }
+
+    /**
+     * Tests that a bounded scan doesn't read the middle of a file, so a signature which is only found there is
+     * missed, while a full scan finds it.
+     */
+    @Test
+    public void testBoundedScanDoesNotReadMiddleOfFile() throws Exception {
+        File file = tmpFolder.newFile("middle");
+        byte[] padding = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            out.write(padding);
+            out.write(Files.readAllBytes(PNG_FILE.toPath()));
+            out.write(padding);
+        }
+
+        FormatScanPolicy policy = new FormatScanPolicy(1024, Collections.<String>emptyList());
+        for (DetectedFormat format : underTest.detectFormats(file, policy)) {
+            assertFalse(PNG_MIMETYPE.equals(format.getMimeType()));
+        }
+        assertEquals(mimeTypes(underTest.detectFormats(file)),
+                mimeTypes(underTest.detectFormats(file, FormatScanPolicy.FULL_SCAN)));
+    }
+
+    /**
+     * Tests that a file with a trusted extension is identified by its extension rather than its content.
+     */
+    @Test
+    public void testTrustedExtensionIsNotScanned() {
+        FormatScanPolicy policy = new FormatScanPolicy(-1, Arrays.asList(".TXT", "tar"));
+
+        assertTrue(policy.isTrusted(PNG_TXT_FILE.getName()));
+        assertFalse(policy.isTrusted(PNG_FILE.getName()));
+        assertFalse(policy.isTrusted(JPG_FILE_NO_EXTENSION.getName()));
+
+        List<DetectedFormat> formats = underTest.detectFormats(PNG_TXT_FILE, policy);
+        assertEquals(mimeTypes(underTest.detectFormats(PNG_TXT_FILE.getName())), mimeTypes(formats));
+        for (DetectedFormat format : formats) {
+            assertFalse(PNG_MIMETYPE.equals(format.getMimeType()));
+        }
+    }
+
+    private List<String> mimeTypes(List<DetectedFormat> formats) {
+        List<String> mimeTypes = new ArrayList<>();
+        for (DetectedFormat format : formats) {
+            mimeTypes.add(format.getMimeType());
+        }
+        return mimeTypes;
+    }
 
     /**
      * This test insures that the Droid version information contained in the droid-version.properties file is
@@ -22,12 +22,19 @@ import uk.gov.nationalarchives.droid.core.signature.FileFormat;
 
 import java.io.File;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.TestCase.assertNull;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -78,4 +85,74 @@ public class DroidIdentifierTest extends BaseFileSetUpTest {
         formatList = droidIdentifier.getFileFormatByExtension("willard");
         assertNull(formatList);
     }
+
+    /**
+     * Test that extension lookups ignore case and give the same unmodifiable list each time, and that formats can be
+     * looked up by PUID
+     */
+    @Test
+    public void testIndexedFormatLookups() throws Exception {
+        DroidIdentifier droidIdentifier = new DroidIdentifier();
+
+        List<FileFormat> formatList = droidIdentifier.getFileFormatByExtension("png");
+        assertNotNull(formatList);
+        assertSame(formatList, droidIdentifier.getFileFormatByExtension("PNG"));
+        assertSame(formatList, droidIdentifier.getFileFormatByExtension("Png"));
+        try {
+            formatList.clear();
+            fail("Expected the indexed formats to be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        FileFormat format = droidIdentifier.getFileFormatByPuid("fmt/11");
+        assertNotNull(format);
+        assertEquals("image/png", format.getMimeType());
+        assertTrue(formatList.contains(format));
+
+        assertNull(droidIdentifier.getFileFormatByPuid("fmt/not-a-format"));
+        assertNull(droidIdentifier.getFileFormatByPuid(null));
+        assertNull(droidIdentifier.getFileFormatByExtension(null));
+    }
+
+    /**
+     * Test that a single identifier gives the same results when used from many threads at once as it does when used
+     * from one.
+     */
+    @Test
+    public void testConcurrentDetectFormat() throws Exception {
+        DroidIdentifier droidIdentifier = new DroidIdentifier();
+        List<File> files = Arrays.asList(PNG_FILE, TAR_FILE, TAR_GZ_FILE, ZIP_FILE, TEXT_FILE, JPG_FILE,
+                PNG_TXT_FILE, WAV_FILE, JPG_FILE_NO_EXTENSION);
+
+        List<List<String>> expected = new ArrayList<>();
+        for (File file : files) {
+            expected.add(puids(droidIdentifier.detectFormat(file)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                for (File file : files) {
+                    futures.add(executor.submit(() -> puids(droidIdentifier.detectFormat(file))));
+                }
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(files.get(i % files.size()).getName(), expected.get(i % files.size()),
+                        futures.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<String> puids(IdentificationResultCollection results) {
+        List<String> puids = new ArrayList<>();
+        for (IdentificationResult result : results.getResults()) {
+            puids.add(result.getPuid());
+        }
+        return puids;
+    }
 }
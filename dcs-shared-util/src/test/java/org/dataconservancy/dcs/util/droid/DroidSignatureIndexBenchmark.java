@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.dcs.util.droid;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Compares the time taken to load the DROID signatures from the compiled index with the time DROID takes to parse the
+ * signature file. This is a benchmark rather than a test, as wall-clock times depend on the machine running it; run
+ * it from the test classpath with an optional number of rounds as its argument.
+ */
+public class DroidSignatureIndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        DroidSignatureFileManager fileManager = new DroidSignatureFileManager();
+        String name = fileManager.getSignatureFileName();
+        byte[] signatureXml = fileManager.getSignatureFileContent();
+
+        File workDirectory = Files.createTempDirectory("droid-index-benchmark").toFile();
+        File signatureFile = new File(workDirectory, name);
+        DroidSignatureIndex index = new DroidSignatureIndex(new File(workDirectory, "index"));
+        index.load(name, signatureXml);
+
+        long droidTime = Long.MAX_VALUE;
+        long indexTime = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            DroidSignatureIndexTest.parseWithDroid(signatureFile, signatureXml);
+            droidTime = Math.min(droidTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            index.load(name, signatureXml);
+            indexTime = Math.min(indexTime, System.nanoTime() - start);
+        }
+
+        System.out.printf("Best of %d: %d ms parsing the signature file, %d ms loading the index%n", rounds,
+                droidTime / 1000000, indexTime / 1000000);
+
+        Files.deleteIfExists(index.getIndexFile(name).toPath());
+        Files.deleteIfExists(new File(workDirectory, "index").toPath());
+        Files.deleteIfExists(signatureFile.toPath());
+        Files.deleteIfExists(workDirectory.toPath());
+    }
+}
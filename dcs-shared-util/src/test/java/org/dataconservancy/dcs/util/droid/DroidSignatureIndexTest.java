@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dataconservancy.dcs.util.droid;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.gov.nationalarchives.droid.core.BinarySignatureIdentifier;
+import uk.gov.nationalarchives.droid.core.interfaces.IdentificationRequest;
+import uk.gov.nationalarchives.droid.core.interfaces.IdentificationResult;
+import uk.gov.nationalarchives.droid.core.interfaces.IdentificationResultCollection;
+import uk.gov.nationalarchives.droid.core.interfaces.RequestIdentifier;
+import uk.gov.nationalarchives.droid.core.interfaces.resource.FileSystemIdentificationRequest;
+import uk.gov.nationalarchives.droid.core.interfaces.resource.RequestMetaData;
+import uk.gov.nationalarchives.droid.core.signature.FileFormat;
+import uk.gov.nationalarchives.droid.core.signature.droid6.FFSignatureFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the compiled DROID signature index.
+ */
+public class DroidSignatureIndexTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private DroidSignatureFileManager fileManager;
+    private String name;
+    private byte[] signatureXml;
+
+    @Before
+    public void setUp() {
+        fileManager = new DroidSignatureFileManager();
+        name = fileManager.getSignatureFileName();
+        signatureXml = fileManager.getSignatureFileContent();
+    }
+
+    /**
+     * Tests that signatures loaded from the XML and then from the written index are the same as those DROID parses.
+     */
+    @Test
+    public void testIndexMatchesDroidParse() throws Exception {
+        FFSignatureFile expected = parseWithDroid();
+        DroidSignatureIndex index = new DroidSignatureIndex(tmpFolder.newFolder("index"));
+
+        FFSignatureFile fromXml = index.load(name, signatureXml);
+        assertTrue(index.getIndexFile(name).exists());
+        assertSameSignatures(expected, fromXml);
+
+        FFSignatureFile fromIndex = index.load(name, signatureXml);
+        assertSameSignatures(expected, fromIndex);
+    }
+
+    /**
+     * Tests that a corrupt index is ignored and written again.
+     */
+    @Test
+    public void testCorruptIndexIsRewritten() throws Exception {
+        DroidSignatureIndex index = new DroidSignatureIndex(tmpFolder.newFolder("index"));
+        index.load(name, signatureXml);
+        File indexFile = index.getIndexFile(name);
+        byte[] good = Files.readAllBytes(indexFile.toPath());
+
+        byte[] corrupt = good.clone();
+        for (int i = 64; i < corrupt.length; i += 7) {
+            corrupt[i] = (byte) 0xFF;
+        }
+        Files.write(indexFile.toPath(), corrupt);
+
+        assertSameSignatures(parseWithDroid(), index.load(name, signatureXml));
+        assertArrayEquals(good, Files.readAllBytes(indexFile.toPath()));
+    }
+
+    /**
+     * Tests that an index compiled from a different signature file is not used.
+     */
+    @Test
+    public void testStaleIndexIsRecompiled() throws Exception {
+        DroidSignatureIndex index = new DroidSignatureIndex(tmpFolder.newFolder("index"));
+        String xml = new String(signatureXml, "UTF-8");
+        String firstFormat = "Name=\"" + parseWithDroid().getFileFormat(0).getName() + "\"";
+        assertTrue(xml.contains(firstFormat));
+
+        FFSignatureFile renamed = index.load(name,
+                xml.replaceFirst(firstFormat, "Name=\"Renamed Format\"").getBytes("UTF-8"));
+        assertEquals("Renamed Format", renamed.getFileFormat(0).getName());
+
+        FFSignatureFile signatures = index.load(name, signatureXml);
+
+        assertFalse("Renamed Format".equals(signatures.getFileFormat(0).getName()));
+        assertSameSignatures(parseWithDroid(), signatures);
+    }
+
+    /**
+     * Tests that a new index directory is created readable only by its owner, and that an index is neither read from
+     * nor written to a directory which others can write to.
+     */
+    @Test
+    public void testUntrustedDirectoryIsNotUsed() throws Exception {
+        File directory = new File(tmpFolder.getRoot(), "index");
+        Assume.assumeTrue(directory.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+
+        DroidSignatureIndex index = new DroidSignatureIndex(directory);
+        index.load(name, signatureXml);
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(directory.toPath()));
+        assertTrue(index.getIndexFile(name).exists());
+
+        Files.write(index.getIndexFile(name).toPath(), new byte[] {1, 2, 3});
+        Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        assertSameSignatures(parseWithDroid(), index.load(name, signatureXml));
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(index.getIndexFile(name).toPath()));
+    }
+
+    /**
+     * Tests that DROID identifies the sample files the same way with signatures loaded from the index as with those it
+     * parses itself.
+     */
+    @Test
+    public void testIndexGivesSameIdentifications() throws Exception {
+        DroidSignatureIndex index = new DroidSignatureIndex(tmpFolder.newFolder("index"));
+        index.load(name, signatureXml);
+        BinarySignatureIdentifier fromIndex = identifierWith(index.load(name, signatureXml));
+        BinarySignatureIdentifier fromDroid = identifierWith(parseWithDroid());
+
+        File[] sampleFiles = new File(getClass().getResource("/SampleFiles").toURI()).listFiles();
+        assertTrue(sampleFiles != null && sampleFiles.length > 0);
+
+        int identified = 0;
+        for (File file : sampleFiles) {
+            List<String> expected = identify(fromDroid, file);
+            assertEquals(file.getName(), expected, identify(fromIndex, file));
+            if (!expected.isEmpty()) {
+                identified++;
+            }
+        }
+        assertTrue(identified > 0);
+    }
+
+    static FFSignatureFile parseWithDroid(File signatureFile, byte[] signatureXml) throws Exception {
+        Files.write(signatureFile.toPath(), signatureXml);
+
+        BinarySignatureIdentifier droid = new BinarySignatureIdentifier();
+        droid.setSignatureFile(signatureFile.getPath());
+        droid.init();
+
+        Field sigFileField = BinarySignatureIdentifier.class.getDeclaredField("sigFile");
+        sigFileField.setAccessible(true);
+        return (FFSignatureFile) sigFileField.get(droid);
+    }
+
+    private FFSignatureFile parseWithDroid() throws Exception {
+        return parseWithDroid(tmpFolder.newFile(), signatureXml);
+    }
+
+    private BinarySignatureIdentifier identifierWith(FFSignatureFile signatureFile) throws Exception {
+        BinarySignatureIdentifier droid = new BinarySignatureIdentifier();
+        Field sigFileField = BinarySignatureIdentifier.class.getDeclaredField("sigFile");
+        sigFileField.setAccessible(true);
+        sigFileField.set(droid, signatureFile);
+        return droid;
+    }
+
+    private List<String> identify(BinarySignatureIdentifier droid, File file) throws Exception {
+        RequestMetaData metadata = new RequestMetaData(file.length(), file.lastModified(), file.getName());
+        IdentificationRequest request = new FileSystemIdentificationRequest(metadata,
+                new RequestIdentifier(file.toURI()));
+        try (FileInputStream in = new FileInputStream(file)) {
+            request.open(in);
+            IdentificationResultCollection results = droid.matchBinarySignatures(request);
+            droid.removeLowerPriorityHits(results);
+
+            List<String> puids = new ArrayList<>();
+            for (IdentificationResult result : results.getResults()) {
+                puids.add(result.getPuid());
+            }
+            return puids;
+        } finally {
+            request.close();
+        }
+    }
+
+    private void assertSameSignatures(FFSignatureFile expected, FFSignatureFile actual) {
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getSignatures().size(), actual.getSignatures().size());
+        assertEquals(expected.getNumFileFormats(), actual.getNumFileFormats());
+
+        for (int i = 0; i < expected.getNumFileFormats(); i++) {
+            FileFormat expectedFormat = expected.getFileFormat(i);
+            FileFormat actualFormat = actual.getFileFormat(i);
+            assertEquals(expectedFormat.getPUID(), actualFormat.getPUID());
+            assertEquals(expectedFormat.getName(), actualFormat.getName());
+            assertEquals(expectedFormat.getMimeType(), actualFormat.getMimeType());
+            assertEquals(expectedFormat.getExtensions(), actualFormat.getExtensions());
+            assertEquals(expectedFormat.getNumInternalSignatures(), actualFormat.getNumInternalSignatures());
+            assertEquals(expectedFormat.getFormatIdsHasPriorityOver(), actualFormat.getFormatIdsHasPriorityOver());
+        }
+        for (int i = 0; i < expected.getSignatures().size(); i++) {
+            assertEquals(expected.getSignatures().get(i).getID(), actual.getSignatures().get(i).getID());
+            assertEquals(expected.getSignatures().get(i).getNumFileFormats(),
+                    actual.getSignatures().get(i).getNumFileFormats());
+        }
+    }
+}